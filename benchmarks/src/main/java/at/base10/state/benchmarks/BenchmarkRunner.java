@@ -0,0 +1,52 @@
+package at.base10.state.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Runs the benchmarks with the GC profiler and writes the results as JSON, so the allocation rates
+ * are tracked together with the times.
+ * <p>
+ * Accepts the usual JMH command line options, including {@code -l} and {@code -h}. The result file
+ * defaults to {@code jmh-result.json} and can be changed with {@code -rff}.
+ * </p>
+ * <p>
+ * The forked JVMs log with {@code log4j2-benchmarks.xml}, which only logs warnings, so the debug
+ * log of every transition does not end up in the measurements.
+ * </p>
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        var commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        if (commandLine.shouldList() || commandLine.shouldListWithParams()) {
+            new Runner(commandLine).list();
+            return;
+        }
+        var options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .jvmArgsPrepend("-Dlog4j2.configurationFile=log4j2-benchmarks.xml")
+                .resultFormat(ResultFormatType.JSON);
+        if (commandLine.getResult().hasValue()) {
+            options.result(commandLine.getResult().get());
+        } else {
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
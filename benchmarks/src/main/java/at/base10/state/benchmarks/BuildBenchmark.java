@@ -0,0 +1,85 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StateMachineBuilder;
+import at.base10.state.StateMachineDefinition;
+import at.base10.state.StateScope;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating machines through {@link StateMachineBuilder#build(Class)} with creating them
+ * from a {@link StateMachineDefinition} compiled once, with a definition that creates the
+ * states lazily, so only the initial state is created with the machine, and with a definition
+ * that shares the states which do not refer to their machine.
+ * <p>
+ * The GC profiler of {@link BenchmarkRunner} shows the bytes allocated per machine
+ * ({@code gc.alloc.rate.norm}).
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+
+    @Param({"2", "8"})
+    int states;
+
+    private StateMachineBuilder<OrderState> builder;
+    private StateMachineDefinition<OrderState> definition;
+    private StateMachineDefinition<OrderState> lazy;
+    private StateMachineDefinition<OrderState> shared;
+
+    @Setup
+    public void setUp() {
+        builder = StateMachine.builder(OrderState.class).register(Workflow.factories(states));
+        definition = builder.compile();
+        var lazyBuilder = StateMachine.builder(OrderState.class).lazy();
+        var factories = Workflow.factories(states);
+        for (int i = 0; i < states; i++) {
+            lazyBuilder.register(Workflow.STATES.get(i), factories.get(i));
+        }
+        lazy = lazyBuilder.compile();
+        var sharedBuilder = StateMachine.builder(OrderState.class).register(factories.subList(0, Math.min(2, states)));
+        for (int i = 2; i < states; i++) {
+            sharedBuilder.register(factories.get(i), StateScope.SHARED);
+        }
+        shared = sharedBuilder.compile();
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> build() {
+        return builder.build(Created.class);
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> newInstance() {
+        return definition.newInstance(Created.class);
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> lazyInstance() {
+        return lazy.newInstance(Created.class);
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> sharedInstance() {
+        return shared.newInstance(Created.class);
+    }
+}
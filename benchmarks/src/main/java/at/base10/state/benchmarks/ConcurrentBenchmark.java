@@ -0,0 +1,78 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StateMachineDefinition;
+import at.base10.state.benchmarks.Workflow.AwaitingPayment;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures transitions made by several threads at once: on one shared concurrent machine, with
+ * {@link StateMachine#compareAndTransition(Class, Class)} on a shared machine, and on one machine
+ * per thread created from a shared definition.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ConcurrentBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        StateMachineDefinition<OrderState> definition;
+        StateMachine<OrderState> stateMachine;
+
+        @Setup
+        public void setUp() {
+            definition = StateMachine.builder(OrderState.class)
+                    .register(Workflow.factories(2))
+                    .concurrent()
+                    .compile();
+            stateMachine = definition.newInstance(Created.class);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Own {
+        StateMachine<OrderState> stateMachine;
+        boolean created;
+
+        @Setup
+        public void setUp(Shared shared) {
+            stateMachine = shared.definition.newInstance(Created.class);
+        }
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> sharedTransition(Own own, Shared shared) {
+        own.created = !own.created;
+        return shared.stateMachine.transitionToState(own.created ? Created.class : AwaitingPayment.class);
+    }
+
+    @Benchmark
+    public boolean sharedCompareAndTransition(Shared shared) {
+        return shared.stateMachine.compareAndTransition(Created.class, AwaitingPayment.class)
+                || shared.stateMachine.compareAndTransition(AwaitingPayment.class, Created.class);
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> ownTransition(Own own) {
+        own.created = !own.created;
+        return own.stateMachine.transitionToState(own.created ? Created.class : AwaitingPayment.class);
+    }
+}
@@ -0,0 +1,91 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StateMachineDefinition;
+import at.base10.state.StateMachinePopulation;
+import at.base10.state.TransitionJournal;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import at.base10.state.benchmarks.Workflow.Paid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of recording the transitions of a {@link StateMachinePopulation} in a
+ * {@link TransitionJournal}.
+ * <p>
+ * A {@code syncInterval} of -1 runs without a journal, 0 records without forcing the records to
+ * storage, and larger values force them in groups of that size. When the journal is full, it is
+ * compacted into a discarded snapshot, so the cost of compaction is spread over the transitions.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+
+    private static final int MACHINES = 10_000;
+    private static final int CAPACITY = 1 << 20;
+
+    @Param({"-1", "0", "1000"})
+    int syncInterval;
+
+    private Path directory;
+    private TransitionJournal<OrderState> journal;
+    private StateMachinePopulation<OrderState> population;
+    private int states;
+    private int machine;
+    private int ordinal;
+
+    @Setup
+    public void setUp() throws IOException {
+        StateMachineDefinition<OrderState> definition = StateMachine.builder(OrderState.class)
+                .register(Workflow.factories(Workflow.STATES.size()).subList(2, Workflow.STATES.size()))
+                .compile();
+        population = definition.newPopulation(MACHINES);
+        population.addAll(MACHINES, Paid.class);
+        states = definition.getStateClasses().size();
+        directory = Files.createTempDirectory("journal-benchmark");
+        if (syncInterval >= 0) {
+            journal = definition.openJournal(directory.resolve("population.journal"), CAPACITY, syncInterval);
+            population.attachJournal(journal);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        population.detachJournal();
+        Files.deleteIfExists(directory.resolve("population.journal"));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int transition() throws IOException {
+        if (journal != null && journal.size() == CAPACITY) {
+            journal.compact(population, Channels.newChannel(OutputStream.nullOutputStream()));
+        }
+        int machine = this.machine = (this.machine + 1) % MACHINES;
+        int ordinal = this.ordinal = (this.ordinal + 1) % states;
+        population.transition(machine, ordinal);
+        return machine;
+    }
+}
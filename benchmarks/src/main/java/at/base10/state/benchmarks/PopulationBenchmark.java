@@ -0,0 +1,102 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StateMachineDefinition;
+import at.base10.state.StateMachinePopulation;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import at.base10.state.benchmarks.Workflow.Paid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the heap used by many machines created with {@link StateMachineDefinition#newInstance(Class)}
+ * with a {@link StateMachinePopulation} of the same size.
+ * <p>
+ * Both benchmarks keep all machines reachable until the operation returns, so the bytes allocated
+ * per operation ({@code gc.alloc.rate.norm}) are the footprint of {@code machines} machines. Only
+ * the stateless states of the {@link Workflow} are used, because they can be shared.
+ * </p>
+ * <p>
+ * {@link #transition(Transitions)} measures the cost of keeping a population indexed by state.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PopulationBenchmark {
+
+    @Param({"10000"})
+    int machines;
+
+    private StateMachineDefinition<OrderState> definition;
+
+    @Setup
+    public void setUp() {
+        definition = StateMachine.builder(OrderState.class)
+                .register(Workflow.factories(Workflow.STATES.size()).subList(2, Workflow.STATES.size()))
+                .compile();
+    }
+
+    @Benchmark
+    public Object instances() {
+        var instances = new Object[machines];
+        for (int i = 0; i < machines; i++) {
+            instances[i] = definition.newInstance(Paid.class);
+        }
+        return instances;
+    }
+
+    @Benchmark
+    public StateMachinePopulation<OrderState> population() {
+        var population = definition.newPopulation(machines);
+        population.addAll(machines, Paid.class);
+        return population;
+    }
+
+    /**
+     * A population whose machines are transitioned one after the other, with or without the
+     * index by state.
+     */
+    @State(Scope.Benchmark)
+    public static class Transitions {
+
+        @Param({"false", "true"})
+        boolean indexed;
+
+        StateMachinePopulation<OrderState> population;
+        int states;
+        int machine;
+        int ordinal;
+
+        @Setup
+        public void setUp(PopulationBenchmark benchmark) {
+            population = benchmark.definition.newPopulation(benchmark.machines, indexed);
+            population.addAll(benchmark.machines, Paid.class);
+            states = benchmark.definition.getStateClasses().size();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int transition(Transitions transitions) {
+        var population = transitions.population;
+        int machine = transitions.machine = (transitions.machine + 1) % population.size();
+        int ordinal = transitions.ordinal = (transitions.ordinal + 1) % transitions.states;
+        population.transition(machine, ordinal);
+        return machine;
+    }
+}
@@ -0,0 +1,85 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.ContextAwareState;
+import at.base10.state.StateMachine;
+import at.base10.state.benchmarks.Workflow.AwaitingPayment;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares calling the current state through {@link StateMachine#asState()} with a
+ * {@link Proxy reflective proxy}, a hand-written {@link ContextAwareState} delegate and a direct
+ * call on {@link StateMachine#currentState()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProxyBenchmark {
+
+    private StateMachine<OrderState> stateMachine;
+    private OrderState generated;
+    private OrderState reflective;
+    private OrderState handWritten;
+    private int value;
+
+    @Setup
+    public void setUp() {
+        stateMachine = StateMachine.builder(OrderState.class)
+                .register(Workflow.factories(2))
+                .build(Created.class);
+        generated = stateMachine.asState();
+        reflective = (OrderState) Proxy.newProxyInstance(OrderState.class.getClassLoader(),
+                new Class<?>[]{OrderState.class},
+                (proxy, method, args) -> method.invoke(stateMachine.currentState(), args));
+        handWritten = new Delegate(stateMachine);
+        // the current state changes between the calls, so the call sites see two receiver types
+        stateMachine.transitionToState(AwaitingPayment.class);
+    }
+
+    @Benchmark
+    public int asState() {
+        return generated.handle(value++);
+    }
+
+    @Benchmark
+    public int reflectiveProxy() {
+        return reflective.handle(value++);
+    }
+
+    @Benchmark
+    public int contextAwareState() {
+        return handWritten.handle(value++);
+    }
+
+    @Benchmark
+    public int direct() {
+        return stateMachine.currentState().handle(value++);
+    }
+
+    private static final class Delegate extends ContextAwareState<OrderState> implements OrderState {
+        private Delegate(StateMachine<OrderState> stateMachine) {
+            super(stateMachine);
+        }
+
+        @Override
+        public int handle(int value) {
+            return stateMachine.currentState().handle(value);
+        }
+    }
+}
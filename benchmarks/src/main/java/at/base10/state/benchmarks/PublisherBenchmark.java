@@ -0,0 +1,77 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StatePublisher;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import at.base10.state.benchmarks.Workflow.Paid;
+import at.base10.state.observer.StateChangeEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a transition with a {@link StatePublisher} subscriber that requested an unbounded
+ * number of state changes, compared with one that requested none, whose buffer conflates every
+ * state change into the latest one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublisherBenchmark {
+
+    @Param({"unbounded", "none"})
+    String demand;
+
+    private StateMachine<OrderState> stateMachine;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        stateMachine = StateMachine.builder(OrderState.class)
+                .register(Workflow.factories(Workflow.STATES.size()))
+                .build(Created.class);
+        stateMachine.publisher(1, StatePublisher.OverflowPolicy.CONFLATE).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                if (demand.equals("unbounded")) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+            }
+
+            @Override
+            public void onNext(StateChangeEvent<OrderState> item) {
+                blackhole.consume(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new IllegalStateException(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> transition() {
+        return stateMachine.transitionToState(
+                stateMachine.currentState() instanceof Created ? Paid.class : Created.class);
+    }
+}
@@ -0,0 +1,125 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StateMachineDefinition;
+import at.base10.state.StateMachineRegistry;
+import at.base10.state.benchmarks.Workflow.AwaitingPayment;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures four threads transitioning machines addressed by id: through a
+ * {@link StateMachineRegistry} with 1, 2 or 4 shards, compared with machines kept in a
+ * {@link ConcurrentHashMap} and locked by the caller. Each invocation submits a batch of
+ * transitions for consecutive ids and waits for all of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class RegistryBenchmark {
+
+    private static final int IDS = 4096;
+    private static final int BATCH = 64;
+
+    @State(Scope.Benchmark)
+    public static class Sharded {
+        @Param({"1", "2", "4"})
+        int shards;
+
+        StateMachineRegistry<Integer, OrderState> registry;
+
+        @Setup
+        public void setUp() {
+            var definition = StateMachine.builder(OrderState.class)
+                    .register(Workflow.factories(2))
+                    .compile();
+            registry = StateMachineRegistry.start(definition, Created.class, shards);
+        }
+
+        @TearDown
+        public void tearDown() {
+            registry.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Locked {
+        StateMachineDefinition<OrderState> definition;
+        Map<Integer, StateMachine<OrderState>> machines = new ConcurrentHashMap<>();
+
+        @Setup
+        public void setUp() {
+            definition = StateMachine.builder(OrderState.class)
+                    .register(Workflow.factories(2))
+                    .compile();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<OrderState>[] results = new CompletableFuture[BATCH];
+        int next = THREADS.getAndIncrement() * IDS / 4;
+
+        int nextId() {
+            return next++ % IDS;
+        }
+
+        Class<? extends OrderState> target(int id) {
+            return (next / IDS + id) % 2 == 0 ? AwaitingPayment.class : Created.class;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public OrderState registry(Sharded sharded, Caller caller) {
+        for (int i = 0; i < BATCH; i++) {
+            int id = caller.nextId();
+            caller.results[i] = sharded.registry.submitTransition(id, caller.target(id));
+        }
+        OrderState state = null;
+        for (var result : caller.results) {
+            state = result.join();
+        }
+        return state;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public OrderState lockedMap(Locked locked, Caller caller) {
+        OrderState state = null;
+        for (int i = 0; i < BATCH; i++) {
+            int id = caller.nextId();
+            var stateMachine = locked.machines.computeIfAbsent(id, key -> locked.definition.newInstance(Created.class));
+            synchronized (stateMachine) {
+                state = stateMachine.transitionToState(caller.target(id)).currentState();
+            }
+        }
+        return state;
+    }
+}
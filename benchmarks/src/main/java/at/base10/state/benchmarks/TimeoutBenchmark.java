@@ -0,0 +1,71 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateMachine;
+import at.base10.state.StateMachineBuilder;
+import at.base10.state.TimerWheel;
+import at.base10.state.benchmarks.Workflow.AwaitingPayment;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.Expired;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a transition that schedules or cancels a state timeout on a {@link TimerWheel}, while
+ * 10,000 machines have a timeout pending, compared with the same transition without timeouts.
+ * <p>
+ * The machines alternate between {@code Created} and {@code AwaitingPayment}, which times out
+ * after 15 minutes, so every transition schedules or cancels a timeout that never expires.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeoutBenchmark {
+
+    private static final int MACHINES = 10_000;
+
+    @Param({"false", "true"})
+    boolean timeouts;
+
+    private final List<StateMachine<OrderState>> machines = new ArrayList<>();
+    private int machine;
+
+    @Setup
+    public void setUp() {
+        StateMachineBuilder<OrderState> builder = StateMachine.builder(OrderState.class)
+                .register(Workflow.factories(Workflow.STATES.size()));
+        if (timeouts) {
+            builder.timerWheel(TimerWheel.create(Duration.ofMillis(100), 4096))
+                    .timeout(AwaitingPayment.class, Duration.ofMinutes(15), Expired.class);
+        }
+        var definition = builder.compile();
+        for (int i = 0; i < MACHINES; i++) {
+            machines.add(definition.newInstance(AwaitingPayment.class));
+        }
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> transition() {
+        var stateMachine = machines.get(machine = (machine + 1) % MACHINES);
+        return stateMachine.transitionToState(
+                stateMachine.currentState() instanceof Created ? AwaitingPayment.class : Created.class);
+    }
+}
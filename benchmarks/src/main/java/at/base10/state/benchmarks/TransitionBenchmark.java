@@ -0,0 +1,103 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.CompiledStateMachine;
+import at.base10.state.StateMachine;
+import at.base10.state.benchmarks.Workflow.Created;
+import at.base10.state.benchmarks.Workflow.OrderState;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.TransitionFilter;
+import at.base10.state.observer.TransitionListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput and the latency distribution of a single transition, depending on the
+ * number of states and of registered observers, and whether the observers are filtered.
+ * <p>
+ * The machine cycles through all of its states, so every invocation is a real state change.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransitionBenchmark {
+
+    @Param({"2", "8"})
+    int states;
+
+    @Param({"0", "1", "10", "100"})
+    int observers;
+
+    /**
+     * Whether the observers are {@link TransitionListener}s or plain {@link Observer}s, which
+     * receive a {@code StateChangeEvent}.
+     */
+    @Param({"true", "false"})
+    boolean listeners;
+
+    /**
+     * Whether the observers are registered with a {@link TransitionFilter} for one of the states, in
+     * turn, so that a transition only notifies the observers of the state it enters.
+     */
+    @Param({"false", "true"})
+    boolean filtered;
+
+    private CompiledStateMachine<OrderState> stateMachine;
+    private int[] ordinals;
+    private int next;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        stateMachine = StateMachine.builder(OrderState.class)
+                .register(Workflow.factories(states))
+                .build(Created.class);
+        for (int i = 0; i < observers; i++) {
+            if (filtered) {
+                stateMachine.registerObserver(TransitionFilter.to(Workflow.STATES.get(i % states)), observer(blackhole));
+            } else {
+                stateMachine.registerObserver(observer(blackhole));
+            }
+        }
+        ordinals = new int[states];
+        for (int i = 0; i < states; i++) {
+            ordinals[i] = stateMachine.ordinalOf(Workflow.STATES.get(i));
+        }
+    }
+
+    /**
+     * Creates a new observer on every call, because equal observers are only registered once.
+     */
+    private Observer<OrderState> observer(Blackhole blackhole) {
+        if (listeners) {
+            return (TransitionListener<OrderState>) (previous, current) -> blackhole.consume(current);
+        }
+        return event -> blackhole.consume(event.current());
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> transitionByClass() {
+        next = next + 1 == states ? 0 : next + 1;
+        return stateMachine.transitionToState(Workflow.STATES.get(next));
+    }
+
+    @Benchmark
+    public StateMachine<OrderState> transitionByOrdinal() {
+        next = next + 1 == states ? 0 : next + 1;
+        return stateMachine.transitionToState(ordinals[next]);
+    }
+}
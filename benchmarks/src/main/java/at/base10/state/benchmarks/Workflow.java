@@ -0,0 +1,111 @@
+package at.base10.state.benchmarks;
+
+import at.base10.state.StateFactory;
+import at.base10.state.StateMachine;
+import at.base10.state.TransitionalState;
+
+import java.util.List;
+
+/**
+ * A small order workflow shared by all benchmarks.
+ */
+public final class Workflow {
+
+    private Workflow() {
+    }
+
+    public interface OrderState {
+        int handle(int value);
+    }
+
+    public static final class Created extends TransitionalState<OrderState> implements OrderState {
+        public Created(StateMachine<OrderState> stateMachine) {
+            super(stateMachine);
+        }
+
+        @Override
+        public int handle(int value) {
+            return value + 1;
+        }
+    }
+
+    public static final class AwaitingPayment extends TransitionalState<OrderState> implements OrderState {
+        public AwaitingPayment(StateMachine<OrderState> stateMachine) {
+            super(stateMachine);
+        }
+
+        @Override
+        public int handle(int value) {
+            return value + 2;
+        }
+    }
+
+    public static final class Paid implements OrderState {
+        @Override
+        public int handle(int value) {
+            return value + 3;
+        }
+    }
+
+    public static final class Shipped implements OrderState {
+        @Override
+        public int handle(int value) {
+            return value + 4;
+        }
+    }
+
+    public static final class Delivered implements OrderState {
+        @Override
+        public int handle(int value) {
+            return value + 5;
+        }
+    }
+
+    public static final class Cancelled implements OrderState {
+        @Override
+        public int handle(int value) {
+            return value + 6;
+        }
+    }
+
+    public static final class Refunded implements OrderState {
+        @Override
+        public int handle(int value) {
+            return value + 7;
+        }
+    }
+
+    public static final class Expired implements OrderState {
+        @Override
+        public int handle(int value) {
+            return value + 8;
+        }
+    }
+
+    /**
+     * All states of the workflow, in the order they are visited by the transition benchmarks.
+     */
+    public static final List<Class<? extends OrderState>> STATES = List.of(
+            Created.class, AwaitingPayment.class, Paid.class, Shipped.class,
+            Delivered.class, Cancelled.class, Refunded.class, Expired.class
+    );
+
+    /**
+     * The factories for the first {@code count} states of the workflow.
+     *
+     * @param count the number of states, at most {@code STATES.size()}
+     * @return the state factories
+     */
+    public static List<StateFactory<OrderState>> factories(int count) {
+        return List.<StateFactory<OrderState>>of(
+                Created::new,
+                AwaitingPayment::new,
+                sm -> new Paid(),
+                sm -> new Shipped(),
+                sm -> new Delivered(),
+                sm -> new Cancelled(),
+                sm -> new Refunded(),
+                sm -> new Expired()
+        ).subList(0, count);
+    }
+}
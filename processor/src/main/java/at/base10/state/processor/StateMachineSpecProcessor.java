@@ -0,0 +1,392 @@
+package at.base10.state.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Generates a {@code GeneratedSpec} for every state interface annotated with
+ * {@code at.base10.state.spec.StateMachineSpec}.
+ * <p>
+ * For an interface {@code com.acme.Order.State} the processor writes the class
+ * {@code com.acme.Order_State_StateMachineSpec} and registers it in
+ * {@code META-INF/services/at.base10.state.spec.GeneratedSpec}, where the
+ * {@code StateMachineBuilder} finds it at runtime. The generated class contains
+ * <ul>
+ *     <li>the state classes in ordinal order,</li>
+ *     <li>a factory for every state, validated at compile time,</li>
+ *     <li>a proxy forwarding every interface method to the current state.</li>
+ * </ul>
+ */
+@SupportedAnnotationTypes(StateMachineSpecProcessor.ANNOTATION)
+public class StateMachineSpecProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "at.base10.state.spec.StateMachineSpec";
+    static final String SERVICE_FILE = "META-INF/services/at.base10.state.spec.GeneratedSpec";
+    static final String SUFFIX = "_StateMachineSpec";
+
+    private static final String STATE_MACHINE = "at.base10.state.StateMachine";
+
+    private final Set<String> generated = new TreeSet<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                process(element);
+            }
+        }
+        if (roundEnv.processingOver() && !generated.isEmpty()) {
+            writeServiceFile();
+        }
+        return true;
+    }
+
+    private void process(Element element) {
+        if (element.getKind() != ElementKind.INTERFACE) {
+            error(element, "@StateMachineSpec is only supported on interfaces");
+            return;
+        }
+        var type = (TypeElement) element;
+        if (!type.getTypeParameters().isEmpty()) {
+            error(type, "Generic state interface %s is not supported", type);
+            return;
+        }
+        if (type.getModifiers().contains(Modifier.PRIVATE)) {
+            error(type, "State interface %s must not be private", type);
+            return;
+        }
+
+        var states = declaredStates(type);
+        if (states.isEmpty()) {
+            error(type, "No states declared for %s", type);
+            return;
+        }
+        if (type.getModifiers().contains(Modifier.SEALED)) {
+            warning(type, "Sealed state interface %s cannot be proxied, asState() will throw an IllegalArgumentException", type);
+        }
+
+        var factories = new LinkedHashMap<TypeElement, String>();
+        for (TypeMirror state : states) {
+            var stateElement = (TypeElement) processingEnv.getTypeUtils().asElement(state);
+            var factory = factory(type, stateElement);
+            if (factory == null) {
+                return;
+            }
+            if (factories.put(stateElement, factory) != null) {
+                error(type, "State %s is declared twice", stateElement);
+                return;
+            }
+        }
+
+        write(type, factories);
+    }
+
+    private List<? extends TypeMirror> declaredStates(TypeElement type) {
+        for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(ANNOTATION)) {
+                for (var entry : mirror.getElementValues().entrySet()) {
+                    @SuppressWarnings("unchecked")
+                    var values = (List<? extends AnnotationValue>) entry.getValue().getValue();
+                    if (!values.isEmpty()) {
+                        return values.stream()
+                                .map(AnnotationValue::getValue)
+                                .filter(TypeMirror.class::isInstance)
+                                .map(TypeMirror.class::cast)
+                                .toList();
+                    }
+                }
+            }
+        }
+        return type.getPermittedSubclasses();
+    }
+
+    /**
+     * Validates a state class and returns the source of its factory, or {@code null} if it is invalid.
+     */
+    private String factory(TypeElement type, TypeElement state) {
+        var kind = state.getKind();
+        var modifiers = state.getModifiers();
+        if (kind != ElementKind.CLASS && kind != ElementKind.RECORD
+            || modifiers.contains(Modifier.ABSTRACT)
+            || modifiers.contains(Modifier.PRIVATE)
+            || !state.getTypeParameters().isEmpty()) {
+            error(type, "State %s must be a concrete, non-generic class", state);
+            return null;
+        }
+        var from = packageOf(type);
+        if (!accessible(state, from)) {
+            error(type, "State %s must be public or in package %s", state, from);
+            return null;
+        }
+        var types = processingEnv.getTypeUtils();
+        if (!types.isAssignable(state.asType(), type.asType())) {
+            error(type, "State %s does not implement %s", state, type);
+            return null;
+        }
+
+        String factory = null;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(state.getEnclosedElements())) {
+            if (!accessible(constructor, from)) {
+                continue;
+            }
+            var parameters = constructor.getParameters();
+            if (parameters.isEmpty() && factory == null) {
+                factory = "stateMachine -> new %s()".formatted(state.getQualifiedName());
+            } else if (parameters.size() == 1 && types.erasure(parameters.get(0).asType()).toString().equals(STATE_MACHINE)) {
+                factory = "stateMachine -> new %s(stateMachine)".formatted(state.getQualifiedName());
+            }
+        }
+        if (factory == null) {
+            error(type, "State %s needs a public constructor taking the StateMachine or no arguments", state);
+        }
+        return factory;
+    }
+
+    private void write(TypeElement type, Map<TypeElement, String> factories) {
+        var packageName = packageOf(type).getQualifiedName().toString();
+        var simpleName = specName(type);
+        var qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        var stateType = type.getQualifiedName().toString();
+        var states = new ArrayList<>(factories.keySet());
+
+        try (var out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter())) {
+            if (!packageName.isEmpty()) {
+                out.printf("package %s;%n%n", packageName);
+            }
+            out.printf("@javax.annotation.processing.Generated(\"%s\")%n", getClass().getName());
+            out.printf("public final class %s implements at.base10.state.spec.GeneratedSpec<%s> {%n%n", simpleName, stateType);
+
+            out.printf("    private static final java.util.List<Class<? extends %s>> STATE_CLASSES = java.util.List.of(%n", stateType);
+            out.println(states.stream()
+                    .map(state -> "            " + state.getQualifiedName() + ".class")
+                    .collect(Collectors.joining(",\n")));
+            out.printf("    );%n%n");
+
+            out.printf("    private static final java.util.List<at.base10.state.StateFactory<%s>> FACTORIES = java.util.List.of(%n", stateType);
+            out.println(factories.values().stream()
+                    .map(factory -> "            " + factory)
+                    .collect(Collectors.joining(",\n")));
+            out.printf("    );%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public Class<%s> stateClass() {%n", stateType);
+            out.printf("        return %s.class;%n", stateType);
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public java.util.List<Class<? extends %s>> stateClasses() {%n", stateType);
+            out.printf("        return STATE_CLASSES;%n");
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public java.util.List<at.base10.state.StateFactory<%s>> factories() {%n", stateType);
+            out.printf("        return FACTORIES;%n");
+            out.printf("    }%n%n");
+
+            out.printf("    @Override%n");
+            out.printf("    public %s proxy(java.util.function.Supplier<? extends %s> target) {%n", stateType, stateType);
+            if (type.getModifiers().contains(Modifier.SEALED)) {
+                out.printf("        throw new IllegalArgumentException(\"%s is a sealed interface\");%n", stateType);
+                out.printf("    }%n");
+            } else {
+                out.printf("        return new Proxy(target);%n");
+                out.printf("    }%n%n");
+                writeProxy(out, type);
+            }
+            out.printf("}%n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        generated.add(qualifiedName);
+    }
+
+    private void writeProxy(PrintWriter out, TypeElement type) {
+        var stateType = type.getQualifiedName().toString();
+        out.printf("    private static final class Proxy implements %s {%n", stateType);
+        out.printf("        private final java.util.function.Supplier<? extends %s> target;%n%n", stateType);
+        out.printf("        private Proxy(java.util.function.Supplier<? extends %s> target) {%n", stateType);
+        out.printf("            this.target = target;%n");
+        out.printf("        }%n");
+
+        var forwarded = new TreeSet<String>();
+        var elements = processingEnv.getElementUtils();
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            var modifiers = method.getModifiers();
+            var declaredByObject = ((TypeElement) method.getEnclosingElement())
+                    .getQualifiedName().contentEquals("java.lang.Object");
+            if (declaredByObject || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)) {
+                continue;
+            }
+            var signature = signature(type, method);
+            if (forwarded.add(signature.key())) {
+                writeForwarder(out, method, signature);
+            }
+        }
+        writeObjectMethod(out, forwarded, "public String toString()", "toString()", "toString()");
+        writeObjectMethod(out, forwarded, "public int hashCode()", "hashCode()", "hashCode()");
+        writeObjectMethod(out, forwarded, "public boolean equals(Object other)", "equals(java.lang.Object)", "equals(other)");
+        out.printf("    }%n");
+    }
+
+    private void writeForwarder(PrintWriter out, ExecutableElement method, Signature signature) {
+        out.printf("%n        @Override%n");
+        out.printf("        public %s {%n", signature.declaration());
+        out.printf("            %starget.get().%s;%n",
+                signature.returnsVoid() ? "" : "return ",
+                signature.call());
+        out.printf("        }%n");
+    }
+
+    private static void writeObjectMethod(PrintWriter out, Set<String> forwarded, String declaration, String key, String call) {
+        if (forwarded.add(key)) {
+            out.printf("%n        @Override%n");
+            out.printf("        %s {%n", declaration);
+            out.printf("            return target.get().%s;%n", call);
+            out.printf("        }%n");
+        }
+    }
+
+    private Signature signature(TypeElement type, ExecutableElement method) {
+        var types = processingEnv.getTypeUtils();
+        var executable = (ExecutableType) types.asMemberOf((DeclaredType) type.asType(), method);
+        var name = method.getSimpleName().toString();
+
+        var typeParameters = method.getTypeParameters().stream()
+                .map(parameter -> parameter.getSimpleName() + parameter.getBounds().stream()
+                        .map(TypeMirror::toString)
+                        .filter(bound -> !bound.equals("java.lang.Object"))
+                        .collect(Collectors.joining(" & ", " extends ", ""))
+                        .replaceFirst("^ extends $", ""))
+                .collect(Collectors.joining(", "));
+
+        var parameterTypes = executable.getParameterTypes();
+        var parameters = new ArrayList<String>();
+        var arguments = new ArrayList<String>();
+        var erased = new ArrayList<String>();
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            var parameterType = parameterTypes.get(i).toString();
+            if (method.isVarArgs() && i == parameterTypes.size() - 1) {
+                parameterType = parameterType.substring(0, parameterType.length() - 2) + "...";
+            }
+            parameters.add(parameterType + " arg" + i);
+            arguments.add("arg" + i);
+            erased.add(types.erasure(parameterTypes.get(i)).toString());
+        }
+
+        var thrown = executable.getThrownTypes().stream()
+                .map(TypeMirror::toString)
+                .collect(Collectors.joining(", ", " throws ", ""))
+                .replaceFirst("^ throws $", "");
+
+        var declaration = (typeParameters.isEmpty() ? "" : "<" + typeParameters + "> ")
+                          + executable.getReturnType() + " " + name
+                          + "(" + String.join(", ", parameters) + ")" + thrown;
+        return new Signature(
+                name + "(" + String.join(",", erased) + ")",
+                declaration,
+                name + "(" + String.join(", ", arguments) + ")",
+                executable.getReturnType().getKind() == javax.lang.model.type.TypeKind.VOID
+        );
+    }
+
+    private void writeServiceFile() {
+        var filer = processingEnv.getFiler();
+        var entries = new TreeSet<>(generated);
+        try {
+            FileObject existing = filer.getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            try (var reader = new BufferedReader(existing.openReader(true))) {
+                reader.lines().map(String::trim).filter(line -> !line.isEmpty()).forEach(entries::add);
+            }
+        } catch (IOException e) {
+            // no services file from a previous compilation
+        }
+        try (var out = new PrintWriter(filer.createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE).openWriter())) {
+            entries.forEach(out::println);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static PackageElement packageOf(Element element) {
+        var current = element;
+        while (current.getKind() != ElementKind.PACKAGE) {
+            current = current.getEnclosingElement();
+        }
+        return (PackageElement) current;
+    }
+
+    /**
+     * Whether the element and its enclosing types can be used from the given package, which is
+     * where the generated specification lives.
+     */
+    private static boolean accessible(Element element, PackageElement from) {
+        for (var current = element; current.getKind() != ElementKind.PACKAGE; current = current.getEnclosingElement()) {
+            var modifiers = current.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)
+                || !modifiers.contains(Modifier.PUBLIC) && !packageOf(current).equals(from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String specName(TypeElement type) {
+        var names = new ArrayList<String>();
+        Element current = type;
+        while (current.getKind() != ElementKind.PACKAGE) {
+            names.add(0, current.getSimpleName().toString());
+            current = current.getEnclosingElement();
+        }
+        return String.join("_", names) + SUFFIX;
+    }
+
+    private void error(Element element, String message, Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message.formatted(args), element);
+    }
+
+    private void warning(Element element, String message, Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message.formatted(args), element);
+    }
+
+    private record Signature(String key, String declaration, String call, boolean returnsVoid) {
+    }
+}
@@ -0,0 +1,335 @@
+package at.base10.state.processor;
+
+import at.base10.state.CompiledStateMachine;
+import at.base10.state.StateMachine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachineSpecProcessorTest {
+
+    private static final String LIGHT = """
+            package demo;
+
+            import at.base10.state.StateMachine;
+            import at.base10.state.TransitionalState;
+            import at.base10.state.spec.StateMachineSpec;
+
+            @StateMachineSpec(states = {Light.Red.class, Light.Green.class})
+            public interface Light {
+                String color();
+
+                String join(String separator, String... parts);
+
+                <T extends Comparable<T>> T max(T first, T second);
+
+                long add(long first, double second) throws java.io.IOException;
+
+                default void reset() {
+                }
+
+                static Light none() {
+                    return null;
+                }
+
+                final class Red extends TransitionalState<Light> implements Light {
+                    public Red(StateMachine<Light> stateMachine) {
+                        super(stateMachine);
+                    }
+
+                    public Red() {
+                        super(null);
+                    }
+
+                    public String color() {
+                        transitionToState(Green.class);
+                        return "red";
+                    }
+
+                    public String join(String separator, String... parts) {
+                        return "red" + String.join(separator, parts);
+                    }
+
+                    public <T extends Comparable<T>> T max(T first, T second) {
+                        return first.compareTo(second) >= 0 ? first : second;
+                    }
+
+                    public long add(long first, double second) {
+                        return first + (long) second;
+                    }
+
+                    public String toString() {
+                        return "Red";
+                    }
+                }
+
+                final class Green implements Light {
+                    public String color() {
+                        return "green";
+                    }
+
+                    public String join(String separator, String... parts) {
+                        return "green" + String.join(separator, parts);
+                    }
+
+                    public <T extends Comparable<T>> T max(T first, T second) {
+                        return first.compareTo(second) <= 0 ? first : second;
+                    }
+
+                    public long add(long first, double second) {
+                        return first - (long) second;
+                    }
+                }
+            }
+            """;
+
+    private static final String DOOR = """
+            package demo;
+
+            import at.base10.state.spec.StateMachineSpec;
+
+            @StateMachineSpec
+            public sealed interface Door {
+                boolean open();
+
+                record Opened() implements Door {
+                    public boolean open() {
+                        return true;
+                    }
+                }
+
+                record Closed() implements Door {
+                    public boolean open() {
+                        return false;
+                    }
+                }
+            }
+            """;
+
+    @TempDir
+    Path output;
+
+    private final List<String> warnings = new ArrayList<>();
+
+    @Test
+    public void testGeneratedSpec() throws Exception {
+        assertEquals(List.of(), compile(source("demo.Light", LIGHT)));
+
+        assertEquals(List.of("demo.Light_StateMachineSpec"),
+                Files.readAllLines(output.resolve(StateMachineSpecProcessor.SERVICE_FILE)));
+
+        try (var loader = new URLClassLoader(new java.net.URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+            var light = loader.loadClass("demo.Light");
+            var red = loader.loadClass("demo.Light$Red");
+            var green = loader.loadClass("demo.Light$Green");
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            CompiledStateMachine<Object> stateMachine = StateMachine.builder((Class) light).build(red);
+            var proxy = stateMachine.asState();
+
+            assertEquals("demo.Light_StateMachineSpec$Proxy", proxy.getClass().getName());
+            assertEquals(1, stateMachine.ordinalOf(green.asSubclass(Object.class)));
+            assertEquals("Red", proxy.toString());
+            assertEquals("red-a-b", invoke(light, proxy, "join", "-", new String[]{"", "a", "b"}));
+            assertEquals(7L, invoke(light, proxy, "add", 4L, 3.5));
+            assertEquals("b", invoke(light, proxy, "max", "a", "b"));
+            assertEquals("red", invoke(light, proxy, "color"));
+
+            assertSame(green, stateMachine.currentState().getClass());
+            assertEquals("green", invoke(light, proxy, "color"));
+            assertEquals(1L, invoke(light, proxy, "add", 4L, 3.5));
+            assertEquals("a", invoke(light, proxy, "max", "a", "b"));
+            assertEquals(stateMachine.currentState().hashCode(), proxy.hashCode());
+            assertTrue(proxy.equals(stateMachine.currentState()));
+        }
+    }
+
+    @Test
+    public void testSealedInterface() throws Exception {
+        assertEquals(List.of(), compile(source("demo.Door", DOOR)));
+        assertEquals(List.of("Sealed state interface demo.Door cannot be proxied, asState() will throw an IllegalArgumentException"),
+                warnings);
+
+        try (var loader = new URLClassLoader(new java.net.URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+            var door = loader.loadClass("demo.Door");
+            var closed = loader.loadClass("demo.Door$Closed");
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            CompiledStateMachine<Object> stateMachine = StateMachine.builder((Class) door).build(closed);
+
+            assertEquals(0, stateMachine.ordinalOf(loader.loadClass("demo.Door$Opened").asSubclass(Object.class)));
+            assertEquals(1, stateMachine.ordinalOf(closed.asSubclass(Object.class)));
+            assertEquals("demo.Door is a sealed interface",
+                    assertThrows(IllegalArgumentException.class, stateMachine::asState).getMessage());
+        }
+    }
+
+    @Test
+    public void testNotAnInterface() throws Exception {
+        assertEquals(List.of("@StateMachineSpec is only supported on interfaces"), compile(source("demo.Invalid", """
+                package demo;
+
+                @at.base10.state.spec.StateMachineSpec
+                public class Invalid {
+                }
+                """)));
+    }
+
+    @Test
+    public void testGenericInterface() throws Exception {
+        assertEquals(List.of("Generic state interface demo.Invalid is not supported"), compile(source("demo.Invalid", """
+                package demo;
+
+                @at.base10.state.spec.StateMachineSpec
+                public interface Invalid<T> {
+                }
+                """)));
+    }
+
+    @Test
+    public void testNoStates() throws Exception {
+        assertEquals(List.of("No states declared for demo.Invalid"), compile(source("demo.Invalid", """
+                package demo;
+
+                @at.base10.state.spec.StateMachineSpec
+                public interface Invalid {
+                }
+                """)));
+    }
+
+    @Test
+    public void testInvalidStates() throws Exception {
+        assertEquals(List.of("State demo.Invalid.Base must be a concrete, non-generic class"), compile(invalid("Base", """
+                abstract class Base implements Invalid {
+                }
+                """)));
+        assertEquals(List.of("State demo.Invalid.Other does not implement demo.Invalid"), compile(invalid("Other", """
+                final class Other {
+                }
+                """)));
+        assertEquals(List.of("State demo.Invalid.Named needs a public constructor taking the StateMachine or no arguments"),
+                compile(invalid("Named", """
+                        final class Named implements Invalid {
+                            Named(String name) {
+                            }
+
+                            private Named() {
+                            }
+                        }
+                        """)));
+        assertEquals(List.of("State demo.Invalid.Twice is declared twice"), compile(invalid("Twice.class, Invalid.Twice", """
+                final class Twice implements Invalid {
+                }
+                """)));
+    }
+
+    @Test
+    public void testConstructorAccess() throws Exception {
+        var hidden = source("other.Hidden", """
+                package other;
+
+                public class Hidden implements demo.Invalid {
+                    Hidden() {
+                    }
+
+                    protected Hidden(at.base10.state.StateMachine<demo.Invalid> stateMachine) {
+                    }
+                }
+                """);
+        assertEquals(List.of("State other.Hidden needs a public constructor taking the StateMachine or no arguments"),
+                compile(source("demo.Invalid", """
+                        package demo;
+
+                        @at.base10.state.spec.StateMachineSpec(states = {other.Hidden.class})
+                        public interface Invalid {
+                        }
+                        """), hidden));
+
+        assertEquals(List.of(), compile(source("demo.Local", """
+                package demo;
+
+                @at.base10.state.spec.StateMachineSpec(states = {Local.Nested.class, Open.class})
+                public interface Local {
+                    final class Nested implements Local {
+                        Nested() {
+                        }
+                    }
+                }
+
+                class Open implements Local {
+                    protected Open(at.base10.state.StateMachine<Local> stateMachine) {
+                    }
+                }
+                """)));
+        assertEquals(List.of(), warnings);
+    }
+
+    private JavaFileObject invalid(String states, String body) {
+        return source("demo.Invalid", """
+                package demo;
+
+                @at.base10.state.spec.StateMachineSpec(states = {Invalid.%s.class})
+                public interface Invalid {
+                    %s
+                }
+                """.formatted(states, body));
+    }
+
+    /**
+     * Compiles the sources with the processor into the temporary output directory.
+     *
+     * @return the error messages of the compilation, the warnings are kept in {@link #warnings}
+     */
+    private List<String> compile(JavaFileObject... sources) throws URISyntaxException {
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        var classPath = Path.of(StateMachine.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        var task = compiler.getTask(null, null, diagnostics,
+                List.of("-d", output.toString(), "-classpath", classPath.toString()),
+                null, List.of(sources));
+        task.setProcessors(List.of(new StateMachineSpecProcessor()));
+        task.call();
+        warnings.clear();
+        diagnostics.getDiagnostics().stream()
+                .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.WARNING)
+                .map(diagnostic -> diagnostic.getMessage(null))
+                .forEach(warnings::add);
+        return diagnostics.getDiagnostics().stream()
+                .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                .map(diagnostic -> diagnostic.getMessage(null))
+                .toList();
+    }
+
+    private static JavaFileObject source(String name, String code) {
+        var uri = URI.create("string:///" + name.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+
+    private static Object invoke(Class<?> type, Object target, String name, Object... args) throws Exception {
+        for (var method : type.getMethods()) {
+            if (method.getName().equals(name)) {
+                return method.invoke(target, args);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
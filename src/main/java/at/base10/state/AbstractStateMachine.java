@@ -0,0 +1,603 @@
+package at.base10.state;
+
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.ObserverLifetime;
+import at.base10.state.observer.Subscription;
+import at.base10.state.observer.TransitionFilter;
+import lombok.NonNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * The behavior shared by all state machine implementations.
+ * <p>
+ * Subclasses decide how the current state is stored and published. The observers are kept in
+ * a copy-on-write table with one row for the observers without a filter and one row per source
+ * and target ordinal, so notifying them neither locks nor allocates, and a transition only visits
+ * three rows. Observers that expired are unregistered when they are next notified, and weakly
+ * referenced observers that were garbage collected when the next transition finds them in the
+ * reference queue.
+ * </p>
+ * <p>
+ * The states are kept in an array indexed by ordinal, which starts with the shared states of the
+ * definition. A slot is empty until its state is first needed if the machine creates its states
+ * lazily, or after the state was released. Empty slots
+ * are filled under a lock of the machine's own, so each state is created once even if several
+ * threads need it at the same time.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+abstract class AbstractStateMachine<S> implements CompiledStateMachine<S> {
+
+    private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private static final ObserverEntry<?>[] NO_OBSERVERS = new ObserverEntry<?>[0];
+
+    StateMachineDefinition<S> definition;
+
+    /**
+     * The states indexed by ordinal, null for states that were not created yet or were released.
+     * Shared states are never released.
+     */
+    S[] states;
+
+    TransitionTable<S> transitions;
+
+    /**
+     * Looks up the state with an ordinal, creating it if needed, for checking a transition.
+     */
+    final IntFunction<S> stateOf = this::state;
+
+    /**
+     * Guards the creation and the release of states.
+     */
+    private final Object stateLock = new Object();
+
+    private EventTable<S> events;
+
+    /**
+     * The events waiting for a state that handles them, or null unless unhandled events are deferred.
+     */
+    private Queue<Enum<?>> deferred;
+
+    /**
+     * The observers without a filter, followed by the observers filtered by source state and those
+     * filtered by target state, one row per ordinal. Only the first row exists until the machine
+     * is initialized.
+     */
+    @SuppressWarnings("unchecked")
+    private volatile ObserverEntry<S>[][] observers = new ObserverEntry[][]{NO_OBSERVERS};
+
+    /**
+     * The entries of weakly referenced observers that were garbage collected, or null until the
+     * first one is registered.
+     */
+    private volatile ReferenceQueue<Observer<S>> collected;
+
+    /**
+     * The time in nanoseconds, which observers expiring after a duration are measured with.
+     */
+    LongSupplier clock = System::nanoTime;
+
+    private AsyncObserverDispatcher dispatcher;
+
+    /**
+     * The position after the last state change of this machine in the batch its dispatcher is
+     * delivering, or 0. Only accessed by the consumer thread of the dispatcher.
+     */
+    int dispatched;
+
+    private StateMachineMetrics metrics;
+
+    private TimeoutTable<S> timeouts;
+
+    /**
+     * The timer of this machine on the timer wheel, or null if no state of the definition times out.
+     */
+    private TimerWheel.Timer timer;
+
+    /**
+     * The time the current state was entered. Only accessed by the thread notifying the observers.
+     */
+    private long enteredAt;
+
+    /**
+     * Binds this machine to its definition once all eager states have been built, creates the
+     * initial state if it is lazy and schedules its timeout, if any.
+     * States are created with a reference to the machine, so this cannot happen in the constructor.
+     */
+    void initialize(StateMachineDefinition<S> definition, S[] states, int initialOrdinal) {
+        this.definition = definition;
+        this.states = states;
+        this.transitions = definition.transitions();
+        // the unfiltered row, then one row per source and one per target ordinal
+        var rows = Arrays.copyOf(observers, 1 + states.length + states.length);
+        Arrays.fill(rows, 1, rows.length, NO_OBSERVERS);
+        observers = rows;
+        this.events = definition.events();
+        if (events.policy() == UnhandledEventPolicy.DEFER) {
+            deferred = new ConcurrentLinkedQueue<>();
+        }
+        if (metrics != null) {
+            enteredAt = metrics.now();
+        }
+        state(initialOrdinal);
+        timeouts = definition.timeouts();
+        timer = timeouts.newTimer(this);
+        if (timer != null) {
+            timeouts.enter(timer, initialOrdinal);
+        }
+    }
+
+    /**
+     * Returns the state with the ordinal, creating it if it does not exist yet.
+     */
+    @SuppressWarnings("unchecked")
+    S state(int ordinal) {
+        var state = (S) STATES.getAcquire(states, ordinal);
+        return state != null ? state : create(ordinal);
+    }
+
+    private S create(int ordinal) {
+        synchronized (stateLock) {
+            var state = states[ordinal];
+            if (state == null) {
+                state = definition.newState(ordinal, this);
+                STATES.setRelease(states, ordinal, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int releaseIdleStates() {
+        if (!definition.lazy()) {
+            return 0;
+        }
+        synchronized (stateLock) {
+            int current = currentOrdinal();
+            int released = 0;
+            for (int ordinal = 0; ordinal < states.length; ordinal++) {
+                var shared = definition.sharedState(ordinal);
+                if (ordinal != current && STATES.getAndSet(states, ordinal, shared) != shared) {
+                    released++;
+                }
+            }
+            return released;
+        }
+    }
+
+    /**
+     * Delivers the state changes of this machine through the given dispatcher, if any, instead of
+     * calling the observers directly.
+     */
+    AbstractStateMachine<S> dispatchTo(AsyncObserverDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        return this;
+    }
+
+    /**
+     * Records the transitions of this machine in the given metrics, if any.
+     */
+    AbstractStateMachine<S> instrument(StateMachineMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Atomically transitions to {@code next} if the current state has the ordinal {@code expected}.
+     *
+     * @param expected the ordinal of the expected current state
+     * @param next     the ordinal of the new state
+     * @return true if the transition happened, false if the current state did not match
+     */
+    abstract boolean compareAndTransition(int expected, int next);
+
+    /**
+     * Returns the ordinal of the current state.
+     */
+    abstract int currentOrdinal();
+
+    /**
+     * Returns the cache of the proxies created by {@link #asState(Class)}.
+     */
+    abstract Map<Class<?>, Object> proxies();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompiledStateMachine<S> transitionToState(@NonNull Class<? extends S> state) {
+        return transitionToState(definition.ordinalOf(state));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndTransition(@NonNull Class<? extends S> expected, @NonNull Class<? extends S> next) {
+        return compareAndTransition(definition.ordinalOf(expected), definition.ordinalOf(next));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends Enum<E>> CompiledStateMachine<S> fire(@NonNull E event) {
+        handle(event);
+        return this;
+    }
+
+    /**
+     * Moves to the state the current state handles the event with, or applies the policy for
+     * unhandled events. If another thread changes the state in between, the event is resolved
+     * again against the new state.
+     */
+    void handle(Enum<?> event) {
+        int from;
+        int to;
+        do {
+            from = currentOrdinal();
+            to = events.target(from, event);
+            if (to == EventTable.UNHANDLED) {
+                unhandled(from, event);
+                return;
+            }
+        } while (!compareAndTransition(from, to));
+    }
+
+    private void unhandled(int state, Enum<?> event) {
+        if (deferred != null) {
+            deferred.add(event);
+        } else if (events.policy() == UnhandledEventPolicy.FAIL) {
+            throw new IllegalStateException("Event " + event + " is not handled by " + definition.nameOf(state));
+        }
+    }
+
+    /**
+     * Fires the first deferred event the new state handles. Firing it changes the state again,
+     * which fires the next one. Only the thread notifying the observers removes deferred events.
+     */
+    private void fireDeferred(int state) {
+        for (var iterator = deferred.iterator(); iterator.hasNext(); ) {
+            var event = iterator.next();
+            if (events.target(state, event) != EventTable.UNHANDLED) {
+                iterator.remove();
+                handle(event);
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<S> submitTransition(@NonNull Class<? extends S> state) {
+        int ordinal = definition.ordinalOf(state);
+        return submit(current -> transitionToState(ordinal));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int ordinalOf(Class<? extends S> state) {
+        return definition.ordinalOf(state);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public S asState() {
+        return asState(definition.getStateClass());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E> E asState(Class<E> state) {
+        return state.cast(proxies().computeIfAbsent(state, type -> definition.proxy(type, this::currentState)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Subscription<S> registerObserver(Observer<S> observer) {
+        return registerObserver(TransitionFilter.any(), observer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Subscription<S> registerObserver(@NonNull TransitionFilter<S> filter,
+                                                         @NonNull Observer<S> observer,
+                                                         @NonNull ObserverLifetime lifetime) {
+        int row = row(filter);
+        var entries = observers[row];
+        for (var entry : entries) {
+            if (entry.holds(observer) && entry.filter.equals(filter)) {
+                return entry.subscription(this, observer);
+            }
+        }
+        var entry = new ObserverEntry<>(this, observer, filter, row, lifetime, lifetime.weak() ? collected() : null);
+        var registered = Arrays.copyOf(entries, entries.length + 1);
+        registered[entries.length] = entry;
+        replace(row, registered);
+        return entry.subscription(this, observer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean unregisterObserver(Observer<S> observer) {
+        boolean removed = false;
+        for (int row = 0; row < observers.length; row++) {
+            removed |= remove(row, entry -> entry.holds(observer));
+        }
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean unsubscribe(@NonNull Subscription<S> subscription) {
+        return subscription.stateMachine() == this && remove(row(subscription.filter()),
+                entry -> entry.holds(subscription.observer()) && entry.filter.equals(subscription.filter()));
+    }
+
+    private ReferenceQueue<Observer<S>> collected() {
+        if (collected == null) {
+            collected = new ReferenceQueue<>();
+        }
+        return collected;
+    }
+
+    private synchronized void unregister(ObserverEntry<S> entry) {
+        remove(entry.row, registered -> registered == entry);
+    }
+
+    /**
+     * Counts the state changes an observer is notified of, at most the given number, and
+     * unregisters it once it has expired.
+     *
+     * @return the number of state changes the observer may be notified of
+     */
+    long admit(ObserverEntry<S> entry, long events) {
+        if (!entry.bounded) {
+            return events;
+        }
+        if (clock.getAsLong() - entry.registered >= entry.expiresAfter) {
+            unregister(entry);
+            return 0;
+        }
+        long admitted = Math.min(events, entry.remaining);
+        entry.remaining -= admitted;
+        if (entry.remaining < 1) {
+            unregister(entry);
+        }
+        return admitted;
+    }
+
+    /**
+     * Unregisters the weakly referenced observers that were garbage collected.
+     */
+    @SuppressWarnings("unchecked")
+    private void purge() {
+        var queue = collected;
+        if (queue != null) {
+            for (Reference<?> reference; (reference = queue.poll()) != null; ) {
+                unregister((ObserverEntry<S>) reference);
+            }
+        }
+    }
+
+    /**
+     * Returns the row of the observers with the filter.
+     *
+     * @throws IllegalStateException if the filter selects states before the machine is initialized
+     */
+    private int row(TransitionFilter<S> filter) {
+        if (filter.source() == null && filter.target() == null) {
+            return 0;
+        }
+        if (definition == null) {
+            throw new IllegalStateException("Filtered observers cannot be registered while the states are created");
+        }
+        if (filter.target() == null) {
+            return 1 + definition.ordinalOf(filter.source());
+        }
+        return 1 + states.length + definition.ordinalOf(filter.target());
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean remove(int row, Predicate<ObserverEntry<S>> predicate) {
+        var entries = observers[row];
+        var remaining = Arrays.stream(entries).filter(predicate.negate()).toArray(ObserverEntry[]::new);
+        if (remaining.length == entries.length) {
+            return false;
+        }
+        replace(row, remaining);
+        return true;
+    }
+
+    private void replace(int row, ObserverEntry<S>[] entries) {
+        var rows = observers.clone();
+        rows[row] = entries;
+        observers = rows;
+    }
+
+    /**
+     * Moves this machine to the target of the timeout that expired, unless it has left the state
+     * or entered it again since. Called by the thread advancing the timer wheel.
+     */
+    void expire() {
+        timeouts.expire(timer, this);
+    }
+
+    /**
+     * Schedules or cancels the timeout of the new state, records a state change in the metrics,
+     * if any, unregisters the garbage collected observers and notifies the others or hands the
+     * state change to the dispatcher if there is one. Afterwards, a deferred event the new state
+     * handles is fired.
+     */
+    void notifyObservers(int previousOrdinal, int currentOrdinal) {
+        if (timer != null) {
+            timeouts.enter(timer, currentOrdinal);
+        }
+        if (metrics != null) {
+            enteredAt = metrics.record(previousOrdinal, currentOrdinal, enteredAt);
+        }
+        purge();
+        var previous = state(previousOrdinal);
+        var current = state(currentOrdinal);
+        if (dispatcher != null) {
+            dispatcher.publish(this, previousOrdinal, previous, currentOrdinal, current);
+        } else {
+            var rows = observers;
+            notify(rows[0], previousOrdinal, previous, current);
+            notify(rows[1 + previousOrdinal], previousOrdinal, previous, current);
+            notify(rows[1 + states.length + currentOrdinal], previousOrdinal, previous, current);
+        }
+        if (deferred != null) {
+            fireDeferred(currentOrdinal);
+        }
+    }
+
+    /**
+     * Notifies the observers of a row, skipping those that are filtered by another source state,
+     * were garbage collected or expired.
+     */
+    private void notify(ObserverEntry<S>[] entries, int previousOrdinal, S previous, S current) {
+        for (var entry : entries) {
+            if (entry.source < 0 || entry.source == previousOrdinal) {
+                var observer = entry.get();
+                if (observer != null && admit(entry, 1) > 0) {
+                    observer.onTransition(previous, current);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the rows of registered observers: those without a filter, then those filtered by
+     * source state and those filtered by target state, one row per ordinal.
+     */
+    ObserverEntry<S>[][] observerRows() {
+        return observers;
+    }
+
+    /**
+     * Returns the registered observers: those without a filter, then those filtered by source state
+     * and those filtered by target state, each in registration order.
+     */
+    List<ObserverEntry<S>> observerEntries() {
+        return Arrays.stream(observers).flatMap(Arrays::stream).toList();
+    }
+
+    /**
+     * A registered observer. The entry references the observer weakly, and also strongly through
+     * its subscription unless its lifetime is weak. Weak entries are enqueued once the observer was
+     * garbage collected.
+     */
+    static final class ObserverEntry<S> extends WeakReference<Observer<S>> {
+
+        /**
+         * The subscription returned when the observer was registered, which keeps the observer
+         * reachable, or null if it is referenced weakly.
+         */
+        private final Subscription<S> subscription;
+
+        private final TransitionFilter<S> filter;
+        private final int row;
+
+        /**
+         * Whether the observer expires after a number of state changes or a duration. Only those
+         * observers are counted and checked against the clock when they are notified.
+         */
+        private final boolean bounded;
+
+        /**
+         * The ordinal of the state the observer must leave, or -1 for any state.
+         */
+        private final int source;
+
+        /**
+         * The ordinal of the state the observer must enter, or -1 for any state.
+         */
+        private final int target;
+
+        /**
+         * The time the observer was registered at, in nanoseconds of the clock of the state machine.
+         */
+        private final long registered;
+
+        /**
+         * The nanoseconds after which the observer expires, or {@link Long#MAX_VALUE} if it does not.
+         */
+        private final long expiresAfter;
+
+        /**
+         * The number of state changes the observer may still be notified of. Only accessed by the
+         * thread notifying the observers.
+         */
+        private long remaining;
+
+        ObserverEntry(AbstractStateMachine<S> stateMachine, Observer<S> observer, TransitionFilter<S> filter,
+                      int row, ObserverLifetime lifetime, ReferenceQueue<Observer<S>> queue) {
+            super(observer, queue);
+            this.subscription = lifetime.weak() ? null : new Subscription<>(stateMachine, observer, filter);
+            this.filter = filter;
+            this.row = row;
+            this.bounded = lifetime.maxEvents() != Long.MAX_VALUE || lifetime.maxDuration() != null;
+            this.source = filter.source() == null ? -1 : stateMachine.definition.ordinalOf(filter.source());
+            this.target = filter.target() == null ? -1 : stateMachine.definition.ordinalOf(filter.target());
+            this.registered = stateMachine.clock.getAsLong();
+            this.expiresAfter = lifetime.maxDuration() == null ? Long.MAX_VALUE : lifetime.maxDuration().toNanos();
+            this.remaining = lifetime.maxEvents();
+        }
+
+        TransitionFilter<S> filter() {
+            return filter;
+        }
+
+        /**
+         * Returns whether the filter of the observer selects a state change between the ordinals.
+         */
+        boolean selects(int previousOrdinal, int currentOrdinal) {
+            return (source < 0 || source == previousOrdinal) && (target < 0 || target == currentOrdinal);
+        }
+
+        private Subscription<S> subscription(StateMachine<S> stateMachine, Observer<S> registered) {
+            return subscription != null ? subscription : new Subscription<>(stateMachine, registered, filter);
+        }
+
+        private boolean holds(Observer<?> candidate) {
+            var registered = get();
+            return registered != null && registered.equals(candidate);
+        }
+    }
+}
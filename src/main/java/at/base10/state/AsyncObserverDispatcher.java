@@ -0,0 +1,443 @@
+package at.base10.state;
+
+import at.base10.state.observer.BatchObserver;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers state changes to observers on a dedicated consumer thread.
+ * <p>
+ * State machines built with {@link StateMachineBuilder#observerDispatcher(AsyncObserverDispatcher)}
+ * only write their state changes into a bounded ring buffer, which is allocated once when the
+ * dispatcher starts. A slow observer therefore no longer adds to the latency of a transition.
+ * The consumer takes all pending events at once and delivers them per state machine, in order.
+ * {@link BatchObserver}s receive them as one batch, without the events their filter does not select.
+ * </p>
+ * <p>
+ * When the buffer is full, the {@link OverflowPolicy} decides what happens. One dispatcher can be
+ * shared by many state machines. Observers that fail are logged and do not stop the dispatcher,
+ * unless they throw an {@link Error}: the consumer then delivers the rest of the batch, closes the
+ * dispatcher and terminates with the error.
+ * </p>
+ */
+@Log4j2
+public final class AsyncObserverDispatcher implements AutoCloseable {
+
+    /**
+     * What happens to a state change when the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The transition waits until the consumer has taken the pending events. Transitions made
+         * by observers on the consumer thread cannot wait and drop the oldest event instead.
+         */
+        BLOCK,
+        /**
+         * The oldest pending event is dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * The state change is merged into the newest pending event of the same state machine, so
+         * observers skip the intermediate state and see the latest one. If none of the pending
+         * events comes from that state machine, the oldest pending event is dropped.
+         */
+        CONFLATE
+    }
+
+    private final AbstractStateMachine<?>[] sources;
+    private final int[] previousOrdinals;
+    private final Object[] previous;
+    private final int[] currentOrdinals;
+    private final Object[] current;
+    private final OverflowPolicy policy;
+
+    /**
+     * The batch the consumer delivers, reused for every batch: the events, their machines and the
+     * ordinals of their states.
+     */
+    private final StateChangeEvent<Object>[] batch;
+    private final AbstractStateMachine<?>[] batchSources;
+    private final int[] batchPrevious;
+    private final int[] batchCurrent;
+
+    /**
+     * The position of the next event of the same machine in the batch, or -1.
+     */
+    private final int[] nextOfSource;
+
+    /**
+     * The position of the first event of each machine in the batch, in order of appearance.
+     */
+    private final int[] firstOfSource;
+
+    /**
+     * The events of a machine selected for one observer.
+     */
+    private final StateChangeEvent<Object>[] selected;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition terminated = lock.newCondition();
+
+    private Thread consumer;
+
+    /**
+     * The sequence of the oldest pending event.
+     */
+    private long head;
+
+    /**
+     * The sequence of the next published event.
+     */
+    private long tail;
+
+    /**
+     * Only written while holding the lock, so it can be read without it.
+     */
+    private volatile long dropped;
+
+    /**
+     * Only written while holding the lock, so it can be read without it.
+     */
+    private volatile long conflated;
+    private boolean closed;
+    private boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    private AsyncObserverDispatcher(int capacity, OverflowPolicy policy) {
+        this.sources = new AbstractStateMachine<?>[capacity];
+        this.previousOrdinals = new int[capacity];
+        this.previous = new Object[capacity];
+        this.currentOrdinals = new int[capacity];
+        this.current = new Object[capacity];
+        this.policy = policy;
+        this.batch = new StateChangeEvent[capacity];
+        this.batchSources = new AbstractStateMachine<?>[capacity];
+        this.batchPrevious = new int[capacity];
+        this.batchCurrent = new int[capacity];
+        this.nextOfSource = new int[capacity];
+        this.firstOfSource = new int[capacity];
+        this.selected = new StateChangeEvent[capacity];
+    }
+
+    /**
+     * Starts a dispatcher on a new daemon thread.
+     *
+     * @param capacity the number of events the ring buffer can hold
+     * @param policy   what happens to a state change when the ring buffer is full
+     * @return the running dispatcher
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     */
+    public static AsyncObserverDispatcher start(int capacity, @NonNull OverflowPolicy policy) {
+        return start(capacity, policy, runnable -> {
+            var thread = new Thread(runnable, "state-observer-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a dispatcher on a thread created by the given factory.
+     *
+     * @param capacity      the number of events the ring buffer can hold
+     * @param policy        what happens to a state change when the ring buffer is full
+     * @param threadFactory creates the consumer thread
+     * @return the running dispatcher
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     */
+    public static AsyncObserverDispatcher start(int capacity,
+                                                @NonNull OverflowPolicy policy,
+                                                @NonNull ThreadFactory threadFactory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        var dispatcher = new AsyncObserverDispatcher(capacity, policy);
+        dispatcher.consumer = threadFactory.newThread(dispatcher::consume);
+        dispatcher.consumer.start();
+        return dispatcher;
+    }
+
+    /**
+     * Returns the number of events the ring buffer can hold.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return sources.length;
+    }
+
+    /**
+     * Returns the number of events waiting for the consumer.
+     *
+     * @return the current queue depth
+     */
+    public int queueDepth() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of events that were dropped because the ring buffer was full or the
+     * dispatcher was closed.
+     *
+     * @return the number of events observers did not receive
+     */
+    public long droppedEvents() {
+        return dropped;
+    }
+
+    /**
+     * Returns the number of state changes that were merged into a pending event of the same state
+     * machine by {@link OverflowPolicy#CONFLATE}. Observers receive their latest state, but not the
+     * intermediate one.
+     *
+     * @return the number of conflated state changes
+     */
+    public long conflatedEvents() {
+        return conflated;
+    }
+
+    /**
+     * Stops accepting events, delivers the pending ones and waits for the consumer thread to finish.
+     * State machines using this dispatcher still transition afterward, but their state changes are
+     * dropped and logged.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+            while (running && Thread.currentThread() != consumer) {
+                terminated.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a state change into the ring buffer. The transition has already happened, so a state
+     * change published after the dispatcher was closed is dropped instead of failing the transition.
+     */
+    void publish(AbstractStateMachine<?> source, int previousOrdinal, Object previousState,
+                 int currentOrdinal, Object currentState) {
+        lock.lock();
+        try {
+            while (policy == OverflowPolicy.BLOCK && isFull() && !closed && Thread.currentThread() != consumer) {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                dropped++;
+                log.warn("Observer dispatcher is closed, dropped a state change to {}", currentState);
+                return;
+            }
+            if (isFull()) {
+                if (policy == OverflowPolicy.CONFLATE && conflate(source, currentOrdinal, currentState)) {
+                    conflated++;
+                    return;
+                }
+                dropped++;
+                // the oldest slot is the next free one, so dropping it only means moving the head
+                head++;
+            }
+            int slot = index(tail++);
+            sources[slot] = source;
+            previousOrdinals[slot] = previousOrdinal;
+            previous[slot] = previousState;
+            currentOrdinals[slot] = currentOrdinal;
+            current[slot] = currentState;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the current state of the newest pending event of the source, if any.
+     */
+    private boolean conflate(AbstractStateMachine<?> source, int currentOrdinal, Object currentState) {
+        for (long sequence = tail - 1; sequence >= head; sequence--) {
+            int slot = index(sequence);
+            if (sources[slot] == source) {
+                currentOrdinals[slot] = currentOrdinal;
+                current[slot] = currentState;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delivers batches until the dispatcher is closed and drained. An {@link Error} thrown by an
+     * observer is rethrown once the batch is delivered and stops the consumer, which closes the
+     * dispatcher, so neither {@link #close()} nor a blocked publisher waits for it.
+     */
+    private void consume() {
+        try {
+            int size;
+            do {
+                lock.lock();
+                try {
+                    while (head == tail && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    size = (int) (tail - head);
+                    for (int i = 0; i < size; i++) {
+                        int slot = index(head + i);
+                        batch[i] = new StateChangeEvent<>(previous[slot], current[slot]);
+                        batchSources[i] = sources[slot];
+                        batchPrevious[i] = previousOrdinals[slot];
+                        batchCurrent[i] = currentOrdinals[slot];
+                        sources[slot] = null;
+                        previous[slot] = null;
+                        current[slot] = null;
+                    }
+                    head = tail;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                deliver(size);
+            } while (size > 0);
+        } finally {
+            terminate();
+        }
+    }
+
+    /**
+     * Closes the dispatcher once the consumer stops, dropping the events it did not take.
+     */
+    private void terminate() {
+        lock.lock();
+        try {
+            closed = true;
+            if (head != tail) {
+                log.warn("Observer dispatcher stopped, dropped {} pending state changes", tail - head);
+                dropped += tail - head;
+                while (head != tail) {
+                    int slot = index(head++);
+                    sources[slot] = null;
+                    previous[slot] = null;
+                    current[slot] = null;
+                }
+            }
+            running = false;
+            notFull.signalAll();
+            terminated.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Chains the events of the batch by state machine and delivers them per state machine, in the
+     * order in which the machines first appear.
+     */
+    private void deliver(int size) {
+        int machines = 0;
+        for (int i = 0; i < size; i++) {
+            var source = batchSources[i];
+            if (source.dispatched == 0) {
+                firstOfSource[machines++] = i;
+            } else {
+                nextOfSource[source.dispatched - 1] = i;
+            }
+            nextOfSource[i] = -1;
+            source.dispatched = i + 1;
+        }
+        Error error = null;
+        for (int machine = 0; machine < machines; machine++) {
+            var source = batchSources[firstOfSource[machine]];
+            source.dispatched = 0;
+            var failure = deliver(source, firstOfSource[machine]);
+            if (error == null) {
+                error = failure;
+            }
+        }
+        Arrays.fill(batch, 0, size, null);
+        Arrays.fill(batchSources, 0, size, null);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Delivers the events of one state machine, starting at the given position of the batch, to the
+     * observers whose filter selects any of them. Empty rows of observers are skipped.
+     *
+     * @return the first {@link Error} an observer threw, or null
+     */
+    @SuppressWarnings("unchecked")
+    private Error deliver(AbstractStateMachine<?> source, int first) {
+        var stateMachine = (AbstractStateMachine<Object>) source;
+        Error error = null;
+        for (var row : stateMachine.observerRows()) {
+            for (var entry : row) {
+                var observer = entry.get();
+                if (observer == null) {
+                    continue;
+                }
+                int count = 0;
+                for (int i = first; i >= 0; i = nextOfSource[i]) {
+                    if (entry.selects(batchPrevious[i], batchCurrent[i])) {
+                        selected[count++] = batch[i];
+                    }
+                }
+                if (count == 0) {
+                    continue;
+                }
+                try {
+                    deliver(observer, (int) stateMachine.admit(entry, count));
+                } catch (RuntimeException | Error e) {
+                    log.error("Observer failed", e);
+                    if (e instanceof Error failure && error == null) {
+                        error = failure;
+                    }
+                } finally {
+                    Arrays.fill(selected, 0, count, null);
+                }
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Delivers the first selected events to an observer. A {@link BatchObserver} receives a copy,
+     * since it may keep the list.
+     */
+    private void deliver(Observer<Object> observer, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (observer instanceof BatchObserver<Object> batchObserver) {
+            batchObserver.nextBatch(List.of(Arrays.copyOf(selected, count)));
+        } else {
+            for (int i = 0; i < count; i++) {
+                observer.next(selected[i]);
+            }
+        }
+    }
+
+    private boolean isFull() {
+        return tail - head == sources.length;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % sources.length);
+    }
+}
@@ -0,0 +1,22 @@
+package at.base10.state;
+
+import java.util.function.Function;
+
+/**
+ * A {@link ClassValue} that computes its values with a function.
+ *
+ * @param <T> the type of the cached values
+ */
+final class ClassCache<T> extends ClassValue<T> {
+
+    private final Function<Class<?>, T> compute;
+
+    ClassCache(Function<Class<?>, T> compute) {
+        this.compute = compute;
+    }
+
+    @Override
+    protected T computeValue(Class<?> type) {
+        return compute.apply(type);
+    }
+}
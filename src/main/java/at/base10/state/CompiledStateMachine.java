@@ -0,0 +1,63 @@
+package at.base10.state;
+
+/**
+ * A state machine created from a {@link StateMachineDefinition}, which resolves its states to
+ * ordinals and handles the events declared on the builder.
+ * <p>
+ * Every state machine built by a {@link StateMachineBuilder} implements this interface. States
+ * receive their machine as a {@link StateMachine}; a {@link TransitionalState} reaches these
+ * operations through its protected methods.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public interface CompiledStateMachine<S> extends StateMachine<S> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    CompiledStateMachine<S> transitionToState(Class<? extends S> state);
+
+    /**
+     * Transitions the state machine to the state with the given ordinal.
+     * <p>
+     * This avoids resolving the state class on every transition. Callers can resolve the
+     * ordinal once via {@link #ordinalOf(Class)} and keep it.
+     * </p>
+     *
+     * @param ordinal the ordinal of the new state
+     * @return the updated state machine
+     * @throws IndexOutOfBoundsException if no state has the given ordinal
+     * @throws IllegalStateException     if the transition is not allowed or rejected by its guard
+     */
+    CompiledStateMachine<S> transitionToState(int ordinal);
+
+    /**
+     * Fires an event, which moves the state machine to the state the current state handles it with.
+     * <p>
+     * The events are declared with {@link StateMachineBuilder#on(Class, Enum, Class)}. What happens
+     * with an event the current state does not handle is decided by the
+     * {@link StateMachineBuilder#unhandledEvents(UnhandledEventPolicy) policy for unhandled events}.
+     * On a state machine built with {@link StateMachineBuilder#mailbox(java.util.concurrent.Executor)}
+     * the event is enqueued like a transition.
+     * </p>
+     *
+     * @param event the event
+     * @param <E>   the type of the events
+     * @return the updated state machine
+     * @throws IllegalArgumentException if the state machine does not handle events of this type
+     * @throws IllegalStateException    if the current state does not handle the event and the policy is
+     *                                  {@link UnhandledEventPolicy#FAIL}, or the transition is not allowed
+     */
+    <E extends Enum<E>> CompiledStateMachine<S> fire(E event);
+
+    /**
+     * Resolves a state class to its ordinal within this state machine.
+     *
+     * @param state the class of the state
+     * @return the ordinal of the state
+     * @throws IllegalArgumentException if the state is not registered
+     */
+    int ordinalOf(Class<? extends S> state);
+}
@@ -0,0 +1,186 @@
+package at.base10.state;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@inheritDoc}
+ * <p>
+ * This implementation is thread-safe and lock-free. The current state is swapped atomically,
+ * so {@link #currentState()} is a single volatile read. A transition is checked against the
+ * state it replaces before the swap, and checked again if another thread changed the state in
+ * between, so a guard runs once per attempt and may run several times under contention. A
+ * state created on demand is only created once the transition to it is allowed.
+ * </p>
+ * <p>
+ * Every transition appends a node to a linked history in the order of the atomic swaps. The
+ * history is delivered to the observers by one thread at a time, so all observers see the
+ * transitions in the same, linearizable order. The thread that finds no delivery in progress
+ * delivers the transitions of other threads as well, so observers may be called by a different
+ * thread than the one that made the transition, and an observer failure is thrown by the
+ * delivering thread, not necessarily the one whose transition failed. A transition made by an
+ * observer is delivered after the current event.
+ * </p>
+ */
+@Log4j2
+final class ConcurrentStateMachineImpl<S> extends AbstractStateMachine<S> {
+
+    /**
+     * The latest transition. Its state is the current state.
+     */
+    private final AtomicReference<Transition<S>> current = new AtomicReference<>();
+
+    /**
+     * The number of delivery requests the delivering thread has not yet acknowledged.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * The latest transition delivered to the observers. Only accessed by the delivering thread.
+     */
+    private Transition<S> delivered;
+
+    private final Map<Class<?>, Object> proxies = new ConcurrentHashMap<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void initialize(StateMachineDefinition<S> definition, S[] states, int initialOrdinal) {
+        super.initialize(definition, states, initialOrdinal);
+        delivered = new Transition<>(initialOrdinal, state(initialOrdinal));
+        current.set(delivered);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompiledStateMachine<S> transitionToState(int ordinal) {
+        Objects.checkIndex(ordinal, states.length);
+        Transition<S> transition = null;
+        Transition<S> latest;
+        do {
+            latest = current.get();
+            transitions.check(latest.ordinal, ordinal, stateOf);
+            if (transition == null) {
+                transition = new Transition<>(ordinal, state(ordinal));
+            }
+        } while (!current.compareAndSet(latest, transition));
+        append(latest, transition);
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    boolean compareAndTransition(int expected, int next) {
+        Transition<S> transition = null;
+        Transition<S> latest;
+        do {
+            latest = current.get();
+            if (latest.ordinal != expected) {
+                return false;
+            }
+            transitions.check(expected, next, stateOf);
+            if (transition == null) {
+                transition = new Transition<>(next, state(next));
+            }
+        } while (!current.compareAndSet(latest, transition));
+        append(latest, transition);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    int currentOrdinal() {
+        return current.get().ordinal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public S currentState() {
+        return current.get().state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Map<Class<?>, Object> proxies() {
+        return proxies;
+    }
+
+    private void append(Transition<S> previous, Transition<S> transition) {
+        previous.next = transition;
+        deliver();
+    }
+
+    /**
+     * Delivers all linked transitions, unless another thread is already delivering. In that case
+     * the other thread picks up the new transitions before it stops. If an observer fails, the
+     * remaining transitions are still delivered, including those other threads counted in
+     * {@link #pending} meanwhile, and the first failure is thrown afterwards by this thread. The
+     * failure cannot be handed to the thread that made the failed transition, as that thread
+     * returned once its transition was linked, without waiting for its delivery.
+     */
+    private void deliver() {
+        if (pending.getAndIncrement() != 0) {
+            return;
+        }
+        Throwable failure = null;
+        do {
+            for (var next = delivered.next; next != null; next = delivered.next) {
+                var previous = delivered;
+                delivered = next;
+                try {
+                    notifyObservers(previous, next);
+                } catch (RuntimeException | Error e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        } while (pending.decrementAndGet() != 0);
+        if (failure instanceof Error error) {
+            throw error;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    private void notifyObservers(Transition<S> previous, Transition<S> next) {
+        notifyObservers(previous.ordinal, next.ordinal);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Transition: [{} => {}]", definition.nameOf(previous.ordinal), definition.nameOf(next.ordinal));
+        }
+    }
+
+    /**
+     * A node in the history of transitions.
+     */
+    private static final class Transition<S> {
+        private final int ordinal;
+        private final S state;
+        private volatile Transition<S> next;
+
+        private Transition(int ordinal, S state) {
+            this.ordinal = ordinal;
+            this.state = state;
+        }
+    }
+}
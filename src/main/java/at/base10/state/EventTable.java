@@ -0,0 +1,86 @@
+package at.base10.state;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * The events handled by a {@link StateMachineDefinition}, as a flat {@code int[states * events]}
+ * table of target ordinals.
+ * <p>
+ * Resolving the target of an event is a single array access at
+ * {@code state * events + event.ordinal()}. Unhandled events map to {@code -1}.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+final class EventTable<S> {
+
+    static final int UNHANDLED = -1;
+
+    /**
+     * The enum of the events, or null if no event is handled.
+     */
+    private final Class<?> eventClass;
+
+    private final int events;
+
+    private final int[] targets;
+
+    private final UnhandledEventPolicy policy;
+
+    /**
+     * Resolves the declared handlers to ordinals.
+     *
+     * @throws IllegalArgumentException if a handler refers to an unknown state, mixes event types,
+     *                                  is declared twice or is not allowed by the transition table
+     */
+    EventTable(List<String> names, List<Handler<S>> handlers, ToIntFunction<Class<? extends S>> ordinals,
+               TransitionTable<S> transitions, UnhandledEventPolicy policy) {
+        this.policy = policy;
+        this.eventClass = handlers.isEmpty() ? null : handlers.get(0).event().getDeclaringClass();
+        this.events = handlers.isEmpty() ? 0 : eventClass.getEnumConstants().length;
+        this.targets = new int[names.size() * events];
+        Arrays.fill(targets, UNHANDLED);
+        for (var handler : handlers) {
+            var event = handler.event();
+            if (event.getDeclaringClass() != eventClass) {
+                throw new IllegalArgumentException("Event " + event + " is not of type " + eventClass.getSimpleName());
+            }
+            int from = ordinals.applyAsInt(handler.from());
+            int to = ordinals.applyAsInt(handler.to());
+            int index = from * events + event.ordinal();
+            if (targets[index] != UNHANDLED) {
+                throw new IllegalArgumentException("Event " + event + " is already handled by " + names.get(from));
+            }
+            if (!transitions.allows(from, to)) {
+                throw new IllegalArgumentException(
+                        "Event " + event + " moves from " + names.get(from) + " to " + names.get(to) + ", which is not allowed");
+            }
+            targets[index] = to;
+        }
+    }
+
+    /**
+     * Returns the ordinal of the state the event moves the given state to.
+     *
+     * @return the target ordinal, or {@link #UNHANDLED}
+     * @throws IllegalArgumentException if the event is not of the handled event type
+     */
+    int target(int from, Enum<?> event) {
+        if (event.getDeclaringClass() != eventClass) {
+            throw new IllegalArgumentException("Unknown event " + event.getDeclaringClass().getSimpleName() + "." + event);
+        }
+        return targets[from * events + event.ordinal()];
+    }
+
+    UnhandledEventPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * A state that handles an event, as declared with {@link StateMachineBuilder#on(Class, Enum, Class)}.
+     */
+    record Handler<S>(Class<? extends S> from, Enum<?> event, Class<? extends S> to) {
+    }
+}
@@ -0,0 +1,80 @@
+package at.base10.state;
+
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.ObserverLifetime;
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.TransitionFilter;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a filter and a lifetime on behalf of a state machine that only notifies every observer
+ * of every state change, see {@link StateMachine#registerObserver(TransitionFilter, Observer, ObserverLifetime)}.
+ * <p>
+ * The wrapper is what the state machine registers. Once the observer was garbage collected or
+ * expired, the wrapper unregisters itself when it is next notified.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+final class FilteredObserver<S> implements Observer<S> {
+
+    private final StateMachine<S> stateMachine;
+    private final TransitionFilter<S> filter;
+
+    /**
+     * The observer, if it is referenced strongly.
+     */
+    private final Observer<S> observer;
+
+    /**
+     * The observer, if it is referenced weakly.
+     */
+    private final WeakReference<Observer<S>> weak;
+
+    /**
+     * The time in nanoseconds after which the observer expires, or {@link Long#MAX_VALUE} if it does not.
+     */
+    private final long expiresAt;
+
+    /**
+     * The number of state changes the observer may still be notified of.
+     */
+    private final AtomicLong remaining;
+
+    FilteredObserver(StateMachine<S> stateMachine, TransitionFilter<S> filter, Observer<S> observer,
+                     ObserverLifetime lifetime) {
+        this.stateMachine = stateMachine;
+        this.filter = filter;
+        this.observer = lifetime.weak() ? null : observer;
+        this.weak = lifetime.weak() ? new WeakReference<>(observer) : null;
+        this.expiresAt = lifetime.maxDuration() == null ? Long.MAX_VALUE
+                : System.nanoTime() + lifetime.maxDuration().toNanos();
+        this.remaining = new AtomicLong(lifetime.maxEvents());
+    }
+
+    /**
+     * Notifies the observer if the filter selects the state change, or unregisters this wrapper
+     * if the observer is gone or expired.
+     */
+    @Override
+    public void next(StateChangeEvent<S> event) {
+        var target = observer != null ? observer : weak.get();
+        if (target == null || expiresAt != Long.MAX_VALUE && System.nanoTime() - expiresAt >= 0) {
+            stateMachine.unregisterObserver(this);
+            return;
+        }
+        if (!filter.matches(event)) {
+            return;
+        }
+        long left = remaining.getAndDecrement();
+        if (left < 1) {
+            return;
+        }
+        if (left == 1) {
+            stateMachine.unregisterObserver(this);
+        }
+        target.next(event);
+    }
+}
@@ -0,0 +1,37 @@
+package at.base10.state;
+
+import at.base10.state.spec.GeneratedSpec;
+
+import java.util.ServiceLoader;
+
+/**
+ * Looks up the {@link GeneratedSpec} of a state interface, if the annotation processor generated one.
+ */
+final class GeneratedSpecs {
+
+    private static final ClassValue<GeneratedSpec<?>> SPECS = new ClassCache<>(GeneratedSpecs::load);
+
+    private GeneratedSpecs() {
+    }
+
+    /**
+     * Returns the generated specification of a state interface.
+     *
+     * @param <S>        the type of the state
+     * @param stateClass the class type of the state
+     * @return the generated specification, or {@code null} if there is none
+     */
+    @SuppressWarnings("unchecked")
+    static <S> GeneratedSpec<S> of(Class<S> stateClass) {
+        return (GeneratedSpec<S>) SPECS.get(stateClass);
+    }
+
+    static GeneratedSpec<?> load(Class<?> stateClass) {
+        var loader = stateClass.getClassLoader();
+        return ServiceLoader.load(GeneratedSpec.class, loader).stream()
+                .map(ServiceLoader.Provider::get)
+                .filter(spec -> spec.stateClass() == stateClass)
+                .findFirst()
+                .orElse(null);
+    }
+}
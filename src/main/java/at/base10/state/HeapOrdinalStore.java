@@ -0,0 +1,68 @@
+package at.base10.state;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the ordinals in an {@code int[]} on the heap, four bytes per machine.
+ */
+final class HeapOrdinalStore implements OrdinalStore {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final int[] ordinals;
+    private final AtomicInteger size = new AtomicInteger();
+
+    HeapOrdinalStore(int capacity) {
+        this.ordinals = new int[capacity];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int capacity() {
+        return ordinals.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSetSize(int expected, int size) {
+        return this.size.compareAndSet(expected, size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int slot) {
+        return (int) SLOTS.getVolatile(ordinals, slot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void set(int slot, int ordinal) {
+        SLOTS.setVolatile(ordinals, slot, ordinal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSet(int slot, int expected, int ordinal) {
+        return SLOTS.compareAndSet(ordinals, slot, expected, ordinal);
+    }
+}
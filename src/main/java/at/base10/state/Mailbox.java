@@ -0,0 +1,86 @@
+package at.base10.state;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A queue of messages that is drained by an {@link Executor}, one message at a time and in the
+ * order they were added.
+ * <p>
+ * Adding a message only appends it to a lock-free queue. The thread that adds a message to an
+ * empty mailbox hands the mailbox to the executor, which processes messages until it is empty
+ * again, so at most one drain runs at a time. If the executor rejects the drain, the enqueued
+ * messages are rejected instead, so that the next message tries the executor again. If processing
+ * a message throws an {@link Error}, the remaining messages are handed to the executor again before
+ * it is rethrown, so that an executor replacing its thread keeps draining the mailbox.
+ * </p>
+ *
+ * @param <M> the type of the messages
+ */
+final class Mailbox<M> {
+
+    private final Queue<M> messages = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of messages that are enqueued but not yet processed.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Executor executor;
+    private final Consumer<? super M> process;
+    private final BiConsumer<? super M, RejectedExecutionException> reject;
+
+    /**
+     * Creates a mailbox.
+     *
+     * @param executor the executor draining the mailbox
+     * @param process  processes a message on the thread of the drain
+     * @param reject   completes a message the executor did not accept a drain for
+     */
+    Mailbox(Executor executor, Consumer<? super M> process,
+            BiConsumer<? super M, RejectedExecutionException> reject) {
+        this.executor = executor;
+        this.process = process;
+        this.reject = reject;
+    }
+
+    /**
+     * Adds a message, and hands the mailbox to the executor if it was empty.
+     */
+    void add(M message) {
+        messages.add(message);
+        if (pending.getAndIncrement() == 0) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(() -> drain(process));
+        } catch (RejectedExecutionException e) {
+            drain(message -> reject.accept(message, e));
+        }
+    }
+
+    /**
+     * Takes messages until the mailbox is empty. Every enqueued message is counted in
+     * {@link #pending} after it is added, so each count belongs to a message in the mailbox.
+     */
+    private void drain(Consumer<? super M> action) {
+        try {
+            do {
+                action.accept(messages.remove());
+            } while (pending.decrementAndGet() != 0);
+        } catch (Error e) {
+            if (pending.decrementAndGet() != 0) {
+                schedule();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package at.base10.state;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * {@inheritDoc}
+ * <p>
+ * This implementation processes all work through a mailbox that is drained by an
+ * {@link Executor}, one message at a time. A message runs to completion: transitions requested
+ * while it is processed are queued and applied after the handler, in request order, and
+ * transitions requested by observers are appended to the same queue. Nothing nests on the stack.
+ * Transitions requested from outside the mailbox are enqueued as messages of their own.
+ * </p>
+ */
+@Log4j2
+final class MailboxStateMachineImpl<S> extends AbstractStateMachine<S> {
+
+    private final Mailbox<Message<S>> mailbox;
+
+    /**
+     * The ordinals of the transitions requested by the message being processed, a ring of
+     * {@link #requestedCount} ordinals starting at {@link #requestedHead}. Only accessed by the mailbox.
+     */
+    private int[] requested = new int[8];
+
+    private int requestedHead;
+
+    private int requestedCount;
+
+    private final Map<Class<?>, Object> proxies = new ConcurrentHashMap<>();
+
+    /**
+     * The thread processing a message, if any.
+     */
+    private volatile Thread processing;
+
+    private volatile int currentOrdinal;
+
+    MailboxStateMachineImpl(Executor executor) {
+        this.mailbox = new Mailbox<>(executor, this::process,
+                (message, rejection) -> message.result().completeExceptionally(rejection));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void initialize(StateMachineDefinition<S> definition, S[] states, int initialOrdinal) {
+        super.initialize(definition, states, initialOrdinal);
+        this.currentOrdinal = initialOrdinal;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The transition is only requested. It is applied once the current message has been
+     * processed, or, if called from outside the mailbox, once all earlier messages have been processed.
+     * A transition that is not allowed therefore does not throw. Called from a message, it fails
+     * that message; called from outside the mailbox, the failure is only logged, so use
+     * {@link #submitTransition(Class)} to observe it.
+     * </p>
+     */
+    @Override
+    public CompiledStateMachine<S> transitionToState(int ordinal) {
+        Objects.checkIndex(ordinal, states.length);
+        if (Thread.currentThread() == processing) {
+            request(ordinal);
+        } else {
+            enqueue(current -> transitionToState(ordinal), "Transition to {} failed", definition.nameOf(ordinal));
+        }
+        return this;
+    }
+
+    /**
+     * Enqueues a message nobody waits for, and logs its failure with the given message.
+     */
+    private void enqueue(Consumer<? super S> handler, String message, Object argument) {
+        submit(handler).whenComplete((state, failure) -> {
+            if (failure != null) {
+                log.error(message, argument, failure);
+            }
+        });
+    }
+
+    /**
+     * Appends a transition to the ring of requested transitions, doubling it if it is full.
+     */
+    private void request(int ordinal) {
+        if (requestedCount == requested.length) {
+            var grown = new int[requested.length * 2];
+            for (int i = 0; i < requestedCount; i++) {
+                grown[i] = requested[(requestedHead + i) % requested.length];
+            }
+            requested = grown;
+            requestedHead = 0;
+        }
+        requested[(requestedHead + requestedCount++) % requested.length] = ordinal;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The comparison is only meaningful while the state cannot change, so this can only be
+     * called while the mailbox processes a message.
+     * </p>
+     *
+     * @throws IllegalStateException if called from outside the mailbox
+     */
+    @Override
+    boolean compareAndTransition(int expected, int next) {
+        if (Thread.currentThread() != processing) {
+            throw new IllegalStateException("compareAndTransition is only supported while processing a message, use submit");
+        }
+        if (currentOrdinal != expected) {
+            return false;
+        }
+        transitionToState(next);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<S> submit(@NonNull Consumer<? super S> handler) {
+        var message = new Message<S>(handler, new CompletableFuture<>());
+        mailbox.add(message);
+        return message.result();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The event is enqueued as a message of its own and resolved against the state once all
+     * earlier messages have been processed. An event that fails, for example because the current
+     * state does not handle it, is logged.
+     * </p>
+     */
+    @Override
+    void handle(Enum<?> event) {
+        enqueue(current -> super.handle(event), "Event {} failed", event);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The timeout is enqueued as a message of its own, so it is applied between two messages.
+     * A timeout that fails, for example because its guard rejects it, is logged.
+     * </p>
+     */
+    @Override
+    void expire() {
+        enqueue(current -> super.expire(), "Timeout of {} failed", definition.nameOf(currentOrdinal));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    int currentOrdinal() {
+        return currentOrdinal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public S currentState() {
+        return state(currentOrdinal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Map<Class<?>, Object> proxies() {
+        return proxies;
+    }
+
+    /**
+     * Processes a message. A failure completes its result, and an {@link Error} is rethrown afterwards.
+     */
+    private void process(Message<S> message) {
+        processing = Thread.currentThread();
+        try {
+            message.handler().accept(currentState());
+            while (requestedCount > 0) {
+                int next = requested[requestedHead];
+                requestedHead = (requestedHead + 1) % requested.length;
+                requestedCount--;
+                apply(next);
+            }
+            message.result().complete(currentState());
+        } catch (RuntimeException | Error e) {
+            requestedCount = 0;
+            message.result().completeExceptionally(e);
+            if (e instanceof Error error) {
+                throw error;
+            }
+        } finally {
+            processing = null;
+        }
+    }
+
+    private void apply(int ordinal) {
+        var previousOrdinal = currentOrdinal;
+        transitions.check(previousOrdinal, ordinal, stateOf);
+        // a lazy state is only created once the transition is known to be allowed
+        state(ordinal);
+        currentOrdinal = ordinal;
+        notifyObservers(previousOrdinal, ordinal);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Transition: [{} => {}]", definition.nameOf(previousOrdinal), definition.nameOf(ordinal));
+        }
+    }
+
+    private record Message<S>(Consumer<? super S> handler, CompletableFuture<S> result) {
+    }
+}
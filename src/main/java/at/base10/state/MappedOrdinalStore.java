@@ -0,0 +1,180 @@
+package at.base10.state;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps the ordinals in a memory-mapped file, four bytes per machine.
+ * <p>
+ * The file starts with a header of {@value #HEADER} bytes: the fingerprint of the definition, the
+ * capacity and the number of occupied slots. The slots follow in big-endian byte order. Every
+ * change is a direct write to the mapping, which the operating system writes back to the file
+ * even if the process dies. To survive a crash of the operating system as well, the mapping is
+ * forced to storage after every {@code syncInterval} changes, or only by {@link #force()} if the
+ * interval is 0.
+ * </p>
+ */
+final class MappedOrdinalStore implements OrdinalStore {
+
+    /**
+     * The size of the header in bytes.
+     */
+    static final int HEADER = 16;
+
+    /**
+     * The largest capacity that fits into one mapping.
+     */
+    static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER) / Integer.BYTES;
+
+    private static final int CAPACITY = 8;
+    private static final int SIZE = 12;
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int syncInterval;
+    private final AtomicLong changes = new AtomicLong();
+    private volatile long synced;
+
+    private MappedOrdinalStore(MappedByteBuffer buffer, int capacity, int syncInterval) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Opens the store in a file, creating it if it does not exist or is empty. The file is extended
+     * to the capacity and the header is written, so it is valid as soon as it is forced.
+     *
+     * @throws IllegalArgumentException if the file belongs to another definition or capacity,
+     *                                  or the capacity or the sync interval is out of range
+     */
+    static MappedOrdinalStore open(Path file, int capacity, long fingerprint, int syncInterval) throws IOException {
+        checkCapacity(capacity);
+        if (syncInterval < 0) {
+            throw new IllegalArgumentException("Sync interval must not be negative: " + syncInterval);
+        }
+        try (var channel = FileChannel.open(file, READ, WRITE, CREATE)) {
+            if (channel.size() > 0) {
+                var header = ByteBuffer.allocate(HEADER);
+                channel.read(header, 0);
+                checkHeader(header, capacity, fingerprint);
+            }
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * Integer.BYTES);
+            buffer.putLong(0, fingerprint).putInt(CAPACITY, capacity);
+            return new MappedOrdinalStore(buffer, capacity, syncInterval);
+        }
+    }
+
+    static void checkCapacity(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException(
+                    "Capacity of a mapped population must be at most " + MAX_CAPACITY + ": " + capacity);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer header, int capacity, long fingerprint) {
+        if (header.hasRemaining()) {
+            throw new IllegalArgumentException("File is too short for a population");
+        }
+        if (header.getLong(0) != fingerprint) {
+            throw new IllegalArgumentException("File was written for another definition");
+        }
+        if (header.getInt(CAPACITY) != capacity) {
+            throw new IllegalArgumentException(
+                    "File has room for " + header.getInt(CAPACITY) + " machines, not " + capacity);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return (int) INTS.getVolatile(buffer, SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSetSize(int expected, int size) {
+        return INTS.compareAndSet(buffer, SIZE, expected, size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int slot) {
+        return (int) INTS.getVolatile(buffer, offset(slot));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void set(int slot, int ordinal) {
+        INTS.setVolatile(buffer, offset(slot), ordinal);
+        changed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSet(int slot, int expected, int ordinal) {
+        if (!INTS.compareAndSet(buffer, offset(slot), expected, ordinal)) {
+            return false;
+        }
+        changed();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void force() {
+        long changed = changes.get();
+        buffer.force();
+        synced = changed;
+    }
+
+    /**
+     * Returns the number of changes that may not have been forced to storage yet.
+     */
+    long unsynced() {
+        return changes.get() - synced;
+    }
+
+    private void changed() {
+        long changed = changes.incrementAndGet();
+        if (syncInterval > 0 && changed % syncInterval == 0) {
+            force();
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER + slot * Integer.BYTES;
+    }
+}
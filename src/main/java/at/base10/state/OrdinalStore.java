@@ -0,0 +1,70 @@
+package at.base10.state;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Stores the ordinals of the current states of a {@link StateMachinePopulation}, one slot per machine,
+ * and the number of occupied slots.
+ * <p>
+ * All accesses are atomic and have volatile semantics, so machines in different slots can be
+ * changed by different threads at the same time.
+ * </p>
+ */
+interface OrdinalStore extends OrdinalUpdates {
+
+    /**
+     * Returns the number of slots.
+     */
+    int capacity();
+
+    /**
+     * Returns the number of occupied slots.
+     */
+    int size();
+
+    /**
+     * Sets the number of occupied slots to {@code size} if it currently is {@code expected}.
+     *
+     * @return true if the size was set
+     */
+    boolean compareAndSetSize(int expected, int size);
+
+    /**
+     * Sets the ordinal in the slot.
+     */
+    void set(int slot, int ordinal);
+
+    /**
+     * Reserves slots for {@code count} new machines with {@code reserve}, then sets them to {@code ordinal}.
+     *
+     * @return the first reserved slot
+     */
+    @Override
+    default int add(int count, int ordinal, IntUnaryOperator reserve) {
+        int first = reserve.applyAsInt(count);
+        for (int slot = first; slot < first + count; slot++) {
+            set(slot, ordinal);
+        }
+        return first;
+    }
+
+    /**
+     * Atomically replaces the number of occupied slots with the result of the function, retrying if
+     * it changes in between.
+     *
+     * @return the previous number of occupied slots
+     */
+    default int getAndUpdateSize(IntUnaryOperator function) {
+        int previous;
+        do {
+            previous = size();
+        } while (!compareAndSetSize(previous, function.applyAsInt(previous)));
+        return previous;
+    }
+
+    /**
+     * Writes the slots to storage, if the store is backed by a file.
+     */
+    default void force() {
+    }
+}
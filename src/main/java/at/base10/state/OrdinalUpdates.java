@@ -0,0 +1,51 @@
+package at.base10.state;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The operations through which a {@link StateMachinePopulation} changes the ordinals of its machines.
+ * <p>
+ * Every {@link OrdinalStore} provides them. A {@link TransitionJournal} provides a view of a store
+ * that records each change before it is made.
+ * </p>
+ */
+interface OrdinalUpdates {
+
+    /**
+     * Returns the ordinal in the slot.
+     */
+    int get(int slot);
+
+    /**
+     * Sets the slot to {@code ordinal} if it currently holds {@code expected}.
+     *
+     * @return true if the slot was set
+     */
+    boolean compareAndSet(int slot, int expected, int ordinal);
+
+    /**
+     * Atomically replaces the ordinal in the slot with the result of the function, retrying if
+     * the slot changes in between. A result equal to the current ordinal leaves the slot untouched.
+     *
+     * @return the previous ordinal
+     */
+    default int getAndUpdate(int slot, IntUnaryOperator function) {
+        int previous;
+        int next;
+        do {
+            previous = get(slot);
+            next = function.applyAsInt(previous);
+            if (next == previous) {
+                return previous;
+            }
+        } while (!compareAndSet(slot, previous, next));
+        return previous;
+    }
+
+    /**
+     * Reserves slots for {@code count} new machines with {@code reserve}, then sets them to {@code ordinal}.
+     *
+     * @return the first reserved slot
+     */
+    int add(int count, int ordinal, IntUnaryOperator reserve);
+}
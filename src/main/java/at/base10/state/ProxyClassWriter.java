@@ -0,0 +1,262 @@
+package at.base10.state;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Writes the class file of a proxy that forwards every method of an interface to the
+ * object returned by a {@link Supplier}.
+ * <p>
+ * The generated class has a single constructor taking the supplier. Each method loads the
+ * target from the supplier, casts it to the interface and invokes the same method on it, so
+ * the JIT sees a plain, typed call chain.
+ * </p>
+ */
+final class ProxyClassWriter {
+
+    private static final int CLASS_VERSION = 61;
+    private static final String SUFFIX = "$$StateProxy";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String SUPPLIER = "java/util/function/Supplier";
+    private static final String TARGET = "target";
+    private static final String TARGET_DESCRIPTOR = "Ljava/util/function/Supplier;";
+
+    private static final int ACC_PUBLIC = Modifier.PUBLIC;
+    private static final int ACC_PRIVATE_FINAL = Modifier.PRIVATE | Modifier.FINAL;
+    private static final int ACC_PUBLIC_FINAL_SUPER = Modifier.PUBLIC | Modifier.FINAL | 0x20;
+
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ILOAD = 0x15;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int GETFIELD = 0xB4;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKEINTERFACE = 0xB9;
+    private static final int CHECKCAST = 0xC0;
+
+    private static final int UTF8 = 1;
+    private static final int CLASS = 7;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final Map<String, Method> forwarded = new HashMap<>();
+    private final String owner;
+
+    private ProxyClassWriter(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Generates the proxy class for the given interface.
+     *
+     * @param type the interface to implement
+     * @return the class file bytes, named after the interface with a {@value SUFFIX} suffix
+     */
+    static byte[] write(Class<?> type) {
+        var writer = new ProxyClassWriter(internalName(type));
+        for (Method method : type.getMethods()) {
+            writer.forward(method);
+        }
+        for (Method method : Object.class.getMethods()) {
+            writer.forwardObjectMethod(method);
+        }
+        return writer.toByteArray();
+    }
+
+    private void forward(Method method) {
+        if (!Modifier.isStatic(method.getModifiers())) {
+            forwarded.putIfAbsent(method.getName() + descriptor(method), method);
+        }
+    }
+
+    private void forwardObjectMethod(Method method) {
+        var name = method.getName();
+        if (name.equals("equals") || name.equals("hashCode") || name.equals("toString")) {
+            forward(method);
+        }
+    }
+
+    private byte[] toByteArray() {
+        int thisClass = classRef(owner + SUFFIX);
+        int superClass = classRef(OBJECT);
+        int interfaceClass = classRef(owner);
+        int targetName = utf8(TARGET);
+        int targetDescriptor = utf8(TARGET_DESCRIPTOR);
+
+        writeConstructor();
+        forwarded.values().forEach(this::writeForwarder);
+
+        var out = new ByteArrayOutputStream();
+        u4(out, 0xCAFEBABE);
+        u2(out, 0);
+        u2(out, CLASS_VERSION);
+        u2(out, constants.size() + 1);
+        out.writeBytes(constantPool.toByteArray());
+        u2(out, ACC_PUBLIC_FINAL_SUPER);
+        u2(out, thisClass);
+        u2(out, superClass);
+        u2(out, 1);
+        u2(out, interfaceClass);
+        u2(out, 1);
+        u2(out, ACC_PRIVATE_FINAL);
+        u2(out, targetName);
+        u2(out, targetDescriptor);
+        u2(out, 0);
+        u2(out, forwarded.size() + 1);
+        out.writeBytes(methods.toByteArray());
+        u2(out, 0);
+        return out.toByteArray();
+    }
+
+    private void writeConstructor() {
+        var code = new ByteArrayOutputStream();
+        code.write(ALOAD_0);
+        code.write(INVOKESPECIAL);
+        u2(code, member(METHOD_REF, OBJECT, "<init>", "()V"));
+        code.write(ALOAD_0);
+        code.write(ALOAD_1);
+        code.write(PUTFIELD);
+        u2(code, member(FIELD_REF, owner + SUFFIX, TARGET, TARGET_DESCRIPTOR));
+        code.write(RETURN);
+        writeMethod("<init>", "(" + TARGET_DESCRIPTOR + ")V", code.toByteArray(), 1, void.class);
+    }
+
+    private void writeForwarder(Method method) {
+        var descriptor = descriptor(method);
+        var code = new ByteArrayOutputStream();
+
+        code.write(ALOAD_0);
+        code.write(GETFIELD);
+        u2(code, member(FIELD_REF, owner + SUFFIX, TARGET, TARGET_DESCRIPTOR));
+        code.write(INVOKEINTERFACE);
+        u2(code, member(INTERFACE_METHOD_REF, SUPPLIER, "get", "()Ljava/lang/Object;"));
+        code.write(1);
+        code.write(0);
+        code.write(CHECKCAST);
+        u2(code, classRef(owner));
+
+        int slots = 0;
+        for (Class<?> parameter : method.getParameterTypes()) {
+            code.write(ILOAD + kind(parameter));
+            code.write(1 + slots);
+            slots += size(parameter);
+        }
+
+        code.write(INVOKEINTERFACE);
+        u2(code, member(INTERFACE_METHOD_REF, owner, method.getName(), descriptor));
+        code.write(1 + slots);
+        code.write(0);
+
+        var returnType = method.getReturnType();
+        code.write(returnType == void.class ? RETURN : IRETURN + kind(returnType));
+        writeMethod(method.getName(), descriptor, code.toByteArray(), slots, returnType);
+    }
+
+    /**
+     * Writes a public method. The operand stack holds the target and the arguments,
+     * or the return value, whichever is larger.
+     */
+    private void writeMethod(String name, String descriptor, byte[] code, int slots, Class<?> returnType) {
+        u2(methods, ACC_PUBLIC);
+        u2(methods, utf8(name));
+        u2(methods, utf8(descriptor));
+        u2(methods, 1);
+        u2(methods, utf8("Code"));
+        u4(methods, code.length + 12);
+        u2(methods, Math.max(1 + slots, size(returnType)));
+        u2(methods, 1 + slots);
+        u4(methods, code.length);
+        methods.writeBytes(code);
+        u2(methods, 0);
+        u2(methods, 0);
+    }
+
+    private int utf8(String value) {
+        return constants.computeIfAbsent(UTF8 + ":" + value, key -> {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            constantPool.write(UTF8);
+            u2(constantPool, bytes.length);
+            constantPool.writeBytes(bytes);
+            return constants.size() + 1;
+        });
+    }
+
+    private int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constants.computeIfAbsent(CLASS + ":" + internalName, key -> {
+            constantPool.write(CLASS);
+            u2(constantPool, name);
+            return constants.size() + 1;
+        });
+    }
+
+    private int member(int tag, String className, String name, String descriptor) {
+        int classIndex = classRef(className);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constants.computeIfAbsent(NAME_AND_TYPE + ":" + name + descriptor, key -> {
+            constantPool.write(NAME_AND_TYPE);
+            u2(constantPool, nameIndex);
+            u2(constantPool, descriptorIndex);
+            return constants.size() + 1;
+        });
+        return constants.computeIfAbsent(tag + ":" + className + "." + name + descriptor, key -> {
+            constantPool.write(tag);
+            u2(constantPool, classIndex);
+            u2(constantPool, nameAndType);
+            return constants.size() + 1;
+        });
+    }
+
+    /**
+     * The offset of the load and return instructions for a type relative to
+     * {@code iload} and {@code ireturn}.
+     */
+    private static int kind(Class<?> type) {
+        if (type == long.class) {
+            return 1;
+        } else if (type == float.class) {
+            return 2;
+        } else if (type == double.class) {
+            return 3;
+        } else if (type.isPrimitive()) {
+            return 0;
+        }
+        return 4;
+    }
+
+    private static int size(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static String descriptor(Method method) {
+        return MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+    }
+
+    private static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private static void u2(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void u4(ByteArrayOutputStream out, int value) {
+        u2(out, value >>> 16);
+        u2(out, value);
+    }
+}
@@ -0,0 +1,291 @@
+package at.base10.state;
+
+import lombok.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes state machines and populations as compact binary snapshots and restores them.
+ * <p>
+ * A codec is created by {@link StateMachineDefinition#snapshotCodec()}. A snapshot records the
+ * current state of a machine as its ordinal in two bytes, together with the
+ * {@linkplain StateMachineDefinition#fingerprint() fingerprint} of the definition. Restoring a
+ * snapshot checks the fingerprint and creates the machine directly in the recorded state, without
+ * resolving or validating state classes.
+ * </p>
+ * <p>
+ * A snapshot of a single state machine is laid out as
+ * {@code fingerprint (8 bytes) | ordinal (2 bytes) | payload length (4 bytes) | payload}, where the
+ * payload is written by the {@link StateSerializer} of the codec, if any. States registered as
+ * {@link StateScope#SHARED} belong to every machine of the definition, so their payload is not
+ * written, and a snapshot carrying one is rejected. A snapshot of a
+ * population is laid out as {@code fingerprint (8 bytes) | count (4 bytes) | ordinals (2 bytes each)}
+ * and is streamed through a single buffer, so it needs no object per machine. The states of a
+ * population are shared, so their payload is not written.
+ * </p>
+ * <p>
+ * All values are written in big-endian byte order. A codec holds no mutable state and is thread-safe.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public final class SnapshotCodec<S> {
+
+    /**
+     * The size of the buffer that population snapshots are streamed through.
+     */
+    static final int BUFFER = 1 << 16;
+
+    private final StateMachineDefinition<S> definition;
+    private final StateSerializer<S> serializer;
+    private final long fingerprint;
+    private final int last;
+
+    SnapshotCodec(StateMachineDefinition<S> definition, StateSerializer<S> serializer) {
+        this.definition = definition;
+        this.serializer = serializer;
+        this.fingerprint = definition.fingerprint();
+        this.last = checkStates(definition.getStateClasses().size());
+    }
+
+    /**
+     * Checks that the ordinals of the states fit into a {@code char}.
+     *
+     * @return the last ordinal
+     */
+    static int checkStates(int states) {
+        int last = states - 1;
+        if ((char) last != last) {
+            throw new UnsupportedOperationException("Snapshots support at most 65536 states, not " + states);
+        }
+        return last;
+    }
+
+    /**
+     * Writes a snapshot of a state machine to a buffer.
+     *
+     * @param stateMachine the state machine
+     * @param buffer       the buffer to write to
+     * @throws IllegalArgumentException         if the current state is not part of the definition of this codec
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public void write(@NonNull StateMachine<S> stateMachine, @NonNull ByteBuffer buffer) {
+        S current = stateMachine.currentState();
+        @SuppressWarnings("unchecked")
+        int ordinal = definition.ordinalOf((Class<? extends S>) current.getClass());
+        buffer.putLong(fingerprint).putChar((char) ordinal);
+        int start = buffer.position() + Integer.BYTES;
+        buffer.position(start);
+        if (serializer != null && definition.sharedState(ordinal) == null) {
+            serializer.write(current, buffer);
+        }
+        buffer.putInt(start - Integer.BYTES, buffer.position() - start);
+    }
+
+    /**
+     * Restores a state machine from a snapshot written by {@link #write(StateMachine, ByteBuffer)}.
+     * <p>
+     * The state machine is created like {@link StateMachineDefinition#newInstance(Class)}, but in
+     * the recorded state, and only the factory of that state is invoked. The other states are
+     * created when the machine first enters them.
+     * </p>
+     *
+     * @param buffer the buffer to read from
+     * @return the restored state machine
+     * @throws IllegalArgumentException if the snapshot was written for another definition, carries
+     *                                  a payload for a shared state, or is corrupt
+     * @throws BufferUnderflowException if the snapshot is incomplete
+     */
+    public CompiledStateMachine<S> read(@NonNull ByteBuffer buffer) {
+        checkFingerprint(buffer.getLong());
+        int ordinal = checkOrdinal(buffer.getChar());
+        int length = buffer.getInt();
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (length > 0 && definition.sharedState(ordinal) != null) {
+            throw new IllegalArgumentException(
+                    "Snapshot carries a payload for the shared state " + definition.nameOf(ordinal));
+        }
+        var payload = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        var stateMachine = definition.restore(ordinal);
+        if (serializer != null && definition.sharedState(ordinal) == null) {
+            serializer.read(stateMachine.currentState(), payload);
+        }
+        return stateMachine;
+    }
+
+    /**
+     * Returns the number of bytes a snapshot of a population takes.
+     *
+     * @param population the population
+     * @return the size of the snapshot in bytes
+     */
+    public long sizeOf(@NonNull StateMachinePopulation<S> population) {
+        return Long.BYTES + Integer.BYTES + (long) population.size() * Character.BYTES;
+    }
+
+    /**
+     * Writes a snapshot of all machines of a population to a buffer.
+     *
+     * @param population the population
+     * @param buffer     the buffer to write to
+     * @throws IllegalArgumentException         if the population was created from another definition
+     * @throws java.nio.BufferOverflowException if the buffer is too small, see {@link #sizeOf(StateMachinePopulation)}
+     */
+    public void write(@NonNull StateMachinePopulation<S> population, @NonNull ByteBuffer buffer) {
+        checkPopulation(population);
+        int count = population.size();
+        buffer.putLong(fingerprint).putInt(count);
+        for (int slot = 0; slot < count; slot++) {
+            buffer.putChar((char) population.ordinalAt(slot));
+        }
+    }
+
+    /**
+     * Streams a snapshot of all machines of a population to a channel, such as a
+     * {@link java.nio.channels.FileChannel}.
+     *
+     * @param population the population
+     * @param channel    the channel to write to
+     * @throws IllegalArgumentException if the population was created from another definition
+     * @throws IOException              if writing to the channel fails
+     */
+    public void write(@NonNull StateMachinePopulation<S> population, @NonNull WritableByteChannel channel)
+            throws IOException {
+        checkPopulation(population);
+        int count = population.size();
+        var buffer = newBuffer();
+        buffer.putLong(fingerprint).putInt(count);
+        for (int slot = 0; slot < count; slot++) {
+            if (!buffer.hasRemaining()) {
+                drain(buffer, channel);
+            }
+            buffer.putChar((char) population.ordinalAt(slot));
+        }
+        drain(buffer, channel);
+    }
+
+    /**
+     * Restores the machines of a population snapshot from a buffer and adds them to a population.
+     * The restored machines keep their order and get consecutive ids.
+     *
+     * @param buffer     the buffer to read from
+     * @param population the population to add the machines to
+     * @return the id of the first restored machine
+     * @throws IllegalArgumentException if the snapshot or the population belongs to another definition,
+     *                                  or the snapshot is corrupt
+     * @throws IllegalStateException    if the population has no room for the machines
+     * @throws BufferUnderflowException if the snapshot is incomplete
+     */
+    public long read(@NonNull ByteBuffer buffer, @NonNull StateMachinePopulation<S> population) {
+        checkPopulation(population);
+        int count = readHeader(buffer);
+        if (buffer.remaining() / Character.BYTES < count) {
+            throw new BufferUnderflowException();
+        }
+        int first = population.reserve(count);
+        for (int slot = first; slot < first + count; slot++) {
+            population.restore(slot, checkOrdinal(buffer.getChar()));
+        }
+        return first;
+    }
+
+    /**
+     * Restores the machines of a population snapshot from a channel, such as a
+     * {@link java.nio.channels.FileChannel}, and adds them to a population. The restored machines
+     * keep their order and get consecutive ids. Exactly the bytes of the snapshot are read.
+     * <p>
+     * The room for the machines is reserved before they are read. If the snapshot turns out to be
+     * incomplete or corrupt, the population contains machines that were not restored and should
+     * be discarded.
+     * </p>
+     *
+     * @param channel    the channel to read from
+     * @param population the population to add the machines to
+     * @return the id of the first restored machine
+     * @throws IllegalArgumentException if the snapshot or the population belongs to another definition,
+     *                                  or the snapshot is corrupt
+     * @throws IllegalStateException    if the population has no room for the machines
+     * @throws EOFException             if the channel ends before the snapshot
+     * @throws IOException              if reading from the channel fails
+     */
+    public long read(@NonNull ReadableByteChannel channel, @NonNull StateMachinePopulation<S> population)
+            throws IOException {
+        checkPopulation(population);
+        var buffer = newBuffer();
+        fill(buffer.limit(Long.BYTES + Integer.BYTES), channel);
+        int count = readHeader(buffer);
+        int first = population.reserve(count);
+        int end = first + count;
+        for (int slot = first; slot < end; ) {
+            buffer.clear().limit(Math.min(BUFFER / Character.BYTES, end - slot) * Character.BYTES);
+            fill(buffer, channel);
+            while (buffer.hasRemaining()) {
+                population.restore(slot++, checkOrdinal(buffer.getChar()));
+            }
+        }
+        return first;
+    }
+
+    private int readHeader(ByteBuffer buffer) {
+        checkFingerprint(buffer.getLong());
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new IllegalArgumentException("Snapshot contains a negative number of machines: " + count);
+        }
+        return count;
+    }
+
+    private void checkFingerprint(long written) {
+        if (written != fingerprint) {
+            throw new IllegalArgumentException("Snapshot was written for another definition");
+        }
+    }
+
+    private void checkPopulation(StateMachinePopulation<S> population) {
+        if (population.getDefinition().fingerprint() != fingerprint) {
+            throw new IllegalArgumentException("Population was created from another definition");
+        }
+    }
+
+    private int checkOrdinal(int ordinal) {
+        if (ordinal > last) {
+            throw new IllegalArgumentException("Snapshot contains unknown ordinal " + ordinal);
+        }
+        return ordinal;
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(BUFFER);
+    }
+
+    /**
+     * Flips the buffer, writes it to the channel completely, then clears it.
+     */
+    static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads from the channel until the buffer is full, then flips it.
+     */
+    static void fill(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Snapshot ends " + buffer.remaining() + " bytes early");
+            }
+        }
+        buffer.flip();
+    }
+}
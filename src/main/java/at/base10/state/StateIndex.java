@@ -0,0 +1,162 @@
+package at.base10.state;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.LongStream;
+
+/**
+ * Indexes the machines of a {@link StateMachinePopulation} by their current state.
+ * <p>
+ * Each state has a live counter and a bitmap with one bit per slot. The population updates both
+ * after every change of a slot, so counting the machines in a state does not depend on the size of
+ * the population, and iterating them skips 64 slots per empty word. The bitmaps are split into pages
+ * of {@value #PAGE} slots that are only allocated once a machine in their range enters the state, so
+ * a state that few machines are in takes little memory and iterating it skips the missing pages.
+ * </p>
+ * <p>
+ * An update does not apply the change it follows, it reads the slot from the store again and moves
+ * the bit of the slot to the state found there. The caller passes the previous ordinal of its change,
+ * where the bit usually is, and only if it is not there, because the updates of several changes ran
+ * out of order, are the bitmaps of all states searched. Updates of a slot are serialized by a lock
+ * striped over the words of the bitmaps, so a slot has at most one bit set and, once its transitions
+ * are done, it is indexed under its current state whatever order their updates ran in. Until the
+ * update of a transition is done, the machine is still counted and listed in its previous state.
+ * </p>
+ */
+final class StateIndex {
+
+    /**
+     * The number of slots on a page of a bitmap.
+     */
+    static final int PAGE = Long.SIZE * Long.SIZE;
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(long[][].class);
+
+    /**
+     * The maximum number of locks, each guarding every 64th word of the bitmaps.
+     */
+    private static final int STRIPES = 64;
+
+    private final LongAdder[] counts;
+    private final long[][][] members;
+    private final Object[] locks;
+
+    StateIndex(int states, int capacity) {
+        int words = -Math.floorDiv(-capacity, Long.SIZE);
+        this.counts = new LongAdder[states];
+        this.members = new long[states][-Math.floorDiv(-words, Long.SIZE)][];
+        this.locks = new Object[Math.max(1, Math.min(STRIPES, words))];
+        for (int ordinal = 0; ordinal < states; ordinal++) {
+            counts[ordinal] = new LongAdder();
+        }
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            locks[stripe] = new Object();
+        }
+    }
+
+    /**
+     * Indexes new slots in a range under the ordinals the store holds for them now.
+     */
+    void add(int from, int to, OrdinalUpdates store) {
+        for (int slot = from; slot < to; ) {
+            int end = Math.min(to, (slot / Long.SIZE + 1) * Long.SIZE);
+            synchronized (lockOf(slot)) {
+                for (; slot < end; slot++) {
+                    move(slot, -1, store.get(slot));
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes a slot under the ordinal the store holds for it now, after a change from {@code previous}.
+     */
+    void update(int slot, int previous, OrdinalUpdates store) {
+        synchronized (lockOf(slot)) {
+            move(slot, previous, store.get(slot));
+        }
+    }
+
+    private Object lockOf(int slot) {
+        return locks[slot / Long.SIZE % locks.length];
+    }
+
+    /**
+     * Indexes a slot under the given ordinal, while holding the lock of the slot. The bit is looked
+     * for under {@code previous} first, which may be -1 if it is not known.
+     */
+    private void move(int slot, int previous, int ordinal) {
+        if (isSet(members[ordinal], slot)) {
+            return;
+        }
+        if (previous < 0 || !isSet(members[previous], slot)) {
+            previous = -1;
+            for (int other = 0; other < members.length && previous < 0; other++) {
+                if (isSet(members[other], slot)) {
+                    previous = other;
+                }
+            }
+        }
+        if (previous >= 0) {
+            clear(members[previous], slot);
+            counts[previous].decrement();
+        }
+        set(members[ordinal], slot);
+        counts[ordinal].increment();
+    }
+
+    long count(int ordinal) {
+        return counts[ordinal].sum();
+    }
+
+    /**
+     * Returns the slots of the machines in a state, in ascending order.
+     */
+    LongStream slots(int ordinal) {
+        var pages = members[ordinal];
+        return LongStream.iterate(next(pages, 0), slot -> slot >= 0, slot -> next(pages, slot + 1));
+    }
+
+    /**
+     * Returns the first set slot at or after {@code from}, or -1 if there is none.
+     */
+    private static long next(long[][] pages, long from) {
+        int index = (int) (from / PAGE);
+        long mask = -1L << from;
+        for (int word = (int) (from / Long.SIZE % Long.SIZE); index < pages.length; index++, word = 0) {
+            var page = (long[]) PAGES.getAcquire(pages, index);
+            for (; page != null && word < Long.SIZE; word++, mask = -1L) {
+                long bits = (long) WORDS.getVolatile(page, word) & mask;
+                if (bits != 0) {
+                    return (long) index * PAGE + (long) word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            mask = -1L;
+        }
+        return -1;
+    }
+
+    private static boolean isSet(long[][] pages, int slot) {
+        var page = (long[]) PAGES.getAcquire(pages, slot / PAGE);
+        return page != null && ((long) WORDS.getVolatile(page, slot / Long.SIZE % Long.SIZE) & 1L << slot) != 0;
+    }
+
+    private static void set(long[][] pages, int slot) {
+        var page = (long[]) PAGES.getAcquire(pages, slot / PAGE);
+        if (page == null) {
+            var allocated = new long[Long.SIZE];
+            page = (long[]) PAGES.compareAndExchangeRelease(pages, slot / PAGE, null, allocated);
+            if (page == null) {
+                page = allocated;
+            }
+        }
+        WORDS.getAndBitwiseOr(page, slot / Long.SIZE % Long.SIZE, 1L << slot);
+    }
+
+    private static void clear(long[][] pages, int slot) {
+        var page = (long[]) PAGES.getAcquire(pages, slot / PAGE);
+        WORDS.getAndBitwiseAnd(page, slot / Long.SIZE % Long.SIZE, ~(1L << slot));
+    }
+}
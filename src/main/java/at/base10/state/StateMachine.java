@@ -1,10 +1,22 @@
 package at.base10.state;
 
 import at.base10.state.observer.Observer;
+import at.base10.state.observer.ObserverLifetime;
 import at.base10.state.observer.Subscription;
+import at.base10.state.observer.TransitionFilter;
+import lombok.NonNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Represents a generic state machine that manages states of type {@code S}.
+ * <p>
+ * Implementations only have to provide the transition by class, the current state, the proxies and
+ * the registration of observers without a filter. The remaining methods fall back on those. The
+ * state machines created by a {@link StateMachineBuilder} also resolve states to ordinals and
+ * handle events, see {@link CompiledStateMachine}.
+ * </p>
  *
  * @param <S> the type representing the states in the state machine
  */
@@ -26,9 +38,78 @@ public interface StateMachine<S> {
      *
      * @param state the class of the new state
      * @return the updated state machine
+     * @throws IllegalStateException if the transition is not allowed or rejected by its guard,
+     *                               see {@link StateMachineBuilder#allow(Class, Class)}
      */
     StateMachine<S> transitionToState(Class<? extends S> state);
 
+    /**
+     * Transitions the state machine to {@code next} if the current state is of class {@code expected}.
+     * <p>
+     * On a state machine built with {@link StateMachineBuilder#concurrent()} the check and the
+     * transition happen atomically, so exactly one of several competing threads succeeds. By
+     * default, the class of the current state is compared and then {@link #transitionToState(Class)}
+     * is called, which is not atomic.
+     * </p>
+     *
+     * @param expected the class of the expected current state
+     * @param next     the class of the new state
+     * @return true if the state machine transitioned, false if the current state is of another class
+     * @throws IllegalArgumentException if either state is not registered
+     * @throws IllegalStateException    if the current state is {@code expected} and the transition is
+     *                                  not allowed or rejected by its guard
+     */
+    default boolean compareAndTransition(Class<? extends S> expected, Class<? extends S> next) {
+        if (currentState().getClass() != expected) {
+            return false;
+        }
+        transitionToState(next);
+        return true;
+    }
+
+    /**
+     * Runs a handler against the current state and returns the resulting state.
+     * <p>
+     * On a state machine built with {@link StateMachineBuilder#mailbox(java.util.concurrent.Executor)}
+     * the handler is enqueued and runs later on the mailbox executor. Transitions it requests are
+     * applied before the returned future completes. Otherwise the handler runs immediately on the
+     * calling thread.
+     * </p>
+     *
+     * @param handler the handler receiving the current state
+     * @return a future of the state after the handler and the transitions it requested,
+     * completed exceptionally if the handler or an observer fails. An {@link Error} is rethrown
+     * after it completed the future.
+     */
+    default CompletableFuture<S> submit(@NonNull Consumer<? super S> handler) {
+        var result = new CompletableFuture<S>();
+        try {
+            handler.accept(currentState());
+            result.complete(currentState());
+        } catch (RuntimeException | Error e) {
+            result.completeExceptionally(e);
+            if (e instanceof Error error) {
+                throw error;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Requests a transition and returns the resulting state.
+     * <p>
+     * On a state machine built with {@link StateMachineBuilder#mailbox(java.util.concurrent.Executor)}
+     * the transition is enqueued behind all earlier requests. Otherwise it happens immediately.
+     * </p>
+     *
+     * @param state the class of the new state
+     * @return a future of the state after the transition and the transitions requested by its observers
+     * @throws IllegalArgumentException if the state is not registered
+     */
+    default CompletableFuture<S> submitTransition(@NonNull Class<? extends S> state) {
+        return submit(current -> transitionToState(state));
+    }
+
     /**
      * Retrieves the current state of the state machine.
      *
@@ -36,6 +117,25 @@ public interface StateMachine<S> {
      */
     S currentState();
 
+    /**
+     * Releases all states except the current one and the {@linkplain StateScope#SHARED shared}
+     * states, so that the resources they hold can be reclaimed. A released state is created again
+     * by its factory when it is next needed.
+     * <p>
+     * This is meant for machines built with {@link StateMachineBuilder#lazy()}, whose states are
+     * only created when they are entered. Other machines keep their states, which may hold data
+     * across visits, and release nothing. On a concurrent state machine, a state that is entered
+     * while the states are released may be created again. On a state machine built with
+     * {@link StateMachineBuilder#mailbox(java.util.concurrent.Executor)}, call this from a
+     * {@linkplain #submit(Consumer) handler}.
+     * </p>
+     *
+     * @return the number of released states, by default none
+     */
+    default int releaseIdleStates() {
+        return 0;
+    }
+
     /**
      * Returns the current state as a proxy instance.
      *
@@ -61,10 +161,89 @@ public interface StateMachine<S> {
     Subscription<S> registerObserver(Observer<S> observer);
 
     /**
-     * Unregisters a previously registered observer from the state machine.
+     * Registers an observer that is only notified of the transitions selected by the filter.
+     * <p>
+     * The observers are kept in a table indexed by the ordinals of the states, so a transition only
+     * visits the observers without a filter, those filtered by the state it leaves and those
+     * filtered by the state it enters, in this order and each in registration order.
+     * </p>
+     *
+     * @param filter   the transitions the observer is notified of
+     * @param observer the observer to register
+     * @return a {@link Subscription} that can be used to unsubscribe the observer, the existing one
+     * if the observer is already registered with an equal filter
+     * @throws IllegalArgumentException if a state of the filter is not registered
+     * @throws IllegalStateException    if a state registers a filtered observer while it is created
+     *                                  together with the state machine
+     */
+    default Subscription<S> registerObserver(TransitionFilter<S> filter, Observer<S> observer) {
+        return registerObserver(filter, observer, ObserverLifetime.permanent());
+    }
+
+    /**
+     * Registers an observer that is only notified of the transitions selected by the filter, and
+     * only as long as the lifetime allows.
+     * <p>
+     * A weakly referenced observer is unregistered once it was garbage collected, when the next
+     * transition finds it in the reference queue of the state machine. An observer that expired
+     * after a number of state changes or a duration is unregistered when it is next due to be
+     * notified.
+     * </p>
+     * <p>
+     * By default, the observer is wrapped in one that applies the filter and the lifetime, and the
+     * wrapper is registered with {@link #registerObserver(Observer)}. The returned subscription
+     * holds the wrapper, so unregister the observer through the subscription.
+     * </p>
+     *
+     * @param filter   the transitions the observer is notified of
+     * @param observer the observer to register
+     * @param lifetime how long the observer stays registered
+     * @return a {@link Subscription} that can be used to unsubscribe the observer, or one equal to
+     * the existing subscription if the observer is already registered with an equal filter, in
+     * which case the lifetime is ignored
+     * @throws IllegalArgumentException if a state of the filter is not registered
+     * @throws IllegalStateException    if a state registers a filtered observer while it is created
+     *                                  together with the state machine
+     */
+    default Subscription<S> registerObserver(@NonNull TransitionFilter<S> filter, @NonNull Observer<S> observer,
+                                             @NonNull ObserverLifetime lifetime) {
+        var filtered = new FilteredObserver<>(this, filter, observer, lifetime);
+        registerObserver(filtered);
+        return new Subscription<>(this, filtered, filter);
+    }
+
+    /**
+     * Unregisters a previously registered observer from the state machine, with every filter it
+     * was registered with.
      *
      * @param observer the observer to unregister
      * @return true if the observer was successfully unregistered, false otherwise
      */
     boolean unregisterObserver(Observer<S> observer);
+
+    /**
+     * Removes a single registration of an observer. Only the observers registered with the same
+     * filter key are copied, so this does not depend on the number of other observers. By default,
+     * the observer is {@linkplain #unregisterObserver(Observer) unregistered}.
+     *
+     * @param subscription the subscription returned when the observer was registered
+     * @return true if the observer was successfully unregistered, false otherwise
+     */
+    default boolean unsubscribe(@NonNull Subscription<S> subscription) {
+        return unregisterObserver(subscription.observer());
+    }
+
+    /**
+     * Creates a publisher of the state changes of this state machine, which delivers them as
+     * requested by its subscribers and buffers the others.
+     *
+     * @param capacity the number of state changes buffered per subscriber
+     * @param policy   what happens to a state change when the buffer of a subscriber is full
+     * @return the publisher
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     * @see StatePublisher#merge(java.util.Collection, int, StatePublisher.OverflowPolicy)
+     */
+    default StatePublisher<S> publisher(int capacity, StatePublisher.OverflowPolicy policy) {
+        return StatePublisher.of(this, capacity, policy);
+    }
 }
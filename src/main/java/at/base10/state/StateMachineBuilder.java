@@ -1,11 +1,16 @@
 package at.base10.state;
 
+import at.base10.state.spec.GeneratedSpec;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
 
 /**
  * A builder class for constructing instances of {@link StateMachine}.
@@ -14,8 +19,24 @@ import java.util.List;
  */
 @Log4j2
 public class StateMachineBuilder<S> {
-    final Collection<StateFactory<S>> statesBuilders = new ArrayList<>();
+    final List<StateMachineDefinition.Registration<S>> registrations = new ArrayList<>();
     final Class<S> stateClass;
+    private final List<TransitionTable.Edge<S>> transitions = new ArrayList<>();
+    private final List<EventTable.Handler<S>> events = new ArrayList<>();
+    private final List<TimeoutTable.Timeout<S>> timeouts = new ArrayList<>();
+    private UnhandledEventPolicy unhandledEvents = UnhandledEventPolicy.FAIL;
+    private boolean concurrent;
+    private boolean lazy;
+    private Executor mailbox;
+    private AsyncObserverDispatcher dispatcher;
+    private StateMachineMetrics metrics;
+    private TimerWheel wheel;
+
+    /**
+     * The definition that {@link #build(Class)} creates machines from, or null until the next
+     * build. Every change of the builder discards it.
+     */
+    private StateMachineDefinition<S> built;
 
     /**
      * Constructs a new StateMachineBuilder with the specified state class.
@@ -34,8 +55,63 @@ public class StateMachineBuilder<S> {
      * @throws NullPointerException if {@code stateBuilder} is null
      */
     public StateMachineBuilder<S> register(@NonNull StateFactory<S> stateBuilder) {
-        statesBuilders.add(stateBuilder);
-        return this;
+        return add(null, stateBuilder, StateScope.MACHINE);
+    }
+
+    /**
+     * Registers a new state factory in the state machine builder, whose states are created per
+     * state machine or shared by all state machines of the definition.
+     * <p>
+     * A shared state is created once, when the definition is compiled, which saves an instance per
+     * state machine and lets all machines run the same state object.
+     * </p>
+     *
+     * @param stateBuilder the state factory to register
+     * @param scope        whether each state machine gets its own state
+     * @return this builder instance
+     * @throws NullPointerException if {@code stateBuilder} or {@code scope} is null
+     */
+    public StateMachineBuilder<S> register(@NonNull StateFactory<S> stateBuilder, @NonNull StateScope scope) {
+        return add(null, stateBuilder, scope);
+    }
+
+    /**
+     * Registers a new state factory together with the class of the states it creates.
+     * <p>
+     * The class is validated when the definition is compiled, so the factory is not invoked until
+     * a state machine needs the state. A factory that produces a state of another class fails then.
+     * </p>
+     *
+     * @param state        the class of the states the factory creates
+     * @param stateBuilder the state factory to register
+     * @return this builder instance
+     * @throws NullPointerException if {@code state} or {@code stateBuilder} is null
+     * @see #lazy()
+     */
+    public StateMachineBuilder<S> register(@NonNull Class<? extends S> state, @NonNull StateFactory<S> stateBuilder) {
+        return add(state, stateBuilder, StateScope.MACHINE);
+    }
+
+    /**
+     * Registers a new state factory together with the class of the states it creates, whose states
+     * are created per state machine or shared by all state machines of the definition.
+     *
+     * @param state        the class of the states the factory creates
+     * @param stateBuilder the state factory to register
+     * @param scope        whether each state machine gets its own state
+     * @return this builder instance
+     * @throws NullPointerException if an argument is null
+     * @see #register(Class, StateFactory)
+     * @see #register(StateFactory, StateScope)
+     */
+    public StateMachineBuilder<S> register(@NonNull Class<? extends S> state, @NonNull StateFactory<S> stateBuilder,
+                                           @NonNull StateScope scope) {
+        return add(state, stateBuilder, scope);
+    }
+
+    private StateMachineBuilder<S> add(Class<? extends S> state, StateFactory<S> stateBuilder, StateScope scope) {
+        registrations.add(new StateMachineDefinition.Registration<>(state, stateBuilder, scope));
+        return changed();
     }
 
     /**
@@ -51,46 +127,339 @@ public class StateMachineBuilder<S> {
         return this;
     }
 
+    /**
+     * Allows the state machines to transition from one state to another.
+     * <p>
+     * As long as no transition is allowed, every transition is. Once any is, a transition that was
+     * not allowed fails with an {@link IllegalStateException}. The allowed transitions are
+     * compiled into one bitset per state, so checking a transition is a single bit test.
+     * </p>
+     *
+     * @param from the class of the state the transition leaves
+     * @param to   the class of the state the transition enters
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> allow(@NonNull Class<? extends S> from, @NonNull Class<? extends S> to) {
+        transitions.add(new TransitionTable.Edge<>(from, to, null));
+        return changed();
+    }
+
+    /**
+     * Allows the state machines to transition from one state to another if the guard accepts it.
+     * <p>
+     * The guard receives the state the transition leaves and the state it enters, and is evaluated
+     * before every transition along this edge. If it returns false, the transition fails with an
+     * {@link IllegalStateException} and the state does not change. On a concurrent state machine
+     * the guard may be evaluated more than once per transition while threads compete.
+     * </p>
+     *
+     * @param from  the class of the state the transition leaves
+     * @param to    the class of the state the transition enters
+     * @param guard decides whether the transition may happen
+     * @param <F>   the type of the state the transition leaves
+     * @param <T>   the type of the state the transition enters
+     * @return this builder instance
+     * @see #allow(Class, Class)
+     */
+    @SuppressWarnings("unchecked")
+    public <F extends S, T extends S> StateMachineBuilder<S> allow(@NonNull Class<F> from, @NonNull Class<T> to,
+                                                                 @NonNull BiPredicate<? super F, ? super T> guard) {
+        transitions.add(new TransitionTable.Edge<>(from, to, (BiPredicate<? super S, ? super S>) guard));
+        return changed();
+    }
+
+    /**
+     * Makes the state machines move from one state to another when the event is fired in it.
+     * <p>
+     * The events are compiled into a flat table with one entry per state and event, so
+     * {@link CompiledStateMachine#fire(Enum)} resolves the target state with a single array access. All
+     * events of a state machine must be constants of the same enum.
+     * </p>
+     *
+     * @param from  the class of the state handling the event
+     * @param event the event
+     * @param to    the class of the state the event moves the state machine to
+     * @param <E>   the type of the events
+     * @return this builder instance
+     */
+    public <E extends Enum<E>> StateMachineBuilder<S> on(@NonNull Class<? extends S> from, @NonNull E event,
+                                                         @NonNull Class<? extends S> to) {
+        events.add(new EventTable.Handler<>(from, event, to));
+        return changed();
+    }
+
+    /**
+     * Makes the state machines move from a state to another when they stay in it for the given time.
+     * <p>
+     * Entering the state schedules its timeout on the {@link #timerWheel(TimerWheel) timer wheel},
+     * and leaving it cancels the timeout. Entering it again, also from itself, starts the timeout
+     * over. When the timeout expires, the machine is moved to the target state by the thread
+     * advancing the wheel, so use {@link #concurrent()} or {@link #mailbox(Executor)} unless that
+     * thread owns the machines. Populations do not support timeouts.
+     * </p>
+     *
+     * @param from  the class of the state that times out
+     * @param after how long the state machines may stay in the state
+     * @param to    the class of the state the timeout moves the state machines to
+     * @return this builder instance
+     * @throws IllegalArgumentException if {@code after} is not positive
+     */
+    public StateMachineBuilder<S> timeout(@NonNull Class<? extends S> from, @NonNull Duration after,
+                                          @NonNull Class<? extends S> to) {
+        if (after.isNegative() || after.isZero()) {
+            throw new IllegalArgumentException("Timeout must be positive, was " + after);
+        }
+        timeouts.add(new TimeoutTable.Timeout<>(from, after, to));
+        return changed();
+    }
+
+    /**
+     * Schedules the timeouts of the built state machines on the given wheel, which can be shared
+     * by the state machines of many definitions.
+     *
+     * @param wheel the wheel expiring the timeouts
+     * @return this builder instance
+     * @see #timeout(Class, Duration, Class)
+     */
+    public StateMachineBuilder<S> timerWheel(@NonNull TimerWheel wheel) {
+        this.wheel = wheel;
+        return changed();
+    }
+
+    /**
+     * Sets what {@link CompiledStateMachine#fire(Enum)} does with events the current state does not handle.
+     * The default is {@link UnhandledEventPolicy#FAIL}.
+     *
+     * @param policy the policy for unhandled events
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> unhandledEvents(@NonNull UnhandledEventPolicy policy) {
+        this.unhandledEvents = policy;
+        return changed();
+    }
+
+    /**
+     * Makes the built state machines thread-safe.
+     * <p>
+     * A concurrent state machine can be shared between threads without external locking.
+     * Transitions are lock-free, {@link StateMachine#currentState()} is wait-free and
+     * {@link StateMachine#compareAndTransition(Class, Class)} is atomic. All observers see the
+     * transitions in the same order in which they took effect.
+     * </p>
+     *
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> concurrent() {
+        this.concurrent = true;
+        return changed();
+    }
+
+    /**
+     * Makes the built state machines create each state when it is first entered, instead of
+     * creating all states with the machine.
+     * <p>
+     * Machines that only ever visit a few of their states then do not pay for the others. A state
+     * is created by its factory once per machine, even if several threads enter it at the same
+     * time, and can be released again with {@link StateMachine#releaseIdleStates()}. Register the
+     * states with {@link #register(Class, StateFactory)}, so that compiling the definition does not
+     * invoke their factories either. Populations share their states and always create all of them.
+     * </p>
+     *
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> lazy() {
+        this.lazy = true;
+        return changed();
+    }
+
+    /**
+     * Makes the built state machines process their transitions through a mailbox.
+     * <p>
+     * Every state machine owns a mailbox that is drained by the given executor, one message at a
+     * time. A message runs to completion before the next one starts: transitions requested while
+     * a message is processed, by a state or by an observer, are applied after it in request order
+     * instead of nesting on the stack. Use {@link StateMachine#submit(java.util.function.Consumer)}
+     * and {@link StateMachine#submitTransition(Class)} to enqueue work and receive the resulting
+     * state. Producers never wait for a state handler, and any number of state machines can share
+     * the same executor, for example one that runs every task on a new virtual thread.
+     * </p>
+     * <p>
+     * This takes precedence over {@link #concurrent()}.
+     * </p>
+     *
+     * @param executor the executor draining the mailboxes
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> mailbox(@NonNull Executor executor) {
+        this.mailbox = executor;
+        return changed();
+    }
+
+    /**
+     * Makes the built state machines deliver their state changes through the given dispatcher.
+     * <p>
+     * A transition then only writes the state change into the dispatcher's ring buffer, and the
+     * observers are called on the dispatcher's consumer thread. One dispatcher can serve many
+     * state machines.
+     * </p>
+     *
+     * @param dispatcher the dispatcher delivering the state changes
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> observerDispatcher(@NonNull AsyncObserverDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        return changed();
+    }
+
+    /**
+     * Records the transitions of the built state machines in the given metrics.
+     * <p>
+     * All state machines built or compiled by this builder share the metrics, so they aggregate
+     * the transitions of every machine with these states.
+     * </p>
+     *
+     * @param metrics the metrics recording the transitions
+     * @return this builder instance
+     */
+    public StateMachineBuilder<S> metrics(@NonNull StateMachineMetrics metrics) {
+        this.metrics = metrics;
+        return changed();
+    }
+
+    /**
+     * Discards the definition of the built state machines after a change of the builder.
+     */
+    private StateMachineBuilder<S> changed() {
+        built = null;
+        return this;
+    }
+
     /**
      * Builds a new state machine with the specified initial state.
+     * <p>
+     * The first call validates the registered states and compiles them, together with the
+     * transitions, events and timeouts, into a definition that later calls reuse until the builder
+     * changes, so they only invoke the factories for the new machine. The machines built from one
+     * definition share its {@linkplain StateScope#SHARED shared} states and its metrics. Use
+     * {@link #compile()} to keep the definition.
+     * </p>
+     * <p>
+     * If no states are registered and the state interface has a generated
+     * {@link at.base10.state.spec.StateMachineSpec specification}, its states are used. Once any
+     * state is registered, the specification is ignored and only the registered states are used.
+     * </p>
      *
      * @param initialState the class of the initial state
      * @return the constructed {@link StateMachine} instance
+     * @throws IllegalArgumentException if an allowed transition, an event or a timeout refers to a state
+     *                                  that is not registered, or is declared twice
+     */
+    public CompiledStateMachine<S> build(@NonNull Class<? extends S> initialState) {
+        var definition = built;
+        if (definition != null) {
+            return definition.newInstance(initialState);
+        }
+        var spec = generatedSpec();
+        if (spec != null) {
+            built = generated(spec);
+            return built.newInstance(initialState);
+        }
+        var stateMachine = stateMachines().get();
+        var states = buildStates(stateMachine);
+        built = define(states);
+        return built.initialize(stateMachine, states, built.ordinalOf(initialState));
+    }
+
+    /**
+     * Compiles the registered states into an immutable {@link StateMachineDefinition}.
+     * <p>
+     * Each factory registered without its class is invoked once to discover and validate its state
+     * class. The states are built for the machine that the first call of
+     * {@link StateMachineDefinition#newInstance(Class)} returns, so the factories always receive a
+     * machine that is used. Later machines are created without repeating that work.
+     * </p>
+     * <p>
+     * If no states are registered and the state interface has a generated
+     * {@link at.base10.state.spec.StateMachineSpec specification}, its pre-validated states are
+     * used and no factory is invoked. Once any state is registered, the specification is ignored
+     * and only the registered states are used.
+     * </p>
+     *
+     * @return the compiled {@link StateMachineDefinition}
+     * @throws IllegalArgumentException if an allowed transition, an event or a timeout refers to a state
+     *                                  that is not registered, or is declared twice
+     */
+    public StateMachineDefinition<S> compile() {
+        var spec = generatedSpec();
+        if (spec != null) {
+            return generated(spec);
+        }
+        var stateMachine = stateMachines().get();
+        var states = buildStates(stateMachine);
+        return define(states).adopt(stateMachine, states);
+    }
+
+    /**
+     * Returns the generated specification of the state interface, unless states are registered,
+     * which replace it.
      */
-    public StateMachine<S> build(@NonNull Class<? extends S> initialState) {
-        StateMachineImpl<S> stateMachine = new StateMachineImpl<>(stateClass);
+    private GeneratedSpec<S> generatedSpec() {
+        var spec = GeneratedSpecs.of(stateClass);
+        if (spec != null && !registrations.isEmpty()) {
+            log.debug("Ignoring the generated specification of {}, because states are registered", stateClass.getName());
+            return null;
+        }
+        return spec;
+    }
 
-        buildStates(stateMachine)
-                .stream()
-                .peek(this::validateClass)
-                .forEach(stateMachine::addState);
+    /**
+     * Builds the shared states and the states of the factories that were registered without their class.
+     *
+     * @return the states, null for factories with a declared class whose states are not shared
+     */
+    private List<S> buildStates(AbstractStateMachine<S> stateMachine) {
+        var states = new ArrayList<S>();
+        for (var registration : registrations) {
+            states.add(registration.build(stateMachine));
+        }
+        return states;
+    }
 
-        setInitialState(initialState, stateMachine);
-        return stateMachine;
+    private StateMachineDefinition<S> define(List<S> states) {
+        return bind(StateMachineDefinition.discover(stateClass, registrations, states,
+                List.copyOf(transitions), List.copyOf(events), unhandledEvents, List.copyOf(timeouts), wheel, lazy,
+                stateMachines()));
     }
 
-    private List<S> buildStates(StateMachineImpl<S> stateMachine) {
-        return statesBuilders.stream()
-                .map(e -> e.build(stateMachine))
-                .toList();
+    private StateMachineDefinition<S> generated(GeneratedSpec<S> spec) {
+        return bind(StateMachineDefinition.generated(spec, List.copyOf(transitions), List.copyOf(events), unhandledEvents,
+                List.copyOf(timeouts), wheel, lazy, stateMachines()));
     }
 
-    private void validateClass(@NonNull S state) {
-        var c = state.getClass();
-        if (c.isAnonymousClass()) {
-            throw new IllegalArgumentException("Invalid class (Anonymous) %s".formatted(c));
-        } else if (c.isSynthetic()) {
-            throw new IllegalArgumentException("Invalid class (Synthetic) %s".formatted(c));
+    /**
+     * Prepares the metrics, if any, for the states of a new definition, so that the machines
+     * created from it only have to record their transitions.
+     */
+    private StateMachineDefinition<S> bind(StateMachineDefinition<S> definition) {
+        if (metrics != null) {
+            metrics.bind(definition);
         }
+        return definition;
+    }
+
+    private Supplier<AbstractStateMachine<S>> stateMachines() {
+        var implementation = implementation();
+        var observerDispatcher = dispatcher;
+        var instrumentation = metrics;
+        return () -> implementation.get().dispatchTo(observerDispatcher).instrument(instrumentation);
     }
 
-    private static <S> void setInitialState(Class<? extends S> initialState,
-                                            StateMachineImpl<S> stateMachine) {
-        var state = stateMachine.getStates().get(initialState);
-        if (state == null) {
-            throw new IllegalArgumentException("State " + initialState + " not found");
+    private Supplier<AbstractStateMachine<S>> implementation() {
+        var executor = mailbox;
+        if (executor != null) {
+            return () -> new MailboxStateMachineImpl<>(executor);
         }
-        stateMachine.setCurrentState(state);
+        return concurrent ? ConcurrentStateMachineImpl::new : StateMachineImpl::new;
     }
 
 }
@@ -0,0 +1,666 @@
+package at.base10.state;
+
+import at.base10.state.spec.GeneratedSpec;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * An immutable, thread-safe blueprint for state machines.
+ * <p>
+ * A definition is produced once by {@link StateMachineBuilder#compile()}. It holds the validated
+ * state classes, their ordinals and the registered factories, so that {@link #newInstance(Class)}
+ * only has to allocate the machine and its states. With {@link StateMachineBuilder#lazy()}, the
+ * states are created when they are first entered instead.
+ * </p>
+ * <p>
+ * Large numbers of machines with stateless states can be kept in a
+ * {@link StateMachinePopulation}, created by {@link #newPopulation(int)} on the heap or by
+ * {@link #openPopulation(Path, int, int, boolean)} in a memory-mapped file.
+ * </p>
+ * <p>
+ * The transitions allowed with {@link StateMachineBuilder#allow(Class, Class)} are compiled into
+ * a transition table, which can be queried with {@link #isAllowed(Class, Class)} and
+ * {@link #reachableFrom(Class)}. The events declared with
+ * {@link StateMachineBuilder#on(Class, Enum, Class)} are compiled into a state-by-event table, and
+ * the timeouts declared with {@link StateMachineBuilder#timeout(Class, java.time.Duration, Class)}
+ * into the ticks of a {@link TimerWheel} per state.
+ * </p>
+ * <p>
+ * If the state interface is annotated with {@link at.base10.state.spec.StateMachineSpec}, the
+ * generated proxy is used for {@link StateMachine#asState()}.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public final class StateMachineDefinition<S> {
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    /**
+     * A process-wide id per state class. There is only one value per class, whatever the number of
+     * definitions, so definitions can be created repeatedly without accumulating per-class values.
+     */
+    private static final ClassValue<StateId> IDS = new ClassCache<>(type -> new StateId(NEXT_ID.getAndIncrement()));
+
+    private final Class<S> stateClass;
+    private final List<StateFactory<S>> factories;
+    private final int[] factoryOrdinals;
+
+    /**
+     * The states shared by all machines, by ordinal, null for states every machine creates itself.
+     */
+    private final S[] shared;
+    private final boolean lazy;
+    private final List<Class<? extends S>> stateClasses;
+    private final List<String> stateNames;
+    /**
+     * The id of the first state class in {@link #ordinals}.
+     */
+    private final int firstId;
+
+    /**
+     * The ordinals indexed by the id of the state class minus {@link #firstId}, -1 for the ids of
+     * other classes.
+     */
+    private final int[] ordinals;
+    private final TransitionTable<S> transitions;
+    private final EventTable<S> events;
+    private final TimeoutTable<S> timeouts;
+    private final long fingerprint;
+
+    private final GeneratedSpec<S> spec;
+    private final Supplier<AbstractStateMachine<S>> stateMachines;
+
+    /**
+     * The machine whose states were built while compiling the definition, until the first machine
+     * is created.
+     */
+    private final AtomicReference<Discovered<S>> discovered = new AtomicReference<>();
+
+    private StateMachineDefinition(Class<S> stateClass,
+                                   List<StateFactory<S>> factories,
+                                   int[] factoryOrdinals,
+                                   List<Class<? extends S>> stateClasses,
+                                   List<S> sharedStates,
+                                   List<TransitionTable.Edge<S>> edges,
+                                   List<EventTable.Handler<S>> handlers,
+                                   UnhandledEventPolicy unhandledEvents,
+                                   List<TimeoutTable.Timeout<S>> timeouts,
+                                   TimerWheel wheel,
+                                   GeneratedSpec<S> spec,
+                                   boolean lazy,
+                                   Supplier<AbstractStateMachine<S>> stateMachines) {
+        this.stateClass = stateClass;
+        this.factories = factories;
+        this.factoryOrdinals = factoryOrdinals;
+        this.lazy = lazy;
+        this.stateClasses = stateClasses;
+        @SuppressWarnings("unchecked")
+        var shared = (S[]) new Object[stateClasses.size()];
+        for (int i = 0; i < factoryOrdinals.length; i++) {
+            var state = sharedStates.get(i);
+            shared[factoryOrdinals[i]] = state == null ? null : checkShareable(checkState(i, state));
+        }
+        this.shared = shared;
+        var ids = stateClasses.stream().mapToInt(type -> IDS.get(type).id()).toArray();
+        this.firstId = IntStream.of(ids).min().orElse(0);
+        this.ordinals = new int[IntStream.of(ids).max().orElse(-1) - firstId + 1];
+        Arrays.fill(ordinals, -1);
+        for (int ordinal = 0; ordinal < ids.length; ordinal++) {
+            ordinals[ids[ordinal] - firstId] = ordinal;
+        }
+        this.stateNames = stateClasses.stream().map(Class::getSimpleName).toList();
+        this.transitions = new TransitionTable<S>(stateNames, edges, this::ordinalOf);
+        this.events = new EventTable<S>(stateNames, handlers, this::ordinalOf, transitions, unhandledEvents);
+        this.timeouts = new TimeoutTable<S>(stateNames, timeouts, this::ordinalOf, transitions, wheel);
+        this.fingerprint = fingerprint(stateClass, stateClasses);
+        this.spec = spec;
+        this.stateMachines = stateMachines;
+    }
+
+    /**
+     * Creates a definition from the declared classes of the factories, or for factories without one,
+     * from states that were built once to discover and validate their classes. The states of shared
+     * factories are kept.
+     */
+    static <S> StateMachineDefinition<S> discover(Class<S> stateClass,
+                                                  List<Registration<S>> registrations,
+                                                  List<S> states,
+                                                  List<TransitionTable.Edge<S>> edges,
+                                                  List<EventTable.Handler<S>> handlers,
+                                                  UnhandledEventPolicy unhandledEvents,
+                                                  List<TimeoutTable.Timeout<S>> timeouts,
+                                                  TimerWheel wheel,
+                                                  boolean lazy,
+                                                  Supplier<AbstractStateMachine<S>> stateMachines) {
+        var stateClasses = new ArrayList<Class<? extends S>>();
+        var ordinals = new HashMap<Class<? extends S>, Integer>();
+        var factoryOrdinals = new int[registrations.size()];
+        var sharedStates = new ArrayList<S>();
+
+        for (int i = 0; i < factoryOrdinals.length; i++) {
+            var registration = registrations.get(i);
+            var type = registration.state() != null ? validateClass(registration.state()) : classOf(states.get(i));
+            sharedStates.add(registration.scope() == StateScope.SHARED ? states.get(i) : null);
+            factoryOrdinals[i] = ordinals.computeIfAbsent(type, k -> {
+                stateClasses.add(k);
+                return stateClasses.size() - 1;
+            });
+        }
+
+        var classes = List.copyOf(stateClasses);
+        var factories = registrations.stream().map(Registration::factory).toList();
+        return new StateMachineDefinition<>(stateClass, factories, factoryOrdinals, classes, sharedStates,
+                edges, handlers, unhandledEvents, timeouts, wheel, GeneratedSpecs.of(stateClass), lazy,
+                stateMachines);
+    }
+
+    /**
+     * Creates a definition from a generated specification, which is already validated at compile time.
+     */
+    static <S> StateMachineDefinition<S> generated(GeneratedSpec<S> spec,
+                                                   List<TransitionTable.Edge<S>> edges,
+                                                   List<EventTable.Handler<S>> handlers,
+                                                   UnhandledEventPolicy unhandledEvents,
+                                                   List<TimeoutTable.Timeout<S>> timeouts,
+                                                   TimerWheel wheel,
+                                                   boolean lazy,
+                                                   Supplier<AbstractStateMachine<S>> stateMachines) {
+        var classes = spec.stateClasses();
+        return new StateMachineDefinition<>(spec.stateClass(), spec.factories(),
+                IntStream.range(0, classes.size()).toArray(), classes, Collections.nCopies(classes.size(), null),
+                edges, handlers, unhandledEvents, timeouts, wheel, spec, lazy, stateMachines);
+    }
+
+    /**
+     * Creates a new state machine from this definition.
+     * <p>
+     * Each registered factory is invoked once for the new machine, or with
+     * {@link StateMachineBuilder#lazy()}, only the factory of the initial state. Shared states are
+     * not created again, see {@link StateScope#SHARED}. The first machine of a compiled definition
+     * keeps the states that were built for it during compilation. Class validation
+     * has already happened when the definition was compiled, so only the produced state types are
+     * checked against the definition.
+     * </p>
+     *
+     * @param initialState the class of the initial state
+     * @return the new {@link StateMachine} instance
+     * @throws IllegalArgumentException if {@code initialState} is not part of this definition
+     * @throws IllegalStateException    if a factory produces a state of a different class than at compile time
+     */
+    public CompiledStateMachine<S> newInstance(@NonNull Class<? extends S> initialState) {
+        return newInstance(ordinalOf(initialState));
+    }
+
+    /**
+     * Creates a new state machine in the state with the given ordinal, which must be valid.
+     */
+    AbstractStateMachine<S> newInstance(int initialOrdinal) {
+        if (discovered.get() != null) {
+            var first = discovered.getAndSet(null);
+            if (first != null) {
+                return initialize(first.stateMachine(), first.states(), initialOrdinal);
+            }
+        }
+        var stateMachine = stateMachines.get();
+        S[] states = newStateArray();
+        for (int i = 0; !lazy && i < factoryOrdinals.length; i++) {
+            if (!isShared(i)) {
+                place(states, i, factories.get(i).build(stateMachine));
+            }
+        }
+        stateMachine.initialize(this, states, initialOrdinal);
+        return stateMachine;
+    }
+
+    /**
+     * Returns whether the machines of this definition are confined to one thread, that is, built
+     * without {@link StateMachineBuilder#concurrent()} or {@link StateMachineBuilder#mailbox(java.util.concurrent.Executor)}.
+     * Creating an implementation invokes no factory.
+     */
+    boolean confined() {
+        return stateMachines.get() instanceof StateMachineImpl;
+    }
+
+    /**
+     * Keeps a machine whose states were built while compiling the definition, so that the first
+     * call of {@link #newInstance(int)} initializes and returns it.
+     *
+     * @return this definition
+     */
+    StateMachineDefinition<S> adopt(AbstractStateMachine<S> stateMachine, List<S> states) {
+        discovered.set(new Discovered<>(stateMachine, states));
+        return this;
+    }
+
+    /**
+     * Creates a new state machine in the state with the given ordinal, which must be valid, invoking
+     * only the factory of that state. The other states are created when the machine enters them.
+     */
+    AbstractStateMachine<S> restore(int ordinal) {
+        var stateMachine = stateMachines.get();
+        stateMachine.initialize(this, newStateArray(), ordinal);
+        return stateMachine;
+    }
+
+    /**
+     * Creates the state with the given ordinal for a state machine whose states are created lazily
+     * or were released. Like {@link #newInstance(int)}, the factory registered last for the state
+     * class creates it.
+     *
+     * @throws IllegalStateException if the factory produces a state of a different class than at compile time
+     */
+    S newState(int ordinal, StateMachine<S> stateMachine) {
+        int factory = factoryOrdinals.length - 1;
+        while (factoryOrdinals[factory] != ordinal) {
+            factory--;
+        }
+        return checkState(factory, factories.get(factory).build(stateMachine));
+    }
+
+    /**
+     * Creates an empty population of state machines from this definition.
+     * <p>
+     * Each registered factory is invoked once, with a {@code null} state machine, and the
+     * states are shared by all machines of the population. The states registered as
+     * {@link StateScope#SHARED} are reused. States that refer to their state machine, such as
+     * {@link ContextAwareState}s, cannot be shared.
+     * </p>
+     *
+     * @param capacity the number of machines the population can hold
+     * @return the new {@link StateMachinePopulation}
+     * @throws IllegalArgumentException      if {@code capacity} is negative or a state refers to its state machine
+     * @throws UnsupportedOperationException if unhandled events are deferred or states time out
+     */
+    public StateMachinePopulation<S> newPopulation(int capacity) {
+        return newPopulation(capacity, false);
+    }
+
+    /**
+     * Creates an empty population of state machines from this definition, which optionally keeps an
+     * index of its machines by their current state.
+     * <p>
+     * An indexed population counts and lists the machines in a state with
+     * {@link StateMachinePopulation#countIn(Class)} and {@link StateMachinePopulation#machinesIn(Class)}.
+     * The index needs one bit per machine and state and is updated by every transition.
+     * </p>
+     *
+     * @param capacity the number of machines the population can hold
+     * @param indexed  whether to index the machines by their current state
+     * @return the new {@link StateMachinePopulation}
+     * @throws IllegalArgumentException      if {@code capacity} is negative or a state refers to its state machine
+     * @throws UnsupportedOperationException if unhandled events are deferred or states time out
+     * @see #newPopulation(int)
+     */
+    public StateMachinePopulation<S> newPopulation(int capacity, boolean indexed) {
+        S[] states = sharedStates(capacity);
+        return population(states, new HeapOrdinalStore(capacity), indexed);
+    }
+
+    /**
+     * Opens a population of state machines from this definition that is kept in a memory-mapped
+     * file, creating the file if it does not exist.
+     * <p>
+     * Every change of a machine is a direct write to the mapping, so the machines survive a restart
+     * of the process and are available as soon as the file is mapped. The operating system pages
+     * the file in and out, so the population may be larger than the heap. A population takes
+     * {@value MappedOrdinalStore#HEADER} bytes plus four bytes per machine.
+     * </p>
+     * <p>
+     * The operating system writes changes back to the file even if the process dies. They are
+     * forced to storage after every {@code syncInterval} changes, or if {@code syncInterval} is 0,
+     * only by {@link StateMachinePopulation#force()}. Until then, a crash of the operating system
+     * can lose them.
+     * </p>
+     * <p>
+     * An existing file must have been created with a definition with the same
+     * {@linkplain #fingerprint() fingerprint} and with the same capacity. The index, if any, is
+     * rebuilt from the file.
+     * </p>
+     *
+     * @param file         the file that holds the population
+     * @param capacity     the number of machines the population can hold
+     * @param syncInterval the number of changes after which they are forced to storage, or 0
+     * @param indexed      whether to index the machines by their current state
+     * @return the opened {@link StateMachinePopulation}
+     * @throws IllegalArgumentException      if {@code capacity} or {@code syncInterval} is out of range,
+     *                                       the file belongs to another definition or capacity,
+     *                                       or a state refers to its state machine
+     * @throws UnsupportedOperationException if unhandled events are deferred or states time out
+     * @throws IOException                   if the file cannot be opened or mapped
+     * @see #newPopulation(int, boolean)
+     */
+    public StateMachinePopulation<S> openPopulation(@NonNull Path file, int capacity, int syncInterval,
+                                                    boolean indexed) throws IOException {
+        S[] states = sharedStates(capacity);
+        return population(states, MappedOrdinalStore.open(file, capacity, fingerprint, syncInterval), indexed);
+    }
+
+    /**
+     * Opens a journal that records the changes of the machines of populations from this definition
+     * in a memory-mapped file, creating the file if it does not exist.
+     * <p>
+     * The file is preallocated for {@code capacity} records of {@value TransitionJournal#RECORD}
+     * bytes. The records are forced to storage after every {@code syncInterval} records, or if
+     * {@code syncInterval} is 0, only by {@link TransitionJournal#force()}. An existing file must
+     * have been created with a definition with the same {@linkplain #fingerprint() fingerprint}
+     * and with the same capacity.
+     * </p>
+     *
+     * @param file         the file that holds the journal
+     * @param capacity     the number of records the journal can hold
+     * @param syncInterval the number of records after which they are forced to storage, or 0
+     * @return the opened {@link TransitionJournal}
+     * @throws IllegalArgumentException      if {@code capacity} or {@code syncInterval} is out of range,
+     *                                       or the file belongs to another definition or capacity
+     * @throws UnsupportedOperationException if the definition has more than 65,535 states
+     * @throws IOException                   if the file cannot be opened or mapped
+     * @see StateMachinePopulation#attachJournal(TransitionJournal)
+     */
+    public TransitionJournal<S> openJournal(@NonNull Path file, int capacity, int syncInterval) throws IOException {
+        return TransitionJournal.open(this, file, capacity, syncInterval);
+    }
+
+    /**
+     * Builds the states shared by the machines of a population.
+     */
+    private S[] sharedStates(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        if (events.policy() == UnhandledEventPolicy.DEFER) {
+            throw new UnsupportedOperationException("Populations cannot defer unhandled events");
+        }
+        if (!timeouts.isEmpty()) {
+            throw new UnsupportedOperationException("Populations cannot time out states");
+        }
+        S[] states = newStateArray();
+        for (int i = 0; i < factoryOrdinals.length; i++) {
+            if (!isShared(i)) {
+                place(states, i, checkShareable(factories.get(i).build(null)));
+            }
+        }
+        return states;
+    }
+
+    private StateMachinePopulation<S> population(S[] states, OrdinalStore store, boolean indexed) {
+        return new StateMachinePopulation<>(this, states, store,
+                indexed ? new StateIndex(states.length, store.capacity()) : null);
+    }
+
+    /**
+     * Creates a codec that writes state machines and populations of this definition as compact
+     * binary snapshots and restores them.
+     *
+     * @return the new {@link SnapshotCodec}
+     * @throws UnsupportedOperationException if the definition has more than 65,536 states
+     */
+    public SnapshotCodec<S> snapshotCodec() {
+        return new SnapshotCodec<>(this, null);
+    }
+
+    /**
+     * Creates a codec that writes state machines and populations of this definition as compact
+     * binary snapshots and restores them. The current state of a single state machine is written
+     * and restored with the given serializer.
+     *
+     * @param serializer the serializer of the payload of the current state
+     * @return the new {@link SnapshotCodec}
+     * @throws UnsupportedOperationException if the definition has more than 65,536 states
+     */
+    public SnapshotCodec<S> snapshotCodec(@NonNull StateSerializer<S> serializer) {
+        return new SnapshotCodec<>(this, serializer);
+    }
+
+    /**
+     * Returns a fingerprint of the state interface and the state classes in ordinal order.
+     * <p>
+     * Definitions with the same states in the same order have the same fingerprint, even if they
+     * were compiled separately, so ordinals can be exchanged between them.
+     * </p>
+     *
+     * @return the fingerprint
+     */
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the state interface this definition was built for.
+     *
+     * @return the class type of the state
+     */
+    public Class<S> getStateClass() {
+        return stateClass;
+    }
+
+    /**
+     * Returns the registered state classes, ordered by their ordinal.
+     *
+     * @return an unmodifiable list of the state classes
+     */
+    public List<Class<? extends S>> getStateClasses() {
+        return stateClasses;
+    }
+
+    /**
+     * Resolves a state class to its ordinal.
+     * <p>
+     * Ordinals are dense, start at {@code 0} and follow the registration order. They can be
+     * cached by callers and passed to {@link CompiledStateMachine#transitionToState(int)}.
+     * </p>
+     *
+     * @param state the class of the state
+     * @return the ordinal of the state
+     * @throws IllegalArgumentException if {@code state} is not part of this definition
+     */
+    public int ordinalOf(@NonNull Class<? extends S> state) {
+        int index = IDS.get(state).id() - firstId;
+        int ordinal = index >= 0 && index < ordinals.length ? ordinals[index] : -1;
+        if (ordinal < 0) {
+            throw new IllegalArgumentException("State " + state + " not found");
+        }
+        return ordinal;
+    }
+
+    /**
+     * Returns whether the state machines may transition from one state to another.
+     * <p>
+     * Every transition is allowed if none was declared. Guards are not evaluated.
+     * </p>
+     *
+     * @param from the class of the state the transition leaves
+     * @param to   the class of the state the transition enters
+     * @return true if the transition is allowed
+     * @throws IllegalArgumentException if either state is not part of this definition
+     */
+    public boolean isAllowed(@NonNull Class<? extends S> from, @NonNull Class<? extends S> to) {
+        return transitions.allows(ordinalOf(from), ordinalOf(to));
+    }
+
+    /**
+     * Returns the states that can be reached from a state by one or more allowed transitions.
+     * <p>
+     * The state itself is only included if it can be reached again. Guards are not evaluated.
+     * </p>
+     *
+     * @param state the class of the state to start from
+     * @return an unmodifiable set of the reachable state classes, ordered by their ordinal
+     * @throws IllegalArgumentException if {@code state} is not part of this definition
+     */
+    public Set<Class<? extends S>> reachableFrom(@NonNull Class<? extends S> state) {
+        return transitions.reachable(ordinalOf(state)).stream()
+                .mapToObj(stateClasses::get)
+                .collect(Collectors.collectingAndThen(Collectors.toCollection(LinkedHashSet::new),
+                        Collections::unmodifiableSet));
+    }
+
+    /**
+     * Initializes a machine with the states that were built for it to discover their classes, null
+     * for the others, which are built now unless the machine creates its states lazily.
+     */
+    AbstractStateMachine<S> initialize(AbstractStateMachine<S> stateMachine, List<S> states, int initialOrdinal) {
+        S[] arranged = newStateArray();
+        for (int i = 0; i < factoryOrdinals.length; i++) {
+            var state = states.get(i);
+            if (state == null && !lazy) {
+                state = factories.get(i).build(stateMachine);
+            }
+            if (state != null) {
+                place(arranged, i, state);
+            }
+        }
+        stateMachine.initialize(this, arranged, initialOrdinal);
+        return stateMachine;
+    }
+
+    <E> E proxy(Class<E> type, Supplier<? extends S> target) {
+        if (spec != null && type == stateClass) {
+            return type.cast(spec.proxy(target));
+        }
+        return StateProxies.create(type, target);
+    }
+
+    TransitionTable<S> transitions() {
+        return transitions;
+    }
+
+    EventTable<S> events() {
+        return events;
+    }
+
+    TimeoutTable<S> timeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Returns whether the machines create their states only when they are entered.
+     */
+    boolean lazy() {
+        return lazy;
+    }
+
+    /**
+     * Returns the state shared by all machines, or null if every machine creates its own.
+     */
+    S sharedState(int ordinal) {
+        return shared[ordinal];
+    }
+
+    String nameOf(int ordinal) {
+        return stateNames.get(ordinal);
+    }
+
+    List<String> stateNames() {
+        return stateNames;
+    }
+
+    private void place(S[] states, int factoryIndex, S state) {
+        states[factoryOrdinals[factoryIndex]] = checkState(factoryIndex, state);
+    }
+
+    private boolean isShared(int factoryIndex) {
+        return shared[factoryOrdinals[factoryIndex]] != null;
+    }
+
+    private static <S> S checkShareable(S state) {
+        if (state instanceof ContextAwareState<?>) {
+            throw new IllegalArgumentException(
+                    "State " + state.getClass() + " refers to its state machine and cannot be shared");
+        }
+        return state;
+    }
+
+    private S checkState(int factoryIndex, @NonNull S state) {
+        var expected = stateClasses.get(factoryOrdinals[factoryIndex]);
+        if (state.getClass() != expected) {
+            throw new IllegalStateException("State factory produced " + state.getClass() + ", expected " + expected);
+        }
+        return state;
+    }
+
+    /**
+     * Creates the states of a machine, with the shared states in place.
+     */
+    private S[] newStateArray() {
+        return shared.clone();
+    }
+
+    /**
+     * The process-wide id of a state class.
+     */
+    private record StateId(int id) {
+    }
+
+    /**
+     * A state factory registered with a {@link StateMachineBuilder}.
+     *
+     * @param state   the declared class of the states, or null if it is discovered by building one
+     * @param factory the factory
+     * @param scope   whether each machine gets its own state
+     */
+    record Registration<S>(Class<? extends S> state, StateFactory<S> factory, StateScope scope) {
+
+        /**
+         * Builds the state if it is shared or its class must be discovered, otherwise returns null.
+         * Shared states are built without a state machine.
+         */
+        S build(StateMachine<S> stateMachine) {
+            if (scope == StateScope.SHARED) {
+                return shared(factory.build(null));
+            }
+            return state == null ? factory.build(stateMachine) : null;
+        }
+
+        private static <S> S shared(@NonNull S state) {
+            return state;
+        }
+    }
+
+    /**
+     * A machine and the states built for it while compiling the definition.
+     */
+    private record Discovered<S>(AbstractStateMachine<S> stateMachine, List<S> states) {
+    }
+
+    /**
+     * Hashes the class names with 64-bit FNV-1a.
+     */
+    private static long fingerprint(Class<?> stateClass, List<? extends Class<?>> stateClasses) {
+        var names = stateClasses.stream().map(Class::getName)
+                .collect(Collectors.joining(",", stateClass.getName() + ":", ""));
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < names.length(); i++) {
+            hash = (hash ^ names.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> Class<? extends S> classOf(@NonNull S state) {
+        return validateClass((Class<? extends S>) state.getClass());
+    }
+
+    private static <S> Class<? extends S> validateClass(Class<? extends S> c) {
+        if (c.isAnonymousClass()) {
+            throw new IllegalArgumentException("Invalid class (Anonymous) %s".formatted(c));
+        } else if (c.isSynthetic()) {
+            throw new IllegalArgumentException("Invalid class (Synthetic) %s".formatted(c));
+        }
+        return c;
+    }
+}
@@ -1,118 +1,90 @@
 package at.base10.state;
 
-import at.base10.state.observer.Observer;
-import at.base10.state.observer.StateChangeEvent;
-import at.base10.state.observer.Subscription;
-import lombok.Getter;
-import lombok.NonNull;
-import lombok.Setter;
-import lombok.experimental.PackagePrivate;
 import lombok.extern.log4j.Log4j2;
 
-import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * {@inheritDoc}
+ * <p>
+ * This implementation is not thread-safe.
+ * </p>
  */
 @Log4j2
-class StateMachineImpl<S> implements StateMachine<S> {
+class StateMachineImpl<S> extends AbstractStateMachine<S> {
 
-    private final Class<S> stateClass;
+    private int currentOrdinal;
 
-    @Getter
-    private final Map<Class<? extends S>, S> states = new HashMap<>();
-
-    @PackagePrivate
-    @Setter
-    private S currentState;
-
-    private final Map<Observer<S>, Subscription<S>> subscriptions = new HashMap<>();
-
-    StateMachineImpl(Class<S> stateClass) {
-        this.stateClass = stateClass;
-    }
+    private Map<Class<?>, Object> proxies;
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public StateMachine<S> transitionToState(@NonNull Class<? extends S> state) {
-        var previousState = currentState;
-        var nextState = states.get(state);
-
-        if (nextState == null) {
-            throw new IllegalArgumentException("State " + state + " not found");
-        }
-
-        currentState = nextState;
-        var stateChangedEvent = new StateChangeEvent<>(previousState, currentState);
-        notifyObservers(stateChangedEvent);
-
-        log.debug("Transition: [{} => {}]",
-                () -> previousState.getClass().getSimpleName(),
-                () -> nextState.getClass().getSimpleName()
-        );
-
-        return this;
-    }
-
-    private void notifyObservers(StateChangeEvent<S> stateChangeEvent) {
-        subscriptions.keySet().forEach(observer -> observer.next(stateChangeEvent));
-    }
-
-
-    public void addState(S state) {
-        //noinspection unchecked
-        states.put((Class<? extends S>) state.getClass(), state);
+    void initialize(StateMachineDefinition<S> definition, S[] states, int initialOrdinal) {
+        super.initialize(definition, states, initialOrdinal);
+        this.currentOrdinal = initialOrdinal;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public S currentState() {
-        return currentState;
+    public CompiledStateMachine<S> transitionToState(int ordinal) {
+        Objects.checkIndex(ordinal, states.length);
+        var previousOrdinal = currentOrdinal;
+        transitions.check(previousOrdinal, ordinal, stateOf);
+        // a lazy state is only created once the transition is known to be allowed
+        state(ordinal);
+
+        currentOrdinal = ordinal;
+        notifyObservers(previousOrdinal, ordinal);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Transition: [{} => {}]", definition.nameOf(previousOrdinal), definition.nameOf(ordinal));
+        }
+
+        return this;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public S asState() {
-        return asState(stateClass);
+    boolean compareAndTransition(int expected, int next) {
+        if (currentOrdinal != expected) {
+            return false;
+        }
+        transitionToState(next);
+        return true;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public <E> E asState(Class<E> state) {
-        //noinspection unchecked
-        return (E) Proxy.newProxyInstance(
-                getClass().getClassLoader(),
-                new Class[]{state},
-                (p, method, args1) -> method.invoke(this.currentState(), args1)
-        );
+    int currentOrdinal() {
+        return currentOrdinal;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public Subscription<S> registerObserver(Observer<S> observer) {
-        return subscriptions.computeIfAbsent(
-                observer,
-                k -> new Subscription<>(this, observer)
-        );
+    public S currentState() {
+        return state(currentOrdinal);
     }
 
     /**
      * {@inheritDoc}
      */
-    public boolean unregisterObserver(Observer<S> observer) {
-        return this.subscriptions.remove(observer) != null;
+    @Override
+    Map<Class<?>, Object> proxies() {
+        if (proxies == null) {
+            proxies = new HashMap<>();
+        }
+        return proxies;
     }
-
 }
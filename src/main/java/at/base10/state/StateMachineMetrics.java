@@ -0,0 +1,360 @@
+package at.base10.state;
+
+import lombok.NonNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts the transitions of state machines and measures how long they stay in each state.
+ * <p>
+ * Attach an instance with {@link StateMachineBuilder#metrics(StateMachineMetrics)}. Every state
+ * machine built or compiled by that builder records into the same instance, so the aggregates
+ * cover all machines that share the definition. Recording a transition only increments striped
+ * {@link LongAdder}s, and the buckets of the rate window are reused from one window to the next,
+ * so recording never allocates and the metrics can stay enabled in production.
+ * </p>
+ * <p>
+ * Transitions are counted per edge. The time between two transitions of a machine is the dwell
+ * time of the state it leaves, recorded in a histogram with power-of-two buckets. The transition
+ * rate is averaged over a sliding window of one-second buckets. The metrics can be read as a
+ * {@link Snapshot} or {@linkplain #register(MBeanServer, ObjectName) registered} as an MBean.
+ * </p>
+ */
+public final class StateMachineMetrics implements StateMachineMetricsMBean {
+
+    /**
+     * The number of one-second buckets in the sliding window of the transition rate.
+     */
+    public static final int WINDOW_SECONDS = 60;
+
+    /**
+     * The number of buckets of a dwell-time histogram. Bucket {@code i} counts the dwell times
+     * from {@code 2^i} up to {@code 2^(i+1)} nanoseconds, bucket 0 also counts a dwell time of zero.
+     */
+    public static final int HISTOGRAM_BUCKETS = 64;
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private static final TabularType TRANSITION_COUNTS = tabularType("TransitionCounts",
+            "The number of transitions per edge", new String[]{"from", "to", "count"},
+            new OpenType<?>[]{SimpleType.STRING, SimpleType.STRING, SimpleType.LONG}, 2);
+
+    private static final TabularType MEAN_DWELL_NANOS = tabularType("MeanDwellNanos",
+            "The mean time spent in each state in nanoseconds", new String[]{"state", "meanNanos"},
+            new OpenType<?>[]{SimpleType.STRING, SimpleType.DOUBLE}, 1);
+
+    private final LongSupplier clock;
+
+    /**
+     * The second each bucket of the sliding window counts, indexed by the second modulo the window.
+     */
+    private final AtomicLongArray seconds;
+
+    /**
+     * The transitions of each bucket of the sliding window. A bucket is reset, under its own lock,
+     * before its second is moved on, and is never replaced.
+     */
+    private final LongAdder[] counts;
+
+    private volatile Counters counters = new Counters(List.of(), List.of());
+
+    /**
+     * Creates metrics that measure time with {@link System#nanoTime()}.
+     */
+    public StateMachineMetrics() {
+        this(System::nanoTime, WINDOW_SECONDS);
+    }
+
+    StateMachineMetrics(LongSupplier clock, int windowSeconds) {
+        this.clock = clock;
+        this.seconds = new AtomicLongArray(windowSeconds);
+        this.counts = Counters.adders(windowSeconds);
+    }
+
+    /**
+     * Registers the metrics as an MBean.
+     *
+     * @param server the MBean server, for example the
+     *               {@linkplain java.lang.management.ManagementFactory#getPlatformMBeanServer() platform MBean server}
+     * @param name   the name to register the metrics under
+     * @return the registered MBean
+     * @throws JMException if the name is taken or the server rejects the MBean
+     */
+    public ObjectInstance register(@NonNull MBeanServer server, @NonNull ObjectName name) throws JMException {
+        return server.registerMBean(this, name);
+    }
+
+    /**
+     * Prepares the counters for the states of the given definition. Called once per definition,
+     * before any machine of it records a transition.
+     *
+     * @throws IllegalArgumentException if the metrics already count the transitions of other states
+     */
+    synchronized void bind(StateMachineDefinition<?> definition) {
+        var bound = counters;
+        if (bound.stateClasses.equals(definition.getStateClasses())) {
+            return;
+        }
+        if (!bound.stateClasses.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Metrics are already bound to the states " + bound.names + ", not " + definition.stateNames());
+        }
+        counters = new Counters(definition.getStateClasses(), definition.stateNames());
+    }
+
+    /**
+     * Returns the current time of the clock the dwell times are measured with.
+     */
+    long now() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Records a transition of a machine that entered the previous state at {@code enteredAt}.
+     *
+     * @return the time the machine entered the current state
+     */
+    long record(int previous, int current, long enteredAt) {
+        long now = clock.getAsLong();
+        var bound = counters;
+        long dwell = now - enteredAt;
+        bound.edges[previous * bound.names.size() + current].increment();
+        bound.histograms[previous][bucketOf(dwell)].increment();
+        bound.dwellNanos[previous].add(dwell);
+
+        long second = secondOf(now);
+        int slot = (int) Math.floorMod(second, seconds.length());
+        long counted = seconds.get(slot);
+        if (counted < second) {
+            counted = advance(slot, second);
+        }
+        // a thread that lagged a whole window behind has nothing left to count into
+        if (counted == second) {
+            counts[slot].increment();
+        }
+        return now;
+    }
+
+    /**
+     * Moves a bucket of the window on to a new second, once per second. The count is reset before
+     * the second is published, so a thread that reads the new second counts into the new bucket.
+     *
+     * @return the second the bucket counts now
+     */
+    private long advance(int slot, long second) {
+        synchronized (counts[slot]) {
+            long counted = seconds.get(slot);
+            if (counted < second) {
+                counts[slot].reset();
+                seconds.set(slot, second);
+                return second;
+            }
+            return counted;
+        }
+    }
+
+    private static long secondOf(long nanos) {
+        return Math.floorDiv(nanos, SECOND);
+    }
+
+    static int bucketOf(long dwell) {
+        return Math.max(0, 63 - Long.numberOfLeadingZeros(dwell));
+    }
+
+    /**
+     * Returns a consistent-enough copy of all metrics. Transitions that happen while the snapshot
+     * is taken may or may not be included.
+     *
+     * @return the current metrics
+     */
+    public Snapshot snapshot() {
+        var bound = counters;
+        int size = bound.names.size();
+        var transitions = new LinkedHashMap<Edge, Long>();
+        var dwellTimes = new LinkedHashMap<String, DwellTime>();
+        for (int from = 0; from < size; from++) {
+            for (int to = 0; to < size; to++) {
+                long count = bound.edges[from * size + to].sum();
+                if (count > 0) {
+                    transitions.put(new Edge(bound.names.get(from), bound.names.get(to)), count);
+                }
+            }
+            var histogram = new long[bound.histograms[from].length];
+            long count = 0;
+            for (int bucket = 0; bucket < histogram.length; bucket++) {
+                histogram[bucket] = bound.histograms[from][bucket].sum();
+                count += histogram[bucket];
+            }
+            if (count > 0) {
+                dwellTimes.put(bound.names.get(from), new DwellTime(count, bound.dwellNanos[from].sum(), histogram));
+            }
+        }
+        return new Snapshot(Collections.unmodifiableMap(transitions), Collections.unmodifiableMap(dwellTimes),
+                getTransitionsPerSecond());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTransitionCount() {
+        return snapshot().transitionCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getTransitionsPerSecond() {
+        long second = secondOf(clock.getAsLong());
+        int length = seconds.length();
+        long transitions = 0;
+        for (int slot = 0; slot < length; slot++) {
+            if (second - seconds.get(slot) < length) {
+                transitions += counts[slot].sum();
+            }
+        }
+        return (double) transitions / length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TabularData getTransitionCounts() {
+        var table = new TabularDataSupport(TRANSITION_COUNTS);
+        snapshot().transitions().forEach((edge, count) ->
+                table.put(row(TRANSITION_COUNTS, Map.of("from", edge.from(), "to", edge.to(), "count", count))));
+        return table;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TabularData getMeanDwellNanos() {
+        var table = new TabularDataSupport(MEAN_DWELL_NANOS);
+        snapshot().dwellTimes().forEach((state, dwellTime) ->
+                table.put(row(MEAN_DWELL_NANOS, Map.of("state", state, "meanNanos", dwellTime.meanNanos()))));
+        return table;
+    }
+
+    private static CompositeDataSupport row(TabularType type, Map<String, ?> values) {
+        try {
+            return new CompositeDataSupport(type.getRowType(), values);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the type of a table whose rows are indexed by their first {@code keys} items.
+     */
+    private static TabularType tabularType(String name, String description, String[] items, OpenType<?>[] types,
+                                           int keys) {
+        try {
+            var rowType = new CompositeType(name + "Row", description, items, items, types);
+            return new TabularType(name, description, rowType, Arrays.copyOf(items, keys));
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A copy of the metrics at one point in time.
+     *
+     * @param transitions          the number of transitions per edge, for all edges that were taken
+     * @param dwellTimes           the dwell times per state, for all states that were left
+     * @param transitionsPerSecond the average transition rate over the sliding window
+     */
+    public record Snapshot(Map<Edge, Long> transitions, Map<String, DwellTime> dwellTimes, double transitionsPerSecond) {
+
+        /**
+         * Returns the number of transitions over all edges.
+         *
+         * @return the total number of transitions
+         */
+        public long transitionCount() {
+            return transitions.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+
+    /**
+     * A transition from one state to another, identified by the simple names of the state classes.
+     *
+     * @param from the state that was left
+     * @param to   the state that was entered
+     */
+    public record Edge(String from, String to) {
+
+        @Override
+        public String toString() {
+            return from + " -> " + to;
+        }
+    }
+
+    /**
+     * The time the machines spent in a state before leaving it.
+     *
+     * @param count      the number of times the state was left
+     * @param totalNanos the total time spent in the state
+     * @param histogram  the number of dwell times per bucket, see {@link #HISTOGRAM_BUCKETS}
+     */
+    public record DwellTime(long count, long totalNanos, long[] histogram) {
+
+        /**
+         * Returns the mean time spent in the state.
+         *
+         * @return the mean dwell time in nanoseconds
+         */
+        public double meanNanos() {
+            return (double) totalNanos / count;
+        }
+    }
+
+    private static final class Counters {
+        private final List<?> stateClasses;
+        private final List<String> names;
+        private final LongAdder[] edges;
+        private final LongAdder[][] histograms;
+        private final LongAdder[] dwellNanos;
+
+        private Counters(List<?> stateClasses, List<String> names) {
+            this.stateClasses = stateClasses;
+            this.names = names;
+            this.edges = adders(names.size() * names.size());
+            this.histograms = new LongAdder[names.size()][];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = adders(HISTOGRAM_BUCKETS);
+            }
+            this.dwellNanos = adders(names.size());
+        }
+
+        private static LongAdder[] adders(int size) {
+            var adders = new LongAdder[size];
+            for (int i = 0; i < size; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package at.base10.state;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * The JMX view of {@link StateMachineMetrics}. All attributes are open types, so any JMX client
+ * can read them without the classes of this library.
+ */
+public interface StateMachineMetricsMBean {
+
+    /**
+     * Returns the number of transitions of all instrumented state machines.
+     *
+     * @return the total number of transitions
+     */
+    long getTransitionCount();
+
+    /**
+     * Returns the average number of transitions per second over the sliding window.
+     *
+     * @return the transition rate
+     */
+    double getTransitionsPerSecond();
+
+    /**
+     * Returns the number of transitions per edge, as rows of the state left ({@code from}), the
+     * state entered ({@code to}) and the {@code count}, indexed by {@code from} and {@code to}.
+     *
+     * @return the transition counts of all edges that were taken
+     */
+    TabularData getTransitionCounts();
+
+    /**
+     * Returns the mean time spent in each state before leaving it, as rows of the {@code state}
+     * and its {@code meanNanos}, indexed by {@code state}.
+     *
+     * @return the mean dwell times of all states that were left
+     */
+    TabularData getMeanDwellNanos();
+}
@@ -0,0 +1,656 @@
+package at.base10.state;
+
+import at.base10.state.observer.BatchObserver;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import lombok.NonNull;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.stream.LongStream;
+
+/**
+ * A fixed number of state machines that share one instance of each state.
+ * <p>
+ * A population is created by {@link StateMachineDefinition#newPopulation(int)}. Its states are
+ * built once and shared as flyweights by all machines, so a machine is only the ordinal of its
+ * current state in a slot of an {@code int[]}: four bytes instead of a {@link StateMachine}
+ * object with its own states. Machines are identified by the id returned by {@link #add(Class)}.
+ * </p>
+ * <p>
+ * A population opened with {@link StateMachineDefinition#openPopulation(Path, int, int, boolean)}
+ * keeps its slots in a memory-mapped file instead, so it survives a restart of the process. The
+ * changes of a population can be recorded in a {@link TransitionJournal}.
+ * </p>
+ * <p>
+ * Transitions are checked against the transition table of the definition and events are resolved
+ * through its event table, as for a single state machine. A population is thread-safe: the slot
+ * of a machine is updated atomically, so different machines can be changed by different threads
+ * at the same time.
+ * </p>
+ * <p>
+ * {@link #transitionAll(Predicate, Class)} and {@link #applyEvent(long, long, Enum)} change many
+ * machines at once. They split the slots into contiguous chunks of {@value #CHUNK} machines, which
+ * are processed by the {@linkplain ForkJoinPool#commonPool() common pool}, or by the
+ * {@link ForkJoinPool} passed to their overloads.
+ * </p>
+ * <p>
+ * Observers of a population are notified of every state change. Changes made by a bulk operation
+ * are delivered once per chunk, as one batch to a {@link BatchObserver}, on the pool thread that
+ * processed the chunk, so observers of a population that bulk operations run on must be
+ * thread-safe.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machines
+ */
+public final class StateMachinePopulation<S> {
+
+    private final StateMachineDefinition<S> definition;
+    private final S[] states;
+    private final TransitionTable<S> transitions;
+    private final EventTable<S> events;
+    private final OrdinalStore store;
+
+    /**
+     * The machines by their current state, or null if the population is not indexed.
+     */
+    private final StateIndex index;
+
+    /**
+     * The store that changes go through: the store itself, or a view of it that records them in the
+     * attached journal.
+     */
+    private volatile OrdinalUpdates updates;
+
+    /**
+     * The number of machines a bulk operation processes in one task.
+     */
+    static final int CHUNK = 4096;
+
+    /**
+     * Marks the states a bulk operation does not move.
+     */
+    private static final int STAY = -1;
+
+    @SuppressWarnings("unchecked")
+    private volatile Observer<S>[] observers = new Observer[0];
+
+    StateMachinePopulation(StateMachineDefinition<S> definition, S[] states, OrdinalStore store, StateIndex index) {
+        this.definition = definition;
+        this.states = states;
+        this.transitions = definition.transitions();
+        this.events = definition.events();
+        this.store = store;
+        this.updates = store;
+        this.index = index;
+        if (index != null) {
+            index.add(0, store.size(), store);
+        }
+    }
+
+    /**
+     * Adds a machine to the population.
+     *
+     * @param initialState the class of the initial state
+     * @return the id of the new machine
+     * @throws IllegalArgumentException if {@code initialState} is not part of the definition
+     * @throws IllegalStateException    if the population is full
+     */
+    public long add(@NonNull Class<? extends S> initialState) {
+        return addAll(1, initialState);
+    }
+
+    /**
+     * Adds machines with consecutive ids to the population.
+     *
+     * @param count        the number of machines to add
+     * @param initialState the class of their initial state
+     * @return the id of the first new machine
+     * @throws IllegalArgumentException if {@code count} is negative or {@code initialState} is not part of the definition
+     * @throws IllegalStateException    if the population has no room for {@code count} more machines
+     */
+    public long addAll(int count, @NonNull Class<? extends S> initialState) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative: " + count);
+        }
+        int ordinal = definition.ordinalOf(initialState);
+        int first = updates.add(count, ordinal, this::reserve);
+        if (index != null) {
+            index.add(first, first + count, store);
+        }
+        return first;
+    }
+
+    /**
+     * Reserves the slots for {@code count} new machines, which must not be negative.
+     *
+     * @return the first reserved slot
+     * @throws IllegalStateException if the population has no room for {@code count} more machines
+     */
+    int reserve(int count) {
+        int capacity = store.capacity();
+        int first = store.getAndUpdateSize(added -> added <= capacity - count ? added + count : added);
+        if (first > capacity - count) {
+            throw new IllegalStateException(
+                    "The population has room for " + (capacity - first) + " more machines, not " + count);
+        }
+        return first;
+    }
+
+    /**
+     * Puts a machine into a reserved slot without checking the ordinal against the definition.
+     */
+    void restore(int slot, int ordinal) {
+        store.set(slot, ordinal);
+        if (index != null) {
+            index.add(slot, slot + 1, store);
+        }
+    }
+
+    /**
+     * Applies a recorded change to a slot, adding machines up to it if needed.
+     */
+    void replay(int slot, int ordinal) {
+        int size = store.size();
+        if (slot >= size) {
+            reserve(slot + 1 - size);
+            for (int gap = size; gap <= slot; gap++) {
+                restore(gap, ordinal);
+            }
+            return;
+        }
+        int previous = store.get(slot);
+        store.set(slot, ordinal);
+        if (index != null) {
+            index.update(slot, previous, store);
+        }
+    }
+
+    /**
+     * Returns the ordinal in a slot without checking that it is occupied.
+     */
+    int ordinalAt(int slot) {
+        return store.get(slot);
+    }
+
+    /**
+     * Returns the number of machines in the population.
+     *
+     * @return the number of machines
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Returns the number of machines the population can hold.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return store.capacity();
+    }
+
+    /**
+     * Returns the definition the machines were created from.
+     *
+     * @return the definition
+     */
+    public StateMachineDefinition<S> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Writes all changes to the file that backs the population, if it was opened with
+     * {@link StateMachineDefinition#openPopulation(Path, int, int, boolean)}. A population on the
+     * heap is not affected.
+     */
+    public void force() {
+        store.force();
+    }
+
+    /**
+     * Returns the store of the ordinals.
+     */
+    OrdinalStore store() {
+        return store;
+    }
+
+    /**
+     * Returns the current state of a machine. The state is shared by all machines in that state.
+     *
+     * @param id the id of the machine
+     * @return the current state
+     * @throws IndexOutOfBoundsException if no machine has the given id
+     */
+    public S currentState(long id) {
+        return states[currentOrdinal(id)];
+    }
+
+    /**
+     * Returns the ordinal of the current state of a machine.
+     *
+     * @param id the id of the machine
+     * @return the ordinal of the current state
+     * @throws IndexOutOfBoundsException if no machine has the given id
+     */
+    public int currentOrdinal(long id) {
+        return store.get(slotOf(id));
+    }
+
+    /**
+     * Transitions a machine to a new state.
+     *
+     * @param id    the id of the machine
+     * @param state the class of the new state
+     * @throws IndexOutOfBoundsException if no machine has the given id
+     * @throws IllegalArgumentException  if {@code state} is not part of the definition
+     * @throws IllegalStateException     if the transition is not allowed or rejected by its guard
+     */
+    public void transition(long id, @NonNull Class<? extends S> state) {
+        transition(id, definition.ordinalOf(state));
+    }
+
+    /**
+     * Transitions a machine to the state with the given ordinal.
+     *
+     * @param id      the id of the machine
+     * @param ordinal the ordinal of the new state
+     * @throws IndexOutOfBoundsException if no machine has the given id or no state has the given ordinal
+     * @throws IllegalStateException     if the transition is not allowed or rejected by its guard
+     */
+    public void transition(long id, int ordinal) {
+        int slot = slotOf(id);
+        int from;
+        do {
+            from = store.get(slot);
+            transitions.check(from, ordinal, states[from], states[ordinal]);
+        } while (!updates.compareAndSet(slot, from, ordinal));
+        changed(slot, from, ordinal);
+    }
+
+    /**
+     * Transitions a machine to {@code next} if its current state is of class {@code expected}.
+     * The check and the transition happen atomically.
+     *
+     * @param id       the id of the machine
+     * @param expected the class of the expected current state
+     * @param next     the class of the new state
+     * @return true if the machine transitioned, false if its current state is of another class
+     * @throws IndexOutOfBoundsException if no machine has the given id
+     * @throws IllegalArgumentException  if either state is not part of the definition
+     * @throws IllegalStateException     if the current state is {@code expected} and the transition is
+     *                                   not allowed or rejected by its guard
+     */
+    public boolean compareAndTransition(long id, @NonNull Class<? extends S> expected,
+                                        @NonNull Class<? extends S> next) {
+        int slot = slotOf(id);
+        int from = definition.ordinalOf(expected);
+        int to = definition.ordinalOf(next);
+        do {
+            if (store.get(slot) != from) {
+                return false;
+            }
+            transitions.check(from, to, states[from], states[to]);
+        } while (!updates.compareAndSet(slot, from, to));
+        changed(slot, from, to);
+        return true;
+    }
+
+    /**
+     * Fires an event at a machine, which moves it to the state its current state handles the event with.
+     *
+     * @param id    the id of the machine
+     * @param event the event
+     * @param <E>   the type of the events
+     * @throws IndexOutOfBoundsException if no machine has the given id
+     * @throws IllegalArgumentException  if the definition does not handle events of this type
+     * @throws IllegalStateException     if the current state does not handle the event and the policy is
+     *                                   {@link UnhandledEventPolicy#FAIL}, or the transition is not allowed
+     * @see CompiledStateMachine#fire(Enum)
+     */
+    public <E extends Enum<E>> void fire(long id, @NonNull E event) {
+        int slot = slotOf(id);
+        int from;
+        int to;
+        do {
+            from = store.get(slot);
+            to = events.target(from, event);
+            if (to == EventTable.UNHANDLED) {
+                if (events.policy() == UnhandledEventPolicy.FAIL) {
+                    throw new IllegalStateException("Event " + event + " is not handled by " + definition.nameOf(from));
+                }
+                return;
+            }
+            transitions.check(from, to, states[from], states[to]);
+        } while (!updates.compareAndSet(slot, from, to));
+        changed(slot, from, to);
+    }
+
+    /**
+     * Transitions every machine whose current state matches the predicate to a new state.
+     * <p>
+     * As the machines in a state share it, the predicate and the guard of each transition are
+     * evaluated once per state, not once per machine. Machines whose transition is not allowed
+     * or rejected by its guard keep their state.
+     * </p>
+     *
+     * @param predicate selects the states to leave
+     * @param state     the class of the new state
+     * @return the number of machines that transitioned
+     * @throws IllegalArgumentException if {@code state} is not part of the definition
+     */
+    public int transitionAll(@NonNull Predicate<? super S> predicate, @NonNull Class<? extends S> state) {
+        return transitionAll(predicate, state, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Transitions every machine whose current state matches the predicate to a new state, processing
+     * the chunks of machines in the given pool. Observers are notified once per chunk on the pool
+     * thread that processed it.
+     *
+     * @param predicate selects the states to leave
+     * @param state     the class of the new state
+     * @param pool      the pool processing the chunks
+     * @return the number of machines that transitioned
+     * @throws IllegalArgumentException if {@code state} is not part of the definition
+     * @see #transitionAll(Predicate, Class)
+     */
+    public int transitionAll(@NonNull Predicate<? super S> predicate, @NonNull Class<? extends S> state,
+                             @NonNull ForkJoinPool pool) {
+        int to = definition.ordinalOf(state);
+        int[] moves = new int[states.length];
+        for (int from = 0; from < states.length; from++) {
+            moves[from] = predicate.test(states[from]) && transitions.permits(from, to, states[from], states[to])
+                    ? to : STAY;
+        }
+        return pool.invoke(new Bulk(moves, 0, store.size()));
+    }
+
+    /**
+     * Fires an event at the machines with ids from {@code fromId}, inclusive, to {@code toId}, exclusive.
+     * <p>
+     * The target of the event and the guard of the transition are resolved once per state.
+     * Machines whose state does not handle the event, or whose transition is rejected by its
+     * guard, keep their state regardless of the {@link UnhandledEventPolicy}.
+     * </p>
+     *
+     * @param fromId the id of the first machine
+     * @param toId   the id after the last machine
+     * @param event  the event
+     * @param <E>    the type of the events
+     * @return the number of machines that transitioned
+     * @throws IndexOutOfBoundsException if the range is not within the ids of the population
+     * @throws IllegalArgumentException  if the definition does not handle events of this type
+     */
+    public <E extends Enum<E>> int applyEvent(long fromId, long toId, @NonNull E event) {
+        return applyEvent(fromId, toId, event, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Fires an event at the machines with ids from {@code fromId}, inclusive, to {@code toId},
+     * exclusive, processing the chunks of machines in the given pool. Observers are notified once
+     * per chunk on the pool thread that processed it.
+     *
+     * @param fromId the id of the first machine
+     * @param toId   the id after the last machine
+     * @param event  the event
+     * @param pool   the pool processing the chunks
+     * @param <E>    the type of the events
+     * @return the number of machines that transitioned
+     * @throws IndexOutOfBoundsException if the range is not within the ids of the population
+     * @throws IllegalArgumentException  if the definition does not handle events of this type
+     * @see #applyEvent(long, long, Enum)
+     */
+    public <E extends Enum<E>> int applyEvent(long fromId, long toId, @NonNull E event, @NonNull ForkJoinPool pool) {
+        Objects.checkFromToIndex(fromId, toId, store.size());
+        int[] moves = new int[states.length];
+        for (int from = 0; from < states.length; from++) {
+            int to = events.target(from, event);
+            moves[from] = to != EventTable.UNHANDLED && transitions.permits(from, to, states[from], states[to]) ? to : STAY;
+        }
+        return pool.invoke(new Bulk(moves, (int) fromId, (int) toId));
+    }
+
+    /**
+     * Records every change of the machines from now on in a journal, until it is detached.
+     * <p>
+     * Machines that are added are recorded, machines restored from a snapshot are not. Changes that
+     * are in progress while the journal is attached may not be recorded. When the journal is full,
+     * every change fails with an {@link IllegalStateException} until it is
+     * {@linkplain TransitionJournal#compact(StateMachinePopulation, java.nio.channels.WritableByteChannel)
+     * compacted}.
+     * </p>
+     *
+     * @param journal the journal
+     * @throws IllegalArgumentException if the journal was opened for another definition
+     * @throws IllegalStateException    if a journal is attached already
+     */
+    public synchronized void attachJournal(@NonNull TransitionJournal<S> journal) {
+        journal.checkPopulation(this);
+        if (updates != store) {
+            throw new IllegalStateException("A journal is attached already");
+        }
+        updates = journal.record(store);
+    }
+
+    /**
+     * Stops recording the changes of the machines in the attached journal, if any.
+     */
+    public synchronized void detachJournal() {
+        updates = store;
+    }
+
+    /**
+     * Registers an observer for the state changes of all machines of the population.
+     *
+     * @param observer the observer
+     * @return true if the observer was registered, false if it already was
+     */
+    public synchronized boolean registerObserver(@NonNull Observer<S> observer) {
+        if (Arrays.asList(observers).contains(observer)) {
+            return false;
+        }
+        var registered = Arrays.copyOf(observers, observers.length + 1);
+        registered[observers.length] = observer;
+        observers = registered;
+        return true;
+    }
+
+    /**
+     * Unregisters an observer.
+     *
+     * @param observer the observer
+     * @return true if the observer was registered
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized boolean unregisterObserver(Observer<S> observer) {
+        var remaining = Arrays.stream(observers)
+                .filter(registered -> !registered.equals(observer))
+                .toArray(Observer[]::new);
+        if (remaining.length == observers.length) {
+            return false;
+        }
+        observers = remaining;
+        return true;
+    }
+
+    /**
+     * Returns whether the population keeps an index of its machines by their current state.
+     *
+     * @return true if the population is indexed
+     * @see StateMachineDefinition#newPopulation(int, boolean)
+     */
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    /**
+     * Returns the number of machines in a state. The count is kept up to date by every transition,
+     * so it is not computed by scanning the population.
+     *
+     * @param state the class of the state
+     * @return the number of machines whose current state is of class {@code state}
+     * @throws IllegalArgumentException      if {@code state} is not part of the definition
+     * @throws UnsupportedOperationException if the population is not indexed
+     */
+    public long countIn(@NonNull Class<? extends S> state) {
+        return index().count(definition.ordinalOf(state));
+    }
+
+    /**
+     * Returns the ids of the machines in a state, in ascending order. The ids are read lazily from
+     * a bitmap of the state, which skips 64 machines at a time where none is in the state.
+     *
+     * @param state the class of the state
+     * @return the ids of the machines whose current state is of class {@code state}
+     * @throws IllegalArgumentException      if {@code state} is not part of the definition
+     * @throws UnsupportedOperationException if the population is not indexed
+     */
+    public LongStream machinesIn(@NonNull Class<? extends S> state) {
+        return index().slots(definition.ordinalOf(state));
+    }
+
+    private StateIndex index() {
+        if (index == null) {
+            throw new UnsupportedOperationException("The population is not indexed");
+        }
+        return index;
+    }
+
+    /**
+     * Updates the index, if any, and notifies the observers of a changed slot.
+     */
+    private void changed(int slot, int previous, int current) {
+        if (index != null) {
+            index.update(slot, previous, store);
+        }
+        for (var observer : observers) {
+            observer.onTransition(states[previous], states[current]);
+        }
+    }
+
+    /**
+     * Returns a lightweight view of one machine of the population.
+     *
+     * @param id the id of the machine
+     * @return the view of the machine
+     * @throws IndexOutOfBoundsException if no machine has the given id
+     */
+    public Member<S> member(long id) {
+        slotOf(id);
+        return new Member<>(this, id);
+    }
+
+    private int slotOf(long id) {
+        return (int) Objects.checkIndex(id, store.size());
+    }
+
+    /**
+     * Moves the machines in a range of slots from each state to the state {@code moves} maps it to,
+     * splitting the range until a chunk is small enough to be processed by one task.
+     */
+    private final class Bulk extends RecursiveTask<Integer> {
+
+        private final int[] moves;
+        private final int from;
+        private final int to;
+
+        Bulk(int[] moves, int from, int to) {
+            this.moves = moves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            int length = to - from;
+            if (length > CHUNK) {
+                int middle = (from + to) >>> 1;
+                var left = new Bulk(moves, from, middle);
+                left.fork();
+                int right = new Bulk(moves, middle, to).compute();
+                return left.join() + right;
+            }
+            IntUnaryOperator move = ordinal -> moves[ordinal] == STAY ? ordinal : moves[ordinal];
+            var updates = StateMachinePopulation.this.updates;
+            int[] origins = new int[length];
+            int moved = 0;
+            for (int slot = from; slot < to; slot++) {
+                int previous = updates.getAndUpdate(slot, move);
+                if (moves[previous] != STAY) {
+                    if (index != null) {
+                        index.update(slot, previous, store);
+                    }
+                    origins[moved++] = previous;
+                }
+            }
+            if (moved > 0) {
+                for (var observer : observers) {
+                    deliver(observer, changes(origins, moved));
+                }
+            }
+            return moved;
+        }
+
+        private List<StateChangeEvent<S>> changes(int[] origins, int moved) {
+            return Arrays.stream(origins, 0, moved)
+                    .mapToObj(previous -> new StateChangeEvent<>(states[previous], states[moves[previous]]))
+                    .toList();
+        }
+
+        private void deliver(Observer<S> observer, List<StateChangeEvent<S>> changes) {
+            if (observer instanceof BatchObserver<S> batchObserver) {
+                batchObserver.nextBatch(changes);
+            } else {
+                changes.forEach(observer::next);
+            }
+        }
+    }
+
+    /**
+     * One machine of a population. A member holds no state of its own, it only delegates to the population.
+     *
+     * @param population the population of the machine
+     * @param id         the id of the machine
+     * @param <S>        the type representing the states in the state machine
+     */
+    public record Member<S>(StateMachinePopulation<S> population, long id) {
+
+        /**
+         * Returns the current state of this machine.
+         *
+         * @return the current state
+         */
+        public S currentState() {
+            return population.currentState(id);
+        }
+
+        /**
+         * Transitions this machine to a new state.
+         *
+         * @param state the class of the new state
+         * @see StateMachinePopulation#transition(long, Class)
+         */
+        public void transitionToState(Class<? extends S> state) {
+            population.transition(id, state);
+        }
+
+        /**
+         * Fires an event at this machine.
+         *
+         * @param event the event
+         * @param <E>   the type of the events
+         * @see StateMachinePopulation#fire(long, Enum)
+         */
+        public <E extends Enum<E>> void fire(E event) {
+            population.fire(id, event);
+        }
+    }
+}
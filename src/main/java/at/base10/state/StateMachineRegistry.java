@@ -0,0 +1,241 @@
+package at.base10.state;
+
+import lombok.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * State machines addressed by id and partitioned into a fixed number of shards, each owned by a
+ * single thread.
+ * <p>
+ * The shard of a machine is selected by the hash code of its id. A request for an id is queued in
+ * the mailbox of its shard and runs to completion on the thread of the shard, one request at a
+ * time, in the order the requests were submitted. The machine is created from the definition by
+ * the first request for its id. Only the thread of a shard touches its machines, so they need
+ * neither locks nor a concurrent implementation, and the definition must be built without
+ * {@link StateMachineBuilder#concurrent()} or {@link StateMachineBuilder#mailbox(java.util.concurrent.Executor)}.
+ * Observers of a machine are notified on the thread of its shard.
+ * </p>
+ * <p>
+ * Submitting a request only adds it to a lock-free queue, so producers do not contend on a lock,
+ * and requests for different shards run in parallel. Throughput therefore grows with the number
+ * of shards as long as there is a core for each and the ids spread evenly.
+ * </p>
+ *
+ * @param <K> the type of the ids
+ * @param <S> the type representing the states in the state machines
+ */
+public final class StateMachineRegistry<K, S> implements AutoCloseable {
+
+    private final StateMachineDefinition<S> definition;
+    private final Shard<K, S>[] shards;
+
+    @SuppressWarnings("unchecked")
+    private StateMachineRegistry(StateMachineDefinition<S> definition, int initialOrdinal, int shards,
+                                 ThreadFactory threadFactory) {
+        this.definition = definition;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            var executor = Executors.newSingleThreadExecutor(threadFactory);
+            // starts the thread now, so that the threads are created in the order of the shards
+            executor.execute(() -> {
+            });
+            this.shards[i] = new Shard<>(executor, () -> definition.newInstance(initialOrdinal));
+        }
+    }
+
+    /**
+     * Starts a registry whose shards run on new daemon threads.
+     *
+     * @param definition   the definition the machines are created from
+     * @param initialState the class of the state new machines start in
+     * @param shards       the number of shards
+     * @param <K>          the type of the ids
+     * @param <S>          the type representing the states in the state machines
+     * @return the running registry
+     * @throws IllegalArgumentException if {@code shards} is not positive, the initial state is not registered,
+     *                                  or the definition builds concurrent or mailbox machines
+     */
+    public static <K, S> StateMachineRegistry<K, S> start(@NonNull StateMachineDefinition<S> definition,
+                                                          @NonNull Class<? extends S> initialState,
+                                                          int shards) {
+        var count = new AtomicInteger();
+        return start(definition, initialState, shards, runnable -> {
+            var thread = new Thread(runnable, "state-machine-shard-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a registry whose shards run on threads created by the given factory.
+     *
+     * @param definition    the definition the machines are created from
+     * @param initialState  the class of the state new machines start in
+     * @param shards        the number of shards
+     * @param threadFactory creates the thread of each shard
+     * @param <K>           the type of the ids
+     * @param <S>           the type representing the states in the state machines
+     * @return the running registry
+     * @throws IllegalArgumentException if {@code shards} is not positive, the initial state is not registered,
+     *                                  or the definition builds concurrent or mailbox machines
+     */
+    public static <K, S> StateMachineRegistry<K, S> start(@NonNull StateMachineDefinition<S> definition,
+                                                          @NonNull Class<? extends S> initialState,
+                                                          int shards,
+                                                          @NonNull ThreadFactory threadFactory) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shards must be positive, was " + shards);
+        }
+        if (!definition.confined()) {
+            throw new IllegalArgumentException("Definition must not be built with concurrent() or mailbox()");
+        }
+        return new StateMachineRegistry<>(definition, definition.ordinalOf(initialState), shards, threadFactory);
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int shards() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the shard the machine with the given id belongs to.
+     *
+     * @param id the id of the machine
+     * @return the index of the shard
+     */
+    public int shardOf(@NonNull K id) {
+        return Math.floorMod(id.hashCode(), shards.length);
+    }
+
+    /**
+     * Runs a handler against the current state of a machine on the thread of its shard, creating
+     * the machine if there is none with the id.
+     *
+     * @param id      the id of the machine
+     * @param handler the handler receiving the current state
+     * @return a future of the state after the handler, completed exceptionally if the handler or an
+     * observer fails, or with an {@link IllegalStateException} if the registry is closed
+     */
+    public CompletableFuture<S> submit(@NonNull K id, @NonNull Consumer<? super S> handler) {
+        var shard = shards[shardOf(id)];
+        return shard.submit(() -> {
+            var stateMachine = shard.machine(id);
+            handler.accept(stateMachine.currentState());
+            return stateMachine.currentState();
+        });
+    }
+
+    /**
+     * Requests a transition of a machine on the thread of its shard, creating the machine if there
+     * is none with the id.
+     *
+     * @param id    the id of the machine
+     * @param state the class of the new state
+     * @return a future of the state after the transition, completed exceptionally if the transition
+     * is not allowed or an observer fails, or with an {@link IllegalStateException} if the registry is closed
+     * @throws IllegalArgumentException if the state is not registered
+     */
+    public CompletableFuture<S> submitTransition(@NonNull K id, @NonNull Class<? extends S> state) {
+        int ordinal = definition.ordinalOf(state);
+        var shard = shards[shardOf(id)];
+        return shard.submit(() -> shard.machine(id).transitionToState(ordinal).currentState());
+    }
+
+    /**
+     * Removes a machine, so that the next request for its id creates a new one.
+     *
+     * @param id the id of the machine
+     * @return a future of whether there was a machine with the id, completed with an
+     * {@link IllegalStateException} if the registry is closed
+     */
+    public CompletableFuture<Boolean> remove(@NonNull K id) {
+        var shard = shards[shardOf(id)];
+        return shard.submit(() -> shard.machines.remove(id) != null);
+    }
+
+    /**
+     * Stops accepting requests and waits until the shards have processed the requests submitted
+     * before. Must not be called by a request. If the calling thread is interrupted, it stops
+     * waiting and keeps its interrupt status.
+     */
+    @Override
+    public void close() {
+        for (var shard : shards) {
+            shard.executor.shutdown();
+        }
+        try {
+            for (var shard : shards) {
+                shard.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The machines of one shard and the mailbox of the requests for them. The executor has a
+     * single thread, started with the registry, that drains the mailbox.
+     */
+    private static final class Shard<K, S> {
+
+        /**
+         * The machines by id. Only accessed by the thread of the shard.
+         */
+        private final Map<K, CompiledStateMachine<S>> machines = new HashMap<>();
+
+        private final ExecutorService executor;
+        private final Mailbox<Message<?>> mailbox;
+        private final Supplier<CompiledStateMachine<S>> factory;
+
+        Shard(ExecutorService executor, Supplier<CompiledStateMachine<S>> factory) {
+            this.executor = executor;
+            this.mailbox = new Mailbox<>(executor, Message::run, (message, rejection) -> message.reject());
+            this.factory = factory;
+        }
+
+        CompiledStateMachine<S> machine(K id) {
+            return machines.computeIfAbsent(id, key -> factory.get());
+        }
+
+        <T> CompletableFuture<T> submit(Supplier<T> task) {
+            var message = new Message<>(task, new CompletableFuture<T>());
+            mailbox.add(message);
+            return message.result();
+        }
+    }
+
+    private record Message<T>(Supplier<T> task, CompletableFuture<T> result) {
+
+        /**
+         * Runs the task. A failure completes the result, and an {@link Error} is rethrown afterwards.
+         */
+        void run() {
+            try {
+                result.complete(task.get());
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+                if (e instanceof Error error) {
+                    throw error;
+                }
+            }
+        }
+
+        void reject() {
+            result.completeExceptionally(new IllegalStateException("Registry is closed"));
+        }
+    }
+}
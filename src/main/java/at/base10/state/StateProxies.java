@@ -0,0 +1,68 @@
+package at.base10.state;
+
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Creates proxies that forward to the current state of a state machine.
+ * <p>
+ * For every interface a proxy class is generated once with {@link ProxyClassWriter} and defined
+ * as a hidden class next to the interface. Calls through such a proxy are plain typed calls that
+ * the JIT can inline. Interfaces whose package is not open to this library, or whose proxy class
+ * cannot be defined or linked, fall back to a {@link Proxy reflective proxy}.
+ * </p>
+ */
+final class StateProxies {
+
+    private static final ClassValue<Function<Supplier<?>, Object>> CONSTRUCTORS = new ClassCache<>(StateProxies::define);
+
+    private StateProxies() {
+    }
+
+    /**
+     * Creates a proxy implementing {@code type} that forwards every call to the object
+     * provided by {@code target}.
+     *
+     * @param <E>    the type of the proxy interface
+     * @param type   the interface to implement
+     * @param target supplies the object each call is forwarded to
+     * @return the proxy
+     */
+    static <E> E create(Class<E> type, Supplier<?> target) {
+        var constructor = CONSTRUCTORS.get(type);
+        if (constructor == null) {
+            return type.cast(Proxy.newProxyInstance(
+                    type.getClassLoader(),
+                    new Class[]{type},
+                    (p, method, args) -> method.invoke(target.get(), args)
+            ));
+        }
+        return type.cast(constructor.apply(target));
+    }
+
+    /**
+     * Defines the hidden proxy class for an interface.
+     *
+     * @param type the interface to implement
+     * @return the constructor of the proxy class, or {@code null} if no hidden class can be defined,
+     * for example because the interface is not accessible to the class or the class fails to link
+     */
+    @SuppressWarnings("unchecked")
+    static Function<Supplier<?>, Object> define(Class<?> type) {
+        if (!type.isInterface() || type.isSealed()) {
+            return null;
+        }
+        try {
+            var lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            var proxyClass = lookup.defineHiddenClass(ProxyClassWriter.write(type), true).lookupClass().asSubclass(type);
+            var constructor = lookup.findConstructor(proxyClass, MethodType.methodType(void.class, Supplier.class));
+            return MethodHandleProxies.asInterfaceInstance(Function.class, constructor);
+        } catch (IllegalAccessException | NoSuchMethodException | IllegalArgumentException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package at.base10.state;
+
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.Subscription;
+import at.base10.state.observer.TransitionListener;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes the state changes of one or more state machines to subscribers that consume them at
+ * their own pace.
+ * <p>
+ * Every subscriber receives the state changes that happen after it subscribed, but no more than it
+ * requested. The state changes beyond its demand wait in a bounded buffer of its own, which is
+ * allocated once when it subscribes, so a subscriber that falls behind neither blocks the state
+ * machines nor buffers without limit. When the buffer is full, the {@link OverflowPolicy} decides
+ * which state change is lost. The state changes of several state machines are merged into one
+ * stream, in the order in which their observers are notified.
+ * </p>
+ * <p>
+ * State changes are delivered one at a time, on the thread notifying the observers of a state
+ * machine or on the thread requesting more of them. The stream never completes; cancelling the
+ * subscription unregisters it from the state machines. A subscriber that fails is logged and its
+ * subscription is cancelled.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machines
+ */
+@Log4j2
+public final class StatePublisher<S> implements Flow.Publisher<StateChangeEvent<S>> {
+
+    /**
+     * What happens to a state change when the buffer of a subscriber is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The oldest buffered state change is dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * The state change is merged into the newest buffered state change of the same state
+         * machine, so the subscriber skips the intermediate states and receives the latest one. If
+         * no state change of the machine is buffered, the oldest buffered state change is dropped.
+         * State changes are also merged while the subscriber has no demand, before the buffer is
+         * full, so that it receives the latest state of each machine once it requests more.
+         */
+        CONFLATE
+    }
+
+    private final List<StateMachine<S>> stateMachines;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    private StatePublisher(List<StateMachine<S>> stateMachines, int capacity, OverflowPolicy policy) {
+        this.stateMachines = stateMachines;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Creates a publisher of the state changes of a single state machine.
+     *
+     * @param stateMachine the state machine
+     * @param capacity     the number of state changes buffered per subscriber
+     * @param policy       what happens to a state change when the buffer of a subscriber is full
+     * @param <S>          the type representing the states in the state machine
+     * @return the publisher
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     */
+    public static <S> StatePublisher<S> of(@NonNull StateMachine<S> stateMachine, int capacity,
+                                           @NonNull OverflowPolicy policy) {
+        return merge(List.of(stateMachine), capacity, policy);
+    }
+
+    /**
+     * Creates a publisher that merges the state changes of several state machines into one stream.
+     *
+     * @param stateMachines the state machines
+     * @param capacity      the number of state changes buffered per subscriber
+     * @param policy        what happens to a state change when the buffer of a subscriber is full
+     * @param <S>           the type representing the states in the state machines
+     * @return the publisher
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     */
+    public static <S> StatePublisher<S> merge(@NonNull Collection<? extends StateMachine<S>> stateMachines,
+                                              int capacity, @NonNull OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        return new StatePublisher<>(List.copyOf(stateMachines), capacity, policy);
+    }
+
+    /**
+     * Registers the subscriber with the state machines. Its {@code onSubscribe} is called before
+     * it receives any state change.
+     *
+     * @param subscriber the subscriber
+     */
+    @Override
+    public void subscribe(@NonNull Flow.Subscriber<? super StateChangeEvent<S>> subscriber) {
+        new StateSubscription<>(subscriber, capacity, policy).start(stateMachines);
+    }
+
+    /**
+     * The subscription of a single subscriber, which buffers the state changes it has not
+     * requested yet in a ring buffer.
+     */
+    static final class StateSubscription<S> implements Flow.Subscription {
+        private final Flow.Subscriber<? super StateChangeEvent<S>> subscriber;
+        private final OverflowPolicy policy;
+        private final StateMachine<?>[] sources;
+        private final Object[] previous;
+        private final Object[] current;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Subscription<S>> subscriptions = new ArrayList<>();
+
+        /**
+         * The sequence of the oldest buffered state change.
+         */
+        private long head;
+
+        /**
+         * The sequence of the next buffered state change.
+         */
+        private long tail;
+
+        private long demand;
+
+        /**
+         * The error to deliver to the subscriber instead of further state changes, if any.
+         */
+        private Throwable failure;
+
+        /**
+         * Whether a thread is delivering state changes. Set until the subscriber was notified of
+         * its subscription, so that it receives nothing before.
+         */
+        private boolean draining = true;
+
+        private boolean cancelled;
+
+        StateSubscription(Flow.Subscriber<? super StateChangeEvent<S>> subscriber, int capacity,
+                          OverflowPolicy policy) {
+            this.subscriber = subscriber;
+            this.policy = policy;
+            this.sources = new StateMachine<?>[capacity];
+            this.previous = new Object[capacity];
+            this.current = new Object[capacity];
+        }
+
+        void start(List<StateMachine<S>> stateMachines) {
+            for (var stateMachine : stateMachines) {
+                TransitionListener<S> listener = (previousState, currentState) ->
+                        offer(stateMachine, previousState, currentState);
+                subscriptions.add(stateMachine.registerObserver(listener));
+            }
+            subscriber.onSubscribe(this);
+            lock.lock();
+            try {
+                draining = false;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        /**
+         * Adds to the demand of the subscriber and delivers the buffered state changes it covers.
+         * A demand that is not positive cancels the subscription and fails the subscriber, on the
+         * thread delivering the state changes, so that {@code onError} never overlaps {@code onNext}.
+         *
+         * @param n the number of additional state changes
+         */
+        @Override
+        public void request(long n) {
+            if (n < 1) {
+                lock.lock();
+                try {
+                    if (failure == null) {
+                        failure = new IllegalArgumentException("Demand must be positive, was " + n);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                subscriptions.forEach(Subscription::unsubscribe);
+                drain();
+                return;
+            }
+            lock.lock();
+            try {
+                // a demand of Long.MAX_VALUE is unbounded
+                demand += Math.min(n, Long.MAX_VALUE - demand);
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        /**
+         * Unregisters the subscription from the state machines and drops the buffered state changes.
+         */
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                clear();
+            } finally {
+                lock.unlock();
+            }
+            subscriptions.forEach(Subscription::unsubscribe);
+        }
+
+        /**
+         * Drops the buffered state changes, while holding the lock.
+         */
+        private void clear() {
+            head = tail;
+            Arrays.fill(sources, null);
+            Arrays.fill(previous, null);
+            Arrays.fill(current, null);
+        }
+
+        private void offer(StateMachine<S> source, S previousState, S currentState) {
+            lock.lock();
+            try {
+                if (cancelled || failure != null) {
+                    return;
+                }
+                boolean full = tail - head == sources.length;
+                if ((full || demand < 1) && policy == OverflowPolicy.CONFLATE && conflate(source, currentState)) {
+                    return;
+                }
+                if (full) {
+                    // the oldest slot is the next free one, so dropping it only means moving the head
+                    head++;
+                }
+                int slot = index(tail++);
+                sources[slot] = source;
+                previous[slot] = previousState;
+                current[slot] = currentState;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        /**
+         * Replaces the current state of the newest buffered state change of the source, if any.
+         */
+        private boolean conflate(StateMachine<S> source, S currentState) {
+            for (long sequence = tail - 1; sequence >= head; sequence--) {
+                int slot = index(sequence);
+                if (sources[slot] == source) {
+                    current[slot] = currentState;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Delivers buffered state changes while the subscriber has demand, or the pending failure,
+         * unless another thread already does. State changes buffered or requested meanwhile are
+         * delivered by the same loop, so a subscriber requesting more from {@code onNext} does not
+         * recurse. Delivered slots are cleared, so the buffer holds no state it has handed out.
+         */
+        @SuppressWarnings("unchecked")
+        private void drain() {
+            lock.lock();
+            try {
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            } finally {
+                lock.unlock();
+            }
+            while (true) {
+                Object previousState = null;
+                Object currentState = null;
+                Throwable error;
+                lock.lock();
+                try {
+                    error = cancelled ? null : failure;
+                    if (error != null) {
+                        cancelled = true;
+                        clear();
+                        draining = false;
+                    } else if (cancelled || demand < 1 || head == tail) {
+                        draining = false;
+                        return;
+                    } else {
+                        int slot = index(head++);
+                        previousState = previous[slot];
+                        currentState = current[slot];
+                        sources[slot] = null;
+                        previous[slot] = null;
+                        current[slot] = null;
+                        demand--;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (error != null) {
+                    subscriber.onError(error);
+                    return;
+                }
+                try {
+                    subscriber.onNext(new StateChangeEvent<>((S) previousState, (S) currentState));
+                } catch (RuntimeException e) {
+                    log.error("Subscriber failed", e);
+                    cancel();
+                }
+            }
+        }
+
+        private int index(long sequence) {
+            return (int) (sequence % sources.length);
+        }
+    }
+}
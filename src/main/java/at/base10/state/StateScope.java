@@ -0,0 +1,23 @@
+package at.base10.state;
+
+/**
+ * Decides whether the state machines of a definition get their own instance of a state or share one.
+ *
+ * @see StateMachineBuilder#register(StateFactory, StateScope)
+ */
+public enum StateScope {
+
+    /**
+     * Every state machine gets its own instance of the state, created with a reference to the
+     * machine. This is the default.
+     */
+    MACHINE,
+
+    /**
+     * All state machines of a definition share a single instance of the state. It is created once,
+     * when the definition is compiled, with a {@code null} state machine, so it must not keep
+     * state of its own. A shared state that needs its state machine receives it as a call argument
+     * instead; it cannot be a {@link ContextAwareState}.
+     */
+    SHARED
+}
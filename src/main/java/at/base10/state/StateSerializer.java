@@ -0,0 +1,34 @@
+package at.base10.state;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the data a state holds into a snapshot and reads it back into a new instance of the state.
+ * <p>
+ * A {@link SnapshotCodec} created with a serializer passes the current state of a state machine to
+ * {@link #write(Object, ByteBuffer)}. On restore, the state machine is created from the definition
+ * in the state recorded by the snapshot, and its current state is passed to
+ * {@link #read(Object, ByteBuffer)} together with exactly the bytes that were written. States
+ * registered as {@link StateScope#SHARED} are never passed to the serializer.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public interface StateSerializer<S> {
+
+    /**
+     * Writes the payload of a state.
+     *
+     * @param state  the current state of the state machine
+     * @param buffer the buffer to write to
+     */
+    void write(S state, ByteBuffer buffer);
+
+    /**
+     * Reads the payload of a state into a newly created instance of it.
+     *
+     * @param state  the current state of the restored state machine
+     * @param buffer the bytes written by {@link #write(Object, ByteBuffer)}
+     */
+    void read(S state, ByteBuffer buffer);
+}
@@ -0,0 +1,99 @@
+package at.base10.state;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * The timeouts of the states of a {@link StateMachineDefinition}, as the number of ticks of the
+ * {@link TimerWheel} and the target ordinal per state.
+ * <p>
+ * Entering a state is a single array access to find its timeout, followed by scheduling or
+ * cancelling the timer of the machine. States without a timeout have {@code 0} ticks.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+final class TimeoutTable<S> {
+
+    /**
+     * The wheel the timers are scheduled on, or null if no state times out.
+     */
+    private final TimerWheel wheel;
+
+    private final long[] ticks;
+
+    private final int[] targets;
+
+    /**
+     * Resolves the declared timeouts to ordinals and ticks of the wheel.
+     *
+     * @throws IllegalArgumentException if a timeout refers to an unknown state, is declared twice,
+     *                                  is not allowed by the transition table or has no wheel
+     */
+    TimeoutTable(List<String> names, List<Timeout<S>> timeouts, ToIntFunction<Class<? extends S>> ordinals,
+                 TransitionTable<S> transitions, TimerWheel wheel) {
+        if (!timeouts.isEmpty() && wheel == null) {
+            throw new IllegalArgumentException("Timeouts require a timer wheel");
+        }
+        this.wheel = timeouts.isEmpty() ? null : wheel;
+        this.ticks = new long[names.size()];
+        this.targets = new int[names.size()];
+        for (var timeout : timeouts) {
+            int from = ordinals.applyAsInt(timeout.from());
+            int to = ordinals.applyAsInt(timeout.to());
+            if (ticks[from] != 0) {
+                throw new IllegalArgumentException("Timeout of " + names.get(from) + " is already declared");
+            }
+            if (!transitions.allows(from, to)) {
+                throw new IllegalArgumentException(
+                        "Timeout moves from " + names.get(from) + " to " + names.get(to) + ", which is not allowed");
+            }
+            ticks[from] = wheel.ticks(timeout.after());
+            targets[from] = to;
+        }
+    }
+
+    /**
+     * Returns whether any state times out.
+     */
+    boolean isEmpty() {
+        return wheel == null;
+    }
+
+    /**
+     * Creates the timer of a state machine, or returns null if no state times out.
+     */
+    TimerWheel.Timer newTimer(AbstractStateMachine<S> stateMachine) {
+        return wheel == null ? null : new TimerWheel.Timer(stateMachine);
+    }
+
+    /**
+     * Schedules the timer for the timeout of the entered state, or cancels it if the state has none.
+     */
+    void enter(TimerWheel.Timer timer, int ordinal) {
+        long timeout = ticks[ordinal];
+        if (timeout == 0) {
+            wheel.cancel(timer);
+        } else {
+            wheel.schedule(timer, ordinal, timeout);
+        }
+    }
+
+    /**
+     * Moves the state machine to the target of the expired timeout, unless it has left the state
+     * or entered it again since the timer expired.
+     */
+    void expire(TimerWheel.Timer timer, AbstractStateMachine<S> stateMachine) {
+        if (wheel.claim(timer)) {
+            int state = timer.state();
+            stateMachine.compareAndTransition(state, targets[state]);
+        }
+    }
+
+    /**
+     * A timeout, as declared with {@link StateMachineBuilder#timeout(Class, Duration, Class)}.
+     */
+    record Timeout<S>(Class<? extends S> from, Duration after, Class<? extends S> to) {
+    }
+}
@@ -0,0 +1,368 @@
+package at.base10.state;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Expires the state timeouts of many state machines on a hashed timing wheel.
+ * <p>
+ * State machines built with {@link StateMachineBuilder#timerWheel(TimerWheel)} schedule the
+ * timeout of every state they enter, as declared with
+ * {@link StateMachineBuilder#timeout(Class, java.time.Duration, Class)}. Each machine owns a
+ * single timer, which is linked into the bucket of its deadline. Entering another state moves
+ * the timer to another bucket or unlinks it, so scheduling and cancelling a timeout take constant
+ * time and allocate nothing. Entering a state without a timeout while no timer is linked does not
+ * touch the wheel at all. One wheel can be shared by any number of state machines.
+ * </p>
+ * <p>
+ * The buckets are guarded by locks striped over them, so machines whose timers fall into different
+ * buckets do not wait for each other. Every tick visits one bucket. The timers that expired are
+ * collected first, tick by tick, and then moved to the targets of their timeouts as one batch,
+ * outside the locks of the wheel. Timeouts are rounded up to whole ticks. They never expire before
+ * the timeout has passed, and at most two ticks after it while the wheel ticks on time. A wheel
+ * created by {@link #create(Duration, int)} is advanced by {@link #advance(long)}, one started by
+ * {@link #start(Duration, int)} by a thread of its own. Timeouts that fail, even with an
+ * {@link Error}, are logged and do not stop the wheel, except for a {@link VirtualMachineError},
+ * which stops a started wheel.
+ * </p>
+ */
+@Log4j2
+public final class TimerWheel implements AutoCloseable {
+
+    /**
+     * The bucket of a timer that is not scheduled.
+     */
+    private static final int IDLE = -1;
+
+    /**
+     * The bucket of a timer that expired and waits to be moved to the target of its timeout.
+     */
+    private static final int EXPIRED = -2;
+
+    /**
+     * The maximum number of locks, each guarding every 64th bucket.
+     */
+    private static final int STRIPES = 64;
+
+    private final long tickNanos;
+    private final Timer[] buckets;
+    private final Object[] locks;
+
+    /**
+     * Serializes the calls of {@link #advance(long)}.
+     */
+    private final ReentrantLock advancing = new ReentrantLock();
+
+    private final LongAdder pending = new LongAdder();
+
+    private ScheduledExecutorService ticker;
+
+    /**
+     * The number of ticks the wheel has advanced. Raised before the buckets of the new ticks are
+     * visited, so a timer linked with a later deadline is found when its bucket is visited.
+     */
+    private volatile long tick;
+
+    private TimerWheel(long tickNanos, int buckets) {
+        this.tickNanos = tickNanos;
+        this.buckets = new Timer[buckets];
+        this.locks = new Object[Math.min(STRIPES, buckets)];
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            locks[stripe] = new Object();
+        }
+    }
+
+    /**
+     * Creates a wheel that is advanced by calling {@link #advance(long)}.
+     *
+     * @param tick    the duration of a tick
+     * @param buckets the number of buckets
+     * @return the new wheel
+     * @throws IllegalArgumentException if {@code tick} or {@code buckets} is not positive
+     */
+    public static TimerWheel create(@NonNull Duration tick, int buckets) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("Tick must be positive, was " + tick);
+        }
+        if (buckets < 1) {
+            throw new IllegalArgumentException("Buckets must be positive, was " + buckets);
+        }
+        return new TimerWheel(tick.toNanos(), buckets);
+    }
+
+    /**
+     * Starts a wheel that advances by one tick per tick duration on a new daemon thread.
+     *
+     * @param tick    the duration of a tick
+     * @param buckets the number of buckets
+     * @return the running wheel
+     * @throws IllegalArgumentException if {@code tick} or {@code buckets} is not positive
+     */
+    public static TimerWheel start(@NonNull Duration tick, int buckets) {
+        return start(tick, buckets, runnable -> {
+            var thread = new Thread(runnable, "state-timer-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a wheel that advances by one tick per tick duration on a thread created by the given
+     * factory. Ticks that are late, for example because a batch took long, are not caught up, so
+     * the timeouts expire late instead of early.
+     *
+     * @param tick          the duration of a tick
+     * @param buckets       the number of buckets
+     * @param threadFactory creates the ticking thread
+     * @return the running wheel
+     * @throws IllegalArgumentException if {@code tick} or {@code buckets} is not positive
+     */
+    public static TimerWheel start(@NonNull Duration tick, int buckets, @NonNull ThreadFactory threadFactory) {
+        var wheel = create(tick, buckets);
+        wheel.ticker = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        wheel.ticker.scheduleWithFixedDelay(wheel::tick, wheel.tickNanos, wheel.tickNanos, TimeUnit.NANOSECONDS);
+        return wheel;
+    }
+
+    /**
+     * Returns the number of scheduled timeouts, one at most per state machine.
+     *
+     * @return the number of timeouts that have not expired and were not cancelled
+     */
+    public int pendingTimeouts() {
+        return pending.intValue();
+    }
+
+    /**
+     * Advances the wheel by the given number of ticks and moves the state machines whose timeouts
+     * expired to the targets of their timeouts.
+     * <p>
+     * A state machine is only moved if it is still in the state whose timeout expired. This
+     * happens on the calling thread, except for state machines with a mailbox, which enqueue it.
+     * Each call moves the timeouts it collected, so concurrent calls move theirs independently.
+     * </p>
+     *
+     * @param ticks the number of ticks
+     * @return the number of expired timeouts
+     * @throws IllegalArgumentException if {@code ticks} is negative
+     * @throws Error                    the first error a timeout failed with, once all timeouts
+     *                                  of the batch were moved
+     */
+    public int advance(long ticks) {
+        if (ticks < 0) {
+            throw new IllegalArgumentException("Ticks must not be negative, was " + ticks);
+        }
+        List<Timer> expired = List.of();
+        advancing.lock();
+        try {
+            long from = tick;
+            long to = from + ticks;
+            tick = to;
+            // after a full turn, every bucket has been visited
+            for (long next = from + 1; next <= to && next <= from + buckets.length; next++) {
+                int bucket = index(next);
+                synchronized (lockOf(bucket)) {
+                    expired = collect(bucket, to, expired);
+                }
+            }
+        } finally {
+            advancing.unlock();
+        }
+        Error error = null;
+        for (var timer : expired) {
+            try {
+                timer.stateMachine.expire();
+            } catch (RuntimeException | Error e) {
+                log.error("Timeout failed", e);
+                if (e instanceof Error failure && error == null) {
+                    error = failure;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return expired.size();
+    }
+
+    /**
+     * Advances a started wheel by one tick. An error was already logged by {@link #advance(long)}
+     * and must not cancel the ticker, or no later timeout would expire. A {@link VirtualMachineError}
+     * is rethrown, which stops the ticker.
+     */
+    private void tick() {
+        try {
+            advance(1);
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Error e) {
+            // logged per timeout, keep ticking
+        }
+    }
+
+    /**
+     * Stops the thread advancing a started wheel. A tick in progress is completed.
+     */
+    @Override
+    public void close() {
+        if (ticker != null) {
+            ticker.shutdown();
+        }
+    }
+
+    /**
+     * Converts a timeout into ticks, rounded up.
+     */
+    long ticks(Duration timeout) {
+        return -Math.floorDiv(-timeout.toNanos(), tickNanos);
+    }
+
+    /**
+     * Schedules the timer to expire after the given number of ticks, replacing its previous timeout.
+     * Only called by the thread notifying the observers of the machine of the timer.
+     */
+    void schedule(Timer timer, int state, long ticks) {
+        unlink(timer);
+        timer.state = state;
+        while (true) {
+            // the current tick has partly passed already
+            long deadline = tick + ticks + 1;
+            int bucket = index(deadline);
+            synchronized (lockOf(bucket)) {
+                // unless the wheel has reached the deadline meanwhile, it will visit the bucket later
+                if (deadline > tick) {
+                    timer.deadline = deadline;
+                    timer.next = buckets[bucket];
+                    if (timer.next != null) {
+                        timer.next.previous = timer;
+                    }
+                    buckets[bucket] = timer;
+                    timer.bucket = bucket;
+                    pending.increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the timeout of the timer, if it is scheduled. A timer that is not linked into a bucket
+     * is left alone without taking a lock. Only called by the thread notifying the observers of the
+     * machine of the timer.
+     */
+    void cancel(Timer timer) {
+        if (timer.bucket >= 0) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Returns whether the timer expired and was not scheduled again since.
+     */
+    boolean claim(Timer timer) {
+        return timer.bucket == EXPIRED;
+    }
+
+    /**
+     * Unlinks the timers of the bucket that expire by the given tick and adds them to the given ones,
+     * which are copied into a new list by the first expired timer of a batch. Called while holding
+     * the lock of the bucket.
+     */
+    private List<Timer> collect(int bucket, long tick, List<Timer> expired) {
+        for (var timer = buckets[bucket]; timer != null; ) {
+            var next = timer.next;
+            if (timer.deadline <= tick) {
+                remove(timer);
+                timer.bucket = EXPIRED;
+                if (expired.isEmpty()) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(timer);
+            }
+            timer = next;
+        }
+        return expired;
+    }
+
+    /**
+     * Unlinks the timer from its bucket, unless the wheel collected it before the lock of the bucket
+     * was taken.
+     */
+    private void unlink(Timer timer) {
+        int bucket = timer.bucket;
+        if (bucket >= 0) {
+            synchronized (lockOf(bucket)) {
+                if (timer.bucket == bucket) {
+                    remove(timer);
+                    timer.bucket = IDLE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the timer from the list of its bucket, while holding the lock of the bucket.
+     */
+    private void remove(Timer timer) {
+        if (timer.previous == null) {
+            buckets[timer.bucket] = timer.next;
+        } else {
+            timer.previous.next = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        // unlinked timers must not keep the timers of other machines reachable
+        timer.previous = null;
+        timer.next = null;
+        pending.decrement();
+    }
+
+    private Object lockOf(int bucket) {
+        return locks[bucket % locks.length];
+    }
+
+    private int index(long tick) {
+        return (int) (tick % buckets.length);
+    }
+
+    /**
+     * The timer of a state machine, linked into the bucket of its deadline while it is scheduled.
+     * Its links and deadline are only accessed while holding the lock of its bucket.
+     */
+    static final class Timer {
+        private final AbstractStateMachine<?> stateMachine;
+        private Timer previous;
+        private Timer next;
+        private long deadline;
+
+        /**
+         * The bucket the timer is linked into, {@link #IDLE} or {@link #EXPIRED}. Only changed while
+         * holding the lock of the bucket it is linked into, if any.
+         */
+        private volatile int bucket = IDLE;
+
+        /**
+         * The state whose timeout is scheduled. Read without the lock once the timer expired.
+         */
+        private volatile int state;
+
+        Timer(AbstractStateMachine<?> stateMachine) {
+            this.stateMachine = stateMachine;
+        }
+
+        int state() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package at.base10.state;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Records every change of the machines of a {@link StateMachinePopulation} in a memory-mapped file.
+ * <p>
+ * A journal is opened by {@link StateMachineDefinition#openJournal(Path, int, int)} and records the
+ * changes of a population after {@link StateMachinePopulation#attachJournal(TransitionJournal)}.
+ * Each change is a record of {@value #RECORD} bytes: the time, the id of the machine, and the
+ * ordinals of its previous and its new state. The file is preallocated for a fixed number of records.
+ * Threads claim records with an atomic update of the position and write them directly into the
+ * mapping. Changes of the same machine are serialized by one of a few striped locks, so the records
+ * of a machine are claimed in the order its changes are made.
+ * </p>
+ * <p>
+ * The records of a machine are in the order of its changes, even if they were made by different
+ * threads, so {@link #replay(StateMachinePopulation)} rebuilds the machines, and
+ * {@link #replay(StateMachinePopulation, Instant)} rebuilds them as they were at a point in time.
+ * Records are forced to storage in groups of {@code syncInterval}, or only by {@link #force()}.
+ * </p>
+ * <p>
+ * When the journal fills up, {@link #compact(StateMachinePopulation, WritableByteChannel)} writes
+ * a snapshot of the population and empties the journal. After a restart,
+ * {@link #recover(ReadableByteChannel, StateMachinePopulation)} restores the last snapshot and
+ * replays the journal on top of it.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public final class TransitionJournal<S> {
+
+    /**
+     * The size of the header in bytes.
+     */
+    static final int HEADER = 32;
+
+    /**
+     * The size of a record in bytes.
+     */
+    static final int RECORD = 16;
+
+    /**
+     * The largest number of records that fits into one mapping.
+     */
+    static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER) / RECORD;
+
+    /**
+     * The previous ordinal recorded for a machine that was added.
+     */
+    static final int ADDED = Character.MAX_VALUE;
+
+    private static final int GENERATION = 8;
+    private static final int POSITION = 16;
+    private static final int CAPACITY = 24;
+    private static final int MACHINE = 8;
+    private static final int ORDINALS = 12;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * The number of locks that serialize the changes of the machines, each guarding every 64th slot.
+     */
+    private static final int STRIPES = 64;
+
+    private final StateMachineDefinition<S> definition;
+    private final SnapshotCodec<S> codec;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int syncInterval;
+    private final int last;
+    private final AtomicLong commits = new AtomicLong();
+    private volatile long synced;
+
+    /**
+     * The difference between the time since the epoch and {@link System#nanoTime()}, in nanoseconds.
+     */
+    private final long epoch = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+
+    private TransitionJournal(StateMachineDefinition<S> definition, MappedByteBuffer buffer, int capacity,
+                              int syncInterval, int last) {
+        this.definition = definition;
+        this.codec = definition.snapshotCodec();
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.syncInterval = syncInterval;
+        this.last = last;
+    }
+
+    /**
+     * Opens the journal in a file, creating it if it does not exist or is empty.
+     *
+     * @throws IllegalArgumentException      if the file belongs to another definition or capacity,
+     *                                       or the capacity or the sync interval is out of range
+     * @throws UnsupportedOperationException if the definition has more than 65,535 states
+     */
+    static <S> TransitionJournal<S> open(StateMachineDefinition<S> definition, Path file, int capacity,
+                                         int syncInterval) throws IOException {
+        int last = checkStates(definition.getStateClasses().size());
+        checkCapacity(capacity);
+        if (syncInterval < 0) {
+            throw new IllegalArgumentException("Sync interval must not be negative: " + syncInterval);
+        }
+        try (var channel = FileChannel.open(file, READ, WRITE, CREATE)) {
+            if (channel.size() > 0) {
+                var header = ByteBuffer.allocate(HEADER);
+                channel.read(header, 0);
+                checkHeader(header, capacity, definition.fingerprint());
+            }
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * RECORD);
+            LONGS.set(buffer, 0, definition.fingerprint());
+            INTS.set(buffer, CAPACITY, capacity);
+            return new TransitionJournal<>(definition, buffer, capacity, syncInterval, last);
+        }
+    }
+
+    /**
+     * Checks that the ordinals of the states fit into a {@code char} next to {@link #ADDED}.
+     *
+     * @return the last ordinal
+     */
+    static int checkStates(int states) {
+        int last = states - 1;
+        if (last >= ADDED) {
+            throw new UnsupportedOperationException("Journals support at most 65535 states, not " + states);
+        }
+        return last;
+    }
+
+    static void checkCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity of a journal must be at most " + MAX_CAPACITY + ": " + capacity);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer header, int capacity, long fingerprint) {
+        if (header.hasRemaining()) {
+            throw new IllegalArgumentException("File is too short for a journal");
+        }
+        if (header.getLong(0) != fingerprint) {
+            throw new IllegalArgumentException("File was written for another definition");
+        }
+        if (header.getInt(CAPACITY) != capacity) {
+            throw new IllegalArgumentException(
+                    "File has room for " + header.getInt(CAPACITY) + " records, not " + capacity);
+        }
+    }
+
+    /**
+     * Returns the definition of the machines the journal records.
+     *
+     * @return the definition
+     */
+    public StateMachineDefinition<S> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Returns the number of records the journal can hold.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of records written since the journal was created or last compacted,
+     * including records of changes that were not completed.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return (int) Math.min((long) LONGS.getVolatile(buffer, POSITION), capacity);
+    }
+
+    /**
+     * Returns the number of times the journal was compacted.
+     *
+     * @return the generation
+     */
+    public long generation() {
+        return (long) LONGS.getVolatile(buffer, GENERATION);
+    }
+
+    /**
+     * Forces all records to storage.
+     */
+    public void force() {
+        long committed = commits.get();
+        buffer.force();
+        synced = committed;
+    }
+
+    /**
+     * Returns the number of records that may not have been forced to storage yet.
+     */
+    long unsynced() {
+        return commits.get() - synced;
+    }
+
+    /**
+     * Returns the recorded changes in the order of the journal.
+     *
+     * @return the recorded changes
+     */
+    public Stream<Entry> entries() {
+        return IntStream.range(0, size())
+                .filter(record -> machine(record) >= 0)
+                .mapToObj(record -> {
+                    int ordinals = (int) INTS.get(buffer, offset(record) + ORDINALS);
+                    int from = ordinals >>> Character.SIZE;
+                    return new Entry(machine(record), from == ADDED ? -1 : from, (char) ordinals,
+                            Instant.ofEpochSecond(0, time(record)));
+                });
+    }
+
+    /**
+     * Applies all records to a population.
+     * <p>
+     * Machines are added as they are recorded, so the population should be empty or hold the
+     * snapshot the journal continues. It should not have a journal attached.
+     * </p>
+     *
+     * @param population the population to apply the records to
+     * @return the number of records applied
+     * @throws IllegalArgumentException if the population was created from another definition,
+     *                                  or the journal is corrupt
+     * @throws IllegalStateException    if the population has no room for the recorded machines
+     */
+    public long replay(@NonNull StateMachinePopulation<S> population) {
+        return replay(population, Long.MAX_VALUE);
+    }
+
+    /**
+     * Applies the records up to a point in time to a population, which rebuilds the machines as they
+     * were at that time.
+     *
+     * @param population the population to apply the records to
+     * @param until      the time of the last change to apply
+     * @return the number of records applied
+     * @throws IllegalArgumentException if the population was created from another definition,
+     *                                  or the journal is corrupt
+     * @throws IllegalStateException    if the population has no room for the recorded machines
+     * @see #replay(StateMachinePopulation)
+     */
+    public long replay(@NonNull StateMachinePopulation<S> population, @NonNull Instant until) {
+        return replay(population, Math.addExact(Math.multiplyExact(until.getEpochSecond(), 1_000_000_000L),
+                until.getNano()));
+    }
+
+    private long replay(StateMachinePopulation<S> population, long until) {
+        checkPopulation(population);
+        long applied = 0;
+        for (int record = 0; record < size(); record++) {
+            int machine = machine(record);
+            if (machine >= 0 && time(record) <= until) {
+                int ordinal = (char) (int) INTS.get(buffer, offset(record) + ORDINALS);
+                if (ordinal > last) {
+                    throw new IllegalArgumentException("Journal contains unknown ordinal " + ordinal);
+                }
+                population.replay(machine, ordinal);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Writes a snapshot of a population to a channel and empties the journal.
+     * <p>
+     * The snapshot is written in the format of {@link SnapshotCodec}, followed by the new generation
+     * of the journal. It must be forced to storage by the caller. The population must not change
+     * while it is compacted.
+     * </p>
+     *
+     * @param population the population the journal records
+     * @param snapshot   the channel to write the snapshot to
+     * @throws IllegalArgumentException if the population was created from another definition
+     * @throws IOException              if writing to the channel fails
+     */
+    public void compact(@NonNull StateMachinePopulation<S> population, @NonNull WritableByteChannel snapshot)
+            throws IOException {
+        codec.write(population, snapshot);
+        long generation = generation() + 1;
+        var trailer = ByteBuffer.allocate(Long.BYTES).putLong(0, generation);
+        while (trailer.hasRemaining()) {
+            snapshot.write(trailer);
+        }
+        clear(generation);
+    }
+
+    /**
+     * Restores a population from a snapshot written by
+     * {@link #compact(StateMachinePopulation, WritableByteChannel)} and applies the records written
+     * since.
+     * <p>
+     * If the process stopped after the snapshot was written but before the journal was emptied,
+     * the records are already contained in the snapshot. They are discarded and the compaction is
+     * completed.
+     * </p>
+     *
+     * @param snapshot   the channel to read the snapshot from
+     * @param population the empty population to restore
+     * @return the number of records applied
+     * @throws IllegalArgumentException if the population or the snapshot was created from another
+     *                                  definition, the snapshot belongs to another generation, or
+     *                                  the snapshot or the journal is corrupt
+     * @throws IllegalStateException    if the population has no room for the machines
+     * @throws IOException              if reading from the channel fails
+     */
+    public long recover(@NonNull ReadableByteChannel snapshot, @NonNull StateMachinePopulation<S> population)
+            throws IOException {
+        codec.read(snapshot, population);
+        var trailer = ByteBuffer.allocate(Long.BYTES);
+        SnapshotCodec.fill(trailer, snapshot);
+        long written = trailer.getLong();
+        long generation = generation();
+        if (written == generation + 1) {
+            clear(written);
+            return 0;
+        }
+        if (written != generation) {
+            throw new IllegalArgumentException(
+                    "Snapshot of generation " + written + " does not belong to generation " + generation);
+        }
+        return replay(population);
+    }
+
+    /**
+     * Empties the journal and moves it to the generation. The records are erased before the
+     * generation changes, so a journal that is only partly erased still belongs to the previous one.
+     */
+    private void clear(long generation) {
+        int end = offset(size());
+        for (int offset = HEADER; offset < end; offset += Long.BYTES) {
+            LONGS.set(buffer, offset, 0L);
+        }
+        buffer.force();
+        LONGS.setVolatile(buffer, POSITION, 0L);
+        LONGS.setVolatile(buffer, GENERATION, generation);
+        force();
+    }
+
+    void checkPopulation(StateMachinePopulation<S> population) {
+        if (population.getDefinition().fingerprint() != definition.fingerprint()) {
+            throw new IllegalArgumentException("Population was created from another definition");
+        }
+    }
+
+    /**
+     * Returns a view of the store that records every change in this journal.
+     */
+    OrdinalUpdates record(OrdinalStore store) {
+        return new RecordingStore(store);
+    }
+
+    /**
+     * Claims the next records before changes are made. A full journal leaves the position unchanged.
+     *
+     * @return the first claimed record
+     * @throws IllegalStateException if the journal has no room for the records
+     */
+    private int claim(int count) {
+        long position;
+        do {
+            position = (long) LONGS.getVolatile(buffer, POSITION);
+            if (position > capacity - count) {
+                throw new IllegalStateException("The journal is full: " + capacity + " records");
+            }
+        } while (!LONGS.compareAndSet(buffer, POSITION, position, position + count));
+        return (int) position;
+    }
+
+    /**
+     * Completes a claimed record. The machine is written last, which publishes the record.
+     */
+    private void commit(int record, long time, int slot, int from, int to) {
+        int offset = offset(record);
+        LONGS.set(buffer, offset, time);
+        INTS.set(buffer, offset + ORDINALS, from << Character.SIZE | to);
+        INTS.setRelease(buffer, offset + MACHINE, slot + 1);
+        long committed = commits.incrementAndGet();
+        if (syncInterval > 0 && committed % syncInterval == 0) {
+            force();
+        }
+    }
+
+    /**
+     * Returns the machine of a record, or a negative value if the record was not committed.
+     */
+    private int machine(int record) {
+        return (int) INTS.getAcquire(buffer, offset(record) + MACHINE) - 1;
+    }
+
+    private long time(int record) {
+        return (long) LONGS.get(buffer, offset(record));
+    }
+
+    private long now() {
+        return epoch + System.nanoTime();
+    }
+
+    private static int offset(int record) {
+        return HEADER + record * RECORD;
+    }
+
+    /**
+     * A recorded change of a machine.
+     *
+     * @param id   the id of the machine
+     * @param from the ordinal of the previous state, or -1 if the machine was added
+     * @param to   the ordinal of the new state
+     * @param time the time of the change
+     */
+    public record Entry(long id, int from, int to, Instant time) {
+    }
+
+    /**
+     * Records the changes of a store. The records are claimed, and their time taken, before the
+     * slots change, so a full journal rejects a change before it is made.
+     * <p>
+     * A change of a slot checks the expected ordinal, claims its record and sets the slot under the
+     * lock of the slot, so the records of a slot are in the order of its changes, and a change that
+     * cannot succeed claims no record. New slots are not visible to other changes before they are
+     * added, so adding takes no lock. A claimed record of a change that did not happen, because the
+     * slots could not be reserved or the slot was changed without the journal, is never committed
+     * and is skipped.
+     * </p>
+     */
+    private final class RecordingStore implements OrdinalUpdates {
+
+        private final OrdinalStore store;
+        private final Object[] locks;
+
+        RecordingStore(OrdinalStore store) {
+            this.store = store;
+            this.locks = new Object[Math.max(1, Math.min(STRIPES, store.capacity()))];
+            for (int stripe = 0; stripe < locks.length; stripe++) {
+                locks[stripe] = new Object();
+            }
+        }
+
+        @Override
+        public int get(int slot) {
+            return store.get(slot);
+        }
+
+        @Override
+        public int add(int count, int ordinal, IntUnaryOperator reserve) {
+            long time = now();
+            int record = claim(count);
+            int first = store.add(count, ordinal, reserve);
+            for (int i = 0; i < count; i++) {
+                commit(record + i, time, first + i, ADDED, ordinal);
+            }
+            return first;
+        }
+
+        @Override
+        public boolean compareAndSet(int slot, int expected, int ordinal) {
+            synchronized (locks[slot % locks.length]) {
+                if (store.get(slot) != expected) {
+                    return false;
+                }
+                long time = now();
+                int record = claim(1);
+                if (!store.compareAndSet(slot, expected, ordinal)) {
+                    return false;
+                }
+                commit(record, time, slot, expected, ordinal);
+                return true;
+            }
+        }
+    }
+}
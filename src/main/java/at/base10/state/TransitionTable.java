@@ -0,0 +1,160 @@
+package at.base10.state;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * The transitions allowed by a {@link StateMachineDefinition}, as one adjacency bitset per state.
+ * <p>
+ * Checking a transition is a single bit test, plus the guard of the edge if it has one. A table
+ * without any declared edge allows every transition.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+final class TransitionTable<S> {
+
+    private final List<String> names;
+
+    /**
+     * The states each state may transition to, indexed by ordinal, or null if every transition is allowed.
+     */
+    private final BitSet[] allowed;
+
+    /**
+     * The guards indexed by {@code from * size + to}, null for edges without a guard, or null if no
+     * edge has a guard.
+     */
+    private final BiPredicate<? super S, ? super S>[] guards;
+
+    /**
+     * Resolves the declared edges to ordinals.
+     *
+     * @throws IllegalArgumentException if an edge refers to an unknown state or is declared twice
+     */
+    @SuppressWarnings("unchecked")
+    TransitionTable(List<String> names, List<Edge<S>> edges, ToIntFunction<Class<? extends S>> ordinals) {
+        int size = names.size();
+        this.names = names;
+        this.allowed = edges.isEmpty() ? null : new BitSet[size];
+        BiPredicate<? super S, ? super S>[] guards = null;
+        for (var edge : edges) {
+            int from = ordinals.applyAsInt(edge.from());
+            int to = ordinals.applyAsInt(edge.to());
+            if (allowed[from] == null) {
+                allowed[from] = new BitSet();
+            }
+            if (allowed[from].get(to)) {
+                throw new IllegalArgumentException(
+                        "Transition from " + names.get(from) + " to " + names.get(to) + " is declared twice");
+            }
+            allowed[from].set(to);
+            if (edge.guard() != null) {
+                if (guards == null) {
+                    guards = new BiPredicate[size * size];
+                }
+                guards[from * size + to] = edge.guard();
+            }
+        }
+        this.guards = guards;
+    }
+
+    /**
+     * Returns whether any edge has a guard. Without one, the guard array is not allocated.
+     */
+    boolean guarded() {
+        return guards != null;
+    }
+
+    /**
+     * Returns whether the edge was declared, without evaluating its guard.
+     */
+    boolean allows(int from, int to) {
+        return allowed == null || allowed[from] != null && allowed[from].get(to);
+    }
+
+    /**
+     * Returns whether the transition is allowed and passes its guard, without throwing.
+     */
+    boolean permits(int from, int to, S previous, S next) {
+        if (!allows(from, to)) {
+            return false;
+        }
+        var guard = guard(from, to);
+        return guard == null || guard.test(previous, next);
+    }
+
+    /**
+     * Returns the guard of the edge, or null if it has none.
+     */
+    private BiPredicate<? super S, ? super S> guard(int from, int to) {
+        return guards == null ? null : guards[from * names.size() + to];
+    }
+
+    /**
+     * Checks that the transition is allowed and that its guard, if any, accepts it.
+     *
+     * @throws IllegalStateException if the transition is not allowed or rejected by its guard
+     */
+    void check(int from, int to, S previous, S next) {
+        if (!allows(from, to)) {
+            throw new IllegalStateException("Transition from " + names.get(from) + " to " + names.get(to) + " is not allowed");
+        }
+        var guard = guard(from, to);
+        if (guard != null && !guard.test(previous, next)) {
+            throw new IllegalStateException(
+                    "Transition from " + names.get(from) + " to " + names.get(to) + " was rejected by its guard");
+        }
+    }
+
+    /**
+     * Checks a transition like {@link #check(int, int, Object, Object)}, but looks up the states
+     * only once the transition is known to be allowed, and only if its edge has a guard, so that a
+     * state created on demand is not created for a transition that is not allowed.
+     *
+     * @throws IllegalStateException if the transition is not allowed or rejected by its guard
+     */
+    void check(int from, int to, IntFunction<? extends S> states) {
+        if (!allows(from, to)) {
+            throw new IllegalStateException("Transition from " + names.get(from) + " to " + names.get(to) + " is not allowed");
+        }
+        var guard = guard(from, to);
+        if (guard != null && !guard.test(states.apply(from), states.apply(to))) {
+            throw new IllegalStateException(
+                    "Transition from " + names.get(from) + " to " + names.get(to) + " was rejected by its guard");
+        }
+    }
+
+    /**
+     * Returns the states that can be reached from {@code from} by one or more allowed transitions,
+     * ignoring the guards.
+     *
+     * @return the reachable ordinals
+     */
+    BitSet reachable(int from) {
+        var reached = new BitSet();
+        var pending = new BitSet();
+        pending.set(from);
+        for (int state = pending.nextSetBit(0); state >= 0; state = pending.nextSetBit(0)) {
+            pending.clear(state);
+            for (int to = 0; to < names.size(); to++) {
+                if (allows(state, to) && !reached.get(to)) {
+                    reached.set(to);
+                    pending.set(to);
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * An allowed transition, as declared with {@link StateMachineBuilder#allow(Class, Class)}.
+     *
+     * @param guard decides whether a transition along this edge may happen, or null
+     */
+    record Edge<S>(Class<? extends S> from, Class<? extends S> to, BiPredicate<? super S, ? super S> guard) {
+    }
+}
@@ -29,4 +29,35 @@ public abstract class TransitionalState<S> extends ContextAwareState<S> {
     protected StateMachine<S> transitionToState(Class<? extends S> state) {
         return stateMachine.transitionToState(state);
     }
+
+    /**
+     * Transitions to the state with the given ordinal within the state machine.
+     *
+     * @param ordinal the ordinal of the new state
+     * @return the updated state machine instance
+     * @throws UnsupportedOperationException if the state machine was not built by a {@link StateMachineBuilder}
+     * @see CompiledStateMachine#ordinalOf(Class)
+     */
+    protected StateMachine<S> transitionToState(int ordinal) {
+        return compiled().transitionToState(ordinal);
+    }
+
+    /**
+     * Resolves a state class to its ordinal within the state machine.
+     *
+     * @param state the class of the state
+     * @return the ordinal of the state
+     * @throws IllegalArgumentException      if the state is not registered
+     * @throws UnsupportedOperationException if the state machine was not built by a {@link StateMachineBuilder}
+     */
+    protected int ordinalOf(Class<? extends S> state) {
+        return compiled().ordinalOf(state);
+    }
+
+    private CompiledStateMachine<S> compiled() {
+        if (!(stateMachine instanceof CompiledStateMachine<S> compiled)) {
+            throw new UnsupportedOperationException("Ordinals are not supported");
+        }
+        return compiled;
+    }
 }
\ No newline at end of file
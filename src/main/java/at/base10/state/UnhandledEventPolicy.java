@@ -0,0 +1,25 @@
+package at.base10.state;
+
+/**
+ * Decides what {@link CompiledStateMachine#fire(Enum)} does with an event the current state does not handle.
+ *
+ * @see StateMachineBuilder#unhandledEvents(UnhandledEventPolicy)
+ */
+public enum UnhandledEventPolicy {
+
+    /**
+     * The event is dropped and the state does not change.
+     */
+    IGNORE,
+
+    /**
+     * The event is kept and fired again after the next state change, in the order the events
+     * were deferred. It stays deferred until a state handles it.
+     */
+    DEFER,
+
+    /**
+     * The event fails with an {@link IllegalStateException}. This is the default.
+     */
+    FAIL
+}
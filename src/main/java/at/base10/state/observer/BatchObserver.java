@@ -0,0 +1,28 @@
+package at.base10.state.observer;
+
+import java.util.List;
+
+/**
+ * An {@link Observer} that can receive several state changes at once.
+ * <p>
+ * With an {@link at.base10.state.AsyncObserverDispatcher} all state changes of a state machine
+ * that are pending when the dispatcher wakes up are delivered in one call. Without a dispatcher
+ * every state change is delivered on its own.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public interface BatchObserver<S> extends Observer<S> {
+
+    /**
+     * Receives state changes in the order in which they happened.
+     *
+     * @param events the state changes, never empty
+     */
+    void nextBatch(List<StateChangeEvent<S>> events);
+
+    @Override
+    default void next(StateChangeEvent<S> observable) {
+        nextBatch(List.of(observable));
+    }
+}
@@ -13,5 +13,15 @@ public interface Observer<S> {
      * @param observable the event containing the previous and current states
      */
     void next(StateChangeEvent<S> observable);
-}
 
+    /**
+     * Called by the state machine when a state change occurs. By default, the states are wrapped
+     * in a {@link StateChangeEvent} and passed to {@link #next(StateChangeEvent)}.
+     *
+     * @param previous the previous state
+     * @param current  the current state
+     */
+    default void onTransition(S previous, S current) {
+        next(new StateChangeEvent<>(previous, current));
+    }
+}
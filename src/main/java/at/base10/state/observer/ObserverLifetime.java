@@ -0,0 +1,78 @@
+package at.base10.state.observer;
+
+import lombok.NonNull;
+
+import java.time.Duration;
+
+/**
+ * Decides how long a state machine keeps an {@link Observer} registered, so that observers of
+ * short-lived scopes do not leak when they are never unsubscribed.
+ * <p>
+ * A weakly referenced observer is unregistered once it is garbage collected. Its state machine
+ * notices this on the next transition, so no thread sweeps the observers in the background. An
+ * observer can also expire after a number of notifications, or once a duration has passed since
+ * it was registered. Keeping the {@link Subscription} of a weakly referenced observer keeps the
+ * observer reachable.
+ * </p>
+ *
+ * @param weak        whether the state machine references the observer weakly
+ * @param maxEvents   the number of notifications after which the observer is unregistered
+ * @param maxDuration the duration after which the observer is unregistered, or null if it does not expire
+ */
+public record ObserverLifetime(boolean weak, long maxEvents, Duration maxDuration) {
+
+    /**
+     * @param weak        whether the state machine references the observer weakly
+     * @param maxEvents   the number of notifications after which the observer is unregistered
+     * @param maxDuration the duration after which the observer is unregistered, or null if it does not expire
+     * @throws IllegalArgumentException if {@code maxEvents} or {@code maxDuration} is not positive
+     */
+    public ObserverLifetime {
+        if (maxEvents < 1) {
+            throw new IllegalArgumentException("Events must be positive, was " + maxEvents);
+        }
+        if (maxDuration != null && (maxDuration.isNegative() || maxDuration.isZero())) {
+            throw new IllegalArgumentException("Duration must be positive, was " + maxDuration);
+        }
+    }
+
+    /**
+     * Keeps the observer registered until it is unsubscribed.
+     *
+     * @return the lifetime
+     */
+    public static ObserverLifetime permanent() {
+        return new ObserverLifetime(false, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Keeps the observer registered until it is unsubscribed or garbage collected.
+     *
+     * @return the lifetime
+     */
+    public static ObserverLifetime weakly() {
+        return new ObserverLifetime(true, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Unregisters the observer after it received the given number of state changes.
+     *
+     * @param events the number of state changes
+     * @return a copy of this lifetime that expires after the state changes
+     * @throws IllegalArgumentException if {@code events} is not positive
+     */
+    public ObserverLifetime expireAfterEvents(long events) {
+        return new ObserverLifetime(weak, events, maxDuration);
+    }
+
+    /**
+     * Unregisters the observer once the given duration has passed since it was registered.
+     *
+     * @param duration the duration
+     * @return a copy of this lifetime that expires after the duration
+     * @throws IllegalArgumentException if {@code duration} is not positive
+     */
+    public ObserverLifetime expireAfter(@NonNull Duration duration) {
+        return new ObserverLifetime(weak, maxEvents, duration);
+    }
+}
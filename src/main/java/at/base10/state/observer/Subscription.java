@@ -10,15 +10,27 @@ import at.base10.state.StateMachine;
  * @param <S> the type representing the state
  * @param stateMachine the state machine instance
  * @param observer the observer instance subscribed to state changes
+ * @param filter the transitions the observer is notified of
  */
-public record Subscription<S>(StateMachine<S> stateMachine, Observer<S> observer) {
+public record Subscription<S>(StateMachine<S> stateMachine, Observer<S> observer, TransitionFilter<S> filter) {
 
     /**
-     * Unsubscribes the observer from the state machine.
+     * Creates a subscription to every transition of the state machine.
+     *
+     * @param stateMachine the state machine instance
+     * @param observer the observer instance subscribed to state changes
+     */
+    public Subscription(StateMachine<S> stateMachine, Observer<S> observer) {
+        this(stateMachine, observer, TransitionFilter.any());
+    }
+
+    /**
+     * Unsubscribes the observer from the state machine. Registrations of the same observer with
+     * other filters remain.
      *
      * @return true if the observer was successfully unregistered, false otherwise
      */
     public boolean unsubscribe(){
-        return stateMachine.unregisterObserver(observer);
+        return stateMachine.unsubscribe(this);
     }
 }
@@ -0,0 +1,74 @@
+package at.base10.state.observer;
+
+import lombok.NonNull;
+
+/**
+ * Selects the transitions an {@link Observer} is notified of, by the class of the state left, the
+ * class of the state entered, or both.
+ * <p>
+ * The state machine resolves the classes to ordinals when the observer is registered and keeps
+ * the observer with the other observers of the same source or target state, so a transition only
+ * visits the observers interested in it.
+ * </p>
+ *
+ * @param <S>    the type representing the states in the state machine
+ * @param source the class of the state left, or null for any state
+ * @param target the class of the state entered, or null for any state
+ */
+public record TransitionFilter<S>(Class<? extends S> source, Class<? extends S> target) {
+
+    /**
+     * Selects every transition.
+     *
+     * @param <S> the type representing the states in the state machine
+     * @return the filter
+     */
+    public static <S> TransitionFilter<S> any() {
+        return new TransitionFilter<>(null, null);
+    }
+
+    /**
+     * Selects the transitions leaving a state.
+     *
+     * @param source the class of the state left
+     * @param <S>    the type representing the states in the state machine
+     * @return the filter
+     */
+    public static <S> TransitionFilter<S> from(@NonNull Class<? extends S> source) {
+        return new TransitionFilter<>(source, null);
+    }
+
+    /**
+     * Selects the transitions entering a state.
+     *
+     * @param target the class of the state entered
+     * @param <S>    the type representing the states in the state machine
+     * @return the filter
+     */
+    public static <S> TransitionFilter<S> to(@NonNull Class<? extends S> target) {
+        return new TransitionFilter<>(null, target);
+    }
+
+    /**
+     * Selects the transitions from one state to another.
+     *
+     * @param source the class of the state left
+     * @param target the class of the state entered
+     * @param <S>    the type representing the states in the state machine
+     * @return the filter
+     */
+    public static <S> TransitionFilter<S> edge(@NonNull Class<? extends S> source, @NonNull Class<? extends S> target) {
+        return new TransitionFilter<>(source, target);
+    }
+
+    /**
+     * Indicates whether the filter selects a state change.
+     *
+     * @param event the state change
+     * @return true if the classes of both states match the filter
+     */
+    public boolean matches(@NonNull StateChangeEvent<?> event) {
+        return (source == null || source == event.previous().getClass())
+                && (target == null || target == event.current().getClass());
+    }
+}
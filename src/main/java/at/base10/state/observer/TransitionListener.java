@@ -0,0 +1,28 @@
+package at.base10.state.observer;
+
+/**
+ * An {@link Observer} that receives the previous and the current state directly.
+ * <p>
+ * No {@link StateChangeEvent} is created for a listener, so a transition that only notifies
+ * listeners does not allocate.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+@FunctionalInterface
+public interface TransitionListener<S> extends Observer<S> {
+
+    /**
+     * Called when a state change occurs.
+     *
+     * @param previous the previous state
+     * @param current  the current state
+     */
+    @Override
+    void onTransition(S previous, S current);
+
+    @Override
+    default void next(StateChangeEvent<S> observable) {
+        onTransition(observable.previous(), observable.current());
+    }
+}
@@ -0,0 +1,49 @@
+package at.base10.state.spec;
+
+import at.base10.state.StateFactory;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compile-time generated artifacts of a state interface annotated with {@link StateMachineSpec}.
+ * <p>
+ * Implementations are generated by the {@code state-processor} annotation processor and
+ * registered as a {@link java.util.ServiceLoader service}. They are not meant to be
+ * implemented by hand.
+ * </p>
+ *
+ * @param <S> the type representing the states in the state machine
+ */
+public interface GeneratedSpec<S> {
+
+    /**
+     * Returns the state interface this specification was generated for.
+     *
+     * @return the class type of the state
+     */
+    Class<S> stateClass();
+
+    /**
+     * Returns the state classes, ordered by their ordinal.
+     *
+     * @return an unmodifiable list of the state classes
+     */
+    List<Class<? extends S>> stateClasses();
+
+    /**
+     * Returns a factory for every state class, in the same order as {@link #stateClasses()}.
+     *
+     * @return an unmodifiable list of the state factories
+     */
+    List<StateFactory<S>> factories();
+
+    /**
+     * Creates a proxy of the state interface that forwards every call to the supplied state.
+     *
+     * @param target supplies the state each call is forwarded to
+     * @return the proxy
+     * @throws IllegalArgumentException if the state interface is sealed and cannot be implemented
+     */
+    S proxy(Supplier<? extends S> target);
+}
@@ -0,0 +1,37 @@
+package at.base10.state.spec;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a state interface for compile-time generation of its state machine artifacts.
+ * <p>
+ * The {@code state-processor} annotation processor generates a {@link GeneratedSpec} for the
+ * annotated interface. It contains a typed forwarding proxy, the state classes in ordinal order
+ * and a validated factory list, which {@link at.base10.state.StateMachineBuilder} picks up
+ * automatically when no states are registered with it. Registering any state replaces the
+ * generated specification entirely.
+ * </p>
+ * <p>
+ * Each state class needs a public constructor taking either the
+ * {@link at.base10.state.StateMachine} or no arguments. Classes in the package of the state
+ * interface may use any non-private constructor.
+ * </p>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface StateMachineSpec {
+
+    /**
+     * The state classes of the state machine, in ordinal order.
+     * If empty, the permitted subclasses of a sealed state interface are used. A sealed state
+     * interface cannot be proxied, the processor warns about it.
+     *
+     * @return the state classes
+     */
+    Class<?>[] states() default {};
+}
@@ -0,0 +1,471 @@
+package at.base10.state;
+
+import at.base10.state.AsyncObserverDispatcher.OverflowPolicy;
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.BatchObserver;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.TransitionFilter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncObserverDispatcherTest {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private AsyncObserverDispatcher dispatcher;
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        dispatcher.close();
+    }
+
+    private CompiledStateMachine<AppState> stateMachine(String name) {
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .observerDispatcher(dispatcher)
+                .build(StateTransit.class);
+        stateMachine.registerObserver(event -> events.add(name + ":" + event.current().getClass().getSimpleName()));
+        return stateMachine;
+    }
+
+    /**
+     * Blocks the consumer thread on the first event until {@link #release} is counted down.
+     */
+    private Observer<AppState> gate() {
+        return event -> {
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                await(release);
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Test
+    public void testDeliversOnConsumerThread() {
+        var threads = new ArrayList<String>();
+        var consumer = new AtomicReference<Thread>();
+        dispatcher = AsyncObserverDispatcher.start(8, OverflowPolicy.BLOCK, runnable -> {
+            consumer.set(new Thread(runnable, "audit"));
+            return consumer.get();
+        });
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(event -> threads.add(Thread.currentThread().getName()));
+        stateMachine.registerObserver(event -> entered.countDown());
+
+        awaitWaiting(consumer.get());
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class);
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateSquare"), events);
+        assertEquals(List.of("audit", "audit"), threads);
+        assertEquals(0, dispatcher.queueDepth());
+        assertEquals(8, dispatcher.capacity());
+        assertEquals(0, dispatcher.droppedEvents());
+        assertInstanceOf(StateInc.class, stateMachine.transitionToState(StateInc.class).currentState());
+        assertEquals(2, events.size());
+        assertEquals(1, dispatcher.droppedEvents());
+    }
+
+    @Test
+    public void testBatches() {
+        var batches = new ArrayList<List<StateChangeEvent<AppState>>>();
+        var consumer = new AtomicReference<Thread>();
+        dispatcher = AsyncObserverDispatcher.start(8, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(event -> consumer.set(Thread.currentThread()));
+        stateMachine.registerObserver(gate());
+        stateMachine.registerObserver((BatchObserver<AppState>) batches::add);
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class)
+                .transitionToState(StateTransit.class)
+                .transitionToState(StateInc.class);
+        assertEquals(3, dispatcher.queueDepth());
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of(1, 3), batches.stream().map(List::size).toList());
+        assertEquals("state-observer-dispatcher", consumer.get().getName());
+        assertSame(batches.get(0).get(0).current(), batches.get(1).get(0).previous());
+        assertInstanceOf(StateSquare.class, batches.get(1).get(0).current());
+        assertInstanceOf(StateInc.class, batches.get(1).get(2).current());
+        assertEquals(0, dispatcher.droppedEvents());
+    }
+
+    @Test
+    public void testInterleavedStateMachines() {
+        var batches = new ArrayList<List<StateChangeEvent<AppState>>>();
+        dispatcher = AsyncObserverDispatcher.start(8, OverflowPolicy.BLOCK);
+        var first = stateMachine("a");
+        var second = stateMachine("b");
+        first.registerObserver(gate());
+        second.registerObserver(TransitionFilter.to(StateInc.class), (BatchObserver<AppState>) batches::add);
+
+        first.transitionToState(StateSquare.class);
+        await(entered);
+        second.transitionToState(StateInc.class);
+        first.transitionToState(StateInc.class);
+        second.transitionToState(StateSquare.class)
+                .transitionToState(StateInc.class);
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateSquare", "b:StateInc", "b:StateSquare", "b:StateInc", "a:StateInc"), events);
+        assertEquals(List.of(2), batches.stream().map(List::size).toList());
+        assertInstanceOf(StateSquare.class, batches.get(0).get(1).previous());
+    }
+
+    @Test
+    public void testDefaultThreadIsDaemon() throws Exception {
+        var consumer = new AtomicReference<Thread>();
+        // threads inherit the daemon flag, so start the dispatcher from a thread that is not a daemon
+        var starter = new Thread(() -> dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.BLOCK));
+        starter.setDaemon(false);
+        starter.start();
+        starter.join();
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(event -> consumer.set(Thread.currentThread()));
+
+        stateMachine.transitionToState(StateInc.class);
+        dispatcher.close();
+
+        assertTrue(consumer.get().isDaemon());
+    }
+
+    @Test
+    public void testDropOldest() {
+        dispatcher = AsyncObserverDispatcher.start(2, OverflowPolicy.DROP_OLDEST);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(gate());
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class)
+                .transitionToState(StateTransit.class)
+                .transitionToState(StateInc.class);
+        assertEquals(2, dispatcher.queueDepth());
+        assertEquals(1, dispatcher.droppedEvents());
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateTransit", "a:StateInc"), events);
+    }
+
+    @Test
+    public void testConflate() {
+        var received = new ArrayList<StateChangeEvent<AppState>>();
+        dispatcher = AsyncObserverDispatcher.start(2, OverflowPolicy.CONFLATE);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(gate());
+        stateMachine.registerObserver(received::add);
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class)
+                .transitionToState(StateTransit.class)
+                .transitionToState(StateInc.class);
+        assertEquals(2, dispatcher.queueDepth());
+        assertEquals(0, dispatcher.droppedEvents());
+        assertEquals(1, dispatcher.conflatedEvents());
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateSquare", "a:StateInc"), events);
+        assertInstanceOf(StateSquare.class, received.get(2).previous());
+    }
+
+    @Test
+    public void testConflateOtherStateMachine() {
+        dispatcher = AsyncObserverDispatcher.start(2, OverflowPolicy.CONFLATE);
+        var first = stateMachine("a");
+        var second = stateMachine("b");
+        first.registerObserver(gate());
+
+        first.transitionToState(StateInc.class);
+        await(entered);
+        first.transitionToState(StateSquare.class);
+        second.transitionToState(StateInc.class);
+        first.transitionToState(StateTransit.class);
+        assertEquals(0, dispatcher.droppedEvents());
+        assertEquals(1, dispatcher.conflatedEvents());
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateTransit", "b:StateInc"), events);
+    }
+
+    @Test
+    public void testConflateIntoNewestOfStateMachine() {
+        dispatcher = AsyncObserverDispatcher.start(3, OverflowPolicy.CONFLATE);
+        var first = stateMachine("a");
+        var second = stateMachine("b");
+        first.registerObserver(gate());
+
+        first.transitionToState(StateInc.class);
+        await(entered);
+        first.transitionToState(StateSquare.class);
+        second.transitionToState(StateInc.class);
+        first.transitionToState(StateTransit.class)
+                .transitionToState(StateInc.class);
+        assertEquals(3, dispatcher.queueDepth());
+        assertEquals(0, dispatcher.droppedEvents());
+        assertEquals(1, dispatcher.conflatedEvents());
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateSquare", "a:StateInc", "b:StateInc"), events);
+    }
+
+    @Test
+    public void testConflateAfterDropOldest() {
+        dispatcher = AsyncObserverDispatcher.start(2, OverflowPolicy.CONFLATE);
+        var first = stateMachine("a");
+        var second = stateMachine("b");
+        first.registerObserver(gate());
+
+        first.transitionToState(StateInc.class);
+        await(entered);
+        second.transitionToState(StateInc.class)
+                .transitionToState(StateSquare.class);
+        first.transitionToState(StateSquare.class)
+                .transitionToState(StateTransit.class);
+        assertEquals(2, dispatcher.queueDepth());
+        assertEquals(1, dispatcher.droppedEvents());
+        assertEquals(1, dispatcher.conflatedEvents());
+        release.countDown();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "b:StateSquare", "a:StateTransit"), events);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(gate());
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class);
+        var producer = new Thread(() -> stateMachine.transitionToState(StateTransit.class));
+        producer.start();
+        awaitWaiting(producer);
+        assertEquals(1, dispatcher.queueDepth());
+
+        release.countDown();
+        producer.join();
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateSquare", "a:StateTransit"), events);
+        assertEquals(0, dispatcher.droppedEvents());
+    }
+
+    @Test
+    public void testBlockOnConsumerThread() {
+        dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(event -> {
+            if (event.current() instanceof StateInc) {
+                stateMachine.transitionToState(StateSquare.class).transitionToState(StateTransit.class);
+                entered.countDown();
+            }
+        });
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateTransit"), events);
+        assertEquals(1, dispatcher.droppedEvents());
+    }
+
+    @Test
+    public void testCloseReleasesBlockedProducer() throws Exception {
+        dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(gate());
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class);
+        var producer = new Thread(() -> stateMachine.transitionToState(StateTransit.class));
+        producer.start();
+        awaitWaiting(producer);
+
+        var closer = new Thread(dispatcher::close);
+        closer.start();
+        producer.join();
+        release.countDown();
+        closer.join();
+
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(1, dispatcher.droppedEvents());
+        assertEquals(List.of("a:StateInc", "a:StateSquare"), events);
+    }
+
+    @Test
+    public void testCloseFromObserver() {
+        dispatcher = AsyncObserverDispatcher.start(4, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(event -> dispatcher.close());
+
+        stateMachine.transitionToState(StateInc.class);
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc"), events);
+    }
+
+    @Test
+    public void testCloseDeliversPendingEvents() {
+        dispatcher = AsyncObserverDispatcher.start(1024, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+
+        for (int i = 0; i < 1000; i++) {
+            stateMachine.transitionToState(i % 3);
+        }
+        dispatcher.close();
+
+        assertEquals(1000, events.size());
+    }
+
+    @Test
+    public void testFailingObserver() {
+        dispatcher = AsyncObserverDispatcher.start(4, OverflowPolicy.BLOCK);
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(event -> {
+            throw new IllegalStateException("observer failed");
+        });
+
+        stateMachine.transitionToState(StateInc.class).transitionToState(StateSquare.class);
+        dispatcher.close();
+
+        assertEquals(List.of("a:StateInc", "a:StateSquare"), events);
+    }
+
+    @Test
+    public void testFailingObserverWithError() throws Exception {
+        var error = new AssertionError("observer error");
+        var uncaught = new CountDownLatch(1);
+        var thrown = new ArrayList<Throwable>();
+        dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.BLOCK, runnable -> {
+            var thread = new Thread(runnable);
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                thrown.add(e);
+                uncaught.countDown();
+            });
+            return thread;
+        });
+        var stateMachine = stateMachine("a");
+        stateMachine.registerObserver(gate());
+        stateMachine.registerObserver(event -> {
+            if (event.current() instanceof StateSquare) {
+                throw error;
+            }
+        });
+        stateMachine.registerObserver(event -> events.add("b:" + event.current().getClass().getSimpleName()));
+
+        stateMachine.transitionToState(StateInc.class);
+        await(entered);
+        stateMachine.transitionToState(StateSquare.class);
+        var producer = new Thread(() -> stateMachine.transitionToState(StateTransit.class));
+        producer.start();
+        awaitWaiting(producer);
+        release.countDown();
+        producer.join();
+        assertTrue(uncaught.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+
+        assertEquals(List.of(error), thrown);
+        assertEquals(List.of("a:StateInc", "b:StateInc", "a:StateSquare", "b:StateSquare"), events);
+        assertEquals(1, dispatcher.droppedEvents());
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(2, dispatcher.droppedEvents());
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testConcurrentStateMachine() {
+        dispatcher = AsyncObserverDispatcher.start(4, OverflowPolicy.BLOCK);
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .concurrent()
+                .observerDispatcher(dispatcher)
+                .compile()
+                .newInstance(StateTransit.class);
+        stateMachine.registerObserver(event -> events.add(event.current().getClass().getSimpleName()));
+
+        assertTrue(stateMachine.compareAndTransition(StateTransit.class, StateInc.class));
+        dispatcher.close();
+
+        assertEquals(List.of("StateInc"), events);
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.DROP_OLDEST);
+
+        assertEquals(1, dispatcher.capacity());
+        assertEquals("Capacity must be positive, was 0",
+                assertThrows(IllegalArgumentException.class,
+                        () -> AsyncObserverDispatcher.start(0, OverflowPolicy.BLOCK)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("policy is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> AsyncObserverDispatcher.start(1, null)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("dispatcher is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> StateMachine.builder(AppState.class).observerDispatcher(null)).getMessage());
+    }
+
+    @Test
+    public void testBatchObserverWithoutDispatcher() {
+        dispatcher = AsyncObserverDispatcher.start(1, OverflowPolicy.BLOCK);
+        var batches = new ArrayList<List<StateChangeEvent<AppState>>>();
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .build(StateTransit.class);
+        stateMachine.registerObserver((BatchObserver<AppState>) batches::add);
+
+        stateMachine.transitionToState(StateInc.class).transitionToState(StateTransit.class);
+
+        assertEquals(List.of(1, 1), batches.stream().map(List::size).toList());
+    }
+}
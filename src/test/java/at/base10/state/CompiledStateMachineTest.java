@@ -0,0 +1,133 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.Operate;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.StateChangeEvent;
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledStateMachineTest {
+
+    private CompiledStateMachine<AppState> stateMachine;
+
+    @BeforeEach
+    public void setUp() {
+        stateMachine = StateMachine.builder(AppState.class)
+                .register(Set.of(
+                        sm -> new StateSquare(new SquareFunction(), sm),
+                        StateTransit::new
+                )).register(
+                        sm -> new StateInc()
+                ).build(StateTransit.class);
+    }
+
+    @Test
+    public void test_transition_by_ordinal() {
+        var inc = stateMachine.ordinalOf(StateInc.class);
+        var square = stateMachine.ordinalOf(StateSquare.class);
+
+        assertInstanceOf(StateInc.class, stateMachine.transitionToState(inc).currentState());
+        assertInstanceOf(StateSquare.class, stateMachine.transitionToState(square).currentState());
+        assertEquals(Set.of(0, 1, 2), Set.of(inc, square, stateMachine.ordinalOf(StateTransit.class)));
+    }
+
+    @Test
+    public void test_transition_by_invalid_ordinal() {
+        assertThrows(IndexOutOfBoundsException.class, () -> stateMachine.transitionToState(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> stateMachine.transitionToState(3));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void test_ordinal_of_unknown_state() {
+        var other = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .build(StateInc.class);
+
+        assertThat(
+                assertThrows(IllegalArgumentException.class,
+                        () -> other.ordinalOf(StateTransit.class)).getMessage(),
+                Matchers.equalTo("State class at.base10.state.StateMachineTest$StateTransit not found")
+        );
+    }
+
+    @Test
+    public void test_transition_by_ordinal_Observers() {
+        var events = new ArrayList<StateChangeEvent<AppState>>();
+        stateMachine.registerObserver(events::add);
+
+        var first = stateMachine.currentState();
+        stateMachine.transitionToState(stateMachine.ordinalOf(StateSquare.class));
+
+        assertEquals(List.of(new StateChangeEvent<>(first, stateMachine.currentState())), events);
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void test_compare_and_transition() {
+        var events = new ArrayList<StateChangeEvent<AppState>>();
+        stateMachine.registerObserver(events::add);
+
+        assertFalse(stateMachine.compareAndTransition(StateInc.class, StateSquare.class));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(List.of(), events);
+
+        var first = stateMachine.currentState();
+        assertTrue(stateMachine.compareAndTransition(StateTransit.class, StateSquare.class));
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertEquals(List.of(new StateChangeEvent<>(first, stateMachine.currentState())), events);
+    }
+
+    @Test
+    public void test_compare_and_transition_invalid() {
+        //noinspection DataFlowIssue
+        assertEquals("expected is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> stateMachine.compareAndTransition(null, StateInc.class)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("next is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> stateMachine.compareAndTransition(StateInc.class, null)).getMessage());
+
+        var other = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .build(StateInc.class);
+        assertThrows(IllegalArgumentException.class, () -> other.compareAndTransition(StateInc.class, StateTransit.class));
+        assertThrows(IllegalArgumentException.class, () -> other.compareAndTransition(StateTransit.class, StateInc.class));
+    }
+
+    @Test
+    public void proxy_cached() {
+        var proxy = stateMachine.asState(Operate.class);
+
+        assertSame(proxy, stateMachine.asState(Operate.class));
+        assertTrue(proxy.getClass().isHidden());
+        assertEquals(4, stateMachine.transitionToState(StateSquare.class).asState(Operate.class).execute(2));
+        assertThrows(IllegalArgumentException.class, () -> stateMachine.asState(AppState.class));
+        assertThrows(IllegalArgumentException.class, () -> stateMachine.asState());
+    }
+
+    @Test
+    public void proxy_of_state_type_cached() {
+        CompiledStateMachine<Operate> operations = StateMachine.builder(Operate.class)
+                .register(sm -> new StateInc())
+                .build(StateInc.class);
+        var proxy = operations.asState();
+
+        assertSame(proxy, operations.asState());
+        assertSame(proxy, operations.asState(Operate.class));
+        assertEquals(3, proxy.execute(2));
+    }
+}
@@ -0,0 +1,312 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.Operate;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentStateMachineTest {
+
+    private static final int THREADS = 4;
+    private static final int TRANSITIONS = 5_000;
+
+    private CompiledStateMachine<AppState> stateMachine;
+
+    @BeforeEach
+    public void setUp() {
+        stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .concurrent()
+                .build(StateTransit.class);
+    }
+
+    @Test
+    public void testBuild() {
+        assertInstanceOf(ConcurrentStateMachineImpl.class, stateMachine);
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(3, stateMachine.currentState().execute(2));
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+        assertInstanceOf(StateSquare.class, stateMachine.transitionToState(2).currentState());
+        assertInstanceOf(StateMachineImpl.class, StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .build(StateInc.class));
+    }
+
+    @Test
+    public void testCompile() {
+        var definition = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .concurrent()
+                .compile();
+
+        assertInstanceOf(ConcurrentStateMachineImpl.class, definition.newInstance(StateInc.class));
+        assertInstanceOf(StateMachineImpl.class, StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .compile()
+                .newInstance(StateInc.class));
+    }
+
+    @Test
+    public void testProxy() {
+        var proxy = stateMachine.asState(Operate.class);
+
+        assertSame(proxy, stateMachine.asState(Operate.class));
+        assertEquals(3, proxy.execute(2));
+        assertEquals(3, proxy.execute(2));
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testCompareAndTransition() {
+        var events = new ArrayList<StateChangeEvent<AppState>>();
+        stateMachine.registerObserver(events::add);
+        var first = stateMachine.currentState();
+
+        assertFalse(stateMachine.compareAndTransition(StateInc.class, StateSquare.class));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(List.of(), events);
+
+        assertTrue(stateMachine.compareAndTransition(StateTransit.class, StateSquare.class));
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertEquals(List.of(new StateChangeEvent<>(first, stateMachine.currentState())), events);
+
+        assertTrue(stateMachine.compareAndTransition(StateSquare.class, StateSquare.class));
+        assertEquals(2, events.size());
+        assertFalse(events.get(1).didChange());
+    }
+
+    @Test
+    public void testCompetingCompareAndTransition() throws Exception {
+        var start = new CountDownLatch(1);
+        var results = run(() -> {
+            start.await();
+            return stateMachine.compareAndTransition(StateTransit.class, StateInc.class) ? 1 : 0;
+        }, start);
+
+        assertEquals(1, results.stream().mapToInt(Integer::intValue).sum());
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testGuardRunsAgainForChangedState() throws Exception {
+        var checking = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var guarded = new ArrayList<String>();
+        var guardedMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .allow(StateTransit.class, StateInc.class)
+                .allow(StateTransit.class, StateSquare.class, (transit, square) -> {
+                    synchronized (guarded) {
+                        guarded.add("StateTransit");
+                    }
+                    checking.countDown();
+                    await(release);
+                    return true;
+                })
+                .allow(StateInc.class, StateSquare.class, (inc, square) -> {
+                    synchronized (guarded) {
+                        guarded.add("StateInc");
+                    }
+                    return true;
+                })
+                .concurrent()
+                .build(StateTransit.class);
+        var thread = new Thread(() -> guardedMachine.transitionToState(StateSquare.class));
+
+        thread.start();
+        assertTrue(checking.await(5, TimeUnit.SECONDS));
+        guardedMachine.transitionToState(StateInc.class);
+        release.countDown();
+        thread.join(5_000);
+
+        assertInstanceOf(StateSquare.class, guardedMachine.currentState());
+        assertEquals(List.of("StateTransit", "StateInc"), guarded);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testNoLazyStateForIllegalTransition() {
+        var created = new AtomicInteger();
+        var lazyMachine = StateMachine.builder(AppState.class)
+                .lazy()
+                .register(StateInc.class, sm -> new StateInc())
+                .register(StateSquare.class, sm -> {
+                    created.incrementAndGet();
+                    return new StateSquare(new SquareFunction(), sm);
+                })
+                .allow(StateSquare.class, StateInc.class)
+                .concurrent()
+                .build(StateInc.class);
+
+        assertThrows(IllegalStateException.class, () -> lazyMachine.transitionToState(StateSquare.class));
+        assertFalse(lazyMachine.compareAndTransition(StateSquare.class, StateInc.class));
+        assertEquals(0, created.get());
+    }
+
+    @Test
+    public void testObserversSeeLinearizableOrder() throws Exception {
+        var first = new ArrayList<StateChangeEvent<AppState>>();
+        var second = new ArrayList<StateChangeEvent<AppState>>();
+        stateMachine.registerObserver(first::add);
+        stateMachine.registerObserver(second::add);
+        var initial = stateMachine.currentState();
+
+        var start = new CountDownLatch(1);
+        var successes = run(() -> {
+            start.await();
+            int count = 0;
+            for (int i = 0; i < TRANSITIONS; i++) {
+                if (i % 2 == 0) {
+                    stateMachine.transitionToState(i % 3);
+                    count++;
+                } else if (stateMachine.compareAndTransition(StateInc.class, StateSquare.class)) {
+                    count++;
+                }
+            }
+            return count;
+        }, start);
+
+        assertEquals(successes.stream().mapToInt(Integer::intValue).sum(), first.size());
+        assertEquals(first, second);
+        var previous = initial;
+        for (var event : first) {
+            assertSame(previous, event.previous());
+            previous = event.current();
+        }
+        assertSame(stateMachine.currentState(), previous);
+    }
+
+    @Test
+    public void testTransitionFromObserverIsDeliveredAfterCurrentEvent() {
+        var events = new ArrayList<String>();
+        stateMachine.registerObserver(event -> {
+            events.add("first " + event.current().getClass().getSimpleName());
+            if (event.current() instanceof StateInc) {
+                stateMachine.transitionToState(StateSquare.class);
+            }
+        });
+        stateMachine.registerObserver(event -> events.add("second " + event.current().getClass().getSimpleName()));
+
+        stateMachine.transitionToState(StateInc.class);
+
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertEquals(4, events.size());
+        assertEquals(events.subList(0, 2).stream().map(e -> e.split(" ")[1]).toList(), List.of("StateInc", "StateInc"));
+        assertEquals(events.subList(2, 4).stream().map(e -> e.split(" ")[1]).toList(), List.of("StateSquare", "StateSquare"));
+
+        stateMachine.transitionToState(StateTransit.class);
+        assertEquals(6, events.size());
+    }
+
+    @Test
+    public void testFailingObserver() {
+        var calls = new AtomicInteger();
+        stateMachine.registerObserver(event -> {
+            if (calls.getAndIncrement() == 0) {
+                throw new IllegalStateException("observer failed");
+            }
+        });
+
+        assertEquals("observer failed",
+                assertThrows(IllegalStateException.class,
+                        () -> stateMachine.transitionToState(StateInc.class)).getMessage());
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFailingObserverDeliversLaterTransitions() {
+        var events = new ArrayList<String>();
+        var failure = new IllegalStateException("observer failed");
+        var error = new AssertionError("observer error");
+        stateMachine.registerObserver(event -> {
+            events.add(event.current().getClass().getSimpleName());
+            if (event.current() instanceof StateInc) {
+                stateMachine.transitionToState(StateSquare.class);
+                throw failure;
+            }
+            if (event.current() instanceof StateSquare) {
+                throw error;
+            }
+        });
+
+        var thrown = assertThrows(IllegalStateException.class, () -> stateMachine.transitionToState(StateInc.class));
+
+        assertSame(failure, thrown);
+        assertArrayEquals(new Throwable[]{error}, thrown.getSuppressed());
+        assertEquals(List.of("StateInc", "StateSquare"), events);
+        assertSame(error, assertThrows(AssertionError.class, () -> stateMachine.transitionToState(StateSquare.class)));
+        stateMachine.transitionToState(StateTransit.class);
+        assertEquals(List.of("StateInc", "StateSquare", "StateSquare", "StateTransit"), events);
+    }
+
+    @Test
+    public void testUnregisterObserver() {
+        var events = new ArrayList<StateChangeEvent<AppState>>();
+        Observer<AppState> observer = events::add;
+        var subscription = stateMachine.registerObserver(observer);
+
+        assertSame(subscription, stateMachine.registerObserver(observer));
+        stateMachine.transitionToState(StateInc.class);
+        assertTrue(subscription.unsubscribe());
+        assertFalse(subscription.unsubscribe());
+        stateMachine.transitionToState(StateSquare.class);
+
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void testInvalidOrdinal() {
+        assertThrows(IndexOutOfBoundsException.class, () -> stateMachine.transitionToState(3));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+    }
+
+    private static <T> List<T> run(Callable<T> task, CountDownLatch start) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            var futures = new ArrayList<Future<T>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(task));
+            }
+            start.countDown();
+            var results = new ArrayList<T>();
+            for (var future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.TransitionListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventTableTest {
+
+    enum Event {INCREMENT, SQUARE, RESET}
+
+    enum Other {INCREMENT}
+
+    private final List<String> transitions = new ArrayList<>();
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    private StateMachineBuilder<AppState> builder;
+
+    @BeforeEach
+    public void setUp() {
+        builder = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .on(StateTransit.class, Event.INCREMENT, StateInc.class)
+                .on(StateInc.class, Event.SQUARE, StateSquare.class)
+                .on(StateInc.class, Event.RESET, StateTransit.class)
+                .on(StateSquare.class, Event.INCREMENT, StateInc.class)
+                .on(StateSquare.class, Event.RESET, StateTransit.class);
+    }
+
+    private CompiledStateMachine<AppState> observed(CompiledStateMachine<AppState> stateMachine) {
+        stateMachine.registerObserver((TransitionListener<AppState>) (previous, current) -> transitions.add(
+                previous.getClass().getSimpleName() + " -> " + current.getClass().getSimpleName()));
+        return stateMachine;
+    }
+
+    @Test
+    public void testFire() {
+        var stateMachine = observed(builder.build(StateTransit.class));
+
+        assertSame(stateMachine, stateMachine.fire(Event.INCREMENT));
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+        assertInstanceOf(StateSquare.class, stateMachine.fire(Event.SQUARE).currentState());
+        assertInstanceOf(StateInc.class, stateMachine.fire(Event.INCREMENT).currentState());
+        assertInstanceOf(StateTransit.class, stateMachine.fire(Event.RESET).currentState());
+
+        assertEquals(List.of("StateTransit -> StateInc", "StateInc -> StateSquare", "StateSquare -> StateInc",
+                "StateInc -> StateTransit"), transitions);
+    }
+
+    @Test
+    public void testUnhandledFails() {
+        var stateMachine = builder.build(StateTransit.class);
+
+        assertEquals("Event SQUARE is not handled by StateTransit",
+                assertThrows(IllegalStateException.class, () -> stateMachine.fire(Event.SQUARE)).getMessage());
+        assertEquals("Event SQUARE is not handled by StateSquare",
+                assertThrows(IllegalStateException.class,
+                        () -> stateMachine.transitionToState(StateSquare.class).fire(Event.SQUARE)).getMessage());
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testUnhandledIgnored() {
+        var stateMachine = observed(builder.unhandledEvents(UnhandledEventPolicy.IGNORE).build(StateTransit.class));
+
+        assertInstanceOf(StateTransit.class, stateMachine.fire(Event.SQUARE).fire(Event.RESET).currentState());
+        assertInstanceOf(StateInc.class, stateMachine.fire(Event.INCREMENT).currentState());
+        assertEquals(List.of("StateTransit -> StateInc"), transitions);
+    }
+
+    @Test
+    public void testUnhandledDeferred() {
+        var stateMachine = observed(builder.unhandledEvents(UnhandledEventPolicy.DEFER).build(StateTransit.class));
+
+        stateMachine.fire(Event.SQUARE).fire(Event.RESET);
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+
+        stateMachine.fire(Event.INCREMENT);
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(List.of("StateTransit -> StateInc", "StateInc -> StateSquare", "StateSquare -> StateTransit"),
+                transitions);
+    }
+
+    @Test
+    public void testDeferredUntilHandled() {
+        var stateMachine = observed(builder.unhandledEvents(UnhandledEventPolicy.DEFER).build(StateTransit.class));
+
+        stateMachine.fire(Event.SQUARE).fire(Event.RESET);
+        stateMachine.transitionToState(StateSquare.class);
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+
+        stateMachine.fire(Event.INCREMENT);
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertEquals(List.of("StateTransit -> StateSquare", "StateSquare -> StateTransit", "StateTransit -> StateInc",
+                "StateInc -> StateSquare"), transitions);
+    }
+
+    @Test
+    public void testUnknownEvent() {
+        var stateMachine = builder.build(StateTransit.class);
+        var withoutEvents = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .build(StateInc.class);
+
+        assertEquals("Unknown event Other.INCREMENT",
+                assertThrows(IllegalArgumentException.class, () -> stateMachine.fire(Other.INCREMENT)).getMessage());
+        assertEquals("Unknown event Event.INCREMENT",
+                assertThrows(IllegalArgumentException.class, () -> withoutEvents.fire(Event.INCREMENT)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("event is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> stateMachine.fire(null)).getMessage());
+    }
+
+    @Test
+    public void testInvalidDeclarations() {
+        assertEquals("Event RESET is already handled by StateInc",
+                assertThrows(IllegalArgumentException.class,
+                        () -> builder.on(StateInc.class, Event.RESET, StateSquare.class).compile()).getMessage());
+        assertEquals("Event INCREMENT is not of type Event",
+                assertThrows(IllegalArgumentException.class, () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .on(StateInc.class, Event.INCREMENT, StateInc.class)
+                        .on(StateInc.class, Other.INCREMENT, StateInc.class)
+                        .compile()).getMessage());
+        assertEquals("Event SQUARE moves from StateInc to StateSquare, which is not allowed",
+                assertThrows(IllegalArgumentException.class, () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .register(sm -> new StateSquare(new SquareFunction(), sm))
+                        .allow(StateSquare.class, StateInc.class)
+                        .on(StateSquare.class, Event.INCREMENT, StateInc.class)
+                        .on(StateInc.class, Event.SQUARE, StateSquare.class)
+                        .compile()).getMessage());
+        assertEquals("State class at.base10.state.StateMachineTest$StateTransit not found",
+                assertThrows(IllegalArgumentException.class, () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .on(StateInc.class, Event.RESET, StateTransit.class)
+                        .compile()).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("event is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> builder.on(StateInc.class, (Event) null, StateSquare.class)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("policy is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> builder.unhandledEvents(null)).getMessage());
+    }
+
+    @Test
+    public void testConcurrentResolvesAgainAfterInterference() {
+        var machine = new ArrayList<CompiledStateMachine<AppState>>();
+        var stateMachine = observed(builder
+                .allow(StateTransit.class, StateInc.class, (transit, inc) -> {
+                    if (transitions.isEmpty()) {
+                        machine.get(0).transitionToState(StateSquare.class);
+                    }
+                    return true;
+                })
+                .allow(StateTransit.class, StateSquare.class)
+                .allow(StateInc.class, StateSquare.class)
+                .allow(StateInc.class, StateTransit.class)
+                .allow(StateSquare.class, StateInc.class)
+                .allow(StateSquare.class, StateTransit.class)
+                .concurrent()
+                .build(StateTransit.class));
+        machine.add(stateMachine);
+
+        assertInstanceOf(StateInc.class, stateMachine.fire(Event.INCREMENT).currentState());
+        assertEquals(List.of("StateTransit -> StateSquare", "StateSquare -> StateInc"), transitions);
+    }
+
+    @Test
+    public void testMailbox() {
+        var stateMachine = builder.unhandledEvents(UnhandledEventPolicy.DEFER)
+                .mailbox(tasks::add)
+                .build(StateTransit.class);
+
+        stateMachine.fire(Event.SQUARE).fire(Event.INCREMENT);
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(1, tasks.size());
+
+        for (var task = tasks.poll(); task != null; task = tasks.poll()) {
+            task.run();
+        }
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+    }
+}
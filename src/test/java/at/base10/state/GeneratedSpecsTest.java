@@ -0,0 +1,172 @@
+package at.base10.state;
+
+import at.base10.state.spec.GeneratedSpec;
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeneratedSpecsTest {
+
+    public interface Light {
+        String color();
+    }
+
+    public static final class Red extends TransitionalState<Light> implements Light {
+        public Red(StateMachine<Light> stateMachine) {
+            super(stateMachine);
+        }
+
+        @Override
+        public String color() {
+            transitionToState(Green.class);
+            return "red";
+        }
+    }
+
+    public static final class Green implements Light {
+        @Override
+        public String color() {
+            return "green";
+        }
+    }
+
+    /**
+     * Mirrors the code generated by the annotation processor.
+     */
+    public static final class LightSpec implements GeneratedSpec<Light> {
+        static int built;
+
+        private static final List<Class<? extends Light>> STATE_CLASSES = List.of(Red.class, Green.class);
+
+        private static final List<StateFactory<Light>> FACTORIES = List.of(
+                Red::new,
+                stateMachine -> {
+                    built++;
+                    return new Green();
+                }
+        );
+
+        @Override
+        public Class<Light> stateClass() {
+            return Light.class;
+        }
+
+        @Override
+        public List<Class<? extends Light>> stateClasses() {
+            return STATE_CLASSES;
+        }
+
+        @Override
+        public List<StateFactory<Light>> factories() {
+            return FACTORIES;
+        }
+
+        @Override
+        public Light proxy(Supplier<? extends Light> target) {
+            return new Proxy(target);
+        }
+
+        private record Proxy(Supplier<? extends Light> target) implements Light {
+            @Override
+            public String color() {
+                return target.get().color();
+            }
+        }
+    }
+
+    public interface Colored {
+        String color();
+    }
+
+    public static final class Blue implements Light, Colored {
+        @Override
+        public String color() {
+            return "blue";
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        LightSpec.built = 0;
+    }
+
+    @Test
+    public void testLoad() {
+        assertInstanceOf(LightSpec.class, GeneratedSpecs.load(Light.class));
+        assertNull(GeneratedSpecs.load(Colored.class));
+        assertInstanceOf(LightSpec.class, GeneratedSpecs.of(Light.class));
+        assertNull(GeneratedSpecs.of(Colored.class));
+    }
+
+    @Test
+    public void testBuildFromSpec() {
+        var stateMachine = StateMachine.builder(Light.class).build(Red.class);
+
+        assertEquals(1, LightSpec.built);
+        assertInstanceOf(Red.class, stateMachine.currentState());
+        assertEquals(1, stateMachine.ordinalOf(Green.class));
+        assertEquals("red", stateMachine.currentState().color());
+        assertInstanceOf(Green.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testCompileFromSpec() {
+        var definition = StateMachine.builder(Light.class).compile();
+
+        assertEquals(0, LightSpec.built);
+        assertEquals(Light.class, definition.getStateClass());
+        assertEquals(List.of(Red.class, Green.class), definition.getStateClasses());
+        assertEquals(0, definition.ordinalOf(Red.class));
+        assertEquals(1, definition.ordinalOf(Green.class));
+        assertEquals("Green", definition.nameOf(1));
+        assertThat(
+                assertThrows(IllegalArgumentException.class, () -> definition.ordinalOf(Blue.class)).getMessage(),
+                Matchers.equalTo("State class at.base10.state.GeneratedSpecsTest$Blue not found")
+        );
+
+        var stateMachine = definition.newInstance(Green.class);
+        assertEquals(1, LightSpec.built);
+        assertEquals("green", stateMachine.currentState().color());
+        assertInstanceOf(Red.class, stateMachine.transitionToState(0).currentState());
+    }
+
+    @Test
+    public void testGeneratedProxy() {
+        var stateMachine = StateMachine.builder(Light.class).build(Red.class);
+        var proxy = stateMachine.asState();
+
+        assertEquals(LightSpec.Proxy.class, proxy.getClass());
+        assertSame(proxy, stateMachine.asState(Light.class));
+        assertEquals("red", proxy.color());
+        assertEquals("green", proxy.color());
+
+        var colored = stateMachine.asState(Colored.class);
+        assertTrue(colored.getClass().isHidden());
+        assertThrows(ClassCastException.class, colored::color);
+    }
+
+    @Test
+    public void testRegisteredStatesWinOverSpec() {
+        var stateMachine = StateMachine.builder(Light.class)
+                .register(sm -> new Blue())
+                .register(sm -> new Green())
+                .build(Blue.class);
+
+        assertEquals(0, LightSpec.built);
+        assertEquals(0, stateMachine.ordinalOf(Blue.class));
+        assertEquals(LightSpec.Proxy.class, stateMachine.asState().getClass());
+        assertEquals("blue", stateMachine.asState().color());
+        assertEquals("blue", stateMachine.asState(Colored.class).color());
+
+        var compiled = StateMachine.builder(Light.class)
+                .register(sm -> new Blue())
+                .compile();
+        assertEquals(List.of(Blue.class), compiled.getStateClasses());
+    }
+}
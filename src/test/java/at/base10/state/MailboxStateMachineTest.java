@@ -0,0 +1,370 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.Operate;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.StateChangeEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailboxStateMachineTest {
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    private CompiledStateMachine<AppState> stateMachine;
+
+    @BeforeEach
+    public void setUp() {
+        stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .concurrent()
+                .mailbox(tasks::add)
+                .build(StateTransit.class);
+    }
+
+    private void runTasks() {
+        for (var task = tasks.poll(); task != null; task = tasks.poll()) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void testBuild() {
+        assertInstanceOf(MailboxStateMachineImpl.class, stateMachine);
+        var compiled = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .mailbox(tasks::add)
+                .compile()
+                .newInstance(StateInc.class);
+        assertInstanceOf(MailboxStateMachineImpl.class, compiled);
+        assertInstanceOf(StateInc.class, compiled.currentState());
+        assertEquals("executor is marked non-null but is null",
+                //noinspection DataFlowIssue
+                assertThrows(NullPointerException.class, () -> StateMachine.builder(AppState.class).mailbox(null)).getMessage());
+    }
+
+    @Test
+    public void testSubmitTransition() {
+        var result = stateMachine.submitTransition(StateSquare.class);
+
+        assertFalse(result.isDone());
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(1, tasks.size());
+
+        runTasks();
+        assertInstanceOf(StateSquare.class, result.join());
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testOneDrainForManyMessages() {
+        var first = stateMachine.submitTransition(StateInc.class);
+        var second = stateMachine.submitTransition(StateSquare.class);
+        stateMachine.transitionToState(StateTransit.class);
+
+        assertEquals(1, tasks.size());
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+
+        runTasks();
+        assertInstanceOf(StateInc.class, first.join());
+        assertInstanceOf(StateSquare.class, second.join());
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void testRunToCompletion() {
+        var events = new ArrayList<String>();
+        stateMachine.registerObserver(event -> {
+            events.add("first " + event.current().getClass().getSimpleName());
+            if (event.current() instanceof StateInc) {
+                stateMachine.transitionToState(StateSquare.class);
+            }
+        });
+        stateMachine.registerObserver(event -> events.add("second " + event.current().getClass().getSimpleName()));
+
+        var result = stateMachine.submit(state -> {
+            stateMachine.transitionToState(StateInc.class);
+            assertSame(state, stateMachine.currentState());
+            events.add("handled");
+        });
+        runTasks();
+
+        assertInstanceOf(StateSquare.class, result.join());
+        assertEquals(List.of("handled", "StateInc", "StateInc", "StateSquare", "StateSquare"),
+                events.stream().map(event -> event.substring(event.indexOf(' ') + 1)).toList());
+    }
+
+    @Test
+    public void testTransitionFromOutsideIsEnqueued() throws Exception {
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var machine = StateMachine.builder(AppState.class)
+                    .register(StateTransit::new)
+                    .register(sm -> new StateInc())
+                    .mailbox(executor)
+                    .build(StateTransit.class);
+            machine.submit(state -> {
+            }).join();
+
+            var seen = new AtomicReference<AppState>();
+            executor.submit(() -> machine.transitionToState(StateInc.class)).get();
+            var result = machine.submit(seen::set);
+
+            assertInstanceOf(StateInc.class, result.join());
+            assertInstanceOf(StateInc.class, seen.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailingHandler() {
+        var events = new ArrayList<StateChangeEvent<AppState>>();
+        stateMachine.registerObserver(events::add);
+
+        var failed = stateMachine.submit(state -> {
+            stateMachine.transitionToState(StateInc.class);
+            throw new IllegalStateException("handler failed");
+        });
+        var next = stateMachine.submitTransition(StateSquare.class);
+        runTasks();
+
+        assertEquals("handler failed",
+                assertThrows(CompletionException.class, failed::join).getCause().getMessage());
+        assertInstanceOf(StateSquare.class, next.join());
+        assertEquals(1, events.size());
+        assertInstanceOf(StateTransit.class, events.get(0).previous());
+    }
+
+    @Test
+    public void testFailingHandlerWithError() {
+        var error = new AssertionError("handler error");
+        var failed = stateMachine.submit(state -> {
+            stateMachine.transitionToState(StateInc.class);
+            throw error;
+        });
+        var next = stateMachine.submitTransition(StateSquare.class);
+
+        assertSame(error, assertThrows(AssertionError.class, () -> tasks.remove().run()));
+        assertSame(error, assertThrows(CompletionException.class, failed::join).getCause());
+        assertFalse(next.isDone());
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertInstanceOf(StateSquare.class, next.join());
+
+        var last = stateMachine.submit(state -> {
+            throw error;
+        });
+        assertSame(error, assertThrows(AssertionError.class, () -> tasks.remove().run()));
+        assertSame(error, assertThrows(CompletionException.class, last::join).getCause());
+        assertEquals(0, tasks.size());
+        var again = stateMachine.submitTransition(StateTransit.class);
+        runTasks();
+        assertInstanceOf(StateTransit.class, again.join());
+    }
+
+    @Test
+    public void testRejectedExecution() {
+        var rejection = new RejectedExecutionException("rejected");
+        var rejecting = new boolean[]{true};
+        var machine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .mailbox(task -> {
+                    if (rejecting[0]) {
+                        throw rejection;
+                    }
+                    tasks.add(task);
+                })
+                .build(StateTransit.class);
+
+        var first = machine.submitTransition(StateInc.class);
+        var second = machine.submitTransition(StateInc.class);
+
+        assertSame(rejection, assertThrows(CompletionException.class, first::join).getCause());
+        assertSame(rejection, assertThrows(CompletionException.class, second::join).getCause());
+        assertInstanceOf(StateTransit.class, machine.currentState());
+        rejecting[0] = false;
+        var accepted = machine.submitTransition(StateInc.class);
+        var queued = machine.submit(state -> {
+        });
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertInstanceOf(StateInc.class, accepted.join());
+        assertInstanceOf(StateInc.class, queued.join());
+    }
+
+    @Test
+    public void testCompareAndTransition() {
+        assertEquals("compareAndTransition is only supported while processing a message, use submit",
+                assertThrows(IllegalStateException.class,
+                        () -> stateMachine.compareAndTransition(StateTransit.class, StateInc.class)).getMessage());
+
+        var results = new ArrayList<Boolean>();
+        var result = stateMachine.submit(state -> {
+            results.add(stateMachine.compareAndTransition(StateInc.class, StateSquare.class));
+            results.add(stateMachine.compareAndTransition(StateTransit.class, StateInc.class));
+        });
+        runTasks();
+
+        assertEquals(List.of(false, true), results);
+        assertInstanceOf(StateInc.class, result.join());
+    }
+
+    @Test
+    public void testInvalidTransition() {
+        assertThrows(IndexOutOfBoundsException.class, () -> stateMachine.transitionToState(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> stateMachine.transitionToState(-1));
+        assertThrows(IllegalArgumentException.class,
+                () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .mailbox(tasks::add)
+                        .build(StateInc.class)
+                        .submitTransition(StateSquare.class));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testRejectedTransitionFromOutside() {
+        var guarded = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .allow(StateTransit.class, StateInc.class)
+                .mailbox(tasks::add)
+                .build(StateTransit.class);
+
+        guarded.transitionToState(StateTransit.class);
+        guarded.transitionToState(StateInc.class);
+        runTasks();
+
+        assertInstanceOf(StateInc.class, guarded.currentState());
+    }
+
+    @Test
+    public void testUnhandledEventFromOutside() {
+        var machine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .on(StateTransit.class, EventTableTest.Event.INCREMENT, StateInc.class)
+                .unhandledEvents(UnhandledEventPolicy.FAIL)
+                .mailbox(tasks::add)
+                .build(StateTransit.class);
+
+        machine.fire(EventTableTest.Event.RESET);
+        machine.fire(EventTableTest.Event.INCREMENT);
+        runTasks();
+
+        assertInstanceOf(StateInc.class, machine.currentState());
+    }
+
+    @Test
+    public void testManyRequestedTransitions() {
+        var events = new ArrayList<String>();
+        stateMachine.registerObserver(event -> events.add(event.current().getClass().getSimpleName()));
+
+        var result = stateMachine.submit(state -> {
+            for (int i = 0; i < 20; i++) {
+                stateMachine.transitionToState(i % 2 == 0 ? StateInc.class : StateSquare.class);
+            }
+        });
+        runTasks();
+
+        assertInstanceOf(StateSquare.class, result.join());
+        assertEquals(20, events.size());
+        assertEquals(List.of("StateInc", "StateSquare", "StateInc"), events.subList(0, 3));
+
+        stateMachine.submit(state -> stateMachine.transitionToState(StateInc.class));
+        runTasks();
+        assertEquals("StateInc", events.get(20));
+    }
+
+    @Test
+    public void testProxy() {
+        var proxy = stateMachine.asState(Operate.class);
+
+        assertSame(proxy, stateMachine.asState(Operate.class));
+        assertSame(stateMachine, stateMachine.transitionToState(StateSquare.class));
+        runTasks();
+        assertEquals(4, proxy.execute(2));
+    }
+
+    @Test
+    public void testManyMachines() {
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var definition = StateMachine.builder(Operate.class)
+                    .register(sm -> new Counter())
+                    .mailbox(executor)
+                    .compile();
+            var results = new ArrayList<CompletableFuture<Operate>>();
+            for (int i = 0; i < 1_000; i++) {
+                var machine = definition.newInstance(Counter.class);
+                for (int j = 0; j < 10; j++) {
+                    results.add(machine.submit(state -> state.execute(1)));
+                }
+            }
+
+            CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).join();
+            for (var result : results) {
+                assertEquals(10, ((Counter) result.join()).count);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSynchronousSubmit() {
+        var machine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .build(StateTransit.class);
+
+        var result = machine.submit(state -> state.execute(2));
+        assertTrue(result.isDone());
+        assertInstanceOf(StateInc.class, result.join());
+        assertInstanceOf(StateTransit.class, machine.submitTransition(StateTransit.class).join());
+
+        var failed = machine.submit(state -> {
+            throw new IllegalStateException("handler failed");
+        });
+        assertEquals("handler failed",
+                assertThrows(CompletionException.class, failed::join).getCause().getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("handler is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> machine.submit(null)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> machine.submitTransition(null)).getMessage());
+    }
+
+    public static final class Counter implements Operate {
+        private int count;
+
+        @Override
+        public int execute(int number) {
+            return count += number;
+        }
+    }
+}
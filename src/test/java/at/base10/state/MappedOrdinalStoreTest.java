@@ -0,0 +1,205 @@
+package at.base10.state;
+
+import at.base10.state.StateMachinePopulationTest.Green;
+import at.base10.state.StateMachinePopulationTest.Light;
+import at.base10.state.StateMachinePopulationTest.Red;
+import at.base10.state.StateMachinePopulationTest.Signal;
+import at.base10.state.StateMachinePopulationTest.Yellow;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+
+import static at.base10.state.MappedOrdinalStore.HEADER;
+import static at.base10.state.MappedOrdinalStore.MAX_CAPACITY;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedOrdinalStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private StateMachineDefinition<Light> definition;
+
+    @BeforeEach
+    public void setUp() {
+        file = directory.resolve("lights.population");
+        definition = StateMachine.builder(Light.class)
+                .register(sm -> new Green())
+                .register(sm -> new Yellow())
+                .register(sm -> new Red())
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Yellow.class, Signal.NEXT, Red.class)
+                .on(Red.class, Signal.NEXT, Green.class)
+                .compile();
+    }
+
+    private static MappedOrdinalStore store(StateMachinePopulation<?> population) {
+        return (MappedOrdinalStore) population.store();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        var population = definition.openPopulation(file, 10, 0, false);
+        assertEquals(0, population.size());
+        assertEquals(10, population.capacity());
+        assertEquals(0, population.addAll(3, Green.class));
+        population.transition(1, Red.class);
+        population.fire(2, Signal.NEXT);
+        assertTrue(population.compareAndTransition(0, Green.class, Yellow.class));
+        assertEquals(1, population.transitionAll(state -> state instanceof Red, Green.class));
+
+        var reopened = definition.openPopulation(file, 10, 0, false);
+        assertEquals(3, reopened.size());
+        assertEquals(List.of(1, 0, 1), List.of(reopened.currentOrdinal(0), reopened.currentOrdinal(1),
+                reopened.currentOrdinal(2)));
+        assertEquals(3, reopened.add(Red.class));
+
+        var indexed = definition.openPopulation(file, 10, 0, true);
+        assertEquals(4, indexed.size());
+        assertEquals(2, indexed.countIn(Yellow.class));
+        assertEquals(List.of(1L), indexed.machinesIn(Green.class).boxed().toList());
+        assertEquals(List.of(3L), indexed.machinesIn(Red.class).boxed().toList());
+        assertInstanceOf(Yellow.class, population.currentState(2));
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        var population = definition.openPopulation(file, 3, 0, false);
+        population.add(Yellow.class);
+        population.add(Red.class);
+        population.force();
+
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        assertEquals(HEADER + 3 * 4, bytes.capacity());
+        assertEquals(definition.fingerprint(), bytes.getLong(0));
+        assertEquals(List.of(3, 2, 1, 2, 0), List.of(bytes.getInt(8), bytes.getInt(12), bytes.getInt(16),
+                bytes.getInt(20), bytes.getInt(24)));
+    }
+
+    @Test
+    public void testWrongFile() throws Exception {
+        definition.openPopulation(file, 3, 0, false);
+
+        assertEquals("File has room for 3 machines, not 4",
+                assertThrows(IllegalArgumentException.class,
+                        () -> definition.openPopulation(file, 4, 0, false)).getMessage());
+        var other = StateMachine.builder(Light.class)
+                .register(sm -> new Red())
+                .compile();
+        assertEquals("File was written for another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> other.openPopulation(file, 3, 0, false)).getMessage());
+        assertEquals(HEADER + 3 * 4, Files.size(file));
+
+        var empty = Files.createFile(directory.resolve("empty.population"));
+        assertEquals(0, definition.openPopulation(empty, 2, 0, false).size());
+        assertEquals(HEADER + 2 * 4, Files.size(empty));
+
+        var none = directory.resolve("none.population");
+        definition.openPopulation(none, 0, 0, false);
+        assertEquals(HEADER, Files.size(none));
+        assertEquals(0, definition.openPopulation(none, 0, 0, false).capacity());
+
+        var shortFile = Files.write(directory.resolve("short.population"), new byte[1]);
+        assertEquals("File is too short for a population",
+                assertThrows(IllegalArgumentException.class,
+                        () -> definition.openPopulation(shortFile, 0, 0, false)).getMessage());
+        assertEquals(1, Files.size(shortFile));
+    }
+
+    @Test
+    public void testSyncInterval() throws Exception {
+        var population = definition.openPopulation(file, 4, 3, false);
+        var store = store(population);
+        population.addAll(2, Green.class);
+        assertEquals(2, store.unsynced());
+        population.transition(0, Yellow.class);
+        assertEquals(0, store.unsynced());
+        assertFalse(population.compareAndTransition(0, Green.class, Red.class));
+        population.fire(1, Signal.NEXT);
+        assertEquals(1, store.unsynced());
+        population.force();
+        assertEquals(0, store.unsynced());
+
+        var onDemand = definition.openPopulation(directory.resolve("on-demand.population"), 2000, 0, false);
+        onDemand.addAll(2000, Green.class);
+        assertEquals(2000, store(onDemand).unsynced());
+        onDemand.force();
+        assertEquals(0, store(onDemand).unsynced());
+    }
+
+    @Test
+    public void testSizeUpdateRetries() throws Exception {
+        for (var store : List.of(new HeapOrdinalStore(4), store(definition.openPopulation(file, 4, 0, false)))) {
+            var interfered = new AtomicInteger();
+
+            assertEquals(2, store.getAndUpdateSize(size -> {
+                if (interfered.getAndIncrement() == 0) {
+                    assertTrue(store.compareAndSetSize(0, 2));
+                }
+                return size + 1;
+            }));
+            assertEquals(3, store.size());
+            assertEquals(2, interfered.get());
+        }
+    }
+
+    @Test
+    public void testFailedCompareAndSet() throws Exception {
+        var store = store(definition.openPopulation(file, 2, 1, false));
+        store.set(1, 2);
+        store.force();
+
+        assertFalse(store.compareAndSet(1, 1, 0));
+        assertEquals(0, store.unsynced());
+        assertEquals(2, store.get(1));
+        assertTrue(store.compareAndSet(1, 2, 0));
+        assertEquals(0, store.get(1));
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        MappedOrdinalStore.checkCapacity(MAX_CAPACITY);
+        assertEquals(Integer.MAX_VALUE - 3, HEADER + MAX_CAPACITY * 4L);
+        assertEquals("Capacity of a mapped population must be at most 536870907: 536870908",
+                assertThrows(IllegalArgumentException.class,
+                        () -> MappedOrdinalStore.checkCapacity(MAX_CAPACITY + 1)).getMessage());
+        assertEquals("Capacity of a mapped population must be at most 536870907: 536870908",
+                assertThrows(IllegalArgumentException.class,
+                        () -> definition.openPopulation(file, MAX_CAPACITY + 1, 0, false)).getMessage());
+        assertEquals("Capacity must not be negative: -1",
+                assertThrows(IllegalArgumentException.class,
+                        () -> definition.openPopulation(file, -1, 0, false)).getMessage());
+        assertEquals("Sync interval must not be negative: -1",
+                assertThrows(IllegalArgumentException.class,
+                        () -> definition.openPopulation(file, 1, -1, false)).getMessage());
+        assertFalse(Files.exists(file));
+        assertEquals(0, definition.openPopulation(directory.resolve("none.population"), 0, 0, true)
+                .machinesIn(Red.class).count());
+        //noinspection DataFlowIssue
+        assertEquals("file is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> definition.openPopulation(null, 1, 0, false)).getMessage());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        var population = definition.newPopulation(5);
+        population.addAll(5, Red.class);
+        var codec = definition.snapshotCodec();
+        var buffer = ByteBuffer.allocate((int) codec.sizeOf(population));
+        codec.write(population, buffer);
+
+        var mapped = definition.openPopulation(file, 5, 0, true);
+        assertEquals(0, codec.read(buffer.flip(), mapped));
+        assertEquals(LongStream.range(0, 5).boxed().toList(), mapped.machinesIn(Red.class).boxed().toList());
+    }
+}
@@ -0,0 +1,256 @@
+package at.base10.state;
+
+import at.base10.state.AsyncObserverDispatcher.OverflowPolicy;
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.BatchObserver;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.ObserverLifetime;
+import at.base10.state.observer.Subscription;
+import at.base10.state.observer.TransitionFilter;
+import at.base10.state.observer.TransitionListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ObserverLifetimeTest {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final long[] now = {100};
+    private StateMachine<AppState> stateMachine;
+
+    @BeforeEach
+    public void setUp() {
+        stateMachine = build(StateMachine.builder(AppState.class));
+    }
+
+    private StateMachine<AppState> build(StateMachineBuilder<AppState> builder) {
+        var built = builder
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .build(StateTransit.class);
+        machine(built).clock = () -> now[0];
+        return built;
+    }
+
+    private static AbstractStateMachine<AppState> machine(StateMachine<AppState> stateMachine) {
+        return (AbstractStateMachine<AppState>) stateMachine;
+    }
+
+    private List<AbstractStateMachine.ObserverEntry<AppState>> entries() {
+        return machine(stateMachine).observerEntries();
+    }
+
+    private Observer<AppState> recorder(String name) {
+        return (TransitionListener<AppState>) (previous, current) -> events.add(
+                name + ":" + current.getClass().getSimpleName());
+    }
+
+    private void toggle(int transitions) {
+        for (int i = 0; i < transitions; i++) {
+            stateMachine.transitionToState(stateMachine.currentState() instanceof StateInc ? StateTransit.class : StateInc.class);
+        }
+    }
+
+    @Test
+    public void testPermanentObserverDoesNotReadTheClock() {
+        var readings = new int[1];
+        machine(stateMachine).clock = () -> {
+            readings[0]++;
+            return now[0];
+        };
+        stateMachine.registerObserver(recorder("permanent"));
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("weak"), ObserverLifetime.weakly());
+        int registration = readings[0];
+
+        toggle(4);
+
+        assertEquals(registration, readings[0]);
+        assertEquals(6, events.size());
+    }
+
+    @Test
+    public void testWeakObserverIsCollected() throws InterruptedException {
+        var probe = new WeakReference<>(recorder("weak"));
+        stateMachine.registerObserver(TransitionFilter.any(), probe.get(), ObserverLifetime.weakly());
+        stateMachine.registerObserver(TransitionFilter.any(), recorder("strong"), ObserverLifetime.permanent());
+
+        for (int i = 0; i < 100 && entries().size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+            toggle(1);
+        }
+
+        assertNull(probe.get());
+        assertEquals(1, entries().size());
+        assertTrue(events.stream().allMatch(event -> event.startsWith("strong:")));
+        toggle(1);
+        assertTrue(events.get(events.size() - 1).startsWith("strong:"));
+    }
+
+    @Test
+    public void testEnqueuedObserverIsPurgedByTransition() {
+        var first = recorder("first");
+        var second = recorder("second");
+        stateMachine.registerObserver(TransitionFilter.any(), second, ObserverLifetime.weakly());
+        var subscription = stateMachine.registerObserver(TransitionFilter.to(StateInc.class), first, ObserverLifetime.weakly());
+
+        assertTrue(entries().get(0).enqueue());
+        assertEquals(2, entries().size());
+        toggle(1);
+
+        assertEquals(1, entries().size());
+        assertFalse(stateMachine.unregisterObserver(second));
+        assertTrue(subscription.unsubscribe());
+        assertEquals(List.of("first:StateInc"), events);
+    }
+
+    @Test
+    public void testClearedObserverIsSkipped() {
+        stateMachine.registerObserver(TransitionFilter.any(), recorder("cleared"),
+                ObserverLifetime.weakly().expireAfterEvents(1));
+
+        entries().get(0).clear();
+        toggle(2);
+
+        assertEquals(1, entries().size());
+        assertFalse(stateMachine.unregisterObserver(recorder("other")));
+        assertEquals(List.of(), events);
+    }
+
+    @Test
+    public void testStrongObserversAreNotEnqueued() {
+        stateMachine.registerObserver(TransitionFilter.any(), recorder("weak"), ObserverLifetime.weakly());
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("strong"), ObserverLifetime.permanent());
+
+        assertFalse(entries().get(1).enqueue());
+        toggle(1);
+
+        assertEquals(2, entries().size());
+    }
+
+    @Test
+    public void testExpireAfterEvents() {
+        stateMachine.registerObserver(TransitionFilter.any(), recorder("two"), ObserverLifetime.permanent().expireAfterEvents(2));
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("inc"),
+                ObserverLifetime.permanent().expireAfterEvents(1));
+
+        toggle(1);
+        assertEquals(1, entries().size());
+        toggle(2);
+
+        assertEquals(List.of("two:StateInc", "inc:StateInc", "two:StateTransit"), events);
+        assertEquals(List.of(), entries());
+    }
+
+    @Test
+    public void testExpireAfterDuration() {
+        now[0] = 200;
+        stateMachine.registerObserver(TransitionFilter.any(), recorder("timed"),
+                ObserverLifetime.permanent().expireAfter(Duration.ofNanos(10)));
+
+        now[0] = 209;
+        toggle(1);
+        now[0] = 210;
+        toggle(1);
+
+        assertEquals(List.of("timed:StateInc"), events);
+        assertEquals(List.of(), entries());
+    }
+
+    @Test
+    public void testDispatcherTruncatesBatches() {
+        var received = Collections.synchronizedList(new ArrayList<String>());
+        try (var dispatcher = AsyncObserverDispatcher.start(16, OverflowPolicy.BLOCK)) {
+            stateMachine = build(StateMachine.builder(AppState.class).observerDispatcher(dispatcher));
+            stateMachine.registerObserver(TransitionFilter.any(), (BatchObserver<AppState>) batch ->
+                            batch.forEach(event -> received.add(event.current().getClass().getSimpleName())),
+                    ObserverLifetime.permanent().expireAfterEvents(3));
+            stateMachine.registerObserver(TransitionFilter.any(), recorder("timed"),
+                    ObserverLifetime.permanent().expireAfter(Duration.ofNanos(1)));
+            stateMachine.registerObserver(TransitionFilter.any(), recorder("cleared"),
+                    ObserverLifetime.weakly().expireAfterEvents(1));
+            entries().get(2).clear();
+            now[0] = 101;
+
+            toggle(5);
+        }
+
+        assertEquals(List.of("StateInc", "StateTransit", "StateInc"), received);
+        assertEquals(List.of(), events);
+        assertEquals(1, entries().size());
+    }
+
+    @Test
+    public void testConcurrentAndMailbox() {
+        for (var builder : List.of(StateMachine.builder(AppState.class).concurrent(),
+                StateMachine.builder(AppState.class).mailbox(Runnable::run))) {
+            stateMachine = build(builder);
+            var observer = recorder("weak");
+            stateMachine.registerObserver(TransitionFilter.any(), observer, ObserverLifetime.weakly());
+
+            assertTrue(entries().get(0).enqueue());
+            toggle(1);
+
+            assertEquals(List.of(), entries());
+        }
+    }
+
+    @Test
+    public void testRegisterAgain() {
+        var weak = recorder("weak");
+        var strong = recorder("strong");
+        var weakSubscription = stateMachine.registerObserver(TransitionFilter.any(), weak, ObserverLifetime.weakly());
+        var strongSubscription = stateMachine.registerObserver(TransitionFilter.any(), strong,
+                ObserverLifetime.permanent().expireAfterEvents(1));
+
+        var again = stateMachine.registerObserver(TransitionFilter.any(), weak, ObserverLifetime.permanent());
+        assertEquals(weakSubscription, again);
+        assertNotSame(weakSubscription, again);
+        assertEquals(new Subscription<>(stateMachine, weak), again);
+        assertSame(strongSubscription, stateMachine.registerObserver(strong));
+        assertEquals(2, entries().size());
+
+        assertTrue(again.unsubscribe());
+        assertFalse(weakSubscription.unsubscribe());
+    }
+
+    @Test
+    public void testLifetimes() {
+        assertEquals(new ObserverLifetime(false, Long.MAX_VALUE, null), ObserverLifetime.permanent());
+        assertEquals(new ObserverLifetime(true, Long.MAX_VALUE, null), ObserverLifetime.weakly());
+        assertEquals(new ObserverLifetime(true, 1, Duration.ofNanos(1)),
+                ObserverLifetime.weakly().expireAfter(Duration.ofNanos(1)).expireAfterEvents(1));
+        assertEquals(new ObserverLifetime(false, 5, Duration.ofSeconds(2)),
+                ObserverLifetime.permanent().expireAfterEvents(5).expireAfter(Duration.ofSeconds(2)));
+    }
+
+    @Test
+    public void testInvalidLifetimes() {
+        assertEquals("Events must be positive, was 0", assertThrows(IllegalArgumentException.class,
+                () -> ObserverLifetime.permanent().expireAfterEvents(0)).getMessage());
+        assertEquals("Duration must be positive, was PT0S", assertThrows(IllegalArgumentException.class,
+                () -> ObserverLifetime.permanent().expireAfter(Duration.ZERO)).getMessage());
+        assertEquals("Duration must be positive, was PT-0.000000001S", assertThrows(IllegalArgumentException.class,
+                () -> ObserverLifetime.permanent().expireAfter(Duration.ofNanos(-1))).getMessage());
+    }
+
+    @Test
+    public void testNullArguments() {
+        assertEquals("duration is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> ObserverLifetime.permanent().expireAfter(null)).getMessage());
+        assertEquals("lifetime is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> stateMachine.registerObserver(TransitionFilter.any(), recorder("null"), null)).getMessage());
+    }
+}
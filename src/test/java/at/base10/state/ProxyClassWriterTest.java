@@ -0,0 +1,250 @@
+package at.base10.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyClassWriterTest {
+
+
+    public interface Named {
+        String name(String prefix);
+    }
+
+    public interface Labelled {
+        String name(String prefix);
+    }
+
+    public interface Everything extends Named, Labelled {
+        void run();
+
+        boolean not(boolean value);
+
+        byte nextByte(byte value);
+
+        char nextChar(char value);
+
+        short nextShort(short value);
+
+        int add(int a, int b);
+
+        long add(long a);
+
+        int negate(int value);
+
+        long mix(long a, int b);
+
+        float half(float value);
+
+        double scale(double value, long factor);
+
+        long large();
+
+        double precise();
+
+        Object wrap(Object value, double weight, Object other);
+
+        default int doubled(int value) {
+            return value * 2;
+        }
+
+        @Override
+        String toString();
+
+        static int helper() {
+            return 0;
+        }
+    }
+
+    public static final class Impl implements Everything {
+        private final int id;
+        private int runs;
+
+        public Impl(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            runs++;
+        }
+
+        @Override
+        public boolean not(boolean value) {
+            return !value;
+        }
+
+        @Override
+        public byte nextByte(byte value) {
+            return (byte) (value + id);
+        }
+
+        @Override
+        public char nextChar(char value) {
+            return (char) (value + id);
+        }
+
+        @Override
+        public short nextShort(short value) {
+            return (short) (value + id);
+        }
+
+        @Override
+        public int add(int a, int b) {
+            return a + b + id;
+        }
+
+        @Override
+        public long add(long a) {
+            return a + id;
+        }
+
+        @Override
+        public int negate(int value) {
+            return -value;
+        }
+
+        @Override
+        public long mix(long a, int b) {
+            return a * 10 + b + id;
+        }
+
+        @Override
+        public float half(float value) {
+            return value / 2 + id;
+        }
+
+        @Override
+        public double scale(double value, long factor) {
+            return value * factor + id;
+        }
+
+        @Override
+        public long large() {
+            return Long.MAX_VALUE - id;
+        }
+
+        @Override
+        public double precise() {
+            return 0.25 + id;
+        }
+
+        @Override
+        public Object wrap(Object value, double weight, Object other) {
+            return List.of(value, weight, other, id);
+        }
+
+        @Override
+        public int doubled(int value) {
+            return value * 2 + id;
+        }
+
+        @Override
+        public String name(String prefix) {
+            return prefix + id;
+        }
+
+        @Override
+        public String toString() {
+            return "Impl" + id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Impl other && other.id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    public interface Operation {
+        int apply(int value);
+    }
+
+    public record Add(int amount) implements Operation {
+        @Override
+        public int apply(int value) {
+            return value + amount;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E newProxy(Class<E> type, Supplier<?> target) {
+        return (E) StateProxies.define(type).apply(target);
+    }
+
+    @Test
+    public void testForwardsAllTypes() {
+        var impl = new Impl(1);
+        var proxy = newProxy(Everything.class, () -> impl);
+
+        proxy.run();
+        proxy.run();
+        assertEquals(2, impl.runs);
+        assertFalse(proxy.not(true));
+        assertTrue(proxy.not(false));
+        assertEquals((byte) 8, proxy.nextByte((byte) 7));
+        assertEquals('b', proxy.nextChar('a'));
+        assertEquals((short) 301, proxy.nextShort((short) 300));
+        assertEquals(6, proxy.add(2, 3));
+        assertEquals(6L, proxy.add(5L));
+        assertEquals(-4, proxy.negate(4));
+        assertEquals(33L, proxy.mix(3L, 2));
+        assertEquals(2.5f, proxy.half(3f));
+        assertEquals(7.0, proxy.scale(1.5, 4L));
+        assertEquals(Long.MAX_VALUE - 1, proxy.large());
+        assertEquals(1.25, proxy.precise());
+        assertEquals(List.of("a", 0.5, "b", 1), proxy.wrap("a", 0.5, "b"));
+        assertEquals(9, proxy.doubled(4));
+        assertEquals("x1", proxy.name("x"));
+        assertEquals("x1", ((Named) proxy).name("x"));
+        assertEquals("x1", ((Labelled) proxy).name("x"));
+    }
+
+    @Test
+    public void testForwardsObjectMethods() {
+        var proxy = newProxy(Everything.class, () -> new Impl(3));
+
+        assertEquals("Impl3", proxy.toString());
+        assertEquals(3, proxy.hashCode());
+        assertEquals(proxy, new Impl(3));
+        assertNotEquals(proxy, new Impl(4));
+
+        var operation = newProxy(Operation.class, () -> new Add(2));
+        assertEquals("Add[amount=2]", operation.toString());
+        assertEquals(new Add(2).hashCode(), operation.hashCode());
+        assertEquals(operation, new Add(2));
+        assertNotEquals(operation, new Add(3));
+    }
+
+    @Test
+    public void testObjectMethodsWithoutInterfaceTarget() {
+        Supplier<Object> target = () -> "target";
+        var proxy = newProxy(Operation.class, target);
+
+        assertThrows(ClassCastException.class, proxy::toString);
+        assertThrows(ClassCastException.class, proxy::hashCode);
+    }
+
+    @Test
+    public void testHiddenClass() throws NoSuchFieldException {
+        var proxy = newProxy(Everything.class, () -> new Impl(1));
+        var type = proxy.getClass();
+
+        assertTrue(type.isHidden());
+        assertEquals(Modifier.PUBLIC | Modifier.FINAL, type.getModifiers());
+        assertEquals(Modifier.PRIVATE | Modifier.FINAL, type.getDeclaredField("target").getModifiers());
+        assertEquals(Modifier.PUBLIC, type.getConstructors()[0].getModifiers());
+        assertTrue(type.getName().startsWith(Everything.class.getName() + "$$StateProxy/"));
+        assertFalse(Arrays.stream(type.getDeclaredMethods()).map(Method::getName).toList().contains("helper"));
+    }
+}
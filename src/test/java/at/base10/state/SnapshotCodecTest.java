@@ -0,0 +1,413 @@
+package at.base10.state;
+
+import at.base10.state.StateMachinePopulationTest.Green;
+import at.base10.state.StateMachinePopulationTest.Light;
+import at.base10.state.StateMachinePopulationTest.Red;
+import at.base10.state.StateMachinePopulationTest.Yellow;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static at.base10.state.SnapshotCodec.BUFFER;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotCodecTest {
+
+    public sealed interface Counter permits Idle, Counting {
+    }
+
+    public static final class Idle implements Counter {
+    }
+
+    public static final class Counting implements Counter {
+        int value;
+    }
+
+    private static final StateSerializer<Counter> SERIALIZER = new StateSerializer<>() {
+        @Override
+        public void write(Counter state, ByteBuffer buffer) {
+            if (state instanceof Counting counting) {
+                buffer.putInt(counting.value);
+            }
+        }
+
+        @Override
+        public void read(Counter state, ByteBuffer buffer) {
+            if (state instanceof Counting counting) {
+                counting.value = buffer.getInt();
+                assertFalse(buffer.hasRemaining());
+            }
+        }
+    };
+
+    private StateMachineDefinition<Light> definition;
+    private SnapshotCodec<Light> codec;
+
+    @BeforeEach
+    public void setUp() {
+        definition = lights().compile();
+        codec = definition.snapshotCodec();
+    }
+
+    private static StateMachineBuilder<Light> lights() {
+        return StateMachine.builder(Light.class)
+                .register(sm -> new Green())
+                .register(sm -> new Yellow())
+                .register(sm -> new Red());
+    }
+
+    private static StateMachineDefinition<Counter> counters() {
+        return StateMachine.builder(Counter.class)
+                .register(sm -> new Idle())
+                .register(sm -> new Counting())
+                .compile();
+    }
+
+    /**
+     * A channel that accepts at most {@code limit} bytes per call and records how many it got.
+     */
+    private static final class RecordingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Integer> writes = new ArrayList<>();
+        final int limit;
+
+        RecordingChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) {
+            int length = Math.min(limit, buffer.remaining());
+            var chunk = new byte[length];
+            buffer.get(chunk);
+            bytes.write(chunk, 0, length);
+            writes.add(length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A channel that returns at most {@code limit} bytes per call, and nothing every other call.
+     */
+    private static final class TricklingChannel implements ReadableByteChannel {
+        final ByteBuffer source;
+        final int limit;
+        boolean stall;
+
+        TricklingChannel(byte[] bytes, int limit) {
+            this.source = ByteBuffer.wrap(bytes);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            stall = !stall;
+            if (stall) {
+                return 0;
+            }
+            int length = Math.min(Math.min(limit, buffer.remaining()), source.remaining());
+            buffer.put(source.slice(source.position(), length));
+            source.position(source.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testMachine() {
+        var stateMachine = definition.newInstance(Yellow.class);
+        var buffer = ByteBuffer.allocate(32);
+        codec.write(stateMachine, buffer);
+        stateMachine.transitionToState(Red.class);
+        codec.write(stateMachine, buffer);
+
+        assertEquals(2 * 14, buffer.position());
+        assertEquals(definition.fingerprint(), buffer.getLong(0));
+        assertEquals(1, buffer.getChar(8));
+        assertEquals(0, buffer.getInt(10));
+
+        buffer.flip();
+        assertInstanceOf(Yellow.class, codec.read(buffer).currentState());
+        var restored = codec.read(buffer);
+        assertInstanceOf(Red.class, restored.currentState());
+        assertFalse(buffer.hasRemaining());
+        restored.transitionToState(Green.class);
+        assertInstanceOf(Green.class, restored.currentState());
+    }
+
+    @Test
+    public void testPayload() {
+        var definition = counters();
+        var codec = definition.snapshotCodec(SERIALIZER);
+        var stateMachine = definition.newInstance(Counting.class);
+        ((Counting) stateMachine.currentState()).value = 42;
+        var buffer = ByteBuffer.allocate(64);
+        codec.write(stateMachine, buffer);
+        codec.write(definition.newInstance(Idle.class), buffer);
+
+        assertEquals(18 + 14, buffer.position());
+        assertEquals(4, buffer.getInt(10));
+
+        buffer.flip();
+        var restored = codec.read(buffer);
+        assertEquals(42, ((Counting) restored.currentState()).value);
+        assertEquals(18, buffer.position());
+        assertInstanceOf(Idle.class, codec.read(buffer).currentState());
+        assertFalse(buffer.hasRemaining());
+
+        var truncated = ByteBuffer.allocate(17);
+        truncated.putLong(definition.fingerprint()).putChar((char) 1).putInt(4).flip().limit(17);
+        assertThrows(BufferUnderflowException.class, () -> codec.read(truncated));
+    }
+
+    @Test
+    public void testSharedStatesAndFactories() {
+        int[] built = new int[2];
+        var definition = StateMachine.builder(Counter.class)
+                .register(sm -> {
+                    built[0]++;
+                    return new Idle();
+                }, StateScope.SHARED)
+                .register(sm -> {
+                    built[1]++;
+                    return new Counting();
+                })
+                .compile();
+        var codec = definition.snapshotCodec(new StateSerializer<>() {
+            @Override
+            public void write(Counter state, ByteBuffer buffer) {
+                buffer.put((byte) (state instanceof Idle ? 1 : 2));
+            }
+
+            @Override
+            public void read(Counter state, ByteBuffer buffer) {
+                assertInstanceOf(Counting.class, state);
+                assertEquals(2, buffer.get());
+            }
+        });
+        var buffer = ByteBuffer.allocate(64);
+        codec.write(definition.newInstance(Idle.class), buffer);
+        codec.write(definition.newInstance(Counting.class), buffer);
+        assertEquals(0, buffer.getInt(10));
+        assertEquals(1, buffer.getInt(24));
+        assertArrayEquals(new int[]{1, 2}, built);
+
+        buffer.flip();
+        assertInstanceOf(Idle.class, codec.read(buffer).currentState());
+        assertArrayEquals(new int[]{1, 2}, built);
+        var restored = codec.read(buffer);
+        assertInstanceOf(Counting.class, restored.currentState());
+        assertArrayEquals(new int[]{1, 3}, built);
+        restored.transitionToState(Idle.class);
+        assertArrayEquals(new int[]{1, 3}, built);
+
+        var payload = ByteBuffer.allocate(15);
+        payload.putLong(definition.fingerprint()).putChar((char) 0).putInt(1).put((byte) 1).flip();
+        assertEquals("Snapshot carries a payload for the shared state Idle",
+                assertThrows(IllegalArgumentException.class, () -> codec.read(payload)).getMessage());
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(fingerprint("at.base10.state.StateMachinePopulationTest$Light:"
+                        + "at.base10.state.StateMachinePopulationTest$Green,"
+                        + "at.base10.state.StateMachinePopulationTest$Yellow,"
+                        + "at.base10.state.StateMachinePopulationTest$Red"),
+                definition.fingerprint());
+        assertEquals(definition.fingerprint(), lights().compile().fingerprint());
+        var reordered = StateMachine.builder(Light.class)
+                .register(sm -> new Yellow())
+                .register(sm -> new Green())
+                .register(sm -> new Red())
+                .compile();
+        assertNotEquals(definition.fingerprint(), reordered.fingerprint());
+
+        var buffer = ByteBuffer.allocate(14);
+        reordered.snapshotCodec().write(reordered.newInstance(Green.class), buffer);
+        assertEquals("Snapshot was written for another definition",
+                assertThrows(IllegalArgumentException.class, () -> codec.read(buffer.flip())).getMessage());
+        var population = reordered.newPopulation(1);
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> codec.write(population, ByteBuffer.allocate(14))).getMessage());
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> codec.read(ByteBuffer.allocate(14), population)).getMessage());
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> codec.write(population, new RecordingChannel(BUFFER))).getMessage());
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> codec.read(new TricklingChannel(new byte[14], 14), population)).getMessage());
+
+        var snapshot = ByteBuffer.allocate(12);
+        reordered.snapshotCodec().write(population, snapshot);
+        assertEquals("Snapshot was written for another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> codec.read(snapshot.flip(), definition.newPopulation(1))).getMessage());
+    }
+
+    private static long fingerprint(String names) {
+        long hash = 0xcbf29ce484222325L;
+        for (char c : names.toCharArray()) {
+            hash = (hash ^ c) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Test
+    public void testUnknownOrdinal() {
+        var buffer = ByteBuffer.allocate(28)
+                .putLong(definition.fingerprint()).putChar((char) 2).putInt(0)
+                .putLong(definition.fingerprint()).putChar((char) 3).putInt(0)
+                .flip();
+
+        assertInstanceOf(Red.class, codec.read(buffer).currentState());
+        assertEquals("Snapshot contains unknown ordinal 3",
+                assertThrows(IllegalArgumentException.class, () -> codec.read(buffer)).getMessage());
+
+        var population = definition.newPopulation(2);
+        var snapshot = ByteBuffer.allocate(16)
+                .putLong(definition.fingerprint()).putInt(2).putChar((char) 2).putChar((char) 3)
+                .flip();
+        assertEquals("Snapshot contains unknown ordinal 3",
+                assertThrows(IllegalArgumentException.class, () -> codec.read(snapshot, population)).getMessage());
+        assertInstanceOf(Red.class, population.currentState(0));
+
+        var channel = new TricklingChannel(snapshot.array(), 16);
+        assertEquals("Snapshot contains unknown ordinal 3",
+                assertThrows(IllegalArgumentException.class,
+                        () -> codec.read(channel, definition.newPopulation(2))).getMessage());
+    }
+
+    @Test
+    public void testPopulation() {
+        var population = definition.newPopulation(5);
+        population.add(Green.class);
+        population.addAll(2, Red.class);
+        population.add(Yellow.class);
+        var buffer = ByteBuffer.allocate((int) codec.sizeOf(population));
+        codec.write(population, buffer);
+
+        assertEquals(20, buffer.position());
+        assertEquals(definition.fingerprint(), buffer.getLong(0));
+        assertEquals(4, buffer.getInt(8));
+        assertEquals(List.of(0, 2, 2, 1), List.of((int) buffer.getChar(12), (int) buffer.getChar(14),
+                (int) buffer.getChar(16), (int) buffer.getChar(18)));
+
+        var restored = definition.newPopulation(6, true);
+        restored.addAll(2, Yellow.class);
+        assertEquals(2, codec.read(buffer.flip(), restored));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(6, restored.size());
+        assertEquals(List.of(1, 1, 0, 2, 2, 1),
+                List.of(restored.currentOrdinal(0), restored.currentOrdinal(1), restored.currentOrdinal(2),
+                        restored.currentOrdinal(3), restored.currentOrdinal(4), restored.currentOrdinal(5)));
+        assertEquals(3, restored.countIn(Yellow.class));
+        assertEquals(List.of(3L, 4L), restored.machinesIn(Red.class).boxed().toList());
+
+        assertEquals("The population has room for 0 more machines, not 4",
+                assertThrows(IllegalStateException.class, () -> codec.read(buffer.rewind(), restored)).getMessage());
+    }
+
+    @Test
+    public void testIncompletePopulation() {
+        var population = definition.newPopulation(3);
+        var buffer = ByteBuffer.allocate(18)
+                .putLong(definition.fingerprint()).putInt(3).putChar((char) 1).putChar((char) 2)
+                .flip();
+
+        assertThrows(BufferUnderflowException.class, () -> codec.read(buffer, population));
+        assertEquals(0, population.size());
+        assertEquals(0, codec.read(buffer.rewind().limit(16).putInt(8, 2), population));
+        assertEquals(2, population.size());
+
+        var negative = ByteBuffer.allocate(12).putLong(definition.fingerprint()).putInt(-1).flip();
+        assertEquals("Snapshot contains a negative number of machines: -1",
+                assertThrows(IllegalArgumentException.class, () -> codec.read(negative, population)).getMessage());
+        var empty = ByteBuffer.allocate(12).putLong(definition.fingerprint()).putInt(0).flip();
+        assertEquals(2, codec.read(empty, population));
+        assertEquals(2, population.size());
+    }
+
+    @Test
+    public void testChannel() throws Exception {
+        int machines = 40_000;
+        var population = definition.newPopulation(machines);
+        for (int i = 0; i < machines; i++) {
+            population.add(i % 7 == 0 ? Red.class : Green.class);
+        }
+        var channel = new RecordingChannel(40_000);
+        codec.write(population, channel);
+
+        assertEquals(List.of(40_000, BUFFER - 40_000, 12 + 2 * machines - BUFFER),
+                channel.writes);
+        var bytes = channel.bytes.toByteArray();
+        assertEquals(codec.sizeOf(population), bytes.length);
+
+        var restored = definition.newPopulation(machines + 2);
+        restored.add(Yellow.class);
+        var source = new TricklingChannel(bytes, 5_000);
+        assertEquals(1, codec.read(source, restored));
+        assertEquals(machines + 1, restored.size());
+        for (int id = 0; id < machines; id++) {
+            assertEquals(population.currentOrdinal(id), restored.currentOrdinal(id + 1));
+        }
+
+        var header = ByteBuffer.allocate(13).putLong(definition.fingerprint()).putInt(1).put((byte) 0).array();
+        var tail = new TricklingChannel(header, 13);
+        assertEquals("Snapshot ends 1 bytes early",
+                assertThrows(EOFException.class, () -> codec.read(tail, restored)).getMessage());
+    }
+
+    @Test
+    public void testEmptyPopulation() throws Exception {
+        var population = definition.newPopulation(0);
+        var channel = new RecordingChannel(BUFFER);
+        codec.write(population, channel);
+
+        assertEquals(List.of(12), channel.writes);
+        assertEquals(0, codec.read(new TricklingChannel(channel.bytes.toByteArray(), 1), population));
+        assertEquals("Snapshot ends 12 bytes early",
+                assertThrows(EOFException.class,
+                        () -> codec.read(new TricklingChannel(new byte[0], 1), population)).getMessage());
+    }
+
+    @Test
+    public void testStates() {
+        assertEquals(65_535, SnapshotCodec.checkStates(65_536));
+        assertEquals("Snapshots support at most 65536 states, not 65537",
+                assertThrows(UnsupportedOperationException.class, () -> SnapshotCodec.checkStates(65_537)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("serializer is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> definition.snapshotCodec(null)).getMessage());
+    }
+}
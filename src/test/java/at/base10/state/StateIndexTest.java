@@ -0,0 +1,243 @@
+package at.base10.state;
+
+import at.base10.state.StateMachinePopulationTest.Blue;
+import at.base10.state.StateMachinePopulationTest.Green;
+import at.base10.state.StateMachinePopulationTest.Light;
+import at.base10.state.StateMachinePopulationTest.Red;
+import at.base10.state.StateMachinePopulationTest.Signal;
+import at.base10.state.StateMachinePopulationTest.Yellow;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+
+import static at.base10.state.StateMachinePopulation.CHUNK;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateIndexTest {
+
+    private static final int THREADS = 4;
+    private static final int MACHINES = 1_000;
+
+    private StateMachineDefinition<Light> definition;
+
+    @BeforeEach
+    public void setUp() {
+        definition = StateMachine.builder(Light.class)
+                .register(sm -> new Green())
+                .register(sm -> new Yellow())
+                .register(sm -> new Red())
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Yellow.class, Signal.NEXT, Red.class)
+                .on(Red.class, Signal.NEXT, Green.class)
+                .compile();
+    }
+
+    private static List<Long> ids(LongStream ids) {
+        return ids.boxed().toList();
+    }
+
+    @Test
+    public void testCountAndList() {
+        var population = definition.newPopulation(130, true);
+        population.addAll(65, Green.class);
+        population.addAll(65, Yellow.class);
+
+        assertTrue(population.isIndexed());
+        assertEquals(65, population.countIn(Green.class));
+        assertEquals(65, population.countIn(Yellow.class));
+        assertEquals(0, population.countIn(Red.class));
+        assertEquals(LongStream.range(0, 65).boxed().toList(), ids(population.machinesIn(Green.class)));
+        assertEquals(LongStream.range(65, 130).boxed().toList(), ids(population.machinesIn(Yellow.class)));
+        assertEquals(List.of(), ids(population.machinesIn(Red.class)));
+
+        population.transition(0, Red.class);
+        population.transition(1, Green.class);
+        population.fire(64, Signal.NEXT);
+        assertTrue(population.compareAndTransition(129, Yellow.class, Red.class));
+        assertFalse(population.compareAndTransition(128, Red.class, Green.class));
+
+        assertEquals(63, population.countIn(Green.class));
+        assertEquals(65, population.countIn(Yellow.class));
+        assertEquals(2, population.countIn(Red.class));
+        assertEquals(List.of(0L, 129L), ids(population.machinesIn(Red.class)));
+        assertEquals(List.of(1L, 2L), ids(population.machinesIn(Green.class).limit(2)));
+        assertEquals(List.of(64L, 65L, 66L), ids(population.machinesIn(Yellow.class).limit(3)));
+    }
+
+    @Test
+    public void testLastSlot() {
+        var full = definition.newPopulation(128, true);
+        full.addAll(127, Green.class);
+        full.add(Red.class);
+        var partial = definition.newPopulation(65, true);
+        partial.addAll(64, Green.class);
+        partial.add(Red.class);
+
+        assertEquals(List.of(127L), ids(full.machinesIn(Red.class)));
+        assertEquals(List.of(64L), ids(partial.machinesIn(Red.class)));
+        assertEquals(64, ids(partial.machinesIn(Green.class)).size());
+    }
+
+    @Test
+    public void testBulkOperations() {
+        var population = definition.newPopulation(2 * CHUNK + 1, true);
+        population.addAll(2 * CHUNK + 1, Green.class);
+
+        assertEquals(CHUNK, population.applyEvent(CHUNK, 2 * CHUNK, Signal.NEXT));
+        assertEquals(CHUNK + 1, population.countIn(Green.class));
+        assertEquals(CHUNK, population.countIn(Yellow.class));
+        assertEquals(List.of((long) CHUNK, 2L * CHUNK - 1),
+                List.of(population.machinesIn(Yellow.class).min().orElseThrow(),
+                        population.machinesIn(Yellow.class).max().orElseThrow()));
+
+        assertEquals(CHUNK, population.transitionAll(state -> state instanceof Yellow, Red.class));
+        assertEquals(0, population.countIn(Yellow.class));
+        assertEquals(CHUNK, population.countIn(Red.class));
+        assertEquals(List.of(), ids(population.machinesIn(Yellow.class)));
+        assertEquals(CHUNK, population.machinesIn(Red.class).count());
+        assertEquals(2L * CHUNK, population.machinesIn(Green.class).max().orElseThrow());
+    }
+
+    @Test
+    public void testConcurrentTransitions() throws Exception {
+        var population = definition.newPopulation(THREADS * MACHINES, true);
+        population.addAll(THREADS * MACHINES, Green.class);
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int first = thread * MACHINES;
+            tasks.add(() -> {
+                for (int round = 0; round < 4; round++) {
+                    for (int id = first; id < first + MACHINES; id++) {
+                        population.fire(id, Signal.NEXT);
+                    }
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(0, population.countIn(Green.class));
+        assertEquals(THREADS * MACHINES, population.countIn(Yellow.class));
+        assertEquals(THREADS * MACHINES, population.machinesIn(Yellow.class).count());
+    }
+
+    @Test
+    public void testUpdatesInAnyOrder() {
+        var store = new HeapOrdinalStore(1);
+        store.add(1, 0, count -> 0);
+        var index = new StateIndex(3, 1);
+        index.add(0, 1, store);
+
+        // two transitions 0 -> 1 -> 0, whose updates run in reverse order
+        store.set(0, 1);
+        store.set(0, 0);
+        index.update(0, 1, store);
+        index.update(0, 0, store);
+        assertEquals(List.of(1L, 0L, 0L), List.of(index.count(0), index.count(1), index.count(2)));
+        assertEquals(List.of(0L), ids(index.slots(0)));
+        assertEquals(List.of(), ids(index.slots(1)));
+
+        // two transitions 0 -> 1 -> 2, the bit is not where the first update to run expects it
+        store.set(0, 1);
+        store.set(0, 2);
+        index.update(0, 1, store);
+        assertEquals(List.of(0L, 0L, 1L), List.of(index.count(0), index.count(1), index.count(2)));
+        index.update(0, 0, store);
+        assertEquals(List.of(0L, 0L, 1L), List.of(index.count(0), index.count(1), index.count(2)));
+        assertEquals(List.of(), ids(index.slots(0)));
+        assertEquals(List.of(0L), ids(index.slots(2)));
+    }
+
+    @Test
+    public void testPages() {
+        int capacity = 3 * StateIndex.PAGE + 1;
+        var population = definition.newPopulation(capacity, true);
+        population.addAll(capacity, Green.class);
+        population.transition(63, Red.class);
+        population.transition(2L * StateIndex.PAGE, Red.class);
+        population.transition(3L * StateIndex.PAGE, Red.class);
+
+        assertEquals(List.of(63L, 2L * StateIndex.PAGE, 3L * StateIndex.PAGE), ids(population.machinesIn(Red.class)));
+        assertEquals(3, population.countIn(Red.class));
+        assertEquals(capacity - 3, population.machinesIn(Green.class).count());
+        assertEquals(List.of(62L, 64L), ids(population.machinesIn(Green.class).skip(62).limit(2)));
+
+        population.transition(63, Yellow.class);
+        assertEquals(List.of(2L * StateIndex.PAGE, 3L * StateIndex.PAGE), ids(population.machinesIn(Red.class)));
+        assertEquals(List.of(63L), ids(population.machinesIn(Yellow.class)));
+    }
+
+    @Test
+    public void testConcurrentTransitionsOfTheSameMachines() throws Exception {
+        var population = definition.newPopulation(130, true);
+        population.addAll(130, Green.class);
+        List<Class<? extends Light>> targets = List.of(Green.class, Yellow.class, Red.class);
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int offset = thread;
+            tasks.add(() -> {
+                for (int round = 0; round < 50_000; round++) {
+                    population.transition(round % 2 * 129, targets.get((round + offset) % 3));
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int ordinal = 0; ordinal < targets.size(); ordinal++) {
+            int expected = ordinal;
+            var slots = LongStream.range(0, 130)
+                    .filter(slot -> population.ordinalAt((int) slot) == expected)
+                    .boxed().toList();
+            assertEquals(slots, ids(population.machinesIn(targets.get(ordinal))));
+            assertEquals(slots.size(), population.countIn(targets.get(ordinal)));
+        }
+    }
+
+    @Test
+    public void testNotIndexed() {
+        var population = definition.newPopulation(1);
+        population.add(Green.class);
+        population.transition(0, Red.class);
+
+        assertFalse(population.isIndexed());
+        assertEquals("The population is not indexed",
+                assertThrows(UnsupportedOperationException.class, () -> population.countIn(Red.class)).getMessage());
+        assertEquals("The population is not indexed",
+                assertThrows(UnsupportedOperationException.class, () -> population.machinesIn(Red.class)).getMessage());
+    }
+
+    @Test
+    public void testEmptyAndUnknown() {
+        var population = definition.newPopulation(0, true);
+
+        assertEquals(0, population.countIn(Green.class));
+        assertEquals(List.of(), ids(population.machinesIn(Green.class)));
+        assertEquals("State class at.base10.state.StateMachinePopulationTest$Blue not found",
+                assertThrows(IllegalArgumentException.class, () -> population.countIn(Blue.class)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> population.machinesIn(null)).getMessage());
+    }
+}
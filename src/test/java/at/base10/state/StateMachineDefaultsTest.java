@@ -0,0 +1,169 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.ObserverLifetime;
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.Subscription;
+import at.base10.state.observer.TransitionFilter;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachineDefaultsTest {
+
+    /**
+     * Implements only the methods a {@link StateMachine} had to implement before the others got defaults.
+     */
+    private static final class MinimalStateMachine implements StateMachine<AppState> {
+
+        private final List<Observer<AppState>> observers = new CopyOnWriteArrayList<>();
+        private AppState current = new StateInc();
+
+        @Override
+        public StateMachine<AppState> transitionToState(Class<? extends AppState> state) {
+            var previous = current;
+            current = state == StateInc.class ? new StateInc() : new StateSquare(new SquareFunction(), this);
+            observers.forEach(observer -> observer.next(new StateChangeEvent<>(previous, current)));
+            return this;
+        }
+
+        @Override
+        public AppState currentState() {
+            return current;
+        }
+
+        @Override
+        public AppState asState() {
+            return current;
+        }
+
+        @Override
+        public <E> E asState(Class<E> state) {
+            return state.cast(current);
+        }
+
+        @Override
+        public Subscription<AppState> registerObserver(Observer<AppState> observer) {
+            observers.add(observer);
+            return new Subscription<>(this, observer);
+        }
+
+        @Override
+        public boolean unregisterObserver(Observer<AppState> observer) {
+            return observers.remove(observer);
+        }
+    }
+
+    @Test
+    public void testDefaultMethods() {
+        var stateMachine = new MinimalStateMachine();
+        var events = new ArrayList<StateChangeEvent<AppState>>();
+        var subscription = stateMachine.registerObserver(events::add);
+
+        assertFalse(stateMachine.compareAndTransition(StateSquare.class, StateInc.class));
+        assertTrue(stateMachine.compareAndTransition(StateInc.class, StateSquare.class));
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertInstanceOf(StateInc.class, stateMachine.submitTransition(StateInc.class).join());
+        var seen = new ArrayList<AppState>();
+        assertSame(stateMachine.currentState(), stateMachine.submit(seen::add).join());
+        assertEquals(List.of(stateMachine.currentState()), seen);
+        var failure = new IllegalStateException("failed");
+        assertSame(failure, assertThrows(CompletionException.class,
+                () -> stateMachine.submit(state -> {
+                    throw failure;
+                }).join()).getCause());
+        assertEquals(0, stateMachine.releaseIdleStates());
+        assertEquals(2, events.size());
+
+        assertTrue(subscription.unsubscribe());
+        assertFalse(stateMachine.unsubscribe(subscription));
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testDefaultFilteredObservers() throws InterruptedException {
+        var stateMachine = new MinimalStateMachine();
+        var events = new ArrayList<String>();
+        stateMachine.registerObserver(TransitionFilter.to(StateSquare.class), event -> events.add("square"));
+        var subscription = stateMachine.registerObserver(TransitionFilter.any(), event -> events.add("twice"),
+                ObserverLifetime.permanent().expireAfterEvents(2));
+        var queue = new ReferenceQueue<Observer<AppState>>();
+        var strong = new ArrayList<Observer<AppState>>();
+        var weak = registerWeakly(stateMachine, events, strong, queue);
+
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(List.of("square", "twice", "weak"), events);
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(List.of("square", "twice", "weak", "twice", "weak"), events);
+        assertFalse(subscription.unsubscribe());
+
+        assertEquals(2, stateMachine.observers.size());
+        strong.clear();
+        assertSame(weak, awaitCollected(queue));
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(1, stateMachine.observers.size());
+        events.clear();
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(List.of("square"), events);
+    }
+
+    /**
+     * Registers a weakly referenced observer that stays reachable until {@code strong} is cleared.
+     */
+    private static WeakReference<Observer<AppState>> registerWeakly(StateMachine<AppState> stateMachine,
+                                                                    List<String> events,
+                                                                    List<Observer<AppState>> strong,
+                                                                    ReferenceQueue<Observer<AppState>> queue) {
+        Observer<AppState> observer = event -> events.add("weak");
+        strong.add(observer);
+        stateMachine.registerObserver(TransitionFilter.any(), observer, ObserverLifetime.weakly());
+        return new WeakReference<>(observer, queue);
+    }
+
+    /**
+     * Waits up to five seconds for a reference to be enqueued, requesting a collection meanwhile.
+     */
+    private static Reference<?> awaitCollected(ReferenceQueue<?> queue) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Reference<?> collected;
+        do {
+            System.gc();
+            collected = queue.remove(100);
+        } while (collected == null && System.nanoTime() - deadline < 0);
+        return collected;
+    }
+
+    @Test
+    public void testDefaultSubmitRethrowsErrors() {
+        var stateMachine = new MinimalStateMachine();
+        var error = new AssertionError("failed");
+
+        assertSame(error, assertThrows(AssertionError.class, () -> stateMachine.submit(state -> {
+            throw error;
+        })));
+        assertEquals("handler is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> stateMachine.submit(null)).getMessage());
+        assertEquals("filter is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> stateMachine.registerObserver(null, event -> {
+                })).getMessage());
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> stateMachine.submitTransition(null)).getMessage());
+        assertEquals("subscription is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> stateMachine.unsubscribe(null)).getMessage());
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+    }
+}
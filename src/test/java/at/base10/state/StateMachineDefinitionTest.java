@@ -0,0 +1,585 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachineDefinitionTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * The number of states created by the factories of {@link #lazyStates()}, by ordinal.
+     */
+    private final AtomicIntegerArray created = new AtomicIntegerArray(3);
+    private StateMachineDefinition<AppState> definition;
+
+    @BeforeEach
+    public void setUp() {
+        definition = StateMachine.builder(AppState.class)
+                .register(sm -> new StateTransit(Objects.requireNonNull(sm)))
+                .register(sm -> {
+                    calls.incrementAndGet();
+                    return new StateInc();
+                })
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .compile();
+    }
+
+    @Test
+    public void testCompileInvokesFactoriesOnce() {
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testDefinitionMetadata() {
+        assertEquals(AppState.class, definition.getStateClass());
+        assertEquals(List.of(StateTransit.class, StateInc.class, StateSquare.class), definition.getStateClasses());
+        assertEquals("StateInc", definition.nameOf(1));
+    }
+
+    @Test
+    public void testNewInstance() {
+        var first = definition.newInstance(StateTransit.class);
+        var second = definition.newInstance(StateInc.class);
+
+        // the first machine keeps the states built by compile
+        assertEquals(2, calls.get());
+        assertInstanceOf(StateTransit.class, first.currentState());
+        assertInstanceOf(StateInc.class, second.currentState());
+
+        assertEquals(3, first.currentState().execute(2));
+        assertInstanceOf(StateInc.class, first.currentState());
+        assertNotSame(first.currentState(), second.currentState());
+
+        second.transitionToState(StateSquare.class);
+        assertEquals(4, second.currentState().execute(2));
+        assertInstanceOf(StateInc.class, first.currentState());
+    }
+
+    @Test
+    public void testCompiledStatesBelongToFirstMachine() {
+        var machines = new ArrayList<StateMachine<AppState>>();
+        var compiled = StateMachine.builder(AppState.class)
+                .register(sm -> {
+                    machines.add(sm);
+                    return new StateTransit(sm);
+                })
+                .compile();
+        var first = compiled.newInstance(StateTransit.class);
+        var second = compiled.newInstance(StateTransit.class);
+
+        assertEquals(List.of(first, second), machines);
+    }
+
+    @Test
+    public void testNewInstanceWithNull() {
+        //noinspection DataFlowIssue
+        assertEquals("initialState is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> definition.newInstance(null)).getMessage()
+        );
+    }
+
+    @Test
+    public void testNewInstanceWithUnknownState() {
+        var compiled = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .compile();
+
+        assertThat(
+                assertThrows(IllegalArgumentException.class,
+                        () -> compiled.newInstance(StateTransit.class)).getMessage(),
+                Matchers.equalTo("State class at.base10.state.StateMachineTest$StateTransit not found")
+        );
+    }
+
+    @Test
+    public void testFactoryChangesClass() {
+        var counter = new AtomicInteger();
+        var compiled = StateMachine.builder(AppState.class)
+                .register(sm -> counter.getAndIncrement() == 0 ? new StateInc() : new StateTransit(sm))
+                .compile();
+        assertInstanceOf(StateInc.class, compiled.newInstance(StateInc.class).currentState());
+
+        assertThat(
+                assertThrows(IllegalStateException.class,
+                        () -> compiled.newInstance(StateInc.class)).getMessage(),
+                Matchers.equalTo("State factory produced class at.base10.state.StateMachineTest$StateTransit, " +
+                                 "expected class at.base10.state.StateMachineTest$StateInc")
+        );
+    }
+
+    @Test
+    public void testFactoryReturnsNull() {
+        var counter = new AtomicInteger();
+        var compiled = StateMachine.builder(AppState.class)
+                .register(sm -> counter.getAndIncrement() == 0 ? new StateInc() : null)
+                .compile();
+        assertInstanceOf(StateInc.class, compiled.newInstance(StateInc.class).currentState());
+
+        assertThat(
+                assertThrows(NullPointerException.class,
+                        () -> compiled.newInstance(StateInc.class)).getMessage(),
+                Matchers.equalTo("state is marked non-null but is null")
+        );
+    }
+
+    @Test
+    public void testDuplicateStateClass() {
+        var latest = new StateInc();
+        var compiled = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateTransit(sm))
+                .register(sm -> latest)
+                .compile();
+
+        assertEquals(List.of(StateInc.class, StateTransit.class), compiled.getStateClasses());
+        assertSame(latest, compiled.newInstance(StateInc.class).currentState());
+        assertSame(latest, compiled.newInstance(StateTransit.class)
+                .transitionToState(StateInc.class)
+                .currentState());
+
+        var lazy = StateMachine.builder(AppState.class)
+                .lazy()
+                .register(StateInc.class, sm -> new StateInc())
+                .register(StateTransit.class, sm -> new StateTransit(sm))
+                .register(StateInc.class, sm -> latest)
+                .compile();
+        assertEquals(List.of(StateInc.class, StateTransit.class), lazy.getStateClasses());
+        assertSame(latest, lazy.newInstance(StateInc.class).currentState());
+    }
+
+    @Test
+    public void testInvalidClassOnCompile() {
+        assertThat(
+                assertThrows(IllegalArgumentException.class,
+                        () -> StateMachine.builder(StateMachineTest.Operate.class)
+                                .register(sm -> number -> 0)
+                                .compile()
+                ).getMessage(),
+                Matchers.startsWith("Invalid class (Synthetic) class at.base10.state.StateMachineDefinitionTest$$Lambda$")
+        );
+    }
+
+    @Test
+    public void testOrdinalOf() {
+        assertEquals(0, definition.ordinalOf(StateTransit.class));
+        assertEquals(1, definition.ordinalOf(StateInc.class));
+        assertEquals(2, definition.ordinalOf(StateSquare.class));
+    }
+
+    @Test
+    public void testOrdinalOfPerDefinition() {
+        var reversed = StateMachine.builder(AppState.class)
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .register(sm -> new StateInc())
+                .register(sm -> new StateTransit(sm))
+                .compile();
+
+        assertEquals(2, reversed.ordinalOf(StateTransit.class));
+        assertEquals(1, reversed.ordinalOf(StateInc.class));
+        assertEquals(0, reversed.ordinalOf(StateSquare.class));
+        assertEquals(0, definition.ordinalOf(StateTransit.class));
+    }
+
+    @Test
+    public void testOrdinalOfUnknownState() {
+        var compiled = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .compile();
+
+        assertThat(
+                assertThrows(IllegalArgumentException.class,
+                        () -> compiled.ordinalOf(StateSquare.class)).getMessage(),
+                Matchers.equalTo("State class at.base10.state.StateMachineTest$StateSquare not found")
+        );
+    }
+
+    @Test
+    public void testOrdinalOfNull() {
+        //noinspection DataFlowIssue
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> definition.ordinalOf(null)).getMessage()
+        );
+    }
+
+    public static final class Countdown extends TransitionalState<StateMachineTest.Operate>
+            implements StateMachineTest.Operate {
+
+        private int zero = -1;
+
+        public Countdown(StateMachine<StateMachineTest.Operate> stateMachine) {
+            super(stateMachine);
+        }
+
+        @Override
+        public int execute(int number) {
+            if (zero < 0) {
+                zero = ordinalOf(Zero.class);
+            }
+            return number == 0 ? transitionToState(zero).currentState().execute(number) : number - 1;
+        }
+    }
+
+    public static final class Zero implements StateMachineTest.Operate {
+        @Override
+        public int execute(int number) {
+            return -1;
+        }
+    }
+
+    @Test
+    public void testTransitionByOrdinalFromState() {
+        var stateMachine = StateMachine.builder(StateMachineTest.Operate.class)
+                .register(sm -> new Zero())
+                .register(Countdown::new)
+                .compile()
+                .newInstance(Countdown.class);
+
+        assertEquals(1, stateMachine.currentState().execute(2));
+        assertInstanceOf(Countdown.class, stateMachine.currentState());
+        assertEquals(-1, stateMachine.currentState().execute(0));
+        assertInstanceOf(Zero.class, stateMachine.currentState());
+    }
+
+    private StateMachineBuilder<AppState> lazyStates() {
+        return StateMachine.builder(AppState.class)
+                .lazy()
+                .register(StateTransit.class, sm -> {
+                    created.incrementAndGet(0);
+                    return new StateTransit(sm);
+                })
+                .register(StateInc.class, sm -> {
+                    created.incrementAndGet(1);
+                    return new StateInc();
+                })
+                .register(StateSquare.class, sm -> {
+                    created.incrementAndGet(2);
+                    return new StateSquare(new SquareFunction(), sm);
+                });
+    }
+
+    @Test
+    public void testLazyStates() {
+        var compiled = lazyStates().compile();
+        assertEquals(List.of(StateTransit.class, StateInc.class, StateSquare.class), compiled.getStateClasses());
+        assertEquals("[0, 0, 0]", created.toString());
+
+        var stateMachine = compiled.newInstance(StateTransit.class);
+        assertEquals("[1, 0, 0]", created.toString());
+        assertEquals(3, stateMachine.currentState().execute(2));
+        var inc = stateMachine.currentState();
+        assertInstanceOf(StateInc.class, inc);
+        assertEquals("[1, 1, 0]", created.toString());
+
+        stateMachine.transitionToState(StateSquare.class).transitionToState(StateInc.class);
+        assertSame(inc, stateMachine.currentState());
+        assertEquals("[1, 1, 1]", created.toString());
+
+        assertEquals(2, stateMachine.releaseIdleStates());
+        assertSame(inc, stateMachine.currentState());
+        assertEquals(0, stateMachine.releaseIdleStates());
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(4, stateMachine.currentState().execute(2));
+        assertEquals("[1, 1, 2]", created.toString());
+        assertEquals(1, stateMachine.releaseIdleStates());
+        stateMachine.transitionToState(StateInc.class);
+        assertNotSame(inc, stateMachine.currentState());
+        assertEquals("[1, 2, 2]", created.toString());
+    }
+
+    @Test
+    public void testLazyStatesOnBuild() {
+        var counter = new AtomicInteger();
+        var stateMachine = lazyStates()
+                .register(sm -> {
+                    counter.incrementAndGet();
+                    return new StateInc();
+                })
+                .build(StateSquare.class);
+        assertEquals("[0, 0, 1]", created.toString());
+        assertEquals(1, counter.get());
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateTransit.class);
+        assertEquals("[1, 0, 1]", created.toString());
+        assertEquals(1, counter.get());
+        assertEquals(2, stateMachine.releaseIdleStates());
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(2, counter.get());
+    }
+
+    @Test
+    public void testDeclaredStatesWithoutLazy() {
+        var transits = new AtomicInteger();
+        var eager = StateMachine.builder(AppState.class)
+                .register(StateInc.class, sm -> {
+                    calls.incrementAndGet();
+                    return new StateInc();
+                })
+                .register(StateSquare.class, sm -> new StateSquare(new SquareFunction(), sm))
+                .register(sm -> {
+                    transits.incrementAndGet();
+                    return new StateTransit(sm);
+                });
+        calls.set(0);
+        var compiled = eager.compile();
+        assertEquals(0, calls.get());
+        assertEquals(1, transits.get());
+        var stateMachine = compiled.newInstance(StateSquare.class);
+        assertEquals(1, calls.get());
+        assertEquals(1, transits.get());
+        assertSame(stateMachine.currentState(), stateMachine.transitionToState(StateSquare.class).currentState());
+        compiled.newInstance(StateSquare.class);
+        assertEquals(2, transits.get());
+
+        var built = eager.build(StateSquare.class);
+        assertEquals(3, calls.get());
+        assertEquals(3, transits.get());
+        assertEquals(0, built.releaseIdleStates());
+        built.transitionToState(StateInc.class);
+        assertEquals(3, calls.get());
+        eager.build(StateSquare.class);
+        assertEquals(4, calls.get());
+        assertEquals(4, transits.get());
+    }
+
+    @Test
+    public void testLazyStatesWithGuard() {
+        assertLazyStatesWithGuard(lazyStates());
+    }
+
+    @Test
+    public void testConcurrentLazyStatesWithGuard() {
+        assertLazyStatesWithGuard(lazyStates().concurrent());
+    }
+
+    @Test
+    public void testMailboxLazyStatesWithGuard() {
+        assertLazyStatesWithGuard(lazyStates().mailbox(Runnable::run));
+    }
+
+    private void assertLazyStatesWithGuard(StateMachineBuilder<AppState> builder) {
+        var guarded = new ArrayList<AppState>();
+        var stateMachine = builder
+                .allow(StateInc.class, StateSquare.class, (inc, square) -> guarded.addAll(List.of(inc, square)))
+                .compile()
+                .newInstance(StateInc.class);
+
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals("[0, 1, 1]", created.toString());
+        assertEquals(2, guarded.size());
+        assertInstanceOf(StateInc.class, guarded.get(0));
+        assertSame(stateMachine.currentState(), guarded.get(1));
+        assertEquals(1, stateMachine.releaseIdleStates());
+        assertSame(guarded.get(1), stateMachine.currentState());
+    }
+
+    @Test
+    public void testNoLazyStateForIllegalTransition() {
+        var stateMachine = lazyStates()
+                .allow(StateInc.class, StateTransit.class)
+                .compile()
+                .newInstance(StateInc.class);
+
+        assertThrows(IllegalStateException.class, () -> stateMachine.transitionToState(StateSquare.class));
+        assertEquals("[0, 1, 0]", created.toString());
+        stateMachine.transitionToState(StateTransit.class);
+        assertEquals("[1, 1, 0]", created.toString());
+    }
+
+    @Test
+    public void testLazyFactoryChangesClass() {
+        var compiled = StateMachine.builder(AppState.class)
+                .lazy()
+                .register(StateInc.class, sm -> new StateInc())
+                .register(StateSquare.class, sm -> new StateTransit(sm))
+                .compile();
+        var stateMachine = compiled.newInstance(StateInc.class);
+
+        assertEquals("State factory produced class at.base10.state.StateMachineTest$StateTransit, " +
+                     "expected class at.base10.state.StateMachineTest$StateSquare",
+                assertThrows(IllegalStateException.class,
+                        () -> stateMachine.transitionToState(StateSquare.class)).getMessage());
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+        assertThrows(IllegalStateException.class, () -> compiled.newInstance(StateSquare.class));
+    }
+
+    @Test
+    public void testInvalidDeclaredClass() {
+        var anonymous = new StateMachineTest.Operate() {
+            @Override
+            public int execute(int number) {
+                return 0;
+            }
+        };
+        assertEquals("Invalid class (Anonymous) " + anonymous.getClass(),
+                assertThrows(IllegalArgumentException.class,
+                        () -> StateMachine.builder(StateMachineTest.Operate.class)
+                                .register(anonymous.getClass(), sm -> anonymous)
+                                .compile()
+                ).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> StateMachine.builder(AppState.class).register(null, sm -> new StateInc())).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("stateBuilder is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> StateMachine.builder(AppState.class).register(StateInc.class, null)).getMessage());
+    }
+
+    @Test
+    public void testLazyStateCreatedOnce() throws Exception {
+        var creating = new CountDownLatch(1);
+        var entering = new Thread[1];
+        var stateMachine = (AbstractStateMachine<AppState>) StateMachine.builder(AppState.class)
+                .lazy()
+                .concurrent()
+                .register(StateInc.class, sm -> new StateInc())
+                .register(StateSquare.class, sm -> {
+                    created.incrementAndGet(2);
+                    creating.countDown();
+                    // keeps creating the state until the other thread waits for it
+                    while (entering[0] != null && entering[0].getState() != Thread.State.BLOCKED) {
+                        Thread.onSpinWait();
+                    }
+                    return new StateSquare(new SquareFunction(), sm);
+                })
+                .compile()
+                .newInstance(StateInc.class);
+        entering[0] = new Thread(() -> stateMachine.transitionToState(StateSquare.class));
+        var square = new AppState[1];
+        var looking = new Thread(() -> square[0] = stateMachine.state(stateMachine.ordinalOf(StateSquare.class)));
+        looking.start();
+        assertTrue(creating.await(5, TimeUnit.SECONDS));
+        entering[0].start();
+        looking.join();
+        entering[0].join();
+
+        assertSame(square[0], stateMachine.currentState());
+        assertEquals("[0, 0, 1]", created.toString());
+    }
+
+    @Test
+    public void testCreatedStatesNeedNoLock() throws Exception {
+        var stateMachine = definition.newInstance(StateInc.class);
+        var transitioning = new Thread(() -> stateMachine.transitionToState(StateSquare.class));
+        synchronized (stateMachine) {
+            transitioning.start();
+            transitioning.join(5_000);
+            assertFalse(transitioning.isAlive());
+        }
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testSharedStates() {
+        calls.set(0);
+        var compiled = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> {
+                    calls.incrementAndGet();
+                    assertNull(sm);
+                    return new StateInc();
+                }, StateScope.SHARED)
+                .compile();
+        assertEquals(1, calls.get());
+
+        var first = compiled.newInstance(StateTransit.class);
+        var second = compiled.newInstance(StateInc.class);
+        assertEquals(1, calls.get());
+        assertEquals(3, first.currentState().execute(2));
+        assertSame(second.currentState(), first.currentState());
+        assertNotSame(first.transitionToState(StateTransit.class).currentState(),
+                second.transitionToState(StateTransit.class).currentState());
+
+        assertEquals(0, first.releaseIdleStates());
+        second.transitionToState(StateInc.class);
+        assertEquals(0, second.releaseIdleStates());
+        assertSame(first.transitionToState(StateInc.class).currentState(), second.currentState());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testLazySharedStates() {
+        var builder = StateMachine.builder(AppState.class)
+                .lazy()
+                .register(StateTransit.class, StateTransit::new)
+                .register(StateInc.class, sm -> {
+                    calls.incrementAndGet();
+                    return new StateInc();
+                }, StateScope.SHARED);
+        calls.set(0);
+        var compiled = builder.compile();
+        assertEquals(1, calls.get());
+        assertSame(compiled.newInstance(StateInc.class).currentState(),
+                compiled.newInstance(StateTransit.class).transitionToState(StateInc.class).currentState());
+
+        var built = builder.build(StateTransit.class);
+        assertEquals(2, calls.get());
+        assertNotSame(built.transitionToState(StateInc.class).currentState(),
+                compiled.newInstance(StateInc.class).currentState());
+        assertEquals(1, built.releaseIdleStates());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testSharedStatesInPopulations() {
+        calls.set(0);
+        var compiled = StateMachine.builder(StateMachineTest.Operate.class)
+                .register(sm -> new StateInc())
+                .register(Zero.class, sm -> {
+                    calls.incrementAndGet();
+                    return new Zero();
+                }, StateScope.SHARED)
+                .compile();
+        var population = compiled.newPopulation(2);
+        population.addAll(2, Zero.class);
+
+        assertEquals(1, calls.get());
+        assertSame(compiled.newInstance(Zero.class).currentState(), population.currentState(1));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testInvalidSharedStates() {
+        assertEquals("State class at.base10.state.StateMachineTest$StateSquare refers to its state machine and cannot be shared",
+                assertThrows(IllegalArgumentException.class, () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateSquare(new SquareFunction(), sm), StateScope.SHARED)
+                        .compile()).getMessage());
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> StateMachine.builder(AppState.class)
+                        .register(StateInc.class, sm -> null, StateScope.SHARED)
+                        .compile()).getMessage());
+        assertEquals("State factory produced class at.base10.state.StateMachineTest$StateInc, " +
+                     "expected class at.base10.state.StateMachineTest$StateTransit",
+                assertThrows(IllegalStateException.class, () -> StateMachine.builder(AppState.class)
+                        .register(StateTransit.class, sm -> new StateInc(), StateScope.SHARED)
+                        .compile()).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("scope is marked non-null but is null",
+                assertThrows(NullPointerException.class,
+                        () -> StateMachine.builder(AppState.class).register(sm -> new StateInc(), null)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("scope is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> StateMachine.builder(AppState.class)
+                        .register(StateInc.class, sm -> new StateInc(), null)).getMessage());
+    }
+}
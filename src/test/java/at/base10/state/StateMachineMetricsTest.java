@@ -0,0 +1,260 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineMetrics.DwellTime;
+import at.base10.state.StateMachineMetrics.Edge;
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachineMetricsTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private long time;
+
+    private final StateMachineMetrics metrics = new StateMachineMetrics(() -> time, 60);
+
+    @AfterEach
+    public void tearDown() {
+        Configurator.setLevel("at.base10", Level.DEBUG);
+    }
+
+    private StateMachineBuilder<AppState> builder() {
+        return StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .metrics(metrics);
+    }
+
+    @Test
+    public void testEdgesAndDwellTimes() {
+        time = 1000;
+        var stateMachine = builder().build(StateTransit.class);
+
+        time = 1500;
+        stateMachine.transitionToState(StateInc.class);
+        time = 3500;
+        stateMachine.transitionToState(StateSquare.class)
+                .transitionToState(StateTransit.class);
+
+        var snapshot = metrics.snapshot();
+        assertEquals(Map.of(
+                new Edge("StateTransit", "StateInc"), 1L,
+                new Edge("StateInc", "StateSquare"), 1L,
+                new Edge("StateSquare", "StateTransit"), 1L), snapshot.transitions());
+        assertEquals(List.of("StateTransit", "StateInc", "StateSquare"), List.copyOf(snapshot.dwellTimes().keySet()));
+        assertDwellTime(snapshot.dwellTimes().get("StateTransit"), 1, 500, 8);
+        assertDwellTime(snapshot.dwellTimes().get("StateInc"), 1, 2000, 10);
+        assertDwellTime(snapshot.dwellTimes().get("StateSquare"), 1, 0, 0);
+        assertEquals(3, snapshot.transitionCount());
+        assertEquals(3, metrics.getTransitionCount());
+        var counts = metrics.getTransitionCounts();
+        assertEquals(3, counts.size());
+        assertEquals(1L, counts.get(new Object[]{"StateInc", "StateSquare"}).get("count"));
+        var means = metrics.getMeanDwellNanos();
+        assertEquals(3, means.size());
+        assertEquals(500.0, means.get(new Object[]{"StateTransit"}).get("meanNanos"));
+        assertEquals(2000.0, means.get(new Object[]{"StateInc"}).get("meanNanos"));
+        assertEquals(0.0, means.get(new Object[]{"StateSquare"}).get("meanNanos"));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.transitions().clear());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.dwellTimes().clear());
+    }
+
+    private static void assertDwellTime(DwellTime dwellTime, long count, long totalNanos, int bucket) {
+        var histogram = new long[StateMachineMetrics.HISTOGRAM_BUCKETS];
+        histogram[bucket] = count;
+        assertEquals(count, dwellTime.count());
+        assertEquals(totalNanos, dwellTime.totalNanos());
+        assertArrayEquals(histogram, dwellTime.histogram());
+    }
+
+    @Test
+    public void testSharedByMachines() {
+        var definition = builder().concurrent().compile();
+        var first = definition.newInstance(StateTransit.class);
+        time = 100;
+        var second = definition.newInstance(StateTransit.class);
+        var third = builder().mailbox(Runnable::run).build(StateInc.class);
+
+        time = 300;
+        first.transitionToState(StateInc.class);
+        second.transitionToState(StateInc.class);
+        third.transitionToState(StateSquare.class);
+        time = 400;
+        first.transitionToState(StateSquare.class);
+
+        var snapshot = metrics.snapshot();
+        assertEquals(Map.of(
+                new Edge("StateTransit", "StateInc"), 2L,
+                new Edge("StateInc", "StateSquare"), 2L), snapshot.transitions());
+        assertEquals(500, snapshot.dwellTimes().get("StateTransit").totalNanos());
+        assertEquals(250.0, snapshot.dwellTimes().get("StateTransit").meanNanos());
+        assertEquals(300, snapshot.dwellTimes().get("StateInc").totalNanos());
+    }
+
+    @Test
+    public void testTransitionRate() {
+        var stateMachine = builder().build(StateTransit.class);
+
+        time = SECOND - 1;
+        stateMachine.transitionToState(StateInc.class).transitionToState(StateSquare.class);
+        time = 59 * SECOND;
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(3.0 / 60, metrics.getTransitionsPerSecond());
+        assertEquals(3.0 / 60, metrics.snapshot().transitionsPerSecond());
+
+        time = 60 * SECOND;
+        assertEquals(1.0 / 60, metrics.getTransitionsPerSecond());
+        stateMachine.transitionToState(StateSquare.class).transitionToState(StateInc.class);
+        assertEquals(3.0 / 60, metrics.getTransitionsPerSecond());
+        assertEquals(5, metrics.getTransitionCount());
+    }
+
+    @Test
+    public void testWindow() {
+        var shortWindow = new StateMachineMetrics(() -> time, 2);
+        var stateMachine = builder().metrics(shortWindow).build(StateTransit.class);
+
+        stateMachine.transitionToState(StateInc.class);
+        time = SECOND;
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(1.0, shortWindow.getTransitionsPerSecond());
+
+        time = 2 * SECOND;
+        assertEquals(0.5, shortWindow.getTransitionsPerSecond());
+    }
+
+    @Test
+    public void testConcurrentTransitionsAcrossSeconds() throws InterruptedException {
+        var ticks = new AtomicLong();
+        // every reading of the clock moves it by a millisecond, so the threads cross many seconds
+        var concurrentMetrics = new StateMachineMetrics(() -> ticks.addAndGet(SECOND / 1000), 60);
+        var stateMachine = builder().metrics(concurrentMetrics).concurrent().build(StateTransit.class);
+        var threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    stateMachine.transitionToState(i % 3);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(20_000, concurrentMetrics.getTransitionCount());
+        assertEquals(20_000.0 / 60, concurrentMetrics.getTransitionsPerSecond());
+    }
+
+    @Test
+    public void testBucketOf() {
+        assertEquals(0, StateMachineMetrics.bucketOf(0));
+        assertEquals(0, StateMachineMetrics.bucketOf(1));
+        assertEquals(1, StateMachineMetrics.bucketOf(2));
+        assertEquals(1, StateMachineMetrics.bucketOf(3));
+        assertEquals(10, StateMachineMetrics.bucketOf(1024));
+        assertEquals(62, StateMachineMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testEmpty() {
+        var snapshot = metrics.snapshot();
+
+        assertEquals(Map.of(), snapshot.transitions());
+        assertEquals(Map.of(), snapshot.dwellTimes());
+        assertEquals(0.0, snapshot.transitionsPerSecond());
+        assertEquals(0, metrics.getTransitionCount());
+    }
+
+    @Test
+    public void testBoundToOtherStates() {
+        builder().build(StateTransit.class);
+        builder().build(StateInc.class);
+        var other = StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .metrics(metrics);
+
+        assertEquals("Metrics are already bound to the states [StateTransit, StateInc, StateSquare], not [StateInc]",
+                assertThrows(IllegalArgumentException.class, () -> other.build(StateInc.class)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("metrics is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> other.metrics(null)).getMessage());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var name = new ObjectName("at.base10.state:type=StateMachineMetrics,name=test");
+        assertEquals(name, metrics.register(server, name).getObjectName());
+        try {
+            builder().build(StateTransit.class).transitionToState(StateInc.class);
+
+            for (var attribute : server.getMBeanInfo(name).getAttributes()) {
+                assertTrue(Set.of("long", "double", TabularData.class.getName()).contains(attribute.getType()),
+                        attribute::getType);
+            }
+            assertEquals(1L, server.getAttribute(name, "TransitionCount"));
+            var counts = (TabularData) server.getAttribute(name, "TransitionCounts");
+            assertEquals(1, counts.size());
+            assertEquals(1L, counts.get(new Object[]{"StateTransit", "StateInc"}).get("count"));
+            var means = (TabularData) server.getAttribute(name, "MeanDwellNanos");
+            assertEquals(1, means.size());
+            assertEquals(0.0, means.get(new Object[]{"StateTransit"}).get("meanNanos"));
+            assertEquals(1.0 / 60, server.getAttribute(name, "TransitionsPerSecond"));
+            assertThrows(InstanceAlreadyExistsException.class, () -> metrics.register(server, name));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        Configurator.setLevel("at.base10", Level.INFO);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var defaultMetrics = new StateMachineMetrics();
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .metrics(defaultMetrics)
+                .build(StateTransit.class);
+        stateMachine.transitionToState(1);
+        assertEquals(1.0 / StateMachineMetrics.WINDOW_SECONDS, defaultMetrics.getTransitionsPerSecond());
+        transition(stateMachine);
+
+        // the JIT and the runtime may allocate on this thread once, a steady allocation shows in every round
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            transition(stateMachine);
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+
+        assertEquals(0, allocated);
+    }
+
+    private static void transition(CompiledStateMachine<AppState> stateMachine) {
+        for (int i = 0; i < 10_000; i++) {
+            stateMachine.transitionToState(1).transitionToState(0);
+        }
+    }
+}
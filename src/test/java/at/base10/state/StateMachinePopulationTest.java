@@ -0,0 +1,426 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.BatchObserver;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.TransitionListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static at.base10.state.StateMachinePopulation.CHUNK;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachinePopulationTest {
+
+    public sealed interface Light permits Green, Yellow, Red, Blue {
+    }
+
+    public static final class Green implements Light {
+    }
+
+    public static final class Yellow implements Light {
+    }
+
+    public static final class Red implements Light {
+    }
+
+    public static final class Blue implements Light {
+    }
+
+    enum Signal {NEXT, STOP}
+
+    private final AtomicInteger built = new AtomicInteger();
+
+    private StateMachineBuilder<Light> builder;
+
+    /**
+     * The machine a guard moves to {@link Red} before letting its transition pass, or -1.
+     */
+    private long interfere = -1;
+
+    private StateMachinePopulation<Light> population;
+
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> changes = Collections.synchronizedList(new ArrayList<>());
+    private final BatchObserver<Light> batchObserver = events -> batches.add(events.size());
+    private final TransitionListener<Light> listener = (previous, current) -> changes.add(
+            previous.getClass().getSimpleName() + " -> " + current.getClass().getSimpleName());
+
+    @BeforeEach
+    public void setUp() {
+        builder = StateMachine.builder(Light.class)
+                .register(sm -> {
+                    built.incrementAndGet();
+                    return new Green();
+                })
+                .register(sm -> new Yellow())
+                .register(sm -> new Red());
+    }
+
+    @Test
+    public void testAdd() {
+        var definition = builder.compile();
+        built.set(0);
+        population = definition.newPopulation(4);
+
+        assertEquals(1, built.get());
+        assertEquals(4, population.capacity());
+        assertEquals(0, population.size());
+        assertEquals(0, population.add(Green.class));
+        assertEquals(1, population.addAll(3, Red.class));
+        assertEquals(4, population.addAll(0, Yellow.class));
+        assertEquals(4, population.size());
+
+        assertInstanceOf(Green.class, population.currentState(0));
+        assertEquals(2, population.currentOrdinal(3));
+        assertSame(population.currentState(1), population.currentState(3));
+        assertEquals(1, built.get());
+
+        assertEquals("The population has room for 0 more machines, not 1",
+                assertThrows(IllegalStateException.class, () -> population.add(Green.class)).getMessage());
+        assertEquals("Count must not be negative: -1",
+                assertThrows(IllegalArgumentException.class, () -> population.addAll(-1, Green.class)).getMessage());
+        assertEquals("State class at.base10.state.StateMachinePopulationTest$Blue not found",
+                assertThrows(IllegalArgumentException.class, () -> population.add(Blue.class)).getMessage());
+        assertEquals(4, population.size());
+    }
+
+    @Test
+    public void testAddBeyondCapacity() {
+        population = builder.compile().newPopulation(3);
+
+        assertEquals(0, population.add(Yellow.class));
+        assertEquals("The population has room for 2 more machines, not 3",
+                assertThrows(IllegalStateException.class, () -> population.addAll(3, Green.class)).getMessage());
+        assertEquals(1, population.size());
+        assertEquals(1, population.addAll(2, Green.class));
+        assertEquals(3, population.size());
+        //noinspection DataFlowIssue
+        assertEquals("initialState is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> population.add(null)).getMessage());
+    }
+
+    @Test
+    public void testTransition() {
+        population = builder.compile().newPopulation(2);
+        assertEquals(0, population.add(Green.class));
+        assertEquals(1, population.add(Green.class));
+
+        population.transition(0, Yellow.class);
+        assertInstanceOf(Yellow.class, population.currentState(0));
+        assertInstanceOf(Green.class, population.currentState(1));
+
+        population.transition(1, 2);
+        assertInstanceOf(Red.class, population.currentState(1));
+
+        assertTrue(population.compareAndTransition(0, Yellow.class, Green.class));
+        assertFalse(population.compareAndTransition(0, Yellow.class, Red.class));
+        assertInstanceOf(Green.class, population.currentState(0));
+    }
+
+    @Test
+    public void testMember() {
+        population = builder.on(Green.class, Signal.NEXT, Yellow.class).compile().newPopulation(2);
+        population.addAll(2, Green.class);
+        var member = population.member(1);
+
+        assertEquals(new StateMachinePopulation.Member<>(population, 1), member);
+        member.fire(Signal.NEXT);
+        assertInstanceOf(Yellow.class, member.currentState());
+        member.transitionToState(Red.class);
+        assertInstanceOf(Red.class, population.currentState(1));
+        assertInstanceOf(Green.class, population.currentState(0));
+    }
+
+    @Test
+    public void testUnknownMachine() {
+        population = builder.compile().newPopulation(2);
+        population.add(Green.class);
+
+        assertEquals("Index 1 out of bounds for length 1",
+                assertThrows(IndexOutOfBoundsException.class, () -> population.currentState(1)).getMessage());
+        assertEquals("Index -1 out of bounds for length 1",
+                assertThrows(IndexOutOfBoundsException.class, () -> population.transition(-1, 0)).getMessage());
+        assertEquals("Index 1 out of bounds for length 1",
+                assertThrows(IndexOutOfBoundsException.class, () -> population.member(1)).getMessage());
+        assertEquals("Index 3 out of bounds for length 3",
+                assertThrows(IndexOutOfBoundsException.class, () -> population.transition(0, 3)).getMessage());
+        assertInstanceOf(Green.class, population.currentState(0));
+    }
+
+    @Test
+    public void testRestrictedTransitions() {
+        population = builder
+                .allow(Green.class, Yellow.class)
+                .allow(Yellow.class, Red.class, (yellow, red) -> false)
+                .compile().newPopulation(1);
+        population.add(Green.class);
+
+        assertEquals("Transition from Green to Red is not allowed",
+                assertThrows(IllegalStateException.class, () -> population.transition(0, Red.class)).getMessage());
+        assertFalse(population.compareAndTransition(0, Yellow.class, Red.class));
+        assertTrue(population.compareAndTransition(0, Green.class, Yellow.class));
+        assertEquals("Transition from Yellow to Red was rejected by its guard",
+                assertThrows(IllegalStateException.class,
+                        () -> population.compareAndTransition(0, Yellow.class, Red.class)).getMessage());
+        assertInstanceOf(Yellow.class, population.currentState(0));
+    }
+
+    @Test
+    public void testFire() {
+        population = builder
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Yellow.class, Signal.NEXT, Red.class)
+                .on(Red.class, Signal.NEXT, Green.class)
+                .on(Yellow.class, Signal.STOP, Red.class)
+                .compile().newPopulation(2);
+        population.addAll(2, Green.class);
+
+        population.fire(0, Signal.NEXT);
+        assertInstanceOf(Yellow.class, population.currentState(0));
+        population.fire(0, Signal.STOP);
+        population.fire(0, Signal.NEXT);
+        assertInstanceOf(Green.class, population.currentState(0));
+
+        assertEquals("Event STOP is not handled by Green",
+                assertThrows(IllegalStateException.class, () -> population.fire(1, Signal.STOP)).getMessage());
+        assertInstanceOf(Green.class, population.currentState(1));
+    }
+
+    @Test
+    public void testFireIgnoredOrRejected() {
+        population = builder
+                .allow(Green.class, Yellow.class, (green, yellow) -> false)
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .unhandledEvents(UnhandledEventPolicy.IGNORE)
+                .compile().newPopulation(1);
+        population.add(Green.class);
+
+        population.fire(0, Signal.STOP);
+        assertEquals("Transition from Green to Yellow was rejected by its guard",
+                assertThrows(IllegalStateException.class, () -> population.fire(0, Signal.NEXT)).getMessage());
+        assertInstanceOf(Green.class, population.currentState(0));
+    }
+
+    @Test
+    public void testRetryAfterInterference() {
+        population = builder
+                .allow(Green.class, Yellow.class, (green, yellow) -> {
+                    if (interfere >= 0) {
+                        long id = interfere;
+                        interfere = -1;
+                        population.transition(id, Red.class);
+                    }
+                    return true;
+                })
+                .allow(Green.class, Red.class)
+                .allow(Red.class, Yellow.class)
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Red.class, Signal.NEXT, Yellow.class)
+                .compile().newPopulation(3);
+        population.addAll(3, Green.class);
+
+        interfere = 0;
+        population.transition(0, Yellow.class);
+        assertInstanceOf(Yellow.class, population.currentState(0));
+
+        interfere = 1;
+        assertFalse(population.compareAndTransition(1, Green.class, Yellow.class));
+        assertInstanceOf(Red.class, population.currentState(1));
+
+        interfere = 2;
+        population.fire(2, Signal.NEXT);
+        assertInstanceOf(Yellow.class, population.currentState(2));
+    }
+
+    @Test
+    public void testNewPopulation() {
+        var definition = builder.compile();
+
+        assertEquals(0, definition.newPopulation(0).capacity());
+        assertSame(definition, definition.newPopulation(0).getDefinition());
+        assertEquals("Capacity must not be negative: -1",
+                assertThrows(IllegalArgumentException.class, () -> definition.newPopulation(-1)).getMessage());
+        assertEquals("Populations cannot defer unhandled events",
+                assertThrows(UnsupportedOperationException.class, () -> builder
+                        .unhandledEvents(UnhandledEventPolicy.DEFER).compile().newPopulation(1)).getMessage());
+        assertEquals("State class at.base10.state.StateMachineTest$StateTransit refers to its state machine and cannot be shared",
+                assertThrows(IllegalArgumentException.class, () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .register(StateTransit::new)
+                        .compile().newPopulation(1)).getMessage());
+    }
+
+    @Test
+    public void testObservers() {
+        population = builder.on(Green.class, Signal.NEXT, Yellow.class).compile().newPopulation(2);
+        population.addAll(2, Green.class);
+
+        assertTrue(population.registerObserver(listener));
+        assertFalse(population.registerObserver(listener));
+        population.transition(0, Red.class);
+        assertTrue(population.compareAndTransition(0, Red.class, Yellow.class));
+        assertFalse(population.compareAndTransition(0, Red.class, Yellow.class));
+        population.fire(1, Signal.NEXT);
+        assertEquals(List.of("Green -> Red", "Red -> Yellow", "Green -> Yellow"), changes);
+
+        population.registerObserver(batchObserver);
+        assertTrue(population.unregisterObserver(listener));
+        assertFalse(population.unregisterObserver(listener));
+        population.transition(0, Green.class);
+        assertEquals(3, changes.size());
+        assertEquals(List.of(1), batches);
+        //noinspection DataFlowIssue
+        assertEquals("observer is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> population.registerObserver(null)).getMessage());
+    }
+
+    @Test
+    public void testTransitionAll() {
+        var tested = new AtomicInteger();
+        population = builder.compile().newPopulation(2 * CHUNK + 1);
+        population.addAll(CHUNK, Green.class);
+        population.addAll(CHUNK, Yellow.class);
+        population.registerObserver(batchObserver);
+        population.registerObserver(listener);
+
+        assertEquals(CHUNK, population.transitionAll(state -> tested.incrementAndGet() > 0 && state instanceof Green,
+                Red.class));
+        assertEquals(3, tested.get());
+        assertInstanceOf(Red.class, population.currentState(CHUNK - 1));
+        assertInstanceOf(Yellow.class, population.currentState(CHUNK));
+        assertEquals(List.of(CHUNK), batches);
+        assertEquals(CHUNK, changes.size());
+        assertEquals("Green -> Red", changes.get(0));
+
+        population.add(Green.class);
+        assertEquals(2 * CHUNK, population.transitionAll(state -> !(state instanceof Green), Green.class));
+        assertEquals(List.of(CHUNK / 2, CHUNK / 2, CHUNK, CHUNK), batches.stream().sorted().toList());
+    }
+
+    @Test
+    public void testTransitionAllRestricted() {
+        var guarded = new AtomicInteger();
+        population = builder
+                .allow(Yellow.class, Red.class, (yellow, red) -> guarded.incrementAndGet() < 0)
+                .allow(Yellow.class, Green.class)
+                .allow(Red.class, Green.class, (red, green) -> guarded.incrementAndGet() > 0)
+                .compile().newPopulation(4);
+        population.add(Green.class);
+        population.addAll(2, Yellow.class);
+        population.add(Red.class);
+        population.registerObserver(batchObserver);
+
+        assertEquals(0, population.transitionAll(state -> !(state instanceof Red), Red.class));
+        assertEquals(1, guarded.get());
+        assertEquals(List.of(), batches);
+        assertEquals(3, population.transitionAll(state -> true, Green.class));
+        assertEquals(2, guarded.get());
+        assertInstanceOf(Green.class, population.currentState(2));
+        assertInstanceOf(Green.class, population.currentState(3));
+        assertEquals(List.of(3), batches);
+    }
+
+    @Test
+    public void testApplyEvent() {
+        population = builder
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Yellow.class, Signal.NEXT, Red.class)
+                .compile().newPopulation(3 * CHUNK);
+        population.addAll(3 * CHUNK, Green.class);
+        population.registerObserver(batchObserver);
+
+        assertEquals(3 * CHUNK - 1, population.applyEvent(1, 3 * CHUNK, Signal.NEXT));
+        assertInstanceOf(Green.class, population.currentState(0));
+        assertInstanceOf(Yellow.class, population.currentState(1));
+        assertInstanceOf(Yellow.class, population.currentState(3 * CHUNK - 1));
+        assertEquals(List.of(CHUNK * 3 / 4 - 1, CHUNK * 3 / 4, CHUNK * 3 / 4, CHUNK * 3 / 4),
+                batches.stream().sorted().toList());
+
+        batches.clear();
+        assertEquals(2, population.applyEvent(0, 2, Signal.NEXT));
+        assertEquals(0, population.applyEvent(1, 2, Signal.STOP));
+        assertEquals(0, population.applyEvent(1, 1, Signal.NEXT));
+        assertInstanceOf(Yellow.class, population.currentState(0));
+        assertInstanceOf(Red.class, population.currentState(1));
+        assertEquals(List.of(2), batches);
+
+        assertEquals("Range [0, 12289) out of bounds for length 12288",
+                assertThrows(IndexOutOfBoundsException.class,
+                        () -> population.applyEvent(0, 3 * CHUNK + 1, Signal.NEXT)).getMessage());
+        assertEquals("Unknown event Event.INCREMENT",
+                assertThrows(IllegalArgumentException.class,
+                        () -> population.applyEvent(0, 1, EventTableTest.Event.INCREMENT)).getMessage());
+    }
+
+    @Test
+    public void testBulkOperationsInPool() throws InterruptedException {
+        var threads = ConcurrentHashMap.<String>newKeySet();
+        population = builder
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .compile().newPopulation(2 * CHUNK);
+        population.addAll(2 * CHUNK, Green.class);
+        population.registerObserver((BatchObserver<Light>) events -> threads.add(Thread.currentThread().getName()));
+        var pool = new ForkJoinPool(2, forkJoinPool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("bulk-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        try {
+            assertEquals(2 * CHUNK, population.applyEvent(0, 2 * CHUNK, Signal.NEXT, pool));
+            assertEquals(2 * CHUNK, population.transitionAll(state -> true, Green.class, pool));
+        } finally {
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        assertFalse(threads.isEmpty());
+        assertTrue(threads.stream().allMatch(name -> name.startsWith("bulk-")), threads::toString);
+    }
+
+    @Test
+    public void testApplyEventObserved() {
+        var observed = new ArrayList<StateChangeEvent<Light>>();
+        population = builder
+                .allow(Green.class, Yellow.class, (green, yellow) -> false)
+                .allow(Yellow.class, Red.class)
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Yellow.class, Signal.NEXT, Red.class)
+                .compile().newPopulation(2);
+        population.add(Green.class);
+        population.add(Yellow.class);
+        population.registerObserver((Observer<Light>) observed::add);
+
+        assertEquals(1, population.applyEvent(0, 2, Signal.NEXT));
+        assertInstanceOf(Green.class, population.currentState(0));
+        assertEquals(1, observed.size());
+        assertInstanceOf(Yellow.class, observed.get(0).previous());
+        assertInstanceOf(Red.class, observed.get(0).current());
+    }
+
+    @Test
+    public void testStoreUpdateRetries() {
+        var store = new HeapOrdinalStore(1);
+        var interfered = new AtomicInteger();
+
+        assertEquals(5, store.getAndUpdate(0, ordinal -> {
+            if (interfered.getAndIncrement() == 0) {
+                store.set(0, 5);
+            }
+            return ordinal + 1;
+        }));
+        assertEquals(6, store.get(0));
+        assertEquals(2, interfered.get());
+    }
+}
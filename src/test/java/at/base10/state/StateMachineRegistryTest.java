@@ -0,0 +1,320 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateMachineRegistryTest {
+
+    private StateMachineDefinition<AppState> definition;
+    private StateMachineRegistry<Integer, AppState> registry;
+
+    @BeforeEach
+    public void setUp() {
+        definition = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .compile();
+        registry = StateMachineRegistry.start(definition, StateTransit.class, 4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        registry.close();
+    }
+
+    private static String threadOf(StateMachineRegistry<Integer, AppState> registry, int id) {
+        var thread = new String[1];
+        registry.submit(id, state -> thread[0] = Thread.currentThread().getName()
+                + (Thread.currentThread().isDaemon() ? " daemon" : "")).join();
+        return thread[0];
+    }
+
+    @Test
+    public void testRoutesById() {
+        assertEquals(4, registry.shards());
+        assertEquals(1, registry.shardOf(5));
+        assertEquals(3, registry.shardOf(-1));
+        assertEquals(0, registry.shardOf(8));
+
+        assertEquals("state-machine-shard-1 daemon", threadOf(registry, 5));
+        assertEquals("state-machine-shard-3 daemon", threadOf(registry, -1));
+        assertEquals("state-machine-shard-0 daemon", threadOf(registry, 8));
+        assertEquals("state-machine-shard-1 daemon", threadOf(registry, 1));
+    }
+
+    @Test
+    public void testDaemonThreads() throws InterruptedException {
+        var started = new ArrayList<StateMachineRegistry<Integer, AppState>>();
+        var starter = new Thread(() -> started.add(StateMachineRegistry.start(definition, StateTransit.class, 2)));
+        starter.setDaemon(false);
+        starter.start();
+        starter.join();
+
+        try (var registry = started.get(0)) {
+            assertEquals("state-machine-shard-1 daemon", threadOf(registry, 1));
+        }
+    }
+
+    @Test
+    public void testOneMachinePerId() {
+        assertInstanceOf(StateInc.class, registry.submitTransition(1, StateInc.class).join());
+        assertInstanceOf(StateSquare.class, registry.submitTransition(5, StateSquare.class).join());
+
+        assertInstanceOf(StateInc.class, registry.submit(1, state -> {
+        }).join());
+        assertInstanceOf(StateTransit.class, registry.submit(2, state -> {
+        }).join());
+        assertTrue(registry.remove(1).join());
+        assertFalse(registry.remove(1).join());
+        assertInstanceOf(StateTransit.class, registry.submit(1, state -> {
+        }).join());
+        assertInstanceOf(StateSquare.class, registry.submit(5, state -> {
+        }).join());
+    }
+
+    @Test
+    public void testHandlerSeesCurrentState() {
+        var seen = new ArrayList<AppState>();
+        registry.submitTransition(3, StateSquare.class);
+
+        var result = registry.submit(3, seen::add).join();
+
+        assertEquals(List.of(result), seen);
+        assertInstanceOf(StateSquare.class, result);
+    }
+
+    @Test
+    public void testRequestsRunInOrderOnTheirShard() throws InterruptedException {
+        var threads = Collections.synchronizedSet(new HashSet<String>());
+        var order = Collections.synchronizedList(new ArrayList<Integer>());
+        var producers = new ArrayList<Thread>();
+        for (int p = 0; p < 4; p++) {
+            int producer = p;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    int sequence = producer * 1000 + i;
+                    registry.submit(4 * i, state -> {
+                        threads.add(Thread.currentThread().getName());
+                        order.add(sequence);
+                    });
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for (var producer : producers) {
+            producer.join();
+        }
+        registry.remove(0).join();
+
+        assertEquals(Set.of("state-machine-shard-0"), threads);
+        assertEquals("state-machine-shard-0 daemon", threadOf(registry, 0));
+        assertEquals(2000, order.size());
+        for (int p = 0; p < 4; p++) {
+            int producer = p;
+            var own = order.stream().filter(sequence -> sequence / 1000 == producer).toList();
+            assertEquals(IntStream.range(0, 500).map(i -> producer * 1000 + i).boxed().toList(), own);
+        }
+    }
+
+    @Test
+    public void testFailingHandler() {
+        var failure = new IllegalStateException("failed");
+
+        var result = registry.submit(1, state -> {
+            throw failure;
+        });
+
+        assertSame(failure, assertThrows(CompletionException.class, result::join).getCause());
+        assertInstanceOf(StateTransit.class, registry.submit(1, state -> {
+        }).join());
+    }
+
+    @Test
+    public void testFailingHandlerWithError() throws InterruptedException {
+        var error = new AssertionError("handler error");
+        var uncaught = new CountDownLatch(1);
+        var thrown = new ArrayList<Throwable>();
+        ThreadFactory threadFactory = task -> {
+            var thread = new Thread(task);
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                thrown.add(e);
+                uncaught.countDown();
+            });
+            return thread;
+        };
+        try (var registry = StateMachineRegistry.<Integer, AppState>start(definition, StateTransit.class, 1, threadFactory)) {
+            var blocked = new CountDownLatch(1);
+            registry.submit(1, state -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            var failed = registry.submit(1, state -> {
+                throw error;
+            });
+            var next = registry.submitTransition(1, StateSquare.class);
+            blocked.countDown();
+
+            assertSame(error, assertThrows(CompletionException.class, failed::join).getCause());
+            assertInstanceOf(StateSquare.class, next.join());
+            assertTrue(uncaught.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of(error), thrown);
+        }
+    }
+
+    @Test
+    public void testFailingFactory() {
+        var failing = StateMachine.builder(AppState.class)
+                .register(StateTransit.class, sm -> {
+                    throw new IllegalStateException("no state");
+                })
+                .compile();
+        try (var registry = StateMachineRegistry.<String, AppState>start(failing, StateTransit.class, 1)) {
+            assertEquals("no state", assertThrows(CompletionException.class,
+                    () -> registry.submit("id", state -> {
+                    }).join()).getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseWaitsForRequests() {
+        var slow = registry.submit(2, state -> sleep(50));
+        var next = registry.submitTransition(2, StateInc.class);
+
+        registry.close();
+
+        assertTrue(slow.isDone());
+        assertInstanceOf(StateInc.class, next.getNow(null));
+        for (int i = 0; i < 2; i++) {
+            var rejected = registry.submit(2, state -> {
+            });
+            assertEquals("Registry is closed", assertThrows(CompletionException.class, rejected::join)
+                    .getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testInterruptedClose() throws InterruptedException {
+        var latch = new CountDownLatch(1);
+        var blocked = registry.submit(1, state -> await(latch));
+
+        Thread.currentThread().interrupt();
+        registry.close();
+
+        assertTrue(Thread.interrupted());
+        assertFalse(blocked.isDone());
+        latch.countDown();
+        blocked.join();
+    }
+
+    @Test
+    public void testThreadFactory() {
+        var created = new ArrayList<Thread>();
+        ThreadFactory threadFactory = runnable -> {
+            var thread = new Thread(runnable, "custom-" + created.size());
+            thread.setDaemon(true);
+            created.add(thread);
+            return thread;
+        };
+
+        try (var registry = StateMachineRegistry.<Integer, AppState>start(definition, StateTransit.class, 2, threadFactory)) {
+            var thread = new String[1];
+            registry.submit(3, state -> thread[0] = Thread.currentThread().getName()).join();
+
+            assertEquals(2, created.size());
+            assertEquals("custom-1", thread[0]);
+        }
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertEquals("Shards must be positive, was 0", assertThrows(IllegalArgumentException.class,
+                () -> StateMachineRegistry.start(definition, StateTransit.class, 0)).getMessage());
+        assertEquals("State " + AppState.class + " not found", assertThrows(IllegalArgumentException.class,
+                () -> StateMachineRegistry.start(definition, AppState.class, 1)).getMessage());
+        assertEquals("State " + AppState.class + " not found", assertThrows(IllegalArgumentException.class,
+                () -> registry.submitTransition(1, AppState.class)).getMessage());
+        try (var single = StateMachineRegistry.<Integer, AppState>start(definition, StateTransit.class, 1)) {
+            assertEquals(0, single.shardOf(7));
+        }
+    }
+
+    @Test
+    public void testThreadSafeDefinitions() {
+        var concurrent = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .concurrent()
+                .compile();
+        var mailbox = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .mailbox(Runnable::run)
+                .compile();
+        assertEquals("Definition must not be built with concurrent() or mailbox()",
+                assertThrows(IllegalArgumentException.class,
+                        () -> StateMachineRegistry.start(concurrent, StateTransit.class, 1)).getMessage());
+        assertEquals("Definition must not be built with concurrent() or mailbox()",
+                assertThrows(IllegalArgumentException.class,
+                        () -> StateMachineRegistry.start(mailbox, StateTransit.class, 1)).getMessage());
+    }
+
+    @Test
+    public void testNullArguments() {
+        assertEquals("definition is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> StateMachineRegistry.start(null, StateTransit.class, 1)).getMessage());
+        assertEquals("initialState is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> StateMachineRegistry.start(definition, null, 1)).getMessage());
+        assertEquals("threadFactory is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> StateMachineRegistry.start(definition, StateTransit.class, 1, null)).getMessage());
+        assertEquals("id is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> registry.shardOf(null)).getMessage());
+        assertEquals("id is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> registry.submit(null, state -> {
+                })).getMessage());
+        assertEquals("handler is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> registry.submit(1, null)).getMessage());
+        assertEquals("id is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> registry.submitTransition(null, StateInc.class)).getMessage());
+        assertEquals("state is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> registry.submitTransition(1, null)).getMessage());
+        assertEquals("id is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> registry.remove(null)).getMessage());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
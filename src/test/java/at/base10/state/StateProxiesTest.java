@@ -0,0 +1,99 @@
+package at.base10.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateProxiesTest {
+
+    public interface Operation {
+        int apply(int value);
+    }
+
+    interface Negation {
+        int negate(int value);
+    }
+
+    private interface Inversion {
+        int invert(int value);
+    }
+
+    public record Add(int amount) implements Operation {
+        @Override
+        public int apply(int value) {
+            return value + amount;
+        }
+    }
+
+    @Test
+    public void testFollowsSupplier() {
+        var target = new AtomicReference<Operation>(new Add(1));
+        var proxy = StateProxies.create(Operation.class, target::get);
+
+        assertEquals(2, proxy.apply(1));
+        target.set(new Add(5));
+        assertEquals(6, proxy.apply(1));
+    }
+
+    @Test
+    public void testTargetNotImplementingInterface() {
+        Supplier<Object> target = Object::new;
+        var proxy = StateProxies.create(Operation.class, target);
+
+        assertThrows(ClassCastException.class, () -> proxy.apply(1));
+    }
+
+    @Test
+    public void testCachesProxyClass() {
+        var first = StateProxies.create(Operation.class, () -> new Add(1));
+        var second = StateProxies.create(Operation.class, () -> new Add(2));
+
+        assertTrue(first.getClass().isHidden());
+        assertSame(first.getClass(), second.getClass());
+        assertNotSame(first, second);
+        assertEquals(2, first.apply(1));
+        assertEquals(3, second.apply(1));
+    }
+
+    @Test
+    public void testDefine() {
+        assertNotNull(StateProxies.define(Operation.class));
+        assertNull(StateProxies.define(IntUnaryOperator.class));
+        assertNull(StateProxies.define(Add.class));
+        assertNull(StateProxies.define(StateMachineTest.AppState.class));
+    }
+
+    @Test
+    public void testFallbackForClosedPackage() {
+        var proxy = StateProxies.create(IntUnaryOperator.class, () -> (IntUnaryOperator) value -> value + 1);
+
+        assertTrue(Proxy.isProxyClass(proxy.getClass()));
+        assertEquals(3, proxy.applyAsInt(2));
+    }
+
+    @Test
+    public void testNonPublicInterfaces() {
+        var negation = StateProxies.create(Negation.class, () -> (Negation) value -> -value);
+        var inversion = StateProxies.create(Inversion.class, () -> (Inversion) value -> ~value);
+
+        assertEquals(-2, negation.negate(2));
+        assertEquals(-3, inversion.invert(2));
+        assertSame(negation.getClass(), StateProxies.create(Negation.class, () -> null).getClass());
+    }
+
+    @Test
+    public void testNoInterface() {
+        assertThrows(IllegalArgumentException.class, () -> StateProxies.create(Add.class, () -> new Add(1)));
+    }
+
+    @Test
+    public void testSealedInterface() {
+        assertThrows(IllegalArgumentException.class,
+                () -> StateProxies.create(StateMachineTest.AppState.class, StateMachineTest.StateInc::new));
+    }
+}
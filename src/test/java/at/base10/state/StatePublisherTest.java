@@ -0,0 +1,484 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.StatePublisher.OverflowPolicy;
+import at.base10.state.observer.StateChangeEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatePublisherTest {
+
+    private static StateMachine<AppState> stateMachine() {
+        return StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .build(StateTransit.class);
+    }
+
+    private static String name(AppState state) {
+        return state.getClass().getSimpleName();
+    }
+
+    /**
+     * Records the signals it receives as strings and keeps its subscription.
+     */
+    private static class Recorder implements Flow.Subscriber<StateChangeEvent<AppState>> {
+        final List<String> signals = Collections.synchronizedList(new ArrayList<>());
+        Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            signals.add("subscribe");
+        }
+
+        @Override
+        public void onNext(StateChangeEvent<AppState> item) {
+            signals.add(name(item.previous()) + "->" + name(item.current()));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            signals.add("error:" + throwable.getMessage());
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("complete");
+        }
+    }
+
+    private static Recorder subscribe(Flow.Publisher<StateChangeEvent<AppState>> publisher) {
+        var recorder = new Recorder();
+        publisher.subscribe(recorder);
+        return recorder;
+    }
+
+    private static int observers(StateMachine<AppState> stateMachine) {
+        return ((AbstractStateMachine<AppState>) stateMachine).observerEntries().size();
+    }
+
+    @Test
+    public void testDeliversRequested() {
+        var stateMachine = stateMachine();
+        var recorder = subscribe(stateMachine.publisher(8, OverflowPolicy.DROP_OLDEST));
+
+        recorder.subscription.request(2);
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateTransit.class);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateInc->StateSquare"), recorder.signals);
+
+        recorder.subscription.request(1);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateInc->StateSquare",
+                "StateSquare->StateTransit"), recorder.signals);
+    }
+
+    @Test
+    public void testBuffersWithoutDemand() {
+        var stateMachine = stateMachine();
+        var recorder = subscribe(StatePublisher.of(stateMachine, 8, OverflowPolicy.CONFLATE));
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+
+        assertEquals(List.of("subscribe"), recorder.signals);
+
+        recorder.subscription.request(5);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateSquare"), recorder.signals);
+
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateSquare", "StateSquare->StateInc"), recorder.signals);
+    }
+
+    @Test
+    public void testConflatesToLatestState() {
+        var stateMachine = stateMachine();
+        var recorder = subscribe(stateMachine.publisher(1, OverflowPolicy.CONFLATE));
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateInc.class);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc"), recorder.signals);
+    }
+
+    @Test
+    public void testDropsOldest() {
+        var stateMachine = stateMachine();
+        var recorder = subscribe(stateMachine.publisher(2, OverflowPolicy.DROP_OLDEST));
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateTransit.class);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(List.of("subscribe", "StateInc->StateSquare", "StateSquare->StateTransit"), recorder.signals);
+    }
+
+    @Test
+    public void testBufferWrapsAround() {
+        var stateMachine = stateMachine();
+        var recorder = subscribe(stateMachine.publisher(2, OverflowPolicy.DROP_OLDEST));
+
+        recorder.subscription.request(1);
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateTransit.class);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateInc->StateSquare",
+                "StateSquare->StateTransit"), recorder.signals);
+    }
+
+    @Test
+    public void testRequestsFromAnotherThread() throws InterruptedException {
+        var stateMachine = stateMachine();
+        var threads = Collections.synchronizedList(new ArrayList<Thread>());
+        var recorder = new Recorder() {
+            @Override
+            public void onNext(StateChangeEvent<AppState> item) {
+                threads.add(Thread.currentThread());
+                super.onNext(item);
+            }
+        };
+        stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+
+        stateMachine.transitionToState(StateInc.class);
+        var requesting = new Thread(() -> recorder.subscription.request(1));
+        requesting.start();
+        requesting.join();
+
+        assertEquals(List.of(requesting), threads);
+
+        stateMachine.transitionToState(StateSquare.class);
+        recorder.subscription.cancel();
+        var cancelled = new Thread(() -> recorder.subscription.request(1));
+        cancelled.start();
+        cancelled.join();
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc"), recorder.signals);
+    }
+
+    @Test
+    public void testMergesMachines() {
+        var first = stateMachine();
+        var second = stateMachine();
+        var recorder = subscribe(StatePublisher.merge(List.of(first, second), 8, OverflowPolicy.DROP_OLDEST));
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        first.transitionToState(StateInc.class);
+        second.transitionToState(StateSquare.class);
+        first.transitionToState(StateTransit.class);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateTransit->StateSquare",
+                "StateInc->StateTransit"), recorder.signals);
+    }
+
+    @Test
+    public void testConflatesPerMachine() {
+        var first = stateMachine();
+        var second = stateMachine();
+        var third = stateMachine();
+        var recorder = subscribe(StatePublisher.merge(List.of(first, second, third), 3, OverflowPolicy.CONFLATE));
+
+        first.transitionToState(StateInc.class);
+        second.transitionToState(StateInc.class);
+        third.transitionToState(StateInc.class);
+        second.transitionToState(StateSquare.class);
+        third.transitionToState(StateSquare.class);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateTransit->StateSquare",
+                "StateTransit->StateSquare"), recorder.signals);
+    }
+
+    @Test
+    public void testConflatesNewestOfMachine() {
+        var first = stateMachine();
+        var second = stateMachine();
+        var recorder = subscribe(StatePublisher.merge(List.of(first, second), 3, OverflowPolicy.CONFLATE));
+
+        first.transitionToState(StateInc.class);
+        second.transitionToState(StateInc.class);
+        first.transitionToState(StateSquare.class);
+        first.transitionToState(StateTransit.class);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateTransit", "StateTransit->StateInc"), recorder.signals);
+    }
+
+    @Test
+    public void testDropsOldestOfOtherMachine() {
+        var first = stateMachine();
+        var second = stateMachine();
+        var recorder = subscribe(StatePublisher.merge(List.of(first, second), 1, OverflowPolicy.CONFLATE));
+
+        first.transitionToState(StateInc.class);
+        second.transitionToState(StateSquare.class);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateSquare"), recorder.signals);
+    }
+
+    @Test
+    public void testDeliversAfterOnSubscribe() {
+        var stateMachine = stateMachine();
+        var recorder = new Recorder() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1);
+                stateMachine.transitionToState(StateInc.class);
+                super.onSubscribe(subscription);
+            }
+        };
+
+        stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc"), recorder.signals);
+    }
+
+    @Test
+    public void testRequestingFromOnNextDoesNotRecurse() {
+        var stateMachine = stateMachine();
+        var depth = new AtomicInteger();
+        var maxDepth = new AtomicInteger();
+        var recorder = new Recorder() {
+            @Override
+            public void onNext(StateChangeEvent<AppState> item) {
+                maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+                super.onNext(item);
+                subscription.request(1);
+                depth.decrementAndGet();
+            }
+        };
+        stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateTransit.class);
+        recorder.subscription.request(1);
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateInc->StateSquare",
+                "StateSquare->StateTransit", "StateTransit->StateInc"), recorder.signals);
+        assertEquals(1, maxDepth.get());
+    }
+
+    @Test
+    public void testUnboundedDemandDoesNotOverflow() {
+        var stateMachine = stateMachine();
+        var recorder = subscribe(stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST));
+
+        recorder.subscription.request(1);
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.subscription.request(Long.MAX_VALUE);
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "StateInc->StateSquare"), recorder.signals);
+    }
+
+    @Test
+    public void testCancel() {
+        var first = stateMachine();
+        var second = stateMachine();
+        var recorder = subscribe(StatePublisher.merge(List.of(first, second), 4, OverflowPolicy.DROP_OLDEST));
+
+        assertEquals(1, observers(first));
+        assertEquals(1, observers(second));
+
+        recorder.subscription.request(1);
+        recorder.subscription.cancel();
+        first.transitionToState(StateInc.class);
+        recorder.subscription.cancel();
+
+        assertEquals(List.of("subscribe"), recorder.signals);
+        assertEquals(0, observers(first));
+        assertEquals(0, observers(second));
+    }
+
+    @Test
+    public void testCancelFromOnNextDropsBuffered() {
+        var stateMachine = stateMachine();
+        var recorder = new Recorder() {
+            @Override
+            public void onNext(StateChangeEvent<AppState> item) {
+                super.onNext(item);
+                subscription.cancel();
+            }
+        };
+        stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        recorder.subscription.request(2);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc"), recorder.signals);
+    }
+
+    @Test
+    public void testFailingSubscriberIsCancelled() {
+        var stateMachine = stateMachine();
+        var recorder = new Recorder() {
+            @Override
+            public void onNext(StateChangeEvent<AppState> item) {
+                super.onNext(item);
+                throw new IllegalStateException("failed");
+            }
+        };
+        stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        recorder.subscription.request(2);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc"), recorder.signals);
+        assertEquals(0, observers(stateMachine));
+    }
+
+    @Test
+    public void testInvalidDemand() {
+        for (long demand : new long[]{0, -1}) {
+            var stateMachine = stateMachine();
+            var recorder = subscribe(stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST));
+
+            recorder.subscription.request(demand);
+            stateMachine.transitionToState(StateInc.class);
+            recorder.subscription.request(1);
+
+            assertEquals(List.of("subscribe", "error:Demand must be positive, was " + demand), recorder.signals);
+            assertEquals(0, observers(stateMachine));
+        }
+    }
+
+    @Test
+    public void testInvalidDemandWaitsForOnNext() throws InterruptedException {
+        var stateMachine = stateMachine();
+        var delivering = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var recorder = new Recorder() {
+            @Override
+            public void onNext(StateChangeEvent<AppState> item) {
+                delivering.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onNext(item);
+            }
+        };
+        stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+        recorder.subscription.request(1);
+        var transitioning = new Thread(() -> stateMachine.transitionToState(StateInc.class));
+        transitioning.start();
+        delivering.await();
+
+        recorder.subscription.request(0);
+        assertEquals(List.of("subscribe"), recorder.signals);
+        release.countDown();
+        transitioning.join();
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc", "error:Demand must be positive, was 0"),
+                recorder.signals);
+        assertEquals(0, observers(stateMachine));
+    }
+
+    @Test
+    public void testSubscribersAreIndependent() {
+        var stateMachine = stateMachine();
+        var publisher = stateMachine.publisher(4, OverflowPolicy.DROP_OLDEST);
+        var fast = subscribe(publisher);
+        var slow = subscribe(publisher);
+
+        fast.subscription.request(Long.MAX_VALUE);
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("subscribe", "StateTransit->StateInc"), fast.signals);
+        assertEquals(List.of("subscribe"), slow.signals);
+    }
+
+    @Test
+    public void testConcurrentTransitions() throws InterruptedException {
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .concurrent()
+                .build(StateTransit.class);
+        var delivering = new AtomicBoolean();
+        var overlapped = new AtomicBoolean();
+        var received = new AtomicInteger();
+        var recorder = new Recorder() {
+            @Override
+            public void onNext(StateChangeEvent<AppState> item) {
+                overlapped.compareAndSet(false, !delivering.compareAndSet(false, true));
+                received.incrementAndGet();
+                Thread.yield();
+                delivering.set(false);
+            }
+        };
+        stateMachine.publisher(100_000, OverflowPolicy.DROP_OLDEST).subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        var start = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        Consumer<Class<? extends AppState>> transitions = state -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < 1000; i++) {
+                stateMachine.transitionToState(state);
+            }
+        };
+        threads.add(new Thread(() -> transitions.accept(StateInc.class)));
+        threads.add(new Thread(() -> transitions.accept(StateSquare.class)));
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(2000, received.get());
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        var stateMachine = stateMachine();
+
+        assertEquals("Capacity must be positive, was 0", assertThrows(IllegalArgumentException.class,
+                () -> stateMachine.publisher(0, OverflowPolicy.CONFLATE)).getMessage());
+        assertEquals("policy is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> stateMachine.publisher(1, null)).getMessage());
+        assertEquals("stateMachine is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> StatePublisher.of(null, 1, OverflowPolicy.CONFLATE)).getMessage());
+        assertEquals("stateMachines is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> StatePublisher.merge(null, 1, OverflowPolicy.CONFLATE)).getMessage());
+        assertEquals("subscriber is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> stateMachine.publisher(1, OverflowPolicy.CONFLATE).subscribe(null)).getMessage());
+    }
+}
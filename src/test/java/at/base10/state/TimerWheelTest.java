@@ -0,0 +1,576 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.TransitionListener;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    private final List<String> transitions = new ArrayList<>();
+
+    private TimerWheel wheel = TimerWheel.create(Duration.ofMillis(10), 4);
+
+    private StateMachineBuilder<AppState> builder() {
+        return StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .timerWheel(wheel);
+    }
+
+    private StateMachine<AppState> observed(StateMachine<AppState> stateMachine) {
+        stateMachine.registerObserver((TransitionListener<AppState>) (previous, current) -> transitions.add(
+                previous.getClass().getSimpleName() + " -> " + current.getClass().getSimpleName()));
+        return stateMachine;
+    }
+
+    @Test
+    public void testTimeout() {
+        var stateMachine = observed(builder()
+                .timeout(StateInc.class, Duration.ofMillis(25), StateTransit.class)
+                .build(StateTransit.class));
+        assertEquals(0, wheel.pendingTimeouts());
+
+        stateMachine.transitionToState(StateInc.class);
+        assertEquals(1, wheel.pendingTimeouts());
+        // 25ms are rounded up to 3 ticks, and the current tick does not count
+        assertEquals(0, wheel.advance(3));
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+        assertEquals(1, wheel.advance(1));
+
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertEquals(0, wheel.pendingTimeouts());
+        assertEquals(List.of("StateTransit -> StateInc", "StateInc -> StateTransit"), transitions);
+    }
+
+    @Test
+    public void testInitialStateTimesOut() {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(20), StateSquare.class)
+                .timeout(StateSquare.class, Duration.ofNanos(1), StateTransit.class)
+                .compile();
+        var stateMachine = definition.newInstance(StateInc.class);
+
+        assertEquals(0, wheel.advance(2));
+        assertEquals(1, wheel.advance(1));
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertEquals(1, wheel.advance(2));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testLeavingCancels() {
+        var stateMachine = builder()
+                .timeout(StateInc.class, Duration.ofMillis(30), StateTransit.class)
+                .build(StateInc.class);
+
+        wheel.advance(2);
+        stateMachine.transitionToState(StateSquare.class);
+
+        assertEquals(0, wheel.pendingTimeouts());
+        assertEquals(0, wheel.advance(10));
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        stateMachine.transitionToState(StateTransit.class);
+        assertEquals(0, wheel.pendingTimeouts());
+    }
+
+    @Test
+    public void testReenteringRestarts() {
+        var stateMachine = builder()
+                .timeout(StateInc.class, Duration.ofMillis(30), StateTransit.class)
+                .build(StateInc.class);
+
+        assertEquals(0, wheel.advance(3));
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(1, wheel.pendingTimeouts());
+        assertEquals(0, wheel.advance(3));
+        assertEquals(1, wheel.advance(1));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testCancelsWithinBucket() {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(40), StateTransit.class)
+                .compile();
+        var machines = new ArrayList<StateMachine<AppState>>();
+        for (int i = 0; i < 4; i++) {
+            machines.add(definition.newInstance(StateInc.class));
+        }
+
+        machines.get(1).transitionToState(StateSquare.class);
+        machines.get(3).transitionToState(StateSquare.class);
+        machines.get(0).transitionToState(StateSquare.class);
+        assertEquals(1, wheel.pendingTimeouts());
+        machines.get(3).transitionToState(StateInc.class);
+        machines.get(1).transitionToState(StateInc.class);
+        machines.get(2).transitionToState(StateSquare.class);
+        assertEquals(2, wheel.pendingTimeouts());
+
+        assertEquals(2, wheel.advance(5));
+        assertEquals(List.of(StateSquare.class, StateTransit.class, StateSquare.class, StateTransit.class),
+                machines.stream().map(sm -> sm.currentState().getClass()).toList());
+    }
+
+    @Test
+    public void testFullTurnVisitsEveryBucket() {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(60), StateTransit.class)
+                .compile();
+        var machines = new ArrayList<StateMachine<AppState>>();
+        // the deadlines fall into all four buckets
+        for (int i = 0; i < 4; i++) {
+            machines.add(definition.newInstance(StateInc.class));
+            assertEquals(0, wheel.advance(1));
+        }
+
+        assertEquals(4, wheel.advance(6));
+        assertEquals(0, wheel.pendingTimeouts());
+        assertTrue(machines.stream().allMatch(sm -> sm.currentState() instanceof StateTransit));
+    }
+
+    @Test
+    public void testLongTimeoutsSurviveTurns() {
+        var shortTimeouts = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+        var longTimeouts = builder()
+                .timeout(StateInc.class, Duration.ofMillis(90), StateSquare.class)
+                .build(StateInc.class);
+
+        assertEquals(1, wheel.advance(2));
+        assertInstanceOf(StateTransit.class, shortTimeouts.currentState());
+        assertEquals(0, wheel.advance(7));
+        assertInstanceOf(StateInc.class, longTimeouts.currentState());
+        assertEquals(1, wheel.advance(1));
+        assertInstanceOf(StateSquare.class, longTimeouts.currentState());
+    }
+
+    @Test
+    public void testExpiresInOrderOfDeadlines() {
+        var early = observed(builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class));
+        var late = observed(builder()
+                .timeout(StateInc.class, Duration.ofMillis(30), StateSquare.class)
+                .build(StateInc.class));
+
+        assertEquals(2, wheel.advance(5));
+        assertInstanceOf(StateTransit.class, early.currentState());
+        assertInstanceOf(StateSquare.class, late.currentState());
+        assertEquals(List.of("StateInc -> StateTransit", "StateInc -> StateSquare"), transitions);
+    }
+
+    @Test
+    public void testVisitsOneBucketPerTick() {
+        wheel = TimerWheel.create(Duration.ofMillis(1), 1 << 22);
+        var stateMachine = builder()
+                .timeout(StateInc.class, Duration.ofSeconds(10), StateTransit.class)
+                .build(StateInc.class);
+
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(0, wheel.advance(1));
+        }
+        assertEquals(1, wheel.advance(1));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testUnlinkedTimersReleaseMachines() throws InterruptedException {
+        var neighbours = new ArrayList<WeakReference<StateMachine<AppState>>>();
+        var stateMachine = unlinkedBetween(neighbours);
+
+        for (int i = 0; i < 500 && neighbours.stream().anyMatch(neighbour -> neighbour.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertTrue(neighbours.stream().allMatch(neighbour -> neighbour.get() == null));
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+    }
+
+    /**
+     * Returns a machine whose timer was unlinked from between two others, which are only
+     * referenced by the given weak references.
+     */
+    private StateMachine<AppState> unlinkedBetween(List<WeakReference<StateMachine<AppState>>> neighbours) {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .compile();
+        var first = definition.newInstance(StateInc.class);
+        var stateMachine = definition.newInstance(StateInc.class);
+        var last = definition.newInstance(StateInc.class);
+
+        stateMachine.transitionToState(StateSquare.class);
+        first.transitionToState(StateSquare.class);
+        last.transitionToState(StateSquare.class);
+        neighbours.add(new WeakReference<>(first));
+        neighbours.add(new WeakReference<>(last));
+        return stateMachine;
+    }
+
+    @Test
+    public void testAdvancesOnAnotherThread() throws InterruptedException {
+        var stateMachine = builder()
+                .concurrent()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+
+        var advancing = new Thread(() -> wheel.advance(2));
+        advancing.start();
+        advancing.join();
+
+        // scheduling needs the lock of the wheel, which the advancing thread must have released
+        assertInstanceOf(StateInc.class, stateMachine.transitionToState(StateInc.class).currentState());
+        assertEquals(1, wheel.pendingTimeouts());
+    }
+
+    @Test
+    public void testAdvancesFarAtOnce() {
+        var stateMachine = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+
+        assertEquals(1, wheel.advance(Long.MAX_VALUE / 2));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testExpiresInOneBatch() {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .compile();
+        var machines = new ArrayList<StateMachine<AppState>>();
+        for (int i = 0; i < 40; i++) {
+            machines.add(definition.newInstance(StateInc.class));
+        }
+        var remaining = new ArrayList<Long>();
+        machines.forEach(stateMachine -> stateMachine.registerObserver((TransitionListener<AppState>) (previous, next) ->
+                remaining.add(machines.stream().filter(sm -> sm.currentState() instanceof StateInc).count())));
+
+        assertEquals(40, wheel.pendingTimeouts());
+        assertEquals(40, wheel.advance(2));
+        assertTrue(machines.stream().allMatch(sm -> sm.currentState() instanceof StateTransit));
+        assertEquals(LongStream.range(0, 40).map(i -> 39 - i).boxed().toList(), remaining);
+        assertEquals(0, wheel.advance(10));
+    }
+
+    @Test
+    public void testReenteredAfterExpiring() {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .compile();
+        var first = definition.newInstance(StateInc.class);
+        var second = definition.newInstance(StateInc.class);
+        // whichever machine expires first enters the state of the other again, which restarts its timeout
+        first.registerObserver((TransitionListener<AppState>) (previous, current) -> reenter(second));
+        second.registerObserver((TransitionListener<AppState>) (previous, current) -> reenter(first));
+
+        assertEquals(2, wheel.advance(2));
+
+        assertEquals(1, wheel.pendingTimeouts());
+        assertEquals(1, (first.currentState() instanceof StateInc ? 1 : 0) + (second.currentState() instanceof StateInc ? 1 : 0));
+        assertEquals(1, wheel.advance(2));
+        assertInstanceOf(StateTransit.class, first.currentState());
+        assertInstanceOf(StateTransit.class, second.currentState());
+    }
+
+    private static void reenter(StateMachine<AppState> stateMachine) {
+        if (stateMachine.currentState() instanceof StateInc) {
+            stateMachine.transitionToState(StateInc.class);
+        }
+    }
+
+    @Test
+    public void testLeftAfterExpiring() {
+        var definition = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .compile();
+        var first = definition.newInstance(StateInc.class);
+        var second = definition.newInstance(StateInc.class);
+        first.registerObserver((TransitionListener<AppState>) (previous, current) -> leave(second));
+        second.registerObserver((TransitionListener<AppState>) (previous, current) -> leave(first));
+
+        assertEquals(2, wheel.advance(2));
+
+        assertEquals(1, (first.currentState() instanceof StateSquare ? 1 : 0) + (second.currentState() instanceof StateSquare ? 1 : 0));
+        assertEquals(0, wheel.pendingTimeouts());
+    }
+
+    private static void leave(StateMachine<AppState> stateMachine) {
+        if (stateMachine.currentState() instanceof StateInc) {
+            stateMachine.transitionToState(StateSquare.class);
+        }
+    }
+
+    @Test
+    public void testFailingTimeoutsAreSkipped() {
+        var rejected = builder()
+                .allow(StateInc.class, StateTransit.class, (from, to) -> false)
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+        var accepted = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+
+        assertEquals(2, wheel.advance(2));
+        assertInstanceOf(StateInc.class, rejected.currentState());
+        assertInstanceOf(StateTransit.class, accepted.currentState());
+    }
+
+    @Test
+    public void testTimeoutFailingWithError() {
+        var error = new AssertionError("guard error");
+        var failing = builder()
+                .allow(StateInc.class, StateTransit.class, (from, to) -> {
+                    throw error;
+                })
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+        var accepted = builder()
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+
+        assertSame(error, assertThrows(AssertionError.class, () -> wheel.advance(2)));
+        assertInstanceOf(StateInc.class, failing.currentState());
+        assertInstanceOf(StateTransit.class, accepted.currentState());
+    }
+
+    @Test
+    public void testStartedWheelSurvivesErrors() throws InterruptedException {
+        wheel = TimerWheel.start(Duration.ofMillis(1), 16);
+        builder()
+                .allow(StateInc.class, StateTransit.class, (from, to) -> {
+                    throw new AssertionError("guard error");
+                })
+                .timeout(StateInc.class, Duration.ofMillis(1), StateTransit.class)
+                .build(StateInc.class);
+        var expiring = new AtomicReference<Thread>();
+        var expired = new CountDownLatch(1);
+        expiring(expiring, expired)
+                .timeout(StateInc.class, Duration.ofMillis(20), StateTransit.class)
+                .build(StateInc.class);
+
+        // the error of the first timeout did not cancel the ticker
+        assertTrue(expired.await(10, TimeUnit.SECONDS));
+        wheel.close();
+    }
+
+    @Test
+    public void testStartedWheelStopsOnVirtualMachineError() throws InterruptedException {
+        wheel = TimerWheel.start(Duration.ofMillis(1), 16);
+        var failed = new CountDownLatch(1);
+        builder()
+                .allow(StateInc.class, StateTransit.class, (from, to) -> {
+                    failed.countDown();
+                    throw new StackOverflowError("guard error");
+                })
+                .timeout(StateInc.class, Duration.ofMillis(1), StateTransit.class)
+                .build(StateInc.class);
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        var stateMachine = builder()
+                .timeout(StateInc.class, Duration.ofMillis(1), StateTransit.class)
+                .build(StateInc.class);
+
+        Thread.sleep(100);
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+        assertEquals(1, wheel.pendingTimeouts());
+        wheel.close();
+    }
+
+    @Test
+    public void testConcurrentSchedulingWhileAdvancing() throws InterruptedException {
+        var definition = builder()
+                .concurrent()
+                .timeout(StateInc.class, Duration.ofSeconds(10), StateTransit.class)
+                .compile();
+        var machines = new ArrayList<StateMachine<AppState>>();
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            var stateMachine = definition.newInstance(StateSquare.class);
+            machines.add(stateMachine);
+            threads.add(new Thread(() -> {
+                for (int round = 0; round < 10_000; round++) {
+                    stateMachine.transitionToState(round % 2 == 0 ? StateInc.class : StateSquare.class);
+                }
+                stateMachine.transitionToState(StateInc.class);
+            }));
+        }
+        var advancing = new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                wheel.advance(1);
+            }
+        });
+        threads.forEach(Thread::start);
+        advancing.start();
+        for (var thread : threads) {
+            thread.join();
+        }
+        advancing.join();
+
+        assertEquals(4, wheel.pendingTimeouts());
+        // the deadlines are at most 1001 ticks after the last of the 200 ticks
+        assertEquals(4, wheel.advance(1002));
+        assertTrue(machines.stream().allMatch(sm -> sm.currentState() instanceof StateTransit));
+    }
+
+    @Test
+    public void testMailbox() {
+        var stateMachine = builder()
+                .mailbox(Runnable::run)
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+        var rejected = builder()
+                .mailbox(Runnable::run)
+                .allow(StateInc.class, StateTransit.class, (from, to) -> false)
+                .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                .build(StateInc.class);
+
+        assertEquals(2, wheel.advance(2));
+        assertInstanceOf(StateTransit.class, stateMachine.currentState());
+        assertInstanceOf(StateInc.class, rejected.currentState());
+    }
+
+    @Test
+    public void testStartedWheel() throws InterruptedException {
+        var ticker = new AtomicReference<Thread>();
+        var expiring = new AtomicReference<Thread>();
+        var expired = new CountDownLatch(1);
+        wheel = TimerWheel.start(Duration.ofMillis(1), 16, runnable -> {
+            ticker.set(new Thread(runnable, "timeouts"));
+            return ticker.get();
+        });
+        var stateMachine = expiring(expiring, expired)
+                .timeout(StateInc.class, Duration.ofMillis(50), StateTransit.class)
+                .build(StateTransit.class);
+        long entered = System.nanoTime();
+        stateMachine.transitionToState(StateInc.class);
+
+        assertTrue(expired.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - entered >= TimeUnit.MILLISECONDS.toNanos(50));
+        while (!(stateMachine.currentState() instanceof StateTransit)) {
+            Thread.onSpinWait();
+        }
+        // the ticking thread does not keep the lock of the wheel
+        stateMachine.transitionToState(StateInc.class);
+        wheel.close();
+        ticker.get().join(TimeUnit.SECONDS.toMillis(10));
+
+        assertSame(ticker.get(), expiring.get());
+        assertFalse(ticker.get().isAlive());
+    }
+
+    /**
+     * Records the thread that moves the machine out of {@link StateInc} when its timeout expires.
+     * The guard is evaluated by the thread making the transition, which may not be the one
+     * notifying the observers.
+     */
+    private StateMachineBuilder<AppState> expiring(AtomicReference<Thread> thread, CountDownLatch expired) {
+        return builder()
+                .concurrent()
+                .allow(StateTransit.class, StateInc.class)
+                .allow(StateInc.class, StateTransit.class, (from, to) -> {
+                    thread.set(Thread.currentThread());
+                    expired.countDown();
+                    return true;
+                });
+    }
+
+    @Test
+    public void testDefaultThreadIsDaemon() throws InterruptedException {
+        var expiring = new AtomicReference<Thread>();
+        var expired = new CountDownLatch(1);
+        // threads inherit the daemon flag, so start the wheel from a thread that is not a daemon
+        var starter = new Thread(() -> wheel = TimerWheel.start(Duration.ofMillis(1), 4));
+        starter.setDaemon(false);
+        starter.start();
+        starter.join();
+        var stateMachine = expiring(expiring, expired)
+                .timeout(StateInc.class, Duration.ofMillis(1), StateTransit.class)
+                .build(StateTransit.class);
+        stateMachine.transitionToState(StateInc.class);
+
+        assertTrue(expired.await(10, TimeUnit.SECONDS));
+        wheel.close();
+
+        assertTrue(expiring.get().isDaemon());
+        assertEquals("state-timer-wheel", expiring.get().getName());
+    }
+
+    @Test
+    public void testWithoutTimeouts() {
+        var definition = builder().compile();
+        var stateMachine = definition.newInstance(StateInc.class);
+
+        stateMachine.transitionToState(StateSquare.class);
+        assertEquals(0, wheel.pendingTimeouts());
+        assertEquals(1, StateMachine.builder(AppState.class)
+                .register(sm -> new StateInc())
+                .timerWheel(wheel)
+                .compile()
+                .newPopulation(1)
+                .capacity());
+        wheel.close();
+    }
+
+    @Test
+    public void testInvalidTimeouts() {
+        assertEquals("Timeouts require a timer wheel", assertThrows(IllegalArgumentException.class,
+                () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .timeout(StateInc.class, Duration.ofMillis(10), StateInc.class)
+                        .compile()).getMessage());
+        assertEquals("Timeout of StateInc is already declared", assertThrows(IllegalArgumentException.class,
+                () -> builder()
+                        .timeout(StateInc.class, Duration.ofMillis(10), StateInc.class)
+                        .timeout(StateInc.class, Duration.ofMillis(20), StateTransit.class)
+                        .compile()).getMessage());
+        assertEquals("Timeout moves from StateInc to StateSquare, which is not allowed",
+                assertThrows(IllegalArgumentException.class, () -> builder()
+                        .allow(StateInc.class, StateTransit.class)
+                        .timeout(StateInc.class, Duration.ofMillis(10), StateSquare.class)
+                        .compile()).getMessage());
+        assertEquals("Timeout must be positive, was PT0S", assertThrows(IllegalArgumentException.class,
+                () -> builder().timeout(StateInc.class, Duration.ZERO, StateTransit.class)).getMessage());
+        assertEquals("Timeout must be positive, was PT-0.001S", assertThrows(IllegalArgumentException.class,
+                () -> builder().timeout(StateInc.class, Duration.ofMillis(-1), StateTransit.class)).getMessage());
+        assertEquals("after is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> builder().timeout(StateInc.class, null, StateTransit.class)).getMessage());
+        assertEquals("wheel is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> builder().timerWheel(null)).getMessage());
+        assertEquals("Populations cannot time out states", assertThrows(UnsupportedOperationException.class,
+                () -> builder()
+                        .timeout(StateInc.class, Duration.ofMillis(10), StateTransit.class)
+                        .compile()
+                        .newPopulation(1)).getMessage());
+    }
+
+    @Test
+    public void testInvalidWheels() {
+        assertEquals("Tick must be positive, was PT0S", assertThrows(IllegalArgumentException.class,
+                () -> TimerWheel.create(Duration.ZERO, 1)).getMessage());
+        assertEquals("Tick must be positive, was PT-1S", assertThrows(IllegalArgumentException.class,
+                () -> TimerWheel.start(Duration.ofSeconds(-1), 1)).getMessage());
+        assertEquals("Buckets must be positive, was 0", assertThrows(IllegalArgumentException.class,
+                () -> TimerWheel.create(Duration.ofNanos(1), 0)).getMessage());
+        assertEquals("Ticks must not be negative, was -1", assertThrows(IllegalArgumentException.class,
+                () -> TimerWheel.create(Duration.ofNanos(1), 1).advance(-1)).getMessage());
+        assertEquals(0, TimerWheel.create(Duration.ofNanos(1), 1).advance(0));
+    }
+}
@@ -0,0 +1,304 @@
+package at.base10.state;
+
+import at.base10.state.AsyncObserverDispatcher.OverflowPolicy;
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.BatchObserver;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.Subscription;
+import at.base10.state.observer.TransitionFilter;
+import at.base10.state.observer.TransitionListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransitionFilterTest {
+
+    private final List<String> events = new ArrayList<>();
+    private StateMachine<AppState> stateMachine;
+
+    @BeforeEach
+    public void setUp() {
+        stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .build(StateTransit.class);
+    }
+
+    private Observer<AppState> recorder(String name) {
+        return (TransitionListener<AppState>) (previous, current) -> events.add(
+                name + ":" + previous.getClass().getSimpleName() + "->" + current.getClass().getSimpleName());
+    }
+
+    private void visitAll() {
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateTransit.class);
+        stateMachine.transitionToState(StateSquare.class);
+        stateMachine.transitionToState(StateTransit.class);
+    }
+
+    @Test
+    public void testTargetFilter() {
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("to"));
+
+        visitAll();
+
+        assertEquals(List.of("to:StateTransit->StateInc", "to:StateSquare->StateInc"), events);
+    }
+
+    @Test
+    public void testSourceFilter() {
+        stateMachine.registerObserver(TransitionFilter.from(StateInc.class), recorder("from"));
+
+        visitAll();
+
+        assertEquals(List.of("from:StateInc->StateSquare", "from:StateInc->StateTransit"), events);
+    }
+
+    @Test
+    public void testEdgeFilter() {
+        stateMachine.registerObserver(TransitionFilter.edge(StateTransit.class, StateInc.class), recorder("transit"));
+        stateMachine.registerObserver(TransitionFilter.edge(StateSquare.class, StateInc.class), recorder("square"));
+
+        visitAll();
+
+        assertEquals(List.of("transit:StateTransit->StateInc", "square:StateSquare->StateInc"), events);
+    }
+
+    @Test
+    public void testFilteredAfterUnfiltered() {
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("to"));
+        stateMachine.registerObserver(TransitionFilter.from(StateTransit.class), recorder("from"));
+        stateMachine.registerObserver(recorder("any"));
+        stateMachine.registerObserver(TransitionFilter.any(), recorder("all"));
+
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("any:StateTransit->StateInc", "all:StateTransit->StateInc",
+                "from:StateTransit->StateInc", "to:StateTransit->StateInc"), events);
+    }
+
+    @Test
+    public void testRegistrationsPerFilter() {
+        var observer = recorder("observer");
+        var target = stateMachine.registerObserver(TransitionFilter.to(StateInc.class), observer);
+        var source = stateMachine.registerObserver(TransitionFilter.from(StateTransit.class), observer);
+
+        assertSame(target, stateMachine.registerObserver(TransitionFilter.to(StateInc.class), observer));
+        assertSame(source, stateMachine.registerObserver(TransitionFilter.from(StateTransit.class), observer));
+        assertEquals(new Subscription<>(stateMachine, observer, TransitionFilter.to(StateInc.class)), target);
+        assertEquals(List.of(source.filter(), target.filter()), ((AbstractStateMachine<AppState>) stateMachine)
+                .observerEntries().stream().map(AbstractStateMachine.ObserverEntry::filter).toList());
+
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("observer:StateTransit->StateInc", "observer:StateTransit->StateInc"), events);
+    }
+
+    @Test
+    public void testUnsubscribeKeepsOtherFilters() {
+        var observer = recorder("observer");
+        var target = stateMachine.registerObserver(TransitionFilter.to(StateInc.class), observer);
+        var edge = stateMachine.registerObserver(TransitionFilter.edge(StateSquare.class, StateInc.class), observer);
+        stateMachine.registerObserver(TransitionFilter.from(StateSquare.class), observer);
+
+        assertTrue(target.unsubscribe());
+        assertFalse(target.unsubscribe());
+        visitAll();
+
+        assertEquals(List.of("observer:StateSquare->StateInc", "observer:StateSquare->StateInc",
+                "observer:StateSquare->StateTransit"), events);
+
+        assertTrue(stateMachine.unregisterObserver(observer));
+        assertFalse(stateMachine.unregisterObserver(observer));
+        assertFalse(edge.unsubscribe());
+        events.clear();
+        visitAll();
+
+        assertEquals(List.of(), events);
+    }
+
+    @Test
+    public void testUnsubscribeKeepsOtherObservers() {
+        var subscription = stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("first"));
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("second"));
+
+        assertTrue(subscription.unsubscribe());
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("second:StateTransit->StateInc"), events);
+    }
+
+    @Test
+    public void testUnregisterObserverKeepsOthers() {
+        var first = recorder("first");
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), first);
+        stateMachine.registerObserver(TransitionFilter.to(StateInc.class), recorder("second"));
+
+        assertTrue(stateMachine.unregisterObserver(first));
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("second:StateTransit->StateInc"), events);
+    }
+
+    @Test
+    public void testUnsubscribeOfAnotherMachine() {
+        var other = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .build(StateTransit.class);
+        var subscription = stateMachine.registerObserver(TransitionFilter.to(StateSquare.class), recorder("square"));
+
+        assertFalse(other.unsubscribe(subscription));
+        assertTrue(stateMachine.unsubscribe(subscription));
+    }
+
+    @Test
+    public void testSubscriptionToAllTransitions() {
+        var observer = recorder("any");
+        var subscription = new Subscription<>(stateMachine, observer);
+
+        assertEquals(TransitionFilter.any(), subscription.filter());
+        assertSame(stateMachine.registerObserver(observer), stateMachine.registerObserver(subscription.filter(), observer));
+        assertTrue(subscription.unsubscribe());
+    }
+
+    @Test
+    public void testUnknownState() {
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .build(StateTransit.class);
+
+        assertEquals("State " + StateSquare.class + " not found", assertThrows(IllegalArgumentException.class,
+                () -> stateMachine.registerObserver(TransitionFilter.to(StateSquare.class), recorder("to"))).getMessage());
+        assertEquals("State " + StateSquare.class + " not found", assertThrows(IllegalArgumentException.class,
+                () -> stateMachine.registerObserver(TransitionFilter.from(StateSquare.class), recorder("from"))).getMessage());
+        assertEquals("State " + StateSquare.class + " not found", assertThrows(IllegalArgumentException.class,
+                () -> stateMachine.registerObserver(TransitionFilter.edge(StateSquare.class, StateInc.class),
+                        recorder("edge"))).getMessage());
+    }
+
+    @Test
+    public void testFilteredObserverWhileCreatingStates() {
+        var builder = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> {
+                    sm.registerObserver(recorder("any"));
+                    sm.registerObserver(TransitionFilter.to(StateInc.class), recorder("to"));
+                    return new StateInc();
+                });
+
+        assertEquals("Filtered observers cannot be registered while the states are created",
+                assertThrows(IllegalStateException.class, () -> builder.build(StateTransit.class)).getMessage());
+    }
+
+    @Test
+    public void testUnfilteredObserverWhileCreatingStates() {
+        var stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> {
+                    sm.registerObserver(recorder("any"));
+                    return new StateInc();
+                })
+                .build(StateTransit.class);
+
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("any:StateTransit->StateInc"), events);
+    }
+
+    @Test
+    public void testConcurrentAndMailbox() {
+        for (var builder : List.of(StateMachine.builder(AppState.class).concurrent(),
+                StateMachine.builder(AppState.class).mailbox(Runnable::run))) {
+            events.clear();
+            var stateMachine = builder
+                    .register(StateTransit::new)
+                    .register(sm -> new StateInc())
+                    .register(sm -> new StateSquare(new SquareFunction(), sm))
+                    .build(StateTransit.class);
+            stateMachine.registerObserver(TransitionFilter.from(StateInc.class), recorder("from"));
+
+            stateMachine.transitionToState(StateInc.class);
+            stateMachine.transitionToState(StateSquare.class);
+
+            assertEquals(List.of("from:StateInc->StateSquare"), events);
+        }
+    }
+
+    @Test
+    public void testDispatcherFiltersEvents() {
+        var batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        var received = Collections.synchronizedList(new ArrayList<String>());
+        try (var dispatcher = AsyncObserverDispatcher.start(16, OverflowPolicy.BLOCK)) {
+            var stateMachine = StateMachine.builder(AppState.class)
+                    .register(StateTransit::new)
+                    .register(sm -> new StateInc())
+                    .register(sm -> new StateSquare(new SquareFunction(), sm))
+                    .observerDispatcher(dispatcher)
+                    .build(StateTransit.class);
+            BatchObserver<AppState> batch = events -> batches.add(
+                    events.stream().map(event -> event.current().getClass().getSimpleName()).toList());
+            stateMachine.registerObserver(TransitionFilter.to(StateSquare.class), batch);
+            stateMachine.registerObserver(TransitionFilter.edge(StateSquare.class, StateTransit.class),
+                    (BatchObserver<AppState>) events -> batches.add(List.of("never")));
+            stateMachine.registerObserver(TransitionFilter.from(StateInc.class),
+                    event -> received.add(event.current().getClass().getSimpleName()));
+
+            stateMachine.transitionToState(StateInc.class);
+            stateMachine.transitionToState(StateSquare.class);
+            stateMachine.transitionToState(StateInc.class);
+            stateMachine.transitionToState(StateTransit.class);
+        }
+
+        assertEquals(List.of("StateSquare"), batches.stream().flatMap(List::stream).toList());
+        assertEquals(List.of("StateSquare", "StateTransit"), received);
+    }
+
+    @Test
+    public void testMatches() {
+        var transit = new StateTransit(stateMachine);
+        var inc = new StateInc();
+        var event = new StateChangeEvent<AppState>(transit, inc);
+
+        assertTrue(TransitionFilter.<AppState>any().matches(event));
+        assertTrue(TransitionFilter.<AppState>from(StateTransit.class).matches(event));
+        assertFalse(TransitionFilter.<AppState>from(StateInc.class).matches(event));
+        assertTrue(TransitionFilter.<AppState>to(StateInc.class).matches(event));
+        assertFalse(TransitionFilter.<AppState>to(StateTransit.class).matches(event));
+        assertTrue(TransitionFilter.<AppState>edge(StateTransit.class, StateInc.class).matches(event));
+        assertFalse(TransitionFilter.<AppState>edge(StateTransit.class, StateSquare.class).matches(event));
+        assertFalse(TransitionFilter.<AppState>edge(StateSquare.class, StateInc.class).matches(event));
+    }
+
+    @Test
+    public void testNullArguments() {
+        assertEquals("source is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> TransitionFilter.from(null)).getMessage());
+        assertEquals("target is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> TransitionFilter.to(null)).getMessage());
+        assertEquals("source is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> TransitionFilter.edge(null, StateInc.class)).getMessage());
+        assertEquals("target is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> TransitionFilter.edge(StateInc.class, null)).getMessage());
+        assertEquals("event is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> TransitionFilter.any().matches(null)).getMessage());
+        assertEquals("filter is marked non-null but is null", assertThrows(NullPointerException.class,
+                () -> stateMachine.registerObserver(null, recorder("null"))).getMessage());
+        assertEquals("subscription is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> stateMachine.unsubscribe(null)).getMessage());
+    }
+}
@@ -0,0 +1,412 @@
+package at.base10.state;
+
+import at.base10.state.StateMachinePopulationTest.Green;
+import at.base10.state.StateMachinePopulationTest.Light;
+import at.base10.state.StateMachinePopulationTest.Red;
+import at.base10.state.StateMachinePopulationTest.Signal;
+import at.base10.state.StateMachinePopulationTest.Yellow;
+import at.base10.state.TransitionJournal.Entry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static at.base10.state.TransitionJournal.HEADER;
+import static at.base10.state.TransitionJournal.MAX_CAPACITY;
+import static at.base10.state.TransitionJournal.RECORD;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransitionJournalTest {
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 1_000;
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private StateMachineDefinition<Light> definition;
+    private TransitionJournal<Light> journal;
+
+    /**
+     * The machine a guard moves to {@link Red} before letting its transition pass, or -1.
+     */
+    private long interfere = -1;
+
+    private StateMachinePopulation<Light> population;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        file = directory.resolve("lights.journal");
+        definition = StateMachine.builder(Light.class)
+                .register(sm -> new Green())
+                .register(sm -> new Yellow())
+                .register(sm -> new Red())
+                .allow(Green.class, Yellow.class, (green, yellow) -> {
+                    if (interfere >= 0) {
+                        long id = interfere;
+                        interfere = -1;
+                        population.transition(id, Red.class);
+                    }
+                    return true;
+                })
+                .allow(Green.class, Red.class)
+                .allow(Yellow.class, Red.class)
+                .allow(Red.class, Green.class)
+                .allow(Red.class, Yellow.class)
+                .on(Green.class, Signal.NEXT, Yellow.class)
+                .on(Yellow.class, Signal.NEXT, Red.class)
+                .on(Red.class, Signal.NEXT, Green.class)
+                .compile();
+        journal = definition.openJournal(file, 64, 0);
+        population = definition.newPopulation(8);
+    }
+
+    private static List<String> entries(TransitionJournal<?> journal) {
+        return journal.entries().map(entry -> entry.id() + ":" + entry.from() + ">" + entry.to()).toList();
+    }
+
+    private static List<Integer> ordinals(StateMachinePopulation<?> population) {
+        var ordinals = new ArrayList<Integer>();
+        for (int id = 0; id < population.size(); id++) {
+            ordinals.add(population.currentOrdinal(id));
+        }
+        return ordinals;
+    }
+
+    @Test
+    public void testRecordAndReplay() {
+        population.add(Red.class);
+        population.attachJournal(journal);
+        assertEquals(1, population.addAll(3, Green.class));
+        population.transition(1, Yellow.class);
+        population.fire(2, Signal.NEXT);
+        assertFalse(population.compareAndTransition(3, Red.class, Green.class));
+        assertTrue(population.compareAndTransition(3, Green.class, Red.class));
+        assertEquals(2, population.transitionAll(state -> state instanceof Yellow, Red.class));
+        assertEquals(3, population.applyEvent(1, 4, Signal.NEXT));
+
+        assertEquals(List.of("1:-1>0", "2:-1>0", "3:-1>0", "1:0>1", "2:0>1", "3:0>2",
+                "1:1>2", "2:1>2", "1:2>0", "2:2>0", "3:2>0"), entries(journal));
+        assertEquals(11, journal.size());
+        assertEquals(List.of(2, 0, 0, 0), ordinals(population));
+
+        var replayed = definition.newPopulation(4, true);
+        replayed.add(Red.class);
+        assertEquals(11, journal.replay(replayed));
+        assertEquals(ordinals(population), ordinals(replayed));
+        assertEquals(3, replayed.countIn(Green.class));
+        assertEquals(List.of(0L), replayed.machinesIn(Red.class).boxed().toList());
+
+        population.detachJournal();
+        population.transition(0, Green.class);
+        assertEquals(11, journal.size());
+    }
+
+    @Test
+    public void testPointInTime() throws Exception {
+        var before = Instant.now();
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+        population.transition(0, Yellow.class);
+        Thread.sleep(20);
+        var between = Instant.now();
+        Thread.sleep(20);
+        population.transition(0, Red.class);
+        population.transition(1, Red.class);
+        var after = Instant.now();
+
+        var times = journal.entries().map(Entry::time).toList();
+        assertEquals(5, times.size());
+        for (var time : times) {
+            assertFalse(time.isBefore(before.minusMillis(1)), time + " before " + before);
+            assertFalse(time.isAfter(after.plusMillis(1)), time + " after " + after);
+        }
+        assertTrue(times.get(2).isBefore(between));
+        assertTrue(times.get(3).isAfter(between));
+
+        var past = definition.newPopulation(2);
+        assertEquals(3, journal.replay(past, between));
+        assertEquals(List.of(1, 0), ordinals(past));
+        var exact = definition.newPopulation(2);
+        assertEquals(4, journal.replay(exact, times.get(3)));
+        assertEquals(List.of(2, 0), ordinals(exact));
+        assertEquals(0, journal.replay(definition.newPopulation(2), Instant.EPOCH));
+        assertThrows(ArithmeticException.class, () -> journal.replay(definition.newPopulation(2), Instant.MAX));
+    }
+
+    @Test
+    public void testCancelledRecords() {
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+
+        interfere = 0;
+        population.transition(0, Yellow.class);
+        interfere = 1;
+        assertFalse(population.compareAndTransition(1, Green.class, Yellow.class));
+
+        assertEquals(List.of("0:-1>0", "1:-1>0", "0:0>2", "0:2>1", "1:0>2"), entries(journal));
+        assertEquals(5, journal.size());
+        var replayed = definition.newPopulation(2);
+        assertEquals(5, journal.replay(replayed));
+        assertEquals(List.of(1, 2), ordinals(replayed));
+
+        population.addAll(6, Red.class);
+        assertEquals("The population has room for 0 more machines, not 2",
+                assertThrows(IllegalStateException.class, () -> population.addAll(2, Green.class)).getMessage());
+        assertEquals(13, journal.size());
+        assertEquals(11, journal.entries().count());
+        assertEquals(8, population.size());
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        var journal = definition.openJournal(directory.resolve("small.journal"), 2, 0);
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+
+        assertEquals("The journal is full: 2 records",
+                assertThrows(IllegalStateException.class, () -> population.transition(0, Red.class)).getMessage());
+        assertEquals("The journal is full: 2 records",
+                assertThrows(IllegalStateException.class, () -> population.add(Red.class)).getMessage());
+        assertEquals(2, journal.size());
+        journal.force();
+        try (var channel = FileChannel.open(directory.resolve("small.journal"))) {
+            var header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            assertEquals(2, header.getLong(16));
+        }
+        assertEquals(List.of(0, 0), ordinals(population));
+        assertEquals(2, journal.replay(definition.newPopulation(2)));
+
+        journal.compact(population, Channels.newChannel(new ByteArrayOutputStream()));
+        assertEquals(0, journal.size());
+        assertEquals(List.of(), entries(journal));
+        population.transition(0, Red.class);
+        assertEquals(List.of("0:0>2"), entries(journal));
+    }
+
+    @Test
+    public void testCompactAndRecover() throws Exception {
+        population.attachJournal(journal);
+        population.addAll(3, Green.class);
+        population.fire(0, Signal.NEXT);
+        assertEquals(4, journal.unsynced());
+        var snapshot = new ByteArrayOutputStream();
+        journal.compact(population, Channels.newChannel(snapshot));
+        assertEquals(0, journal.unsynced());
+        population.fire(0, Signal.NEXT);
+        population.add(Yellow.class);
+
+        assertEquals(1, journal.generation());
+        assertEquals(List.of("0:1>2", "3:-1>1"), entries(journal));
+        var bytes = snapshot.toByteArray();
+        assertEquals(definition.snapshotCodec().sizeOf(definition.newPopulation(0)) + 3 * 2 + 8, bytes.length);
+        assertEquals(1, ByteBuffer.wrap(bytes).getLong(bytes.length - 8));
+        var records = ByteBuffer.wrap(Files.readAllBytes(file));
+        for (int offset = HEADER + 2 * RECORD; offset < HEADER + 5 * RECORD; offset++) {
+            assertEquals(0, records.get(offset), "byte " + offset);
+        }
+
+        var recovered = definition.newPopulation(8);
+        assertEquals(2, journal.recover(Channels.newChannel(new ByteArrayInputStream(bytes)), recovered));
+        assertEquals(ordinals(population), ordinals(recovered));
+        assertEquals(List.of(2, 0, 0, 1), ordinals(recovered));
+
+        var stale = ByteBuffer.wrap(bytes.clone()).putLong(bytes.length - 8, 0).array();
+        assertEquals("Snapshot of generation 0 does not belong to generation 1",
+                assertThrows(IllegalArgumentException.class, () -> journal.recover(
+                        Channels.newChannel(new ByteArrayInputStream(stale)), definition.newPopulation(8))).getMessage());
+        var future = ByteBuffer.wrap(bytes.clone()).putLong(bytes.length - 8, 3).array();
+        assertEquals("Snapshot of generation 3 does not belong to generation 1",
+                assertThrows(IllegalArgumentException.class, () -> journal.recover(
+                        Channels.newChannel(new ByteArrayInputStream(future)), definition.newPopulation(8))).getMessage());
+
+        var next = new ByteArrayOutputStream();
+        journal.compact(population, Channels.newChannel(next));
+        assertEquals(2, journal.generation());
+        assertEquals(List.of(), entries(journal));
+        assertEquals(2, ByteBuffer.wrap(next.toByteArray()).getLong(next.size() - 8));
+    }
+
+    @Test
+    public void testInterruptedCompaction() throws Exception {
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+        population.fire(1, Signal.NEXT);
+        var snapshot = new ByteArrayOutputStream();
+        var channel = Channels.newChannel(snapshot);
+        definition.snapshotCodec().write(population, channel);
+        channel.write(ByteBuffer.allocate(8).putLong(0, 1));
+
+        var recovered = definition.newPopulation(2);
+        assertEquals(0, journal.recover(Channels.newChannel(new ByteArrayInputStream(snapshot.toByteArray())),
+                recovered));
+        assertEquals(List.of(0, 1), ordinals(recovered));
+        assertEquals(1, journal.generation());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        population.attachJournal(journal);
+        population.addAll(2, Yellow.class);
+        journal.compact(population, Channels.newChannel(new ByteArrayOutputStream()));
+        population.transition(1, Red.class);
+
+        var reopened = definition.openJournal(file, 64, 0);
+        assertEquals(64, reopened.capacity());
+        assertSame(definition, reopened.getDefinition());
+        assertEquals(1, reopened.generation());
+        assertEquals(List.of("1:1>2"), entries(reopened));
+        assertEquals(HEADER + 64 * RECORD, Files.size(file));
+
+        assertEquals("File has room for 64 records, not 65",
+                assertThrows(IllegalArgumentException.class, () -> definition.openJournal(file, 65, 0)).getMessage());
+        var other = StateMachine.builder(Light.class).register(sm -> new Red()).compile();
+        assertEquals("File was written for another definition",
+                assertThrows(IllegalArgumentException.class, () -> other.openJournal(file, 64, 0)).getMessage());
+        var shortFile = Files.write(directory.resolve("short.journal"), new byte[1]);
+        assertEquals("File is too short for a journal",
+                assertThrows(IllegalArgumentException.class, () -> definition.openJournal(shortFile, 0, 0)).getMessage());
+        var empty = Files.createFile(directory.resolve("empty.journal"));
+        assertEquals(0, definition.openJournal(empty, 0, 0).size());
+        assertEquals(HEADER, Files.size(empty));
+        assertEquals(0, definition.openJournal(empty, 0, 0).capacity());
+    }
+
+    @Test
+    public void testDefinitions() {
+        var other = StateMachine.builder(Light.class).register(sm -> new Red()).compile().newPopulation(1);
+
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class, () -> other.attachJournal(journal)).getMessage());
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class, () -> journal.replay(other)).getMessage());
+        assertEquals("Population was created from another definition",
+                assertThrows(IllegalArgumentException.class,
+                        () -> journal.compact(other, Channels.newChannel(new ByteArrayOutputStream()))).getMessage());
+        assertEquals(0, journal.generation());
+
+        population.attachJournal(journal);
+        assertEquals("A journal is attached already",
+                assertThrows(IllegalStateException.class, () -> population.attachJournal(journal)).getMessage());
+        population.detachJournal();
+        population.attachJournal(journal);
+    }
+
+    @Test
+    public void testCorruptJournal() throws Exception {
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+        try (var channel = FileChannel.open(file, WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 0xFFFF_0003), HEADER + RECORD + 12);
+        }
+
+        assertEquals("Journal contains unknown ordinal 3",
+                assertThrows(IllegalArgumentException.class,
+                        () -> journal.replay(definition.newPopulation(2))).getMessage());
+        try (var channel = FileChannel.open(file, WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 0xFFFF_0002), HEADER + RECORD + 12);
+        }
+        var replayed = definition.newPopulation(2);
+        assertEquals(2, journal.replay(replayed));
+        assertEquals(List.of(0, 2), ordinals(replayed));
+    }
+
+    @Test
+    public void testReplayAddsGaps() {
+        var replayed = definition.newPopulation(4, true);
+        replayed.replay(2, 1);
+        assertEquals(List.of(1, 1, 1), ordinals(replayed));
+        assertEquals(3, replayed.countIn(Yellow.class));
+        replayed.replay(0, 2);
+        replayed.replay(2, 2);
+        replayed.replay(3, 0);
+        assertEquals(List.of(2, 1, 2, 0), ordinals(replayed));
+        assertEquals(1, replayed.countIn(Yellow.class));
+        assertEquals(List.of(0L, 2L), replayed.machinesIn(Red.class).boxed().toList());
+        assertEquals("The population has room for 0 more machines, not 1",
+                assertThrows(IllegalStateException.class, () -> replayed.replay(4, 0)).getMessage());
+    }
+
+    @Test
+    public void testSyncInterval() throws Exception {
+        var journal = definition.openJournal(directory.resolve("sync.journal"), 16, 3);
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+        assertEquals(2, journal.unsynced());
+        population.fire(0, Signal.NEXT);
+        assertEquals(0, journal.unsynced());
+        population.fire(0, Signal.NEXT);
+        assertEquals(1, journal.unsynced());
+        journal.force();
+        assertEquals(0, journal.unsynced());
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        var journal = definition.openJournal(directory.resolve("concurrent.journal"), THREADS * ROUNDS * 4, 0);
+        population.attachJournal(journal);
+        population.addAll(2, Green.class);
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            tasks.add(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    population.fire(0, Signal.NEXT);
+                    population.fire(1, Signal.NEXT);
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        var replayed = definition.newPopulation(2);
+        assertEquals(journal.entries().count(), journal.replay(replayed));
+        assertTrue(journal.entries().count() >= THREADS * ROUNDS * 2 + 2);
+        assertEquals(ordinals(population), ordinals(replayed));
+        assertEquals(List.of(THREADS * ROUNDS % 3, THREADS * ROUNDS % 3), ordinals(replayed));
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        assertEquals(65_534, TransitionJournal.checkStates(65_535));
+        assertEquals("Journals support at most 65535 states, not 65536",
+                assertThrows(UnsupportedOperationException.class,
+                        () -> TransitionJournal.checkStates(65_536)).getMessage());
+        TransitionJournal.checkCapacity(MAX_CAPACITY);
+        assertEquals(Integer.MAX_VALUE - 15, HEADER + MAX_CAPACITY * (long) RECORD);
+        assertEquals("Capacity of a journal must be at most 134217725: 134217726",
+                assertThrows(IllegalArgumentException.class,
+                        () -> definition.openJournal(file, MAX_CAPACITY + 1, 0)).getMessage());
+        assertEquals("Capacity must not be negative: -1",
+                assertThrows(IllegalArgumentException.class, () -> definition.openJournal(file, -1, 0)).getMessage());
+        assertEquals("Sync interval must not be negative: -1",
+                assertThrows(IllegalArgumentException.class, () -> definition.openJournal(file, 1, -1)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("file is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> definition.openJournal(null, 1, 0)).getMessage());
+    }
+}
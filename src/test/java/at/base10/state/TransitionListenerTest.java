@@ -0,0 +1,136 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import at.base10.state.observer.Observer;
+import at.base10.state.observer.StateChangeEvent;
+import at.base10.state.observer.TransitionListener;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransitionListenerTest {
+
+    private static final int TRANSITIONS = 10_000;
+    private static final int ROUNDS = 5;
+
+    private CompiledStateMachine<AppState> stateMachine;
+
+    @BeforeEach
+    public void setUp() {
+        stateMachine = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .build(StateTransit.class);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Configurator.setLevel("at.base10", Level.DEBUG);
+    }
+
+    @Test
+    public void testListenerReceivesStates() {
+        var transitions = new ArrayList<List<AppState>>();
+        stateMachine.registerObserver((TransitionListener<AppState>) (previous, current) -> transitions.add(List.of(previous, current)));
+
+        var first = stateMachine.currentState();
+        var second = stateMachine.transitionToState(StateInc.class).currentState();
+
+        assertEquals(List.of(List.of(first, second)), transitions);
+    }
+
+    @Test
+    public void testListenerReceivesEvents() {
+        var transitions = new ArrayList<List<AppState>>();
+        TransitionListener<AppState> listener = (previous, current) -> transitions.add(List.of(previous, current));
+        var first = new StateInc();
+        var second = new StateInc();
+
+        listener.next(new StateChangeEvent<>(first, second));
+
+        assertEquals(List.of(List.of(first, second)), transitions);
+    }
+
+    @Test
+    public void testObserversInRegistrationOrder() {
+        var events = new ArrayList<String>();
+        Observer<AppState> first = event -> events.add("first");
+        Observer<AppState> second = event -> events.add("second");
+        Observer<AppState> third = event -> events.add("third");
+        stateMachine.registerObserver(first);
+        stateMachine.registerObserver(second);
+        stateMachine.registerObserver(third);
+
+        stateMachine.transitionToState(StateInc.class);
+        assertTrue(stateMachine.unregisterObserver(second));
+        stateMachine.transitionToState(StateSquare.class);
+        assertTrue(stateMachine.unregisterObserver(first));
+        stateMachine.transitionToState(StateInc.class);
+
+        assertEquals(List.of("first", "second", "third", "first", "third", "third"), events);
+    }
+
+    @Test
+    public void testRegisterDuringNotification() {
+        var events = new ArrayList<String>();
+        Observer<AppState> late = event -> events.add("late");
+        stateMachine.registerObserver(event -> {
+            events.add("early");
+            stateMachine.registerObserver(late);
+        });
+
+        stateMachine.transitionToState(StateInc.class);
+        stateMachine.transitionToState(StateSquare.class);
+
+        assertEquals(List.of("early", "early", "late"), events);
+    }
+
+    @Test
+    public void testTransitionDoesNotAllocate() {
+        Configurator.setLevel("at.base10", Level.INFO);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var counter = new long[1];
+        stateMachine.registerObserver((TransitionListener<AppState>) (previous, current) -> counter[0]++);
+        transition(TRANSITIONS);
+
+        // the JIT and the runtime may allocate on this thread once, a steady allocation shows in every round
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            transition(TRANSITIONS);
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+
+        assertEquals(0, allocated);
+        assertEquals(4L * TRANSITIONS * (ROUNDS + 1), counter[0]);
+    }
+
+    private void transition(int times) {
+        for (int i = 0; i < times; i++) {
+            stateMachine.transitionToState(StateInc.class);
+            stateMachine.transitionToState(StateSquare.class);
+            stateMachine.transitionToState(1);
+            stateMachine.transitionToState(0);
+        }
+    }
+
+    @Test
+    public void testRegisterNull() {
+        //noinspection DataFlowIssue
+        assertEquals("observer is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> stateMachine.registerObserver(null)).getMessage());
+    }
+}
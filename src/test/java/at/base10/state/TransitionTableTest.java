@@ -0,0 +1,187 @@
+package at.base10.state;
+
+import at.base10.state.StateMachineTest.AppState;
+import at.base10.state.StateMachineTest.SquareFunction;
+import at.base10.state.StateMachineTest.StateInc;
+import at.base10.state.StateMachineTest.StateSquare;
+import at.base10.state.StateMachineTest.StateTransit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransitionTableTest {
+
+    private final List<String> guarded = new ArrayList<>();
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean open;
+
+    private StateMachineBuilder<AppState> builder;
+
+    @BeforeEach
+    public void setUp() {
+        builder = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .allow(StateTransit.class, StateInc.class)
+                .allow(StateTransit.class, StateSquare.class, (transit, square) -> {
+                    guarded.add(transit + " -> " + square.getClass().getSimpleName());
+                    return true;
+                })
+                .allow(StateInc.class, StateSquare.class)
+                .allow(StateSquare.class, StateInc.class, (square, inc) -> {
+                    guarded.add(square.getClass().getSimpleName() + " -> " + inc);
+                    return open;
+                });
+    }
+
+    @Test
+    public void testAllowedTransitions() {
+        var stateMachine = builder.build(StateTransit.class);
+
+        assertEquals(3, stateMachine.currentState().execute(2));
+        assertInstanceOf(StateSquare.class, stateMachine.transitionToState(StateSquare.class).currentState());
+        open = true;
+        assertInstanceOf(StateInc.class, stateMachine.transitionToState(StateInc.class).currentState());
+
+        assertEquals(List.of("StateSquare -> Inc"), guarded);
+    }
+
+    @Test
+    public void testNotAllowed() {
+        var stateMachine = builder.build(StateInc.class);
+
+        assertEquals("Transition from StateInc to StateTransit is not allowed",
+                assertThrows(IllegalStateException.class, () -> stateMachine.transitionToState(StateTransit.class)).getMessage());
+        assertEquals("Transition from StateInc to StateInc is not allowed",
+                assertThrows(IllegalStateException.class, () -> stateMachine.transitionToState(1)).getMessage());
+        assertInstanceOf(StateInc.class, stateMachine.currentState());
+    }
+
+    @Test
+    public void testRejectedByGuard() {
+        var stateMachine = builder.build(StateSquare.class);
+
+        assertEquals("Transition from StateSquare to StateInc was rejected by its guard",
+                assertThrows(IllegalStateException.class, () -> stateMachine.transitionToState(StateInc.class)).getMessage());
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+        assertEquals(List.of("StateSquare -> Inc"), guarded);
+    }
+
+    @Test
+    public void testGuardSeesTheStatesOfTheMachine() {
+        var stateMachine = builder.build(StateTransit.class);
+        var transit = stateMachine.currentState();
+
+        stateMachine.transitionToState(StateSquare.class);
+
+        assertEquals(List.of(transit + " -> StateSquare"), guarded);
+    }
+
+    @Test
+    public void testDefinitionQueries() {
+        var definition = builder.compile();
+
+        assertTrue(definition.isAllowed(StateTransit.class, StateInc.class));
+        assertTrue(definition.isAllowed(StateTransit.class, StateSquare.class));
+        assertTrue(definition.isAllowed(StateSquare.class, StateInc.class));
+        assertFalse(definition.isAllowed(StateInc.class, StateTransit.class));
+        assertFalse(definition.isAllowed(StateInc.class, StateInc.class));
+        assertFalse(definition.isAllowed(StateSquare.class, StateTransit.class));
+
+        assertEquals(List.of(StateInc.class, StateSquare.class), List.copyOf(definition.reachableFrom(StateTransit.class)));
+        assertEquals(List.of(StateInc.class, StateSquare.class), List.copyOf(definition.reachableFrom(StateSquare.class)));
+        assertThrows(UnsupportedOperationException.class, () -> definition.reachableFrom(StateInc.class).clear());
+        assertTrue(guarded.isEmpty());
+        assertTrue(definition.transitions().guarded());
+    }
+
+    @Test
+    public void testReachableWithoutOutgoingTransitions() {
+        var definition = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .register(sm -> new StateSquare(new SquareFunction(), sm))
+                .allow(StateInc.class, StateTransit.class)
+                .allow(StateTransit.class, StateSquare.class)
+                .compile();
+
+        assertEquals(Set.of(StateTransit.class, StateSquare.class), definition.reachableFrom(StateInc.class));
+        assertEquals(Set.of(), definition.reachableFrom(StateSquare.class));
+        assertFalse(definition.isAllowed(StateSquare.class, StateInc.class));
+        assertFalse(definition.transitions().guarded());
+    }
+
+    @Test
+    public void testEverythingAllowedWithoutDeclaredTransitions() {
+        var definition = StateMachine.builder(AppState.class)
+                .register(StateTransit::new)
+                .register(sm -> new StateInc())
+                .compile();
+
+        assertTrue(definition.isAllowed(StateInc.class, StateTransit.class));
+        assertTrue(definition.isAllowed(StateInc.class, StateInc.class));
+        assertEquals(List.of(StateTransit.class, StateInc.class), List.copyOf(definition.reachableFrom(StateInc.class)));
+        assertInstanceOf(StateTransit.class, definition.newInstance(StateInc.class).transitionToState(0).currentState());
+        assertFalse(definition.transitions().guarded());
+    }
+
+    @Test
+    public void testInvalidDeclarations() {
+        assertEquals("Transition from StateInc to StateSquare is declared twice",
+                assertThrows(IllegalArgumentException.class,
+                        () -> builder.allow(StateInc.class, StateSquare.class).compile()).getMessage());
+        assertEquals("State class at.base10.state.StateMachineTest$StateTransit not found",
+                assertThrows(IllegalArgumentException.class, () -> StateMachine.builder(AppState.class)
+                        .register(sm -> new StateInc())
+                        .allow(StateInc.class, StateTransit.class)
+                        .build(StateInc.class)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("from is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> builder.allow(null, StateInc.class)).getMessage());
+        //noinspection DataFlowIssue
+        assertEquals("guard is marked non-null but is null",
+                assertThrows(NullPointerException.class, () -> builder.allow(StateInc.class, StateSquare.class, null)).getMessage());
+    }
+
+    @Test
+    public void testConcurrent() {
+        var stateMachine = builder.concurrent().build(StateSquare.class);
+
+        assertFalse(stateMachine.compareAndTransition(StateInc.class, StateTransit.class));
+        assertEquals("Transition from StateSquare to StateInc was rejected by its guard",
+                assertThrows(IllegalStateException.class,
+                        () -> stateMachine.compareAndTransition(StateSquare.class, StateInc.class)).getMessage());
+        assertEquals("Transition from StateSquare to StateTransit is not allowed",
+                assertThrows(IllegalStateException.class, () -> stateMachine.transitionToState(StateTransit.class)).getMessage());
+        assertInstanceOf(StateSquare.class, stateMachine.currentState());
+
+        open = true;
+        assertTrue(stateMachine.compareAndTransition(StateSquare.class, StateInc.class));
+        assertInstanceOf(StateSquare.class, stateMachine.transitionToState(StateSquare.class).currentState());
+        assertEquals(List.of("StateSquare -> Inc", "StateSquare -> Inc"), guarded);
+    }
+
+    @Test
+    public void testMailbox() {
+        var stateMachine = builder.mailbox(tasks::add).build(StateInc.class);
+
+        var rejected = stateMachine.submitTransition(StateTransit.class);
+        var accepted = stateMachine.submitTransition(StateSquare.class);
+        for (var task = tasks.poll(); task != null; task = tasks.poll()) {
+            task.run();
+        }
+
+        assertEquals("Transition from StateInc to StateTransit is not allowed",
+                assertThrows(CompletionException.class, rejected::join).getCause().getMessage());
+        assertInstanceOf(StateSquare.class, accepted.join());
+    }
+}